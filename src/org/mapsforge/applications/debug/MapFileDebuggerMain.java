@@ -38,6 +38,8 @@ import org.mapsforge.storage.dataExtraction.MapFileMetaData;
 import org.mapsforge.storage.tile.PCTilePersistenceManager;
 import org.mapsforge.storage.tile.TileDataContainer;
 import org.mapsforge.storage.tile.TilePersistenceManager;
+import org.mapsforge.storage.tile.TileTagExtractor;
+import org.mapsforge.storage.tile.TileTagSummary;
 
 /**
  * 
@@ -97,8 +99,15 @@ public class MapFileDebuggerMain {
 	 *            Path to map file that will be generated.
 	 * @param useCompression
 	 *            Currently not used.
+	 * @param useWayNameDictionary
+	 *            If true, way names will be stored once in a global dictionary ordered by frequency.
+	 *            The tiles then only contain the names' dictionary indexes.
+	 * @param buildWayIndex
+	 *            If true, an index from way IDs to the ways' records will be created. The map file
+	 *            must contain way IDs.
 	 */
-	private static void mapToSQLite(String mapsforgeMapFilePath, String outputFilePath, boolean useCompression) {
+	private static void mapToSQLite(String mapsforgeMapFilePath, String outputFilePath, boolean useCompression,
+			boolean useWayNameDictionary, boolean buildWayIndex) {
 		SimpleTileExtractor ste = null;
 		MapFile mf = null;
 
@@ -144,10 +153,42 @@ public class MapFileDebuggerMain {
 						mf.getMaximalZoomLevel()[i], TileDataContainer.TILE_TYPE_VECTOR);
 			}
 
+			// Count way names (first pass)
+			WayNameDictionaryBuilder dictionaryBuilder = null;
+			if (useWayNameDictionary) {
+				dictionaryBuilder = new WayNameDictionaryBuilder(mfm, USE_WAY_IDS);
+				for (byte zoomInterval = 0; zoomInterval < ste.getMapFile().getAmountOfZoomIntervals(); zoomInterval++) {
+					for (int y = ste.getMinY(zoomInterval); y <= ste.getMaxY(zoomInterval); y++) {
+						for (int x = ste.getMinX(zoomInterval); x <= ste.getMaxX(zoomInterval); x++) {
+							tile = ste.getTile(x, y, zoomInterval);
+
+							if (tile != null) {
+								dictionaryBuilder.countNames(tile, zoomInterval);
+							}
+						}
+					}
+				}
+				mfm.setWayNameDictionaryFlag(true);
+			}
+
 			writer = new PCTilePersistenceManager(outputFilePath, mfm);
+			if (dictionaryBuilder != null) {
+				String[] wayNames = dictionaryBuilder.buildDictionary();
+				System.out.println("Way name dictionary entries: " + wayNames.length);
+				writer.setWayNames(wayNames);
+			}
+
+			WayIndexBuilder wayIndexBuilder = null;
+			if (buildWayIndex && USE_WAY_IDS) {
+				wayIndexBuilder = new WayIndexBuilder(mfm);
+			}
+
+			TileTagExtractor tagExtractor = new TileTagExtractor(mfm, USE_WAY_IDS);
+
 			int added = 0;
 
 			Vector<TileDataContainer> tiles = new Vector<TileDataContainer>();
+			Vector<TileTagSummary> tagSummaries = new Vector<TileTagSummary>();
 
 			// Read tile
 			for (byte zoomInterval = 0; zoomInterval < ste.getMapFile().getAmountOfZoomIntervals(); zoomInterval++) {
@@ -156,6 +197,17 @@ public class MapFileDebuggerMain {
 						tile = ste.getTile(x, y, zoomInterval);
 
 						if (tile != null) {
+							if (dictionaryBuilder != null) {
+								tile = dictionaryBuilder.encodeTile(tile, zoomInterval);
+							}
+
+							// Offsets refer to the tile as it is stored
+							if (wayIndexBuilder != null) {
+								wayIndexBuilder.indexTile(tile, x, y, zoomInterval);
+							}
+
+							tagSummaries.add(tagExtractor.createSummary(tile, x, y, zoomInterval));
+
 							// writer.insert(tile, x, y, zoomInterval);
 							tiles.add(new TileDataContainer(tile, TileDataContainer.TILE_TYPE_VECTOR,
 									x, y, zoomInterval));
@@ -167,6 +219,11 @@ public class MapFileDebuggerMain {
 						if (added % 100 == 0) {
 							writer.insertOrUpdateTiles(tiles);
 							tiles.clear();
+							writer.insertOrUpdateTileTagSummaries(tagSummaries);
+							tagSummaries.clear();
+							if (wayIndexBuilder != null) {
+								writer.insertWayIndexEntries(wayIndexBuilder.nextBatch());
+							}
 							System.out.printf("Added %7d tiles\r", added);
 						}
 
@@ -177,6 +234,10 @@ public class MapFileDebuggerMain {
 			// Write batches
 			// writer.finish();
 			writer.insertOrUpdateTiles(tiles);
+			writer.insertOrUpdateTileTagSummaries(tagSummaries);
+			if (wayIndexBuilder != null) {
+				writer.insertWayIndexEntries(wayIndexBuilder.nextBatch());
+			}
 			writer.close();
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.applications.debug;
+
+import org.mapsforge.storage.dataExtraction.MapFileMetaData;
+import org.mapsforge.storage.tile.WayIndex;
+
+/**
+ * Collects the way index entries (way ID to interval, tile and byte offset) for tiles that are written
+ * to a map database. The tiles must contain way IDs.
+ * 
+ * @author Karsten Groll
+ * 
+ */
+public class WayIndexBuilder {
+	private final MapFileMetaData mfm;
+	private WayIndex entries;
+
+	/**
+	 * 
+	 * @param mfm
+	 *            The meta data of the map the tiles belong to.
+	 */
+	public WayIndexBuilder(MapFileMetaData mfm) {
+		this.mfm = mfm;
+		this.entries = new WayIndex(1024);
+	}
+
+	/**
+	 * Adds an index entry for each way of a tile. The tile must be passed the way it is stored in the
+	 * database, as the offsets refer to the tile's raw data.
+	 * 
+	 * @param tile
+	 *            The tile's raw data.
+	 * @param x
+	 *            The tile's x coordinate.
+	 * @param y
+	 *            The tile's y coordinate.
+	 * @param baseZoomInterval
+	 *            The tile's base zoom interval.
+	 */
+	public void indexTile(byte[] tile, int x, int y, byte baseZoomInterval) {
+		Serializer s = new Serializer(tile);
+
+		// Tile signature (32B, optional)
+		if (this.mfm.isDebugFlagSet()) {
+			s.skip(32);
+		}
+
+		// Zoom table (the counts are cumulated, so the last row holds the total amount of ways)
+		int numWays = 0;
+		int minZoomLevel = this.mfm.getMinimalZoomLevel()[baseZoomInterval];
+		int maxZoomLevel = this.mfm.getMaximalZoomLevel()[baseZoomInterval];
+		for (int row = minZoomLevel; row <= maxZoomLevel; row++) {
+			s.getNextShort();
+			numWays = s.getNextShort();
+		}
+
+		// First way offset (VBE-U)
+		int firstWayOffset = s.getNextVBEUInt();
+		s.skip(firstWayOffset);
+
+		int wayStart;
+		int wayDataSize;
+		int wayDataEnd;
+		for (int way = 0; way < numWays; way++) {
+			wayStart = s.getPosition();
+
+			if (this.mfm.isDebugFlagSet()) {
+				s.skip(32);
+			}
+
+			wayDataSize = s.getNextVBEUInt();
+			wayDataEnd = s.getPosition() + wayDataSize;
+
+			this.entries.add(s.getNextLong(), baseZoomInterval, x, y, wayStart);
+			s.skip(wayDataEnd - s.getPosition());
+		}
+	}
+
+	/**
+	 * Returns all entries collected since the last call and starts a new batch.
+	 * 
+	 * @return The collected entries. A way may occur more than once if it is stored in several tiles.
+	 */
+	public WayIndex nextBatch() {
+		WayIndex ret = this.entries;
+		this.entries = new WayIndex(1024);
+
+		return ret;
+	}
+}
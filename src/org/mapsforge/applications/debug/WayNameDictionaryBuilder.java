@@ -0,0 +1,240 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.applications.debug;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.mapsforge.storage.dataExtraction.MapFileMetaData;
+
+/**
+ * Builds a global way name dictionary and rewrites tiles so that they refer to way names by their
+ * dictionary index instead of storing the UTF-8 string inline. Names are ordered by frequency, so the
+ * most common names get the smallest (and therefore shortest VBE-U encoded) indexes.
+ * 
+ * Usage: call {@link #countNames(byte[], byte)} for all tiles, then {@link #buildDictionary()} and
+ * finally {@link #encodeTile(byte[], byte)} for all tiles.
+ * 
+ * @author Karsten Groll
+ * 
+ */
+public class WayNameDictionaryBuilder {
+	private final MapFileMetaData mfm;
+	private final boolean containsWayIDs;
+
+	/** Number of ways per name. */
+	private final HashMap<String, Integer> nameCount;
+	/** Dictionary index per name. */
+	private HashMap<String, Integer> nameIndex;
+
+	/**
+	 * 
+	 * @param mfm
+	 *            The meta data of the map the tiles belong to.
+	 * @param containsWayIDs
+	 *            true if the tiles contain way IDs.
+	 */
+	public WayNameDictionaryBuilder(MapFileMetaData mfm, boolean containsWayIDs) {
+		this.mfm = mfm;
+		this.containsWayIDs = containsWayIDs;
+		this.nameCount = new HashMap<String, Integer>();
+	}
+
+	/**
+	 * Counts all way names of a tile.
+	 * 
+	 * @param tile
+	 *            The tile's raw data.
+	 * @param baseZoomInterval
+	 *            The tile's base zoom interval.
+	 */
+	public void countNames(byte[] tile, byte baseZoomInterval) {
+		Serializer s = new Serializer(tile);
+		int numWays = skipToFirstWay(s, baseZoomInterval);
+
+		Integer count;
+		int wayDataSize;
+		int wayDataEnd;
+		String name;
+		for (int way = 0; way < numWays; way++) {
+			if (this.mfm.isDebugFlagSet()) {
+				s.skip(32);
+			}
+
+			wayDataSize = s.getNextVBEUInt();
+			wayDataEnd = s.getPosition() + wayDataSize;
+
+			if (skipToWayName(s)) {
+				name = s.getNextString();
+				count = this.nameCount.get(name);
+				this.nameCount.put(name, Integer.valueOf(count == null ? 1 : count.intValue() + 1));
+			}
+
+			s.skip(wayDataEnd - s.getPosition());
+		}
+	}
+
+	/**
+	 * Creates the dictionary from all names counted so far.
+	 * 
+	 * @return All way names ordered by frequency (most frequent name first).
+	 */
+	public String[] buildDictionary() {
+		List<Map.Entry<String, Integer>> entries = new ArrayList<Map.Entry<String, Integer>>(this.nameCount.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<String, Integer>>() {
+			@Override
+			public int compare(Map.Entry<String, Integer> e1, Map.Entry<String, Integer> e2) {
+				int ret = e2.getValue().compareTo(e1.getValue());
+				return ret != 0 ? ret : e1.getKey().compareTo(e2.getKey());
+			}
+		});
+
+		String[] ret = new String[entries.size()];
+		this.nameIndex = new HashMap<String, Integer>(entries.size() * 2);
+		for (int i = 0; i < ret.length; i++) {
+			ret[i] = entries.get(i).getKey();
+			this.nameIndex.put(ret[i], Integer.valueOf(i));
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Replaces all inline way names of a tile by their dictionary indexes.
+	 * {@link #buildDictionary()} has to be called before.
+	 * 
+	 * @param tile
+	 *            The tile's raw data.
+	 * @param baseZoomInterval
+	 *            The tile's base zoom interval.
+	 * @return The rewritten tile.
+	 */
+	public byte[] encodeTile(byte[] tile, byte baseZoomInterval) {
+		Serializer s = new Serializer(tile);
+		int numWays = skipToFirstWay(s, baseZoomInterval);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(tile.length);
+
+		// Header and POIs are not changed
+		out.write(tile, 0, s.getPosition());
+
+		int wayDataSize;
+		int wayDataStart;
+		int wayDataEnd;
+		int nameStart;
+		String name;
+		ByteArrayOutputStream wayData = new ByteArrayOutputStream();
+		for (int way = 0; way < numWays; way++) {
+			if (this.mfm.isDebugFlagSet()) {
+				out.write(tile, s.getPosition(), 32);
+				s.skip(32);
+			}
+
+			wayDataSize = s.getNextVBEUInt();
+			wayDataStart = s.getPosition();
+			wayDataEnd = wayDataStart + wayDataSize;
+
+			if (!skipToWayName(s)) {
+				writeVBEUInt(out, wayDataSize);
+				out.write(tile, wayDataStart, wayDataSize);
+				s.skip(wayDataEnd - s.getPosition());
+				continue;
+			}
+
+			nameStart = s.getPosition();
+			name = s.getNextString();
+
+			wayData.reset();
+			wayData.write(tile, wayDataStart, nameStart - wayDataStart);
+			writeVBEUInt(wayData, this.nameIndex.get(name).intValue());
+			wayData.write(tile, s.getPosition(), wayDataEnd - s.getPosition());
+
+			writeVBEUInt(out, wayData.size());
+			out.write(wayData.toByteArray(), 0, wayData.size());
+			s.skip(wayDataEnd - s.getPosition());
+		}
+
+		// Trailing data
+		out.write(tile, s.getPosition(), tile.length - s.getPosition());
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * Skips the tile header and all POIs.
+	 * 
+	 * @return The number of ways in this tile.
+	 */
+	private int skipToFirstWay(Serializer s, byte baseZoomInterval) {
+		// Tile signature (32B, optional)
+		if (this.mfm.isDebugFlagSet()) {
+			s.skip(32);
+		}
+
+		// Zoom table (the counts are cumulated, so the last row holds the total amount of ways)
+		int numWays = 0;
+		int minZoomLevel = this.mfm.getMinimalZoomLevel()[baseZoomInterval];
+		int maxZoomLevel = this.mfm.getMaximalZoomLevel()[baseZoomInterval];
+		for (int row = minZoomLevel; row <= maxZoomLevel; row++) {
+			s.getNextShort();
+			numWays = s.getNextShort();
+		}
+
+		// First way offset (VBE-U)
+		int firstWayOffset = s.getNextVBEUInt();
+		s.skip(firstWayOffset);
+
+		return numWays;
+	}
+
+	/**
+	 * Moves the serializer from the start of a way's data (after the way data size) to the way's name.
+	 * 
+	 * @return true if the way has a name.
+	 */
+	private boolean skipToWayName(Serializer s) {
+		// OSM Way ID
+		if (this.containsWayIDs) {
+			s.skip(8);
+		}
+
+		// Sub tile bitmap
+		s.skip(2);
+
+		// Special byte and tag IDs
+		byte specialByte = s.getNextByte();
+		for (byte pos = 0; pos < (specialByte & (byte) 0x0f); pos++) {
+			s.getNextVBEUInt();
+		}
+
+		// Flags
+		byte flags = s.getNextByte();
+
+		return (flags & (byte) 0x80) != 0;
+	}
+
+	private static void writeVBEUInt(ByteArrayOutputStream out, int value) {
+		int v = value;
+		while ((v & 0xffffff80) != 0) {
+			out.write((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		out.write(v);
+	}
+}
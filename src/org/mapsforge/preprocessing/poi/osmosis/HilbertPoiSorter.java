@@ -0,0 +1,333 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.preprocessing.poi.osmosis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.logging.Logger;
+
+import org.mapsforge.storage.poi.HilbertCurve;
+import org.mapsforge.storage.poi.PoiTagDictionary;
+
+/**
+ * Sorts POIs by the Hilbert key of their position using an external merge sort. POIs are collected in
+ * memory, each full buffer is sorted and written to a temporary file (a run) and the runs are merged
+ * when the POIs are read. The memory used is therefore bounded by the buffer size, independent of the
+ * number of POIs.
+ * 
+ * @author Karsten Groll
+ * 
+ */
+class HilbertPoiSorter {
+	private static final Logger LOGGER = Logger.getLogger(POIWriterTask.class.getName());
+
+	// Number of POIs per run
+	private static final int RUN_SIZE = 500000;
+
+	// Buffer size of each run file's stream
+	private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+	private final ArrayList<PoiRecord> buffer;
+	private final ArrayList<File> runs;
+	private int size;
+
+	HilbertPoiSorter() {
+		this.buffer = new ArrayList<PoiRecord>();
+		this.runs = new ArrayList<File>();
+		this.size = 0;
+	}
+
+	/**
+	 * Adds a POI.
+	 * 
+	 * @param id
+	 *            The POI's ID.
+	 * @param latitude
+	 *            The POI's latitude.
+	 * @param longitude
+	 *            The POI's longitude.
+	 * @param categoryID
+	 *            The POI's category ID.
+	 * @param tags
+	 *            The POI's tags as <code>[key_1, value_1, ..., key_n, value_n]</code>.
+	 * @throws IOException
+	 *             if a run could not be written.
+	 */
+	void add(long id, double latitude, double longitude, int categoryID, String[] tags) throws IOException {
+		this.buffer.add(new PoiRecord(HilbertCurve.getKey(latitude, longitude), id, latitude, longitude,
+				categoryID, tags));
+		++this.size;
+
+		if (this.buffer.size() >= RUN_SIZE) {
+			writeRun();
+		}
+	}
+
+	/**
+	 * 
+	 * @return Number of POIs added.
+	 */
+	int size() {
+		return this.size;
+	}
+
+	/**
+	 * Sorts the POIs. No POIs may be added afterwards.
+	 * 
+	 * @return An iterator returning all POIs ordered by their Hilbert key. Its next() method throws an
+	 *         IllegalStateException caused by an IOException if a run could not be read.
+	 * @throws IOException
+	 *             if a run could not be written or opened.
+	 */
+	Iterator<PoiRecord> sort() throws IOException {
+		if (this.runs.isEmpty()) {
+			// All POIs fit into memory
+			Collections.sort(this.buffer);
+			return this.buffer.iterator();
+		}
+
+		if (!this.buffer.isEmpty()) {
+			writeRun();
+		}
+
+		LOGGER.info("Merging " + this.runs.size() + " sorted runs");
+		return new RunMerger();
+	}
+
+	/**
+	 * Deletes all temporary files.
+	 */
+	void release() {
+		for (File run : this.runs) {
+			if (!run.delete()) {
+				run.deleteOnExit();
+			}
+		}
+		this.runs.clear();
+		this.buffer.clear();
+	}
+
+	private void writeRun() throws IOException {
+		Collections.sort(this.buffer);
+
+		File run = File.createTempFile("poi-run-", ".tmp");
+		run.deleteOnExit();
+
+		// A partially written run is deleted and never merged
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run),
+					STREAM_BUFFER_SIZE));
+			try {
+				for (PoiRecord r : this.buffer) {
+					r.write(out);
+				}
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			run.delete();
+			throw e;
+		}
+		this.runs.add(run);
+
+		LOGGER.fine("Wrote run " + this.runs.size() + " (" + this.buffer.size() + " POIs)");
+		this.buffer.clear();
+	}
+
+	/**
+	 * A POI as written to a run file.
+	 */
+	static final class PoiRecord implements Comparable<PoiRecord> {
+		final long key;
+		final long id;
+		final double latitude;
+		final double longitude;
+		final int categoryID;
+		final String[] tags;
+
+		PoiRecord(long key, long id, double latitude, double longitude, int categoryID, String[] tags) {
+			this.key = key;
+			this.id = id;
+			this.latitude = latitude;
+			this.longitude = longitude;
+			this.categoryID = categoryID;
+			this.tags = tags;
+		}
+
+		/**
+		 * @return The POI's name or null if it does not have a name tag.
+		 */
+		String getName() {
+			for (int i = 0; i < this.tags.length; i += 2) {
+				if (PoiTagDictionary.NAME_KEY.equals(this.tags[i])) {
+					return this.tags[i + 1];
+				}
+			}
+
+			return null;
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			out.writeLong(this.key);
+			out.writeLong(this.id);
+			out.writeDouble(this.latitude);
+			out.writeDouble(this.longitude);
+			out.writeInt(this.categoryID);
+			out.writeInt(this.tags.length);
+			for (String s : this.tags) {
+				out.writeUTF(s);
+			}
+		}
+
+		/**
+		 * @return The next record or null at the end of the stream.
+		 */
+		static PoiRecord read(DataInputStream in) throws IOException {
+			long key;
+			try {
+				key = in.readLong();
+			} catch (EOFException e) {
+				return null;
+			}
+
+			long id = in.readLong();
+			double latitude = in.readDouble();
+			double longitude = in.readDouble();
+			int categoryID = in.readInt();
+			String[] tags = new String[in.readInt()];
+			for (int i = 0; i < tags.length; i++) {
+				tags[i] = in.readUTF();
+			}
+
+			return new PoiRecord(key, id, latitude, longitude, categoryID, tags);
+		}
+
+		@Override
+		public int compareTo(PoiRecord other) {
+			if (this.key != other.key) {
+				return this.key < other.key ? -1 : 1;
+			}
+
+			return this.id < other.id ? -1 : (this.id > other.id ? 1 : 0);
+		}
+	}
+
+	/**
+	 * The head of a run during merging.
+	 */
+	private static final class RunHead implements Comparable<RunHead> {
+		final DataInputStream in;
+		PoiRecord record;
+
+		RunHead(DataInputStream in, PoiRecord record) {
+			this.in = in;
+			this.record = record;
+		}
+
+		@Override
+		public int compareTo(RunHead other) {
+			return this.record.compareTo(other.record);
+		}
+	}
+
+	/**
+	 * Merges all runs, always returning the smallest head of all runs.
+	 */
+	private final class RunMerger implements Iterator<PoiRecord> {
+		private final PriorityQueue<RunHead> heads;
+
+		RunMerger() throws IOException {
+			this.heads = new PriorityQueue<RunHead>(HilbertPoiSorter.this.runs.size());
+
+			DataInputStream in;
+			PoiRecord first;
+			for (File run : HilbertPoiSorter.this.runs) {
+				in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), STREAM_BUFFER_SIZE));
+				first = PoiRecord.read(in);
+				if (first == null) {
+					in.close();
+				} else {
+					this.heads.add(new RunHead(in, first));
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return !this.heads.isEmpty();
+		}
+
+		@Override
+		public PoiRecord next() {
+			RunHead head = this.heads.poll();
+			if (head == null) {
+				throw new NoSuchElementException();
+			}
+
+			PoiRecord ret = head.record;
+			try {
+				head.record = PoiRecord.read(head.in);
+			} catch (IOException e) {
+				// Treating the run as ended would silently drop its remaining POIs
+				this.heads.add(head);
+				close();
+				throw new IllegalStateException("Reading a sorted run failed", e);
+			}
+
+			if (head.record == null) {
+				try {
+					head.in.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			} else {
+				this.heads.add(head);
+			}
+
+			return ret;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		/**
+		 * Closes all runs that have not been read completely.
+		 */
+		private void close() {
+			for (RunHead head : this.heads) {
+				try {
+					head.in.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			this.heads.clear();
+		}
+	}
+}
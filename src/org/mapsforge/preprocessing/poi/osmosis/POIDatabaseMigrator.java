@@ -0,0 +1,238 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.preprocessing.poi.osmosis;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.logging.Logger;
+
+import org.mapsforge.storage.poi.PoiTagDictionary;
+
+/**
+ * Converts a POI database written before the compact format into the compact format: the R-trees store
+ * microdegrees as 32 bit integers and the POIs' data is replaced by their tags encoded with a
+ * {@link PoiTagDictionary}. The name index and the cluster grid are kept. The database is converted in
+ * place and compacted afterwards.
+ * 
+ * Usage: <code>POIDatabaseMigrator &lt;poi file&gt; [--tags]</code>. Use <code>--tags</code> for
+ * databases whose data column holds all tags as <code>key=value;</code> string instead of the name.
+ * 
+ * @author Karsten Groll
+ * 
+ */
+public class POIDatabaseMigrator {
+	private static final Logger LOGGER = Logger.getLogger(POIDatabaseMigrator.class.getName());
+
+	// Number of POIs per batch
+	private static final int BATCH_SIZE = 100000;
+
+	private final Connection conn;
+	private final boolean tagStrings;
+
+	private POIDatabaseMigrator(Connection conn, boolean tagStrings) {
+		this.conn = conn;
+		this.tagStrings = tagStrings;
+	}
+
+	/**
+	 * @param args
+	 *            The POI file and optionally <code>--tags</code>.
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1 || args.length > 2 || (args.length == 2 && !args[1].equals("--tags"))) {
+			System.err.println("Usage: POIDatabaseMigrator <poi file> [--tags]");
+			return;
+		}
+
+		try {
+			migrate(args[0], args.length == 2);
+		} catch (ClassNotFoundException e) {
+			e.printStackTrace();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Converts a POI database into the compact format. Databases already having the compact format are
+	 * not changed.
+	 * 
+	 * @param path
+	 *            Path to the POI file.
+	 * @param tagStrings
+	 *            true if the data column holds all tags as <code>key=value;</code> string, false if it
+	 *            holds the name.
+	 * @throws ClassNotFoundException
+	 *             if the SQLite JDBC driver is missing.
+	 * @throws SQLException
+	 *             if the database could not be converted. The database is not changed then.
+	 */
+	public static void migrate(String path, boolean tagStrings) throws ClassNotFoundException, SQLException {
+		long start = System.currentTimeMillis();
+		long oldSize = new File(path).length();
+
+		Class.forName("SQLite.JDBC");
+		Connection conn = DriverManager.getConnection("jdbc:sqlite:/" + path);
+		try {
+			if (hasTable(conn, "poi_tag_keys")) {
+				LOGGER.info(path + " already has the compact format");
+				return;
+			}
+
+			conn.setAutoCommit(false);
+			try {
+				new POIDatabaseMigrator(conn, tagStrings).convert();
+				conn.commit();
+			} catch (SQLException e) {
+				conn.rollback();
+				throw e;
+			}
+
+			// Free the pages of the dropped tables
+			conn.setAutoCommit(true);
+			Statement stmt = conn.createStatement();
+			stmt.executeUpdate("VACUUM;");
+			stmt.close();
+		} finally {
+			conn.close();
+		}
+
+		LOGGER.info("Converted " + path + " in " + (System.currentTimeMillis() - start) + " ms ("
+				+ oldSize + " -> " + new File(path).length() + " bytes)");
+	}
+
+	private void convert() throws SQLException {
+		Statement stmt = this.conn.createStatement();
+
+		// Tag dictionary
+		PoiTagDictionary dictionary = createDictionary();
+		stmt.executeUpdate(PoiTagDictionary.CREATE_KEY_TABLE_STATEMENT);
+		stmt.executeUpdate(PoiTagDictionary.CREATE_VALUE_TABLE_STATEMENT);
+		POIWriterTask.insertDictionary(this.conn, dictionary);
+		LOGGER.info("Tag dictionary: " + dictionary.getKeyCount() + " keys, " + dictionary.getValueCount()
+				+ " values");
+
+		// Integer R-tree (the old R-tree stores rounded floats, so the center of each box is used)
+		stmt.executeUpdate("CREATE VIRTUAL TABLE poi_index_compact USING rtree_i32(id, minLat, maxLat, minLon, maxLon);");
+		stmt.executeUpdate("INSERT INTO poi_index_compact "
+				+ "SELECT id, lat, lat, lon, lon FROM "
+				+ "(SELECT id, CAST(round((minLat + maxLat) * 500000) AS INTEGER) AS lat, "
+				+ "CAST(round((minLon + maxLon) * 500000) AS INTEGER) AS lon FROM poi_index);");
+		stmt.executeUpdate("DROP TABLE poi_index;");
+		stmt.executeUpdate("ALTER TABLE poi_index_compact RENAME TO poi_index;");
+
+		// Encoded tags (rows are copied in their order, which is the Hilbert order for newer files)
+		stmt.executeUpdate("CREATE TABLE poi_data_compact (id LONG, data BLOB, category INT, PRIMARY KEY (id));");
+		PreparedStatement insertStmt = this.conn.prepareStatement("INSERT INTO poi_data_compact VALUES (?, ?, ?);");
+		ResultSet rs = stmt.executeQuery("SELECT id, data, category FROM poi_data;");
+		String[] tags;
+		int converted = 0;
+		while (rs.next()) {
+			tags = getTags(rs.getBytes(2));
+			insertStmt.setLong(1, rs.getLong(1));
+			if (tags.length > 0) {
+				insertStmt.setBytes(2, dictionary.encode(tags));
+			} else {
+				insertStmt.setNull(2, 0);
+			}
+			insertStmt.setInt(3, rs.getInt(3));
+			insertStmt.addBatch();
+
+			if (++converted % BATCH_SIZE == 0) {
+				insertStmt.executeBatch();
+				LOGGER.fine("Converted " + converted + " POIs");
+			}
+		}
+		rs.close();
+		insertStmt.executeBatch();
+		insertStmt.close();
+		stmt.executeUpdate("DROP TABLE poi_data;");
+		stmt.executeUpdate("ALTER TABLE poi_data_compact RENAME TO poi_data;");
+
+		// Category R-tree, rebuilt from the converted R-tree
+		stmt.executeUpdate("DROP TABLE IF EXISTS poi_category_index;");
+		stmt.executeUpdate("CREATE VIRTUAL TABLE poi_category_index USING rtree_i32(id, minCategory, maxCategory, minLat, maxLat, minLon, maxLon);");
+		stmt.executeUpdate("INSERT INTO poi_category_index "
+				+ "SELECT poi_index.id, poi_data.category, poi_data.category, minLat, maxLat, minLon, maxLon "
+				+ "FROM poi_index JOIN poi_data ON poi_index.id = poi_data.id;");
+
+		stmt.close();
+	}
+
+	/**
+	 * Reads the data of all POIs once and creates their tag dictionary.
+	 */
+	private PoiTagDictionary createDictionary() throws SQLException {
+		PoiTagDictionary.Builder builder = new PoiTagDictionary.Builder();
+
+		Statement stmt = this.conn.createStatement();
+		ResultSet rs = stmt.executeQuery("SELECT data FROM poi_data;");
+		while (rs.next()) {
+			builder.add(getTags(rs.getBytes(1)));
+		}
+		rs.close();
+		stmt.close();
+
+		return builder.build();
+	}
+
+	/**
+	 * Gets a POI's tags from its data as written before the compact format.
+	 * 
+	 * @param data
+	 *            The POI's data. May be null.
+	 * @return The tags as <code>[key_1, value_1, ..., key_n, value_n]</code>.
+	 */
+	private String[] getTags(byte[] data) {
+		if (data == null) {
+			return new String[0];
+		}
+
+		// The writer stored the string's bytes in the platform's default encoding
+		String s = new String(data);
+		if (!this.tagStrings) {
+			return new String[] { PoiTagDictionary.NAME_KEY, s };
+		}
+
+		ArrayList<String> ret = new ArrayList<String>();
+		int separator;
+		for (String tag : s.split(";")) {
+			separator = tag.indexOf('=');
+			if (separator > 0) {
+				ret.add(tag.substring(0, separator));
+				ret.add(tag.substring(separator + 1));
+			}
+		}
+
+		return ret.toArray(new String[ret.size()]);
+	}
+
+	private static boolean hasTable(Connection conn, String name) throws SQLException {
+		PreparedStatement stmt = conn.prepareStatement("SELECT count(name) FROM sqlite_master WHERE name = ?;");
+		try {
+			stmt.setString(1, name);
+			ResultSet rs = stmt.executeQuery();
+			return rs.next() && rs.getInt(1) > 0;
+		} finally {
+			stmt.close();
+		}
+	}
+}
@@ -14,20 +14,26 @@
  */
 package org.mapsforge.preprocessing.poi.osmosis;
 
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Stack;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.mapsforge.core.GeoCoordinate;
 import org.mapsforge.storage.poi.PoiCategory;
 import org.mapsforge.storage.poi.PoiCategoryFilter;
 import org.mapsforge.storage.poi.PoiCategoryManager;
+import org.mapsforge.storage.poi.PoiClusterGrid;
+import org.mapsforge.storage.poi.PoiNameNormalizer;
+import org.mapsforge.storage.poi.PoiTagDictionary;
 import org.mapsforge.storage.poi.UnknownPoiCategoryException;
 import org.mapsforge.storage.poi.WhitelistPoiCategoryFilter;
 import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
@@ -43,6 +49,9 @@ public class POIWriterTask implements Sink {
 	// For debug purposes only (at least for now)
 	private static final boolean INCLUDE_META_DATA = false;
 
+	// Number of POIs per transaction when writing the sorted POIs
+	private static final int TRANSACTION_SIZE = 100000;
+
 	// Temporary variables
 	String[] data;
 
@@ -58,11 +67,21 @@ public class POIWriterTask implements Sink {
 	// Statistics
 	private int nodesAdded = 0;
 
+	// POIs sorted by their Hilbert key before they are written
+	private final HilbertPoiSorter sorter = new HilbertPoiSorter();
+
+	// Counts the POIs' tags for the tag dictionary, which is written before the POIs
+	private final PoiTagDictionary.Builder dictionaryBuilder = new PoiTagDictionary.Builder();
+	private PoiTagDictionary dictionary = null;
+
 	// Database
 	private Connection conn = null;
 	private PreparedStatement pStmt = null;
 	private PreparedStatement pStmt2 = null;
 	private PreparedStatement pStmt3 = null;
+	private PreparedStatement pStmt4 = null;
+	private PreparedStatement pStmt5 = null;
+	private PreparedStatement pStmt6 = null;
 	private Statement stmt = null;
 
 	/**
@@ -116,15 +135,35 @@ public class POIWriterTask implements Sink {
 		this.pStmt = conn.prepareStatement("INSERT INTO poi_index VALUES (?, ?, ?, ?, ?);");
 		this.pStmt2 = conn.prepareStatement("INSERT INTO poi_data VALUES (?, ?, ?);");
 		this.pStmt3 = conn.prepareStatement("INSERT INTO poi_categories VALUES (?, ?, ?);");
+		this.pStmt4 = conn.prepareStatement("INSERT INTO poi_category_index VALUES (?, ?, ?, ?, ?, ?, ?);");
+		this.pStmt5 = conn.prepareStatement("INSERT INTO poi_name_index VALUES (?, ?);");
+		this.pStmt6 = conn.prepareStatement(PoiClusterGrid.INSERT_CELL_STATEMENT);
 
 		// CREATE TABLES
 		this.stmt.executeUpdate("DROP TABLE IF EXISTS poi_index;");
 		this.stmt.executeUpdate("DROP TABLE IF EXISTS poi_data;");
 		this.stmt.executeUpdate("DROP TABLE IF EXISTS poi_categories;");
+		this.stmt.executeUpdate("DROP TABLE IF EXISTS poi_category_index;");
+		this.stmt.executeUpdate("DROP TABLE IF EXISTS poi_name_index;");
+		this.stmt.executeUpdate("DROP TABLE IF EXISTS poi_clusters;");
+		this.stmt.executeUpdate("DROP TABLE IF EXISTS poi_tag_keys;");
+		this.stmt.executeUpdate("DROP TABLE IF EXISTS poi_tag_values;");
 		// stmt.executeUpdate("DROP INDEX IF EXISTS poi_categories_index;");
+		// Coordinates are stored as microdegrees in 32 bit integer R-trees
 		this.stmt
-				.executeUpdate("CREATE VIRTUAL TABLE poi_index USING rtree(id, minLat, maxLat, minLon, maxLon);");
+				.executeUpdate("CREATE VIRTUAL TABLE poi_index USING rtree_i32(id, minLat, maxLat, minLon, maxLon);");
+		// Tags encoded with the tag dictionary
 		this.stmt.executeUpdate("CREATE TABLE poi_data (id LONG, data BLOB, category INT, PRIMARY KEY (id));");
+		this.stmt.executeUpdate(PoiTagDictionary.CREATE_KEY_TABLE_STATEMENT);
+		this.stmt.executeUpdate(PoiTagDictionary.CREATE_VALUE_TABLE_STATEMENT);
+		// R-tree with the category ID as additional dimension for category filtered queries
+		this.stmt
+				.executeUpdate("CREATE VIRTUAL TABLE poi_category_index USING rtree_i32(id, minCategory, maxCategory, minLat, maxLat, minLon, maxLon);");
+		// Words of the normalized POI names (indexed after all POIs have been written)
+		this.stmt.executeUpdate("CREATE TABLE poi_name_index (token VARCHAR, id LONG);");
+		// Cluster grid (computed from the POIs' cells after all POIs have been written)
+		this.stmt.executeUpdate(PoiClusterGrid.CREATE_TABLE_STATEMENT);
+		this.stmt.executeUpdate(PoiClusterGrid.CREATE_CELL_TABLE_STATEMENT);
 		this.stmt
 				.executeUpdate("CREATE TABLE poi_categories (id INTEGER, name VARCHAR, parent INTEGER, PRIMARY KEY (id));");
 		// stmt.executeUpdate("CREATE INDEX poi_categories_index ON poi_categories (id);");
@@ -153,47 +192,195 @@ public class POIWriterTask implements Sink {
 
 	}
 
-	private void writePOI(long id, double latitude, double longitude, HashMap<String, String> poiData,
-			PoiCategory category) {
+	/**
+	 * Creates the tag dictionary from the tags of all POIs and writes it.
+	 */
+	private void writeDictionary() {
+		this.dictionary = this.dictionaryBuilder.build();
+
 		try {
-			// Index data
-			this.pStmt.setLong(1, id);
-			this.pStmt.setDouble(2, latitude);
-			this.pStmt.setDouble(3, latitude);
-			this.pStmt.setDouble(4, longitude);
-			this.pStmt.setDouble(5, longitude);
-
-			// POI data
-			this.pStmt2.setLong(1, id);
-
-			// If all important data should be written to db
-			// TODO Use PBF here
-			if (INCLUDE_META_DATA) {
-				this.pStmt2.setBytes(2, tagsToString(poiData).getBytes());
-			} else {
-
-				// If name tag is set
-				if (poiData.get("name") != null) {
-					this.pStmt2.setBytes(2, poiData.get("name").getBytes());
-				} else {
-					this.pStmt2.setNull(2, 0);
-				}
+			insertDictionary(this.conn, this.dictionary);
+			this.conn.commit();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+
+		LOGGER.info("Tag dictionary: " + this.dictionary.getKeyCount() + " keys, "
+				+ this.dictionary.getValueCount() + " values");
+	}
+
+	/**
+	 * Inserts a tag dictionary into the (empty) dictionary tables.
+	 * 
+	 * @param conn
+	 *            The database connection.
+	 * @param dictionary
+	 *            The dictionary.
+	 * @throws SQLException
+	 *             if the dictionary could not be inserted.
+	 */
+	static void insertDictionary(Connection conn, PoiTagDictionary dictionary) throws SQLException {
+		PreparedStatement keyStmt = conn.prepareStatement(PoiTagDictionary.INSERT_KEY_STATEMENT);
+		for (int i = 0; i < dictionary.getKeyCount(); i++) {
+			keyStmt.setInt(1, i);
+			keyStmt.setString(2, dictionary.getKey(i));
+			keyStmt.addBatch();
+		}
+		keyStmt.executeBatch();
+		keyStmt.close();
+
+		PreparedStatement valueStmt = conn.prepareStatement(PoiTagDictionary.INSERT_VALUE_STATEMENT);
+		for (int i = 1; i <= dictionary.getValueCount(); i++) {
+			valueStmt.setInt(1, i);
+			valueStmt.setString(2, dictionary.getValue(i));
+			valueStmt.addBatch();
+		}
+		valueStmt.executeBatch();
+		valueStmt.close();
+	}
+
+	/**
+	 * Writes all POIs in the order of their Hilbert key, so that neighboring POIs end up in the same
+	 * R-tree nodes and pages. The POIs are committed in large transactions.
+	 * 
+	 * @throws IOException
+	 *             if the sorted POIs could not be read.
+	 * @throws SQLException
+	 *             if the POIs could not be written.
+	 */
+	private void writePOIs() throws IOException, SQLException {
+		long start = System.currentTimeMillis();
+
+		Iterator<HilbertPoiSorter.PoiRecord> it = this.sorter.sort();
+		HilbertPoiSorter.PoiRecord record;
+		int written = 0;
+		while (it.hasNext()) {
+			try {
+				record = it.next();
+			} catch (IllegalStateException e) {
+				throw new IOException(e.getMessage(), e.getCause());
+			}
+			writePOI(record);
+
+			if (++written % TRANSACTION_SIZE == 0) {
+				executeBatches();
+				this.conn.commit();
+				LOGGER.fine("Wrote " + written + " POIs");
 			}
+		}
 
-			this.pStmt2.setInt(3, category.getID());
+		LOGGER.info("Wrote POIs in " + (System.currentTimeMillis() - start) + " ms");
+	}
 
-			this.pStmt.addBatch();
-			this.pStmt2.addBatch();
+	/**
+	 * Discards the POIs that have not been committed yet and removes the POI data, so that the
+	 * incomplete file is not taken for a valid POI database.
+	 * 
+	 * @param cause
+	 *            The reason for aborting.
+	 */
+	private void abort(Exception cause) {
+		this.sorter.release();
+		try {
+			this.conn.rollback();
+			this.stmt.executeUpdate("DROP TABLE IF EXISTS poi_data;");
+			this.conn.commit();
+			this.conn.close();
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
 
+		throw new RuntimeException("Writing the POIs failed, the database is incomplete", cause);
+	}
+
+	private void writePOI(HilbertPoiSorter.PoiRecord poi) throws SQLException {
+		int latitudeE6 = (int) Math.round(poi.latitude * GeoCoordinate.FACTOR_DOUBLE_TO_INT);
+		int longitudeE6 = (int) Math.round(poi.longitude * GeoCoordinate.FACTOR_DOUBLE_TO_INT);
+
+		// Index data
+		this.pStmt.setLong(1, poi.id);
+		this.pStmt.setInt(2, latitudeE6);
+		this.pStmt.setInt(3, latitudeE6);
+		this.pStmt.setInt(4, longitudeE6);
+		this.pStmt.setInt(5, longitudeE6);
+
+		// Category index data
+		this.pStmt4.setLong(1, poi.id);
+		this.pStmt4.setInt(2, poi.categoryID);
+		this.pStmt4.setInt(3, poi.categoryID);
+		this.pStmt4.setInt(4, latitudeE6);
+		this.pStmt4.setInt(5, latitudeE6);
+		this.pStmt4.setInt(6, longitudeE6);
+		this.pStmt4.setInt(7, longitudeE6);
+
+		// POI data
+		this.pStmt2.setLong(1, poi.id);
+		if (poi.tags.length > 0) {
+			this.pStmt2.setBytes(2, this.dictionary.encode(poi.tags));
+		} else {
+			this.pStmt2.setNull(2, 0);
+		}
+		this.pStmt2.setInt(3, poi.categoryID);
+
+		this.pStmt.addBatch();
+		this.pStmt2.addBatch();
+		this.pStmt4.addBatch();
+
+		// Name index data
+		for (String token : PoiNameNormalizer.getTokens(poi.getName())) {
+			this.pStmt5.setString(1, token);
+			this.pStmt5.setLong(2, poi.id);
+			this.pStmt5.addBatch();
+		}
+
+		// Cluster grid data
+		this.pStmt6.setLong(1, PoiClusterGrid.getCellX(poi.longitude));
+		this.pStmt6.setLong(2, PoiClusterGrid.getCellY(poi.latitude));
+		this.pStmt6.setInt(3, poi.categoryID);
+		this.pStmt6.setDouble(4, poi.latitude);
+		this.pStmt6.setDouble(5, poi.longitude);
+		this.pStmt6.addBatch();
+	}
+
+	/**
+	 * Adds a POI to the sorter. The POIs are written when all nodes have been processed.
+	 */
+	private void addPOI(long id, double latitude, double longitude, HashMap<String, String> poiData,
+			PoiCategory category) {
+		// If all important data should be written to db
+		String[] tags;
+		if (INCLUDE_META_DATA) {
+			tags = getTags(poiData);
+		} else if (poiData.get(PoiTagDictionary.NAME_KEY) != null) {
+			tags = new String[] { PoiTagDictionary.NAME_KEY, poiData.get(PoiTagDictionary.NAME_KEY) };
+		} else {
+			tags = new String[0];
+		}
+		this.dictionaryBuilder.add(tags);
+
+		try {
+			this.sorter.add(id, latitude, longitude, category.getID(), tags);
+		} catch (IOException e) {
+			// Without the run the database would silently miss POIs
+			abort(e);
+		}
+	}
+
+	private void executeBatches() throws SQLException {
+		this.pStmt.executeBatch();
+		this.pStmt2.executeBatch();
+		this.pStmt4.executeBatch();
+		this.pStmt5.executeBatch();
+		this.pStmt6.executeBatch();
 	}
 
 	private void commit() {
 		try {
-			pStmt.executeBatch();
-			pStmt2.executeBatch();
+			executeBatches();
+			this.stmt.executeUpdate("CREATE INDEX poi_name_index_token ON poi_name_index (token);");
+			for (String sql : PoiClusterGrid.getAggregationStatements()) {
+				this.stmt.executeUpdate(sql);
+			}
 			conn.commit();
 			this.conn.close();
 		} catch (SQLException e) {
@@ -206,7 +393,16 @@ public class POIWriterTask implements Sink {
 	 */
 	@Override
 	public void complete() {
+		writeDictionary();
+		try {
+			writePOIs();
+		} catch (IOException e) {
+			abort(e);
+		} catch (SQLException e) {
+			abort(e);
+		}
 		commit();
+		this.sorter.release();
 		LOGGER.info("Added " + this.nodesAdded + " POIs");
 	}
 
@@ -215,7 +411,7 @@ public class POIWriterTask implements Sink {
 	 */
 	@Override
 	public void release() {
-		// do nothing here
+		this.sorter.release();
 	}
 
 	/**
@@ -261,7 +457,7 @@ public class POIWriterTask implements Sink {
 
 				// Add node if its category matches
 				if (pc != null && this.categoryFilter.isAcceptedCategory(pc)) {
-					writePOI(n.getId(), n.getLatitude(), n.getLongitude(), tagMap, pc);
+					addPOI(n.getId(), n.getLatitude(), n.getLongitude(), tagMap, pc);
 					++this.nodesAdded;
 				}
 			} catch (UnknownPoiCategoryException e) {
@@ -270,8 +466,8 @@ public class POIWriterTask implements Sink {
 		}
 	}
 
-	private String tagsToString(HashMap<String, String> tagMap) {
-		StringBuilder sb = new StringBuilder();
+	private static String[] getTags(HashMap<String, String> tagMap) {
+		ArrayList<String> ret = new ArrayList<String>(tagMap.size() * 2);
 
 		for (String key : tagMap.keySet()) {
 
@@ -280,10 +476,11 @@ public class POIWriterTask implements Sink {
 				continue;
 			}
 
-			sb.append(key).append('=').append(tagMap.get(key)).append(';');
+			ret.add(key);
+			ret.add(tagMap.get(key));
 		}
 
-		return sb.toString();
+		return ret.toArray(new String[ret.size()]);
 	}
 
 }
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage;
+
+/**
+ * A {@link LongHashSet} that can be shared between threads. All operations are synchronized on the
+ * set.
+ * 
+ * @author Karsten Groll
+ * 
+ */
+class ConcurrentLongHashSet extends LongHashSet {
+
+	@Override
+	synchronized boolean add(long value) {
+		return super.add(value);
+	}
+
+	@Override
+	synchronized boolean contains(long value) {
+		return super.contains(value);
+	}
+
+	@Override
+	synchronized int size() {
+		return super.size();
+	}
+
+	@Override
+	synchronized void clear() {
+		super.clear();
+	}
+}
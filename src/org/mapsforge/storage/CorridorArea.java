@@ -0,0 +1,190 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage;
+
+import org.mapsforge.core.GeoCoordinate;
+
+/**
+ * All points within a given distance of a route. Distances are calculated in a plane whose longitudes
+ * are scaled by the cosine of the route's mean latitude, which is exact enough for routes spanning a
+ * few hundred kilometers.
+ * 
+ * @author Karsten Groll
+ * 
+ */
+public class CorridorArea extends QueryArea {
+	private final double[] xs;
+	private final double[] ys;
+	private final int size;
+	/** The corridor's half width in microdegrees of latitude. */
+	private final double distance;
+	private final double distanceSq;
+
+	/**
+	 * 
+	 * @param route
+	 *            The route's coordinates. A single coordinate describes a circle.
+	 * @param distanceMeters
+	 *            The maximal distance in meters between a point of the corridor and the route.
+	 */
+	public CorridorArea(GeoCoordinate[] route, int distanceMeters) {
+		super(route, GeoCoordinate.latitudeDistance(distanceMeters) * GeoCoordinate.FACTOR_DOUBLE_TO_INT,
+				getScale(route));
+
+		this.distance = GeoCoordinate.latitudeDistance(distanceMeters) * GeoCoordinate.FACTOR_DOUBLE_TO_INT;
+		this.distanceSq = this.distance * this.distance;
+		this.size = route.length;
+		this.xs = new double[this.size];
+		this.ys = new double[this.size];
+		for (int i = 0; i < this.size; i++) {
+			this.xs[i] = route[i].getLongitudeE6() * this.xScale;
+			this.ys[i] = route[i].getLatitudeE6();
+		}
+	}
+
+	private static double getScale(GeoCoordinate[] route) {
+		if (route == null || route.length == 0) {
+			return 1;
+		}
+
+		double latitude = 0;
+		for (int i = 0; i < route.length; i++) {
+			latitude += route[i].getLatitude();
+		}
+
+		return Math.max(Math.cos(Math.toRadians(latitude / route.length)), 0.01);
+	}
+
+	/**
+	 * A tile is inside if all its corners are within the distance of a single route segment (the area
+	 * around a segment is convex) and on the boundary if it is within the distance of any segment.
+	 * Tiles covered only by the union of several segments' areas are treated as boundary tiles.
+	 */
+	@Override
+	public byte[][] classifyTiles(int[] columnLongitudesE6, int[] rowLatitudesE6) {
+		byte[][] ret = new byte[rowLatitudesE6.length - 1][columnLongitudesE6.length - 1];
+
+		int[] columnRange;
+		int[] rowRange;
+		int next;
+		double minX;
+		double maxX;
+		double minY;
+		double maxY;
+		for (int i = 0; i < this.size; i++) {
+			next = Math.min(i + 1, this.size - 1);
+			if (i > 0 && next == i) {
+				break;
+			}
+
+			columnRange = getCellRange(columnLongitudesE6,
+					(Math.min(this.xs[i], this.xs[next]) - this.distance) / this.xScale,
+					(Math.max(this.xs[i], this.xs[next]) + this.distance) / this.xScale);
+			rowRange = getCellRange(rowLatitudesE6, Math.min(this.ys[i], this.ys[next]) - this.distance,
+					Math.max(this.ys[i], this.ys[next]) + this.distance);
+
+			for (int row = rowRange[0]; row <= rowRange[1]; row++) {
+				for (int column = columnRange[0]; column <= columnRange[1]; column++) {
+					if (ret[row][column] == TILE_INSIDE) {
+						continue;
+					}
+
+					minX = columnLongitudesE6[column] * this.xScale;
+					maxX = columnLongitudesE6[column + 1] * this.xScale;
+					minY = rowLatitudesE6[row + 1];
+					maxY = rowLatitudesE6[row];
+
+					if (distanceSq(minX, minY, i, next) <= this.distanceSq
+							&& distanceSq(maxX, minY, i, next) <= this.distanceSq
+							&& distanceSq(minX, maxY, i, next) <= this.distanceSq
+							&& distanceSq(maxX, maxY, i, next) <= this.distanceSq) {
+						ret[row][column] = TILE_INSIDE;
+					} else if (ret[row][column] == TILE_OUTSIDE
+							&& rectSegmentDistanceSq(minX, minY, maxX, maxY, this.xs[i], this.ys[i], this.xs[next],
+									this.ys[next]) <= this.distanceSq) {
+						ret[row][column] = TILE_BOUNDARY;
+					}
+				}
+			}
+		}
+
+		return ret;
+	}
+
+	@Override
+	public boolean contains(int latitudeE6, int longitudeE6) {
+		double x = longitudeE6 * this.xScale;
+		int next;
+
+		for (int i = 0; i < this.size; i++) {
+			next = Math.min(i + 1, this.size - 1);
+			if (distanceSq(x, latitudeE6, i, next) <= this.distanceSq) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * A way intersects the corridor if one of its segments is within the distance of a route segment.
+	 * Single node ways are treated as points.
+	 */
+	@Override
+	public boolean intersects(long[] coordinates) {
+		if (!overlapsBoundingBox(coordinates)) {
+			return false;
+		}
+
+		int nodes = coordinates.length / 2;
+		int wayNext;
+		int next;
+		for (int n = 0; n < nodes; n++) {
+			wayNext = Math.min(n + 1, nodes - 1);
+			if (n > 0 && wayNext == n) {
+				break;
+			}
+
+			for (int i = 0; i < this.size; i++) {
+				next = Math.min(i + 1, this.size - 1);
+				if (segmentDistanceSq(coordinates[2 * n + 1] * this.xScale, coordinates[2 * n],
+						coordinates[2 * wayNext + 1] * this.xScale, coordinates[2 * wayNext], this.xs[i], this.ys[i],
+						this.xs[next], this.ys[next]) <= this.distanceSq) {
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	private double distanceSq(double x, double y, int from, int to) {
+		return pointSegmentDistanceSq(x, y, this.xs[from], this.ys[from], this.xs[to], this.ys[to]);
+	}
+
+	private static double rectSegmentDistanceSq(double minX, double minY, double maxX, double maxY, double ax,
+			double ay, double bx, double by) {
+		if (segmentIntersectsRect(ax, ay, bx, by, minX, minY, maxX, maxY)) {
+			return 0;
+		}
+
+		// Nearest points are on the rectangle's edges
+		return Math.min(
+				Math.min(segmentDistanceSq(ax, ay, bx, by, minX, minY, maxX, minY),
+						segmentDistanceSq(ax, ay, bx, by, maxX, minY, maxX, maxY)),
+				Math.min(segmentDistanceSq(ax, ay, bx, by, maxX, maxY, minX, maxY),
+						segmentDistanceSq(ax, ay, bx, by, minX, maxY, minX, minY)));
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage;
+
+import java.util.Arrays;
+
+/**
+ * A hash set for primitive long values using open addressing with linear probing. It avoids boxing
+ * every way ID into a {@link Long} object when checking for duplicates.
+ * 
+ * @author Karsten Groll
+ * 
+ */
+class LongHashSet {
+	private static final float LOAD_FACTOR = 0.5f;
+
+	private long[] keys;
+	private boolean[] used;
+	private int size;
+	private int threshold;
+
+	/**
+	 * 
+	 * @param expectedSize
+	 *            Number of elements the set should hold without being resized.
+	 */
+	LongHashSet(int expectedSize) {
+		int capacity = 16;
+		while (capacity * LOAD_FACTOR < expectedSize) {
+			capacity <<= 1;
+		}
+
+		init(capacity);
+	}
+
+	/**
+	 * Creates a set with a default capacity.
+	 */
+	LongHashSet() {
+		this(16);
+	}
+
+	private void init(int capacity) {
+		this.keys = new long[capacity];
+		this.used = new boolean[capacity];
+		this.size = 0;
+		this.threshold = (int) (capacity * LOAD_FACTOR);
+	}
+
+	/**
+	 * Adds a value to the set.
+	 * 
+	 * @param value
+	 *            The value to be added.
+	 * @return true if the value has not been in the set before.
+	 */
+	boolean add(long value) {
+		int mask = this.keys.length - 1;
+		int pos = hash(value) & mask;
+
+		while (this.used[pos]) {
+			if (this.keys[pos] == value) {
+				return false;
+			}
+			pos = (pos + 1) & mask;
+		}
+
+		this.keys[pos] = value;
+		this.used[pos] = true;
+
+		if (++this.size > this.threshold) {
+			rehash();
+		}
+
+		return true;
+	}
+
+	/**
+	 * @param value
+	 *            The value to look for.
+	 * @return true if the set contains the given value.
+	 */
+	boolean contains(long value) {
+		int mask = this.keys.length - 1;
+		int pos = hash(value) & mask;
+
+		while (this.used[pos]) {
+			if (this.keys[pos] == value) {
+				return true;
+			}
+			pos = (pos + 1) & mask;
+		}
+
+		return false;
+	}
+
+	/**
+	 * 
+	 * @return Number of values in this set.
+	 */
+	int size() {
+		return this.size;
+	}
+
+	/**
+	 * Removes all values from this set without shrinking it.
+	 */
+	void clear() {
+		Arrays.fill(this.used, false);
+		this.size = 0;
+	}
+
+	private void rehash() {
+		long[] oldKeys = this.keys;
+		boolean[] oldUsed = this.used;
+
+		init(oldKeys.length << 1);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldUsed[i]) {
+				add(oldKeys[i]);
+			}
+		}
+	}
+
+	private static int hash(long value) {
+		// Spread the bits, OSM IDs are mostly sequential
+		long h = value * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
@@ -15,6 +15,7 @@
 package org.mapsforge.storage;
 
 import java.util.Collection;
+import java.util.List;
 
 import org.mapsforge.core.GeoCoordinate;
 import org.mapsforge.core.Rect;
@@ -33,6 +34,18 @@ import org.mapsforge.storage.poi.PointOfInterest;
 
 // TODO finish
 public interface MapDataProvider {
+	/** Ways are returned once per tile they are stored in. */
+	public static final byte WAY_DEDUPLICATION_NONE = 0;
+	/** Ways are returned only once per query, identified by their way ID. */
+	public static final byte WAY_DEDUPLICATION_BY_ID = 1;
+	/** Like {@link #WAY_DEDUPLICATION_BY_ID}, but way segments from different tiles are joined. */
+	public static final byte WAY_DEDUPLICATION_STITCH = 2;
+
+	/** Feature type for counting POIs. */
+	public static final byte FEATURE_TYPE_POI = 0;
+	/** Feature type for counting ways. */
+	public static final byte FEATURE_TYPE_WAY = 1;
+
 	/**
 	 * Gets all Way within the given bounding box.
 	 * 
@@ -43,6 +56,35 @@ public interface MapDataProvider {
 	 */
 	public Collection<Way> getAllWaysInBoundingBox(final Rect boundingBox);
 
+	/**
+	 * Gets all ways within the given bounding box that are visible on the given zoom level. Only the
+	 * zoom interval covering this zoom level is queried.
+	 * 
+	 * @param boundingBox
+	 *            The bounding box.
+	 * @param zoomLevel
+	 *            The zoom level the ways should be rendered on.
+	 * @return All ways within the given bounding box that are visible on the given zoom level.
+	 */
+	public Collection<Way> getAllWaysInBoundingBox(final Rect boundingBox, byte zoomLevel);
+
+	/**
+	 * Gets all ways within the given bounding box having a certain tag ID that are visible on the given
+	 * zoom level. Ways are filtered while parsing, so non-matching ways are skipped without being
+	 * decoded.
+	 * 
+	 * @param boundingBox
+	 *            The bounding box.
+	 * @param zoomLevel
+	 *            The zoom level the ways should be rendered on.
+	 * @param allowedTagIDs
+	 *            A list of way tag IDs. Ways having a tag ID from this list will be added to the return
+	 *            set. If set to null, ways will not be filtered.
+	 * @return All ways with a specified tag ID within the given bounding box that are visible on the
+	 *         given zoom level.
+	 */
+	public Collection<Way> getAllWaysInBoundingBox(final Rect boundingBox, byte zoomLevel, int[] allowedTagIDs);
+
 	/**
 	 * Gets all POIs within a given bounding having a certain tag ID.
 	 * 
@@ -55,6 +97,237 @@ public interface MapDataProvider {
 	 */
 	public Collection<PointOfInterest> getAllPoisInBoundingBox(final Rect boundingBox, int[] allowedTagIDs);
 
+	/**
+	 * Gets all POIs within a given bounding box having a certain tag ID that are visible on the given
+	 * zoom level. Only the zoom interval covering this zoom level is queried.
+	 * 
+	 * @param boundingBox
+	 *            The bounding box.
+	 * @param zoomLevel
+	 *            The zoom level the POIs should be rendered on.
+	 * @param allowedTagIDs
+	 *            A list of tag IDs. POIs having a tag ID from this list will be added to the return
+	 *            set. If set to null, nodes will not be filtered.
+	 * @return All POIs with a specified tag ID within a given bounding box that are visible on the
+	 *         given zoom level.
+	 */
+	public Collection<PointOfInterest> getAllPoisInBoundingBox(final Rect boundingBox, byte zoomLevel,
+			int[] allowedTagIDs);
+
+	/**
+	 * Gets all POIs within a given bounding box having a certain tag ID that are visible on the given
+	 * zoom level. Only tiles listed for this tag in the map's inverted tag index are read, so the cost
+	 * depends on the number of matching tiles rather than on the size of the bounding box. Maps without
+	 * an inverted tag index are scanned like in {@link #getAllPoisInBoundingBox(Rect, byte, int[])}.
+	 * 
+	 * @param boundingBox
+	 *            The bounding box.
+	 * @param zoomLevel
+	 *            The zoom level the POIs should be rendered on.
+	 * @param tagID
+	 *            The tag ID.
+	 * @return All POIs with the given tag ID within the bounding box.
+	 */
+	public Collection<PointOfInterest> getAllPoisWithTag(final Rect boundingBox, byte zoomLevel, int tagID);
+
+	/**
+	 * Gets all ways within a given bounding box having a certain tag ID that are visible on the given
+	 * zoom level. Only tiles listed for this tag in the map's inverted tag index are read. Maps without
+	 * an inverted tag index are scanned like in {@link #getAllWaysInBoundingBox(Rect, byte, int[])}.
+	 * 
+	 * @param boundingBox
+	 *            The bounding box.
+	 * @param zoomLevel
+	 *            The zoom level the ways should be rendered on.
+	 * @param tagID
+	 *            The tag ID.
+	 * @return All ways with the given tag ID within the bounding box.
+	 */
+	public Collection<Way> getAllWaysWithTag(final Rect boundingBox, byte zoomLevel, int tagID);
+
+	/**
+	 * Gets the POIs nearest to a given position. Tiles are searched in rings around the position's tile
+	 * until no tile left can contain a POI nearer than the k-th best one found so far. Distances are
+	 * planar distances between the coordinates in microdegrees.
+	 * 
+	 * @param center
+	 *            The position.
+	 * @param k
+	 *            Maximal number of POIs to be returned.
+	 * @param allowedTagIDs
+	 *            A list of tag IDs. Only POIs having a tag ID from this list will be considered. If set
+	 *            to null, POIs will not be filtered.
+	 * @return Up to k POIs ordered by their distance to the position (nearest first).
+	 */
+	public List<PointOfInterest> getNearestPois(final GeoCoordinate center, int k, int[] allowedTagIDs);
+
+	/**
+	 * Gets all ways intersecting a polygon that are visible on the given zoom level.
+	 *
+	 * @param polygon
+	 *            The polygon's vertices (closed implicitly).
+	 * @param zoomLevel
+	 *            The zoom level the ways should be rendered on.
+	 * @param allowedTagIDs
+	 *            A list of tag IDs. Only ways having a tag ID from this list will be returned. If set
+	 *            to null, ways will not be filtered.
+	 * @return All ways intersecting the polygon.
+	 */
+	public Collection<Way> getAllWaysInPolygon(final GeoCoordinate[] polygon, byte zoomLevel, int[] allowedTagIDs);
+
+	/**
+	 * Gets all POIs inside of a polygon that are visible on the given zoom level.
+	 *
+	 * @param polygon
+	 *            The polygon's vertices (closed implicitly).
+	 * @param zoomLevel
+	 *            The zoom level the POIs should be rendered on.
+	 * @param allowedTagIDs
+	 *            A list of tag IDs. Only POIs having a tag ID from this list will be returned. If set
+	 *            to null, POIs will not be filtered.
+	 * @return All POIs inside of the polygon.
+	 */
+	public Collection<PointOfInterest> getAllPoisInPolygon(final GeoCoordinate[] polygon, byte zoomLevel,
+			int[] allowedTagIDs);
+
+	/**
+	 * Gets all ways within a given distance of a route that are visible on the given zoom level.
+	 *
+	 * @param route
+	 *            The route's coordinates.
+	 * @param distanceMeters
+	 *            The maximal distance in meters between a way and the route.
+	 * @param zoomLevel
+	 *            The zoom level the ways should be rendered on.
+	 * @param allowedTagIDs
+	 *            A list of tag IDs. Only ways having a tag ID from this list will be returned. If set
+	 *            to null, ways will not be filtered.
+	 * @return All ways along the route.
+	 */
+	public Collection<Way> getAllWaysAlongRoute(final GeoCoordinate[] route, int distanceMeters, byte zoomLevel,
+			int[] allowedTagIDs);
+
+	/**
+	 * Gets all POIs within a given distance of a route that are visible on the given zoom level.
+	 *
+	 * @param route
+	 *            The route's coordinates.
+	 * @param distanceMeters
+	 *            The maximal distance in meters between a POI and the route.
+	 * @param zoomLevel
+	 *            The zoom level the POIs should be rendered on.
+	 * @param allowedTagIDs
+	 *            A list of tag IDs. Only POIs having a tag ID from this list will be returned. If set
+	 *            to null, POIs will not be filtered.
+	 * @return All POIs along the route.
+	 */
+	public Collection<PointOfInterest> getAllPoisAlongRoute(final GeoCoordinate[] route, int distanceMeters,
+			byte zoomLevel, int[] allowedTagIDs);
+
+	/**
+	 * Gets all ways intersecting an area that are visible on the given zoom level. The area is
+	 * rasterized onto the tile grid of the zoom interval covering the zoom level first. Tiles outside
+	 * of the area are not read, the ways of tiles completely inside of the area are returned without
+	 * any further test and only the ways of tiles on the area's boundary are tested exactly.
+	 *
+	 * @param area
+	 *            The area.
+	 * @param zoomLevel
+	 *            The zoom level the ways should be rendered on.
+	 * @param allowedTagIDs
+	 *            A list of tag IDs. Only ways having a tag ID from this list will be returned. If set
+	 *            to null, ways will not be filtered.
+	 * @return All ways intersecting the area.
+	 */
+	public Collection<Way> getAllWaysInArea(final QueryArea area, byte zoomLevel, int[] allowedTagIDs);
+
+	/**
+	 * Gets all POIs inside of an area that are visible on the given zoom level. Tiles are selected as
+	 * described in {@link #getAllWaysInArea(QueryArea, byte, int[])}.
+	 *
+	 * @param area
+	 *            The area.
+	 * @param zoomLevel
+	 *            The zoom level the POIs should be rendered on.
+	 * @param allowedTagIDs
+	 *            A list of tag IDs. Only POIs having a tag ID from this list will be returned. If set
+	 *            to null, POIs will not be filtered.
+	 * @return All POIs inside of the area.
+	 */
+	public Collection<PointOfInterest> getAllPoisInArea(final QueryArea area, byte zoomLevel, int[] allowedTagIDs);
+
+	/**
+	 * Creates a publisher for the ways within a given bounding box that are visible on the given zoom
+	 * level. Unlike {@link #getAllWaysInBoundingBox(Rect, byte, int[])}, the result is not built up
+	 * front: tiles are read and decoded as the subscriber requests ways.
+	 * 
+	 * @param boundingBox
+	 *            The bounding box.
+	 * @param zoomLevel
+	 *            The zoom level the ways should be rendered on.
+	 * @param allowedTagIDs
+	 *            A list of tag IDs. Only ways having a tag ID from this list will be published. If set
+	 *            to null, ways will not be filtered.
+	 * @return The publisher. Each subscriber receives all ways.
+	 */
+	public Publisher<Way> getWayPublisher(final Rect boundingBox, byte zoomLevel, int[] allowedTagIDs);
+
+	/**
+	 * Creates a publisher for the POIs within a given bounding box that are visible on the given zoom
+	 * level. Tiles are read and decoded as the subscriber requests POIs.
+	 * 
+	 * @param boundingBox
+	 *            The bounding box.
+	 * @param zoomLevel
+	 *            The zoom level the POIs should be rendered on.
+	 * @param allowedTagIDs
+	 *            A list of tag IDs. Only POIs having a tag ID from this list will be published. If set
+	 *            to null, POIs will not be filtered.
+	 * @return The publisher. Each subscriber receives all POIs.
+	 */
+	public Publisher<PointOfInterest> getPoiPublisher(final Rect boundingBox, byte zoomLevel, int[] allowedTagIDs);
+
+	/**
+	 * Counts the POIs and ways within the given bounding box that are visible on the given zoom level.
+	 * The counts are read from the tiles' zoom tables, no features are decoded. Therefore all features
+	 * of the tiles overlapping the bounding box are counted, and a way is counted once per tile it is
+	 * stored in.
+	 * 
+	 * @param boundingBox
+	 *            The bounding box.
+	 * @param zoomLevel
+	 *            The zoom level the features should be rendered on.
+	 * @return The number of POIs and ways as <code>[pois, ways]</code>.
+	 */
+	public int[] getFeatureCounts(final Rect boundingBox, byte zoomLevel);
+
+	/**
+	 * Gets the number of features per tile within the given bounding box that are visible on the given
+	 * zoom level. The counts are read from the tiles' zoom tables, no features are decoded.
+	 * 
+	 * @param boundingBox
+	 *            The bounding box.
+	 * @param zoomLevel
+	 *            The zoom level the features should be rendered on.
+	 * @param featureType
+	 *            {@link #FEATURE_TYPE_POI} or {@link #FEATURE_TYPE_WAY}.
+	 * @return The feature count for each tile as <code>grid[y - minY][x - minX]</code>, where minX and
+	 *         minY are the bounding box's upper left tile in the zoom interval covering the zoom level.
+	 */
+	public int[][] getDensityGrid(final Rect boundingBox, byte zoomLevel, byte featureType);
+
+	/**
+	 * Gets a way by its ID. If the map has a way index, the way's record is read directly. Otherwise
+	 * this method returns null, as there is no position to start searching at.
+	 * 
+	 * @param wayID
+	 *            The way's ID.
+	 * @param baseZoomInterval
+	 *            The base zoom interval the way should be searched on.
+	 * @return The way or null if it could not be found.
+	 */
+	public Way getWayByID(final long wayID, byte baseZoomInterval);
+
 	/**
 	 * Gets all absolute coordinates in order (lat_1, lon_1), ..., (lat_n, lon_n) for a given way
 	 * segment, specified by its id. THe input is a way edge specified by its first coordinate p1 and
@@ -75,4 +348,14 @@ public interface MapDataProvider {
 
 	Collection<Way> getAllWays(int tileX, int tileY, byte baseZoomInterval);
 
+	/**
+	 * Sets how bounding box queries handle ways that are stored in more than one tile. Deduplication
+	 * needs way IDs. If the underlying map data does not contain way IDs, this setting is ignored.
+	 * 
+	 * @param mode
+	 *            One of {@link #WAY_DEDUPLICATION_NONE}, {@link #WAY_DEDUPLICATION_BY_ID} or
+	 *            {@link #WAY_DEDUPLICATION_STITCH}.
+	 */
+	public void setWayDeduplicationMode(byte mode);
+
 }
@@ -14,9 +14,14 @@
  */
 package org.mapsforge.storage;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
 import java.util.Vector;
 
 import org.mapsforge.applications.debug.Serializer;
@@ -34,7 +39,12 @@ import org.mapsforge.storage.poi.PoiPersistenceManager;
 import org.mapsforge.storage.poi.PointOfInterest;
 import org.mapsforge.storage.poi.UnknownPoiCategoryException;
 import org.mapsforge.storage.tile.PCTilePersistenceManager;
+import org.mapsforge.storage.tile.TagPostingList;
+import org.mapsforge.storage.tile.TileDataContainer;
 import org.mapsforge.storage.tile.TilePersistenceManager;
+import org.mapsforge.storage.tile.TileTagSummary;
+import org.mapsforge.storage.tile.TileVisitor;
+import org.mapsforge.storage.tile.WayIndex;
 
 /**
  * This class reads map data atoms such as ways and POIs from the mapsforge tile format. Ways are read
@@ -49,6 +59,14 @@ public class MapDataProviderImpl implements MapDataProvider {
 	private MapFileMetaData mfm = null;
 	private PoiCategoryManager poiCategoryManager = null;
 	private boolean containsWayIDs;
+	private byte wayDeduplicationMode = WAY_DEDUPLICATION_NONE;
+	/** The way name dictionary (loaded on first use). Each name is stored only once. */
+	private volatile String[] wayNames = null;
+	/** The way index (loaded on first use). */
+	private volatile WayIndex wayIndex = null;
+	private volatile boolean wayIndexLoaded = false;
+	/** Chooses how the tiles of bounding box queries are read. */
+	private final TileQueryPlanner planner;
 
 	/**
 	 * The constructor.
@@ -62,12 +80,14 @@ public class MapDataProviderImpl implements MapDataProvider {
 		this.mfm = this.tpm.getMetaData();
 		this.poiCategoryManager = new FakeCategoryManager(this.mfm.getPOIMappings());
 		this.containsWayIDs = containsWayIDs;
+		this.planner = new TileQueryPlanner(this.tpm, this.mfm);
 	}
 
 	@Override
 	public Collection<Way> getAllWaysInBoundingBox(Rect boundingBox) {
 		// System.out.println("Getting all ways in (lat,lon) " + boundingBox);
 		Vector<Way> ret = new Vector<Way>();
+		LongHashSet wayIDs = createWayIDSet();
 
 		int minX;
 		int minY;
@@ -90,25 +110,20 @@ public class MapDataProviderImpl implements MapDataProvider {
 
 			// System.out.println("Tile interval: [(" + minX + "," + minY + ") .. (" + maxX + "," + maxY
 			// + ")]");
-			byte[] tile;
-			for (int y = minY; y <= maxY; y++) {
-				for (int x = minX; x <= maxX; x++) {
-					// For each tile: extract ways and ignore duplicates
-					tile = this.tpm.getTileData(x, y, z);
-					// System.out.println("extracting " + x + " " + y + " " + z);
-					extractAndAddWaysToContainer(tile, ret, z);
-				}
-			}
+			// For each tile: extract ways and ignore duplicates
+			readWays(new int[] { minX, minY, maxX, maxY }, z, null, this.mfm.getMaximalZoomLevel()[z], ret, wayIDs,
+					null);
 		}
 
 		// TODO How to handle PNG tiles?
 
-		return ret;
+		return stitchIfNeeded(ret);
 	}
 
 	@Override
 	public Collection<PointOfInterest> getAllPoisInBoundingBox(final Rect boundingBox, int[] allowedTagIDs) {
 		Vector<PointOfInterest> ret = new Vector<PointOfInterest>();
+		BitSet acceptedTagIDs = toBitSet(allowedTagIDs);
 		int minX;
 		int minY;
 		int maxX;
@@ -132,21 +147,851 @@ public class MapDataProviderImpl implements MapDataProvider {
 
 			// System.out.println("Tile interval: [(" + minX + "," + minY + ") .. (" + maxX + "," + maxY
 			// + ")]");
-			byte[] tile;
-			for (int y = minY; y <= maxY; y++) {
-				for (int x = minX; x <= maxX; x++) {
-					// For each tile: extract ways and ignore duplicates
-					tile = this.tpm.getTileData(x, y, z);
-					extractAndAddPoisToContainer(tile, ret, allowedTagIDs, x, y, z, boundingBox);
+			boolean[][] skippedTiles = getTilesWithoutMatchingTags(minX, minY, maxX, maxY, z, acceptedTagIDs,
+					FEATURE_TYPE_POI);
+			readPois(new int[] { minX, minY, maxX, maxY }, z, skippedTiles, this.mfm.getMaximalZoomLevel()[z], ret,
+					acceptedTagIDs, boundingBox);
+		}
+
+		System.out.println(Arrays.toString(this.mfm.getPOIMappings()));
+
+		return ret;
+	}
+
+	@Override
+	public Collection<Way> getAllWaysInBoundingBox(Rect boundingBox, byte zoomLevel) {
+		return getAllWaysInBoundingBox(boundingBox, zoomLevel, null);
+	}
+
+	@Override
+	public Collection<Way> getAllWaysInBoundingBox(Rect boundingBox, byte zoomLevel, int[] allowedTagIDs) {
+		Vector<Way> ret = new Vector<Way>();
+		LongHashSet wayIDs = createWayIDSet();
+		BitSet acceptedTagIDs = toBitSet(allowedTagIDs);
+
+		byte baseZoomInterval = getZoomIntervalForZoomLevel(zoomLevel);
+		byte clippedZoomLevel = clipZoomLevel(zoomLevel, baseZoomInterval);
+		int[] tileRange = getTileRange(boundingBox, this.mfm.getBaseZoomLevel()[baseZoomInterval]);
+
+		boolean[][] skippedTiles = getTilesWithoutMatchingTags(tileRange[0], tileRange[1], tileRange[2],
+				tileRange[3], baseZoomInterval, acceptedTagIDs, FEATURE_TYPE_WAY);
+		readWays(tileRange, baseZoomInterval, skippedTiles, clippedZoomLevel, ret, wayIDs, acceptedTagIDs);
+
+		return stitchIfNeeded(ret);
+	}
+
+	@Override
+	public Collection<PointOfInterest> getAllPoisInBoundingBox(Rect boundingBox, byte zoomLevel, int[] allowedTagIDs) {
+		Vector<PointOfInterest> ret = new Vector<PointOfInterest>();
+		BitSet acceptedTagIDs = toBitSet(allowedTagIDs);
+
+		byte baseZoomInterval = getZoomIntervalForZoomLevel(zoomLevel);
+		byte clippedZoomLevel = clipZoomLevel(zoomLevel, baseZoomInterval);
+		int[] tileRange = getTileRange(boundingBox, this.mfm.getBaseZoomLevel()[baseZoomInterval]);
+
+		boolean[][] skippedTiles = getTilesWithoutMatchingTags(tileRange[0], tileRange[1], tileRange[2],
+				tileRange[3], baseZoomInterval, acceptedTagIDs, FEATURE_TYPE_POI);
+		readPois(tileRange, baseZoomInterval, skippedTiles, clippedZoomLevel, ret, acceptedTagIDs, boundingBox);
+
+		return ret;
+	}
+
+	@Override
+	public Collection<PointOfInterest> getAllPoisWithTag(Rect boundingBox, byte zoomLevel, int tagID) {
+		byte baseZoomInterval = getZoomIntervalForZoomLevel(zoomLevel);
+		byte baseZoomLevel = this.mfm.getBaseZoomLevel()[baseZoomInterval];
+
+		// Intervals whose tile keys do not fit into an int have no inverted index
+		int[] tileKeys = baseZoomLevel > TagPostingList.MAX_BASE_ZOOM_LEVEL ? null : this.tpm.getTilesWithTag(
+				baseZoomInterval, FEATURE_TYPE_POI, tagID);
+		if (tileKeys == null) {
+			return getAllPoisInBoundingBox(boundingBox, zoomLevel, new int[] { tagID });
+		}
+
+		Vector<PointOfInterest> ret = new Vector<PointOfInterest>();
+		BitSet acceptedTagIDs = toBitSet(new int[] { tagID });
+		byte clippedZoomLevel = clipZoomLevel(zoomLevel, baseZoomInterval);
+		int[] tileRange = getTileRange(boundingBox, baseZoomLevel);
+
+		byte[] tile;
+		int x;
+		int y;
+		int end = TagPostingList.toTileKey(tileRange[2], tileRange[3], baseZoomLevel);
+		for (int i = TagPostingList.lowerBound(tileKeys, TagPostingList.toTileKey(tileRange[0], tileRange[1],
+				baseZoomLevel)); i < tileKeys.length && tileKeys[i] <= end; i++) {
+			x = TagPostingList.getTileX(tileKeys[i], baseZoomLevel);
+			y = TagPostingList.getTileY(tileKeys[i], baseZoomLevel);
+			if (x < tileRange[0] || x > tileRange[2]) {
+				continue;
+			}
+
+			tile = this.tpm.getTileData(x, y, baseZoomInterval);
+			extractAndAddPoisToContainer(tile, ret, acceptedTagIDs, x, y, baseZoomInterval, clippedZoomLevel,
+					boundingBox);
+		}
+
+		return ret;
+	}
+
+	@Override
+	public Collection<Way> getAllWaysWithTag(Rect boundingBox, byte zoomLevel, int tagID) {
+		byte baseZoomInterval = getZoomIntervalForZoomLevel(zoomLevel);
+		byte baseZoomLevel = this.mfm.getBaseZoomLevel()[baseZoomInterval];
+
+		// Intervals whose tile keys do not fit into an int have no inverted index
+		int[] tileKeys = baseZoomLevel > TagPostingList.MAX_BASE_ZOOM_LEVEL ? null : this.tpm.getTilesWithTag(
+				baseZoomInterval, FEATURE_TYPE_WAY, tagID);
+		if (tileKeys == null) {
+			return getAllWaysInBoundingBox(boundingBox, zoomLevel, new int[] { tagID });
+		}
+
+		Vector<Way> ret = new Vector<Way>();
+		LongHashSet wayIDs = createWayIDSet();
+		BitSet acceptedTagIDs = toBitSet(new int[] { tagID });
+		byte clippedZoomLevel = clipZoomLevel(zoomLevel, baseZoomInterval);
+		int[] tileRange = getTileRange(boundingBox, baseZoomLevel);
+
+		// The keys are ordered row by row, so only the rows of the tile range have to be looked at
+		byte[] tile;
+		int x;
+		int y;
+		int end = TagPostingList.toTileKey(tileRange[2], tileRange[3], baseZoomLevel);
+		for (int i = TagPostingList.lowerBound(tileKeys, TagPostingList.toTileKey(tileRange[0], tileRange[1],
+				baseZoomLevel)); i < tileKeys.length && tileKeys[i] <= end; i++) {
+			x = TagPostingList.getTileX(tileKeys[i], baseZoomLevel);
+			y = TagPostingList.getTileY(tileKeys[i], baseZoomLevel);
+			if (x < tileRange[0] || x > tileRange[2]) {
+				continue;
+			}
+
+			tile = this.tpm.getTileData(x, y, baseZoomInterval);
+			extractAndAddWaysToContainer(tile, ret, x, y, baseZoomInterval, clippedZoomLevel, wayIDs,
+					acceptedTagIDs);
+		}
+
+		return stitchIfNeeded(ret);
+	}
+
+	@Override
+	public List<PointOfInterest> getNearestPois(GeoCoordinate center, int k, int[] allowedTagIDs) {
+		if (k <= 0) {
+			return new ArrayList<PointOfInterest>(0);
+		}
+
+		BitSet acceptedTagIDs = toBitSet(allowedTagIDs);
+
+		// All POIs are visible on the highest zoom level
+		byte zoomLevel = 0;
+		for (byte z = 0; z < this.mfm.getAmountOfZoomIntervals(); z++) {
+			zoomLevel = (byte) Math.max(zoomLevel, this.mfm.getMaximalZoomLevel()[z]);
+		}
+		byte baseZoomInterval = getZoomIntervalForZoomLevel(zoomLevel);
+		zoomLevel = clipZoomLevel(zoomLevel, baseZoomInterval);
+		byte baseZoomLevel = this.mfm.getBaseZoomLevel()[baseZoomInterval];
+		int[] extent = getTileRange(new Rect(this.mfm.getMinLon(), this.mfm.getMaxLon(), this.mfm.getMinLat(),
+				this.mfm.getMaxLat()), baseZoomLevel);
+
+		int latE6 = center.getLatitudeE6();
+		int lonE6 = center.getLongitudeE6();
+		int centerX = (int) MercatorProjection.longitudeToTileX(center.getLongitude(), baseZoomLevel);
+		int centerY = (int) MercatorProjection.latitudeToTileY(center.getLatitude(), baseZoomLevel);
+
+		// Max-heap holding the k nearest POIs found so far, the farthest one on top
+		PriorityQueue<NearestPoiCandidate> heap = new PriorityQueue<NearestPoiCandidate>(k + 1,
+				new Comparator<NearestPoiCandidate>() {
+					@Override
+					public int compare(NearestPoiCandidate c1, NearestPoiCandidate c2) {
+						return c1.distance < c2.distance ? 1 : (c1.distance > c2.distance ? -1 : 0);
+					}
+				});
+
+		Vector<PointOfInterest> tilePois = new Vector<PointOfInterest>();
+		boolean[][] skippedTiles;
+		byte[] tile;
+		int[][] strips;
+		int minX;
+		int minY;
+		int maxX;
+		int maxY;
+		long ringDistance;
+		long distance;
+		long dLat;
+		long dLon;
+		for (int r = 0;; r++) {
+			// Stop if the ring is completely outside of the map
+			if (centerX - r < extent[0] && centerX + r > extent[2] && centerY - r < extent[1]
+					&& centerY + r > extent[3]) {
+				break;
+			}
+
+			// No POI of this ring is nearer than the edge of the tiles searched so far
+			if (r > 0 && heap.size() == k) {
+				ringDistance = Math.min(
+						Math.min(lonE6 - getTileLongitudeE6(centerX - r + 1, baseZoomInterval),
+								getTileLongitudeE6(centerX + r, baseZoomInterval) - lonE6),
+						Math.min(getTileLatitudeE6(centerY - r + 1, baseZoomInterval) - latE6,
+								latE6 - getTileLatitudeE6(centerY + r, baseZoomInterval)));
+				if (ringDistance * ringDistance > heap.peek().distance) {
+					break;
+				}
+			}
+
+			// The ring's first and last row and the first and last column in between. The inner tiles
+			// have been searched before, so only the summaries of the ring's own tiles are loaded.
+			if (r == 0) {
+				strips = new int[][] { { centerX, centerY, centerX, centerY } };
+			} else {
+				strips = new int[][] { { centerX - r, centerY - r, centerX + r, centerY - r },
+						{ centerX - r, centerY + r, centerX + r, centerY + r },
+						{ centerX - r, centerY - r + 1, centerX - r, centerY + r - 1 },
+						{ centerX + r, centerY - r + 1, centerX + r, centerY + r - 1 } };
+			}
+
+			for (int[] strip : strips) {
+				minX = Math.max(strip[0], extent[0]);
+				minY = Math.max(strip[1], extent[1]);
+				maxX = Math.min(strip[2], extent[2]);
+				maxY = Math.min(strip[3], extent[3]);
+				if (minX > maxX || minY > maxY) {
+					continue;
+				}
+
+				skippedTiles = getTilesWithoutMatchingTags(minX, minY, maxX, maxY, baseZoomInterval, acceptedTagIDs,
+						FEATURE_TYPE_POI);
+				for (int y = minY; y <= maxY; y++) {
+					for (int x = minX; x <= maxX; x++) {
+						if (skippedTiles != null && skippedTiles[y - minY][x - minX]) {
+							continue;
+						}
+
+						tile = this.tpm.getTileData(x, y, baseZoomInterval);
+						tilePois.clear();
+						extractAndAddPoisToContainer(tile, tilePois, acceptedTagIDs, x, y, baseZoomInterval,
+								zoomLevel, null);
+
+						for (PointOfInterest p : tilePois) {
+							dLat = GeoCoordinate.doubleToInt(p.getLatitude()) - latE6;
+							dLon = GeoCoordinate.doubleToInt(p.getLongitude()) - lonE6;
+							distance = dLat * dLat + dLon * dLon;
+
+							if (heap.size() < k) {
+								heap.add(new NearestPoiCandidate(p, distance));
+							} else if (distance < heap.peek().distance) {
+								heap.poll();
+								heap.add(new NearestPoiCandidate(p, distance));
+							}
+						}
+					}
 				}
 			}
 		}
 
-		System.out.println(Arrays.toString(this.mfm.getPOIMappings()));
+		PointOfInterest[] ret = new PointOfInterest[heap.size()];
+		for (int i = ret.length - 1; i >= 0; i--) {
+			ret[i] = heap.poll().poi;
+		}
+
+		return Arrays.asList(ret);
+	}
+
+	@Override
+	public Collection<Way> getAllWaysInPolygon(GeoCoordinate[] polygon, byte zoomLevel, int[] allowedTagIDs) {
+		return getAllWaysInArea(new PolygonArea(polygon), zoomLevel, allowedTagIDs);
+	}
+
+	@Override
+	public Collection<PointOfInterest> getAllPoisInPolygon(GeoCoordinate[] polygon, byte zoomLevel,
+			int[] allowedTagIDs) {
+		return getAllPoisInArea(new PolygonArea(polygon), zoomLevel, allowedTagIDs);
+	}
+
+	@Override
+	public Collection<Way> getAllWaysAlongRoute(GeoCoordinate[] route, int distanceMeters, byte zoomLevel,
+			int[] allowedTagIDs) {
+		return getAllWaysInArea(new CorridorArea(route, distanceMeters), zoomLevel, allowedTagIDs);
+	}
+
+	@Override
+	public Collection<PointOfInterest> getAllPoisAlongRoute(GeoCoordinate[] route, int distanceMeters,
+			byte zoomLevel, int[] allowedTagIDs) {
+		return getAllPoisInArea(new CorridorArea(route, distanceMeters), zoomLevel, allowedTagIDs);
+	}
+
+	@Override
+	public Collection<Way> getAllWaysInArea(final QueryArea area, byte zoomLevel, int[] allowedTagIDs) {
+		final Vector<Way> ret = new Vector<Way>();
+		final LongHashSet wayIDs = createWayIDSet();
+		final BitSet acceptedTagIDs = toBitSet(allowedTagIDs);
+
+		final byte baseZoomInterval = getZoomIntervalForZoomLevel(zoomLevel);
+		final byte clippedZoomLevel = clipZoomLevel(zoomLevel, baseZoomInterval);
+		final int[] tileRange = getTileRange(area, baseZoomInterval);
+		if (tileRange == null) {
+			return ret;
+		}
+
+		final byte[][] tileClasses = classifyTiles(area, tileRange, baseZoomInterval);
+		boolean[][] skippedTiles = getSkippedTiles(tileClasses, getTilesWithoutMatchingTags(tileRange[0],
+				tileRange[1], tileRange[2], tileRange[3], baseZoomInterval, acceptedTagIDs, FEATURE_TYPE_WAY));
+
+		final Vector<Way> boundaryWays = new Vector<Way>();
+		this.planner.readTiles(tileRange, baseZoomInterval, skippedTiles, new TileVisitor() {
+			@Override
+			public void visitTile(TileDataContainer tile) {
+				if (tileClasses[tile.getyPos() - tileRange[1]][tile.getxPos() - tileRange[0]]
+						== QueryArea.TILE_INSIDE) {
+					extractAndAddWaysToContainer(tile.getData(), ret, tile.getxPos(), tile.getyPos(),
+							baseZoomInterval, clippedZoomLevel, wayIDs, acceptedTagIDs);
+					return;
+				}
+
+				// Ways rejected here may still be found in another tile, so their IDs must not be
+				// remembered before they have been tested
+				boundaryWays.clear();
+				extractAndAddWaysToContainer(tile.getData(), boundaryWays, tile.getxPos(), tile.getyPos(),
+						baseZoomInterval, clippedZoomLevel, null, acceptedTagIDs);
+				for (Way w : boundaryWays) {
+					if ((wayIDs == null || !wayIDs.contains(w.getId()))
+							&& area.intersects(w.getCoordinates())) {
+						if (wayIDs != null) {
+							wayIDs.add(w.getId());
+						}
+						ret.add(w);
+					}
+				}
+			}
+		});
+
+		return stitchIfNeeded(ret);
+	}
+
+	@Override
+	public Collection<PointOfInterest> getAllPoisInArea(final QueryArea area, byte zoomLevel, int[] allowedTagIDs) {
+		final Vector<PointOfInterest> ret = new Vector<PointOfInterest>();
+		final BitSet acceptedTagIDs = toBitSet(allowedTagIDs);
+
+		final byte baseZoomInterval = getZoomIntervalForZoomLevel(zoomLevel);
+		final byte clippedZoomLevel = clipZoomLevel(zoomLevel, baseZoomInterval);
+		final int[] tileRange = getTileRange(area, baseZoomInterval);
+		if (tileRange == null) {
+			return ret;
+		}
+
+		final byte[][] tileClasses = classifyTiles(area, tileRange, baseZoomInterval);
+		boolean[][] skippedTiles = getSkippedTiles(tileClasses, getTilesWithoutMatchingTags(tileRange[0],
+				tileRange[1], tileRange[2], tileRange[3], baseZoomInterval, acceptedTagIDs, FEATURE_TYPE_POI));
+
+		final Vector<PointOfInterest> boundaryPois = new Vector<PointOfInterest>();
+		this.planner.readTiles(tileRange, baseZoomInterval, skippedTiles, new TileVisitor() {
+			@Override
+			public void visitTile(TileDataContainer tile) {
+				if (tileClasses[tile.getyPos() - tileRange[1]][tile.getxPos() - tileRange[0]]
+						== QueryArea.TILE_INSIDE) {
+					extractAndAddPoisToContainer(tile.getData(), ret, acceptedTagIDs, tile.getxPos(),
+							tile.getyPos(), baseZoomInterval, clippedZoomLevel, null);
+					return;
+				}
+
+				boundaryPois.clear();
+				extractAndAddPoisToContainer(tile.getData(), boundaryPois, acceptedTagIDs, tile.getxPos(),
+						tile.getyPos(), baseZoomInterval, clippedZoomLevel, area.getBoundingBox());
+				for (PointOfInterest p : boundaryPois) {
+					if (area.contains(GeoCoordinate.doubleToInt(p.getLatitude()),
+							GeoCoordinate.doubleToInt(p.getLongitude()))) {
+						ret.add(p);
+					}
+				}
+			}
+		});
+
+		return ret;
+	}
+
+	/**
+	 * Calculates the tiles covered by an area's bounding box within the map's extent.
+	 *
+	 * @param area
+	 *            The area.
+	 * @param baseZoomInterval
+	 *            The zoom interval whose tile grid should be used.
+	 * @return The tile range as <code>[minX, minY, maxX, maxY]</code> or null if the area is outside of
+	 *         the map.
+	 */
+	private int[] getTileRange(QueryArea area, byte baseZoomInterval) {
+		Rect boundingBox = area.getBoundingBox();
+		int minLon = Math.max(boundingBox.getMinLongitudeE6(), this.mfm.getMinLon());
+		int maxLon = Math.min(boundingBox.getMaxLongitudeE6(), this.mfm.getMaxLon());
+		int minLat = Math.max(boundingBox.getMinLatitudeE6(), this.mfm.getMinLat());
+		int maxLat = Math.min(boundingBox.getMaxLatitudeE6(), this.mfm.getMaxLat());
+
+		// Checked before creating the rectangle, which rejects empty bounds
+		if (minLon > maxLon || minLat > maxLat) {
+			return null;
+		}
+
+		return getTileRange(new Rect(minLon, maxLon, minLat, maxLat),
+				this.mfm.getBaseZoomLevel()[baseZoomInterval]);
+	}
+
+	/**
+	 * Rasterizes an area onto the tile grid of a zoom interval.
+	 *
+	 * @param area
+	 *            The area.
+	 * @param tileRange
+	 *            The tile range as <code>[minX, minY, maxX, maxY]</code>.
+	 * @param baseZoomInterval
+	 *            The tiles' base zoom interval.
+	 * @return The class of each tile indexed by <code>[y - minY][x - minX]</code>.
+	 */
+	private byte[][] classifyTiles(QueryArea area, int[] tileRange, byte baseZoomInterval) {
+		int[] columnLongitudesE6 = new int[tileRange[2] - tileRange[0] + 2];
+		for (int i = 0; i < columnLongitudesE6.length; i++) {
+			columnLongitudesE6[i] = getTileLongitudeE6(tileRange[0] + i, baseZoomInterval);
+		}
+
+		int[] rowLatitudesE6 = new int[tileRange[3] - tileRange[1] + 2];
+		for (int i = 0; i < rowLatitudesE6.length; i++) {
+			rowLatitudesE6[i] = getTileLatitudeE6(tileRange[1] + i, baseZoomInterval);
+		}
+
+		return area.classifyTiles(columnLongitudesE6, rowLatitudesE6);
+	}
+
+	/**
+	 * Combines the tiles outside of an area with the tiles skipped by the tag filter.
+	 *
+	 * @param tileClasses
+	 *            The tile classes returned by {@link #classifyTiles(QueryArea, int[], byte)}.
+	 * @param tilesWithoutMatchingTags
+	 *            Tiles skipped by the tag filter (may be null).
+	 * @return All tiles that do not have to be read.
+	 */
+	private static boolean[][] getSkippedTiles(byte[][] tileClasses, boolean[][] tilesWithoutMatchingTags) {
+		boolean[][] ret = new boolean[tileClasses.length][];
+
+		for (int y = 0; y < tileClasses.length; y++) {
+			ret[y] = new boolean[tileClasses[y].length];
+			for (int x = 0; x < tileClasses[y].length; x++) {
+				ret[y][x] = tileClasses[y][x] == QueryArea.TILE_OUTSIDE
+						|| (tilesWithoutMatchingTags != null && tilesWithoutMatchingTags[y][x]);
+			}
+		}
+
+		return ret;
+	}
+
+	@Override
+	public Publisher<Way> getWayPublisher(Rect boundingBox, byte zoomLevel, int[] allowedTagIDs) {
+		return new WayPublisher(this, boundingBox, zoomLevel, allowedTagIDs, null);
+	}
+
+	@Override
+	public Publisher<PointOfInterest> getPoiPublisher(Rect boundingBox, byte zoomLevel, int[] allowedTagIDs) {
+		return new PoiPublisher(this, boundingBox, zoomLevel, allowedTagIDs, null);
+	}
+
+	@Override
+	public int[] getFeatureCounts(Rect boundingBox, byte zoomLevel) {
+		int[] ret = new int[2];
+		int[] counts = new int[2];
+
+		byte baseZoomInterval = getZoomIntervalForZoomLevel(zoomLevel);
+		byte clippedZoomLevel = clipZoomLevel(zoomLevel, baseZoomInterval);
+		int[] tileRange = getTileRange(boundingBox, this.mfm.getBaseZoomLevel()[baseZoomInterval]);
+
+		for (int y = tileRange[1]; y <= tileRange[3]; y++) {
+			for (int x = tileRange[0]; x <= tileRange[2]; x++) {
+				if (readFeatureCounts(x, y, baseZoomInterval, clippedZoomLevel, counts)) {
+					ret[FEATURE_TYPE_POI] += counts[FEATURE_TYPE_POI];
+					ret[FEATURE_TYPE_WAY] += counts[FEATURE_TYPE_WAY];
+				}
+			}
+		}
+
+		return ret;
+	}
+
+	@Override
+	public int[][] getDensityGrid(Rect boundingBox, byte zoomLevel, byte featureType) {
+		int[] counts = new int[2];
+
+		byte baseZoomInterval = getZoomIntervalForZoomLevel(zoomLevel);
+		byte clippedZoomLevel = clipZoomLevel(zoomLevel, baseZoomInterval);
+		int[] tileRange = getTileRange(boundingBox, this.mfm.getBaseZoomLevel()[baseZoomInterval]);
+		int[][] ret = new int[tileRange[3] - tileRange[1] + 1][tileRange[2] - tileRange[0] + 1];
+
+		for (int y = tileRange[1]; y <= tileRange[3]; y++) {
+			for (int x = tileRange[0]; x <= tileRange[2]; x++) {
+				if (readFeatureCounts(x, y, baseZoomInterval, clippedZoomLevel, counts)) {
+					ret[y - tileRange[1]][x - tileRange[0]] = counts[featureType];
+				}
+			}
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Reads the number of POIs and ways visible on a zoom level from a tile's zoom table. Only the
+	 * tile's header is read.
+	 * 
+	 * @param x
+	 *            The tile's x-position.
+	 * @param y
+	 *            The tile's y-position.
+	 * @param baseZoomInterval
+	 *            The tile's base zoom interval.
+	 * @param zoomLevel
+	 *            The zoom level. It must be within the interval's zoom level range.
+	 * @param counts
+	 *            Array the counts are written to as <code>[pois, ways]</code>.
+	 * @return false if the tile does not exist.
+	 */
+	private boolean readFeatureCounts(int x, int y, byte baseZoomInterval, byte zoomLevel, int[] counts) {
+		// Tile signature (32B, optional), then 2 shorts per zoom level
+		int rowOffset = (this.mfm.isDebugFlagSet() ? 32 : 0)
+				+ (zoomLevel - this.mfm.getMinimalZoomLevel()[baseZoomInterval]) * 4;
+		byte[] header = this.tpm.getTileHeader(x, y, baseZoomInterval, rowOffset + 4);
+
+		if (header == null || header.length < rowOffset + 4) {
+			return false;
+		}
+
+		counts[FEATURE_TYPE_POI] = (header[rowOffset] & 0xff) << 8 | (header[rowOffset + 1] & 0xff);
+		counts[FEATURE_TYPE_WAY] = (header[rowOffset + 2] & 0xff) << 8 | (header[rowOffset + 3] & 0xff);
+
+		return true;
+	}
+
+	/**
+	 * Describes how the tiles for a bounding box query on the given zoom level would be read. Tiles
+	 * skipped by tag filters are not taken into account.
+	 * 
+	 * @param boundingBox
+	 *            The bounding box.
+	 * @param zoomLevel
+	 *            The zoom level.
+	 * @return A human readable description of the query plan.
+	 */
+	public String explain(Rect boundingBox, byte zoomLevel) {
+		byte baseZoomInterval = getZoomIntervalForZoomLevel(zoomLevel);
+
+		return this.planner.explain(getTileRange(boundingBox, this.mfm.getBaseZoomLevel()[baseZoomInterval]),
+				baseZoomInterval, null);
+	}
+
+	/**
+	 * 
+	 * @return The planner choosing how the tiles of bounding box queries are read. It also provides
+	 *         timing statistics per strategy.
+	 */
+	public TileQueryPlanner getQueryPlanner() {
+		return this.planner;
+	}
+
+	/**
+	 * 
+	 * @return The tile persistence manager this provider reads its tiles from.
+	 */
+	TilePersistenceManager getTilePersistenceManager() {
+		return this.tpm;
+	}
+
+	/**
+	 * 
+	 * @return The map file's meta data.
+	 */
+	MapFileMetaData getMetaData() {
+		return this.mfm;
+	}
+
+	@Override
+	public void setWayDeduplicationMode(byte mode) {
+		this.wayDeduplicationMode = mode;
+	}
+
+	/**
+	 * Resolves a way name from the map's way name dictionary. The dictionary is loaded on first access,
+	 * all ways sharing a name get the same {@link String} instance.
+	 * 
+	 * @param index
+	 *            The name's dictionary index.
+	 * @return The way name or null if the index is not in the dictionary.
+	 */
+	private String getWayName(int index) {
+		String[] names = this.wayNames;
+
+		if (names == null) {
+			synchronized (this) {
+				names = this.wayNames;
+				if (names == null) {
+					names = this.tpm.getWayNames();
+					if (names == null) {
+						names = new String[0];
+					}
+					this.wayNames = names;
+				}
+			}
+		}
+
+		if (index < 0 || index >= names.length) {
+			return null;
+		}
+
+		return names[index];
+	}
+
+	/**
+	 * Gets the map's way index. The index is loaded on first access.
+	 * 
+	 * @return The way index or null if the map does not have one.
+	 */
+	private WayIndex getWayIndex() {
+		if (!this.wayIndexLoaded) {
+			synchronized (this) {
+				if (!this.wayIndexLoaded) {
+					this.wayIndex = this.tpm.getWayIndex();
+					this.wayIndexLoaded = true;
+				}
+			}
+		}
+
+		return this.wayIndex;
+	}
+
+	/**
+	 * Determines the tiles of a tile range that cannot contain any feature matching a tag filter by
+	 * looking at their tag summaries. Only the summaries are read, the tiles themselves are not touched.
+	 * 
+	 * @param minX
+	 *            Minimal x-coordinate of the range.
+	 * @param minY
+	 *            Minimal y-coordinate of the range.
+	 * @param maxX
+	 *            Maximal x-coordinate of the range.
+	 * @param maxY
+	 *            Maximal y-coordinate of the range.
+	 * @param baseZoomInterval
+	 *            The tiles' base zoom interval.
+	 * @param acceptedTagIDs
+	 *            The tag filter or null.
+	 * @param featureType
+	 *            {@link #FEATURE_TYPE_POI} or {@link #FEATURE_TYPE_WAY}.
+	 * @return An array indexed by <code>[y - minY][x - minX]</code> that is true for all tiles that can
+	 *         be skipped or null if no tile can be skipped. Tiles without a summary are never skipped.
+	 */
+	boolean[][] getTilesWithoutMatchingTags(int minX, int minY, int maxX, int maxY, byte baseZoomInterval,
+			BitSet acceptedTagIDs, byte featureType) {
+		if (acceptedTagIDs == null) {
+			return null;
+		}
+
+		Collection<TileTagSummary> summaries = this.tpm.getTileTagSummaries(minX, minY, maxX, maxY,
+				baseZoomInterval);
+		if (summaries.isEmpty()) {
+			return null;
+		}
+
+		boolean[][] ret = new boolean[maxY - minY + 1][maxX - minX + 1];
+		BitSet tags;
+		for (TileTagSummary summary : summaries) {
+			tags = featureType == FEATURE_TYPE_POI ? summary.getPoiTags() : summary.getWayTags();
+			ret[summary.getYPos() - minY][summary.getXPos() - minX] = !tags.intersects(acceptedTagIDs);
+		}
 
 		return ret;
 	}
 
+	/**
+	 * Converts a list of tag IDs to a bit set for constant time lookups while parsing.
+	 * 
+	 * @param tagIDs
+	 *            A list of tag IDs or null.
+	 * @return A bit set having the bits for all given tag IDs set or null if the list is null.
+	 */
+	static BitSet toBitSet(int[] tagIDs) {
+		if (tagIDs == null) {
+			return null;
+		}
+
+		BitSet ret = new BitSet();
+		for (int i = 0; i < tagIDs.length; i++) {
+			ret.set(tagIDs[i]);
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Creates the set of already extracted way IDs for a single query.
+	 * 
+	 * @return An empty set if ways should be deduplicated by their ID, otherwise null.
+	 */
+	LongHashSet createWayIDSet() {
+		if (this.containsWayIDs && this.wayDeduplicationMode == WAY_DEDUPLICATION_BY_ID) {
+			return new LongHashSet();
+		}
+
+		return null;
+	}
+
+	/**
+	 * Joins way segments from different tiles if {@link #WAY_DEDUPLICATION_STITCH} has been set.
+	 * 
+	 * @param ways
+	 *            All ways found by a query.
+	 * @return The stitched ways or the given collection if stitching is disabled.
+	 */
+	Collection<Way> stitchIfNeeded(Collection<Way> ways) {
+		if (!this.containsWayIDs || this.wayDeduplicationMode != WAY_DEDUPLICATION_STITCH) {
+			return ways;
+		}
+
+		WayStitcher stitcher = new WayStitcher();
+		for (Way w : ways) {
+			stitcher.add(w);
+		}
+
+		return stitcher.stitch();
+	}
+
+	/**
+	 * Determines the zoom interval whose zoom level range covers the given zoom level. If no interval
+	 * covers it, the interval with the closest zoom level range will be returned.
+	 * 
+	 * @param zoomLevel
+	 *            The zoom level.
+	 * @return The zoom interval covering the given zoom level.
+	 */
+	byte getZoomIntervalForZoomLevel(byte zoomLevel) {
+		byte ret = 0;
+		int minDistance = Integer.MAX_VALUE;
+		int distance;
+
+		for (byte z = 0; z < this.mfm.getAmountOfZoomIntervals(); z++) {
+			if (zoomLevel < this.mfm.getMinimalZoomLevel()[z]) {
+				distance = this.mfm.getMinimalZoomLevel()[z] - zoomLevel;
+			} else if (zoomLevel > this.mfm.getMaximalZoomLevel()[z]) {
+				distance = zoomLevel - this.mfm.getMaximalZoomLevel()[z];
+			} else {
+				return z;
+			}
+
+			if (distance < minDistance) {
+				minDistance = distance;
+				ret = z;
+			}
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Clips a zoom level to the zoom level range of the given zoom interval.
+	 * 
+	 * @param zoomLevel
+	 *            The zoom level.
+	 * @param baseZoomInterval
+	 *            The zoom interval.
+	 * @return The zoom level within [minimal zoom level, maximal zoom level] of the given interval.
+	 */
+	byte clipZoomLevel(byte zoomLevel, byte baseZoomInterval) {
+		if (zoomLevel < this.mfm.getMinimalZoomLevel()[baseZoomInterval]) {
+			return this.mfm.getMinimalZoomLevel()[baseZoomInterval];
+		}
+
+		if (zoomLevel > this.mfm.getMaximalZoomLevel()[baseZoomInterval]) {
+			return this.mfm.getMaximalZoomLevel()[baseZoomInterval];
+		}
+
+		return zoomLevel;
+	}
+
+	/**
+	 * Calculates the tiles on the given base zoom level that are covered by a bounding box.
+	 * 
+	 * @param boundingBox
+	 *            The bounding box.
+	 * @param baseZoomLevel
+	 *            The base zoom level (not interval) of the tile grid.
+	 * @return The tile range as <code>[minX, minY, maxX, maxY]</code>.
+	 */
+	int[] getTileRange(Rect boundingBox, byte baseZoomLevel) {
+		int[] ret = new int[4];
+
+		ret[0] = (int) MercatorProjection.longitudeToTileX(
+				boundingBox.getMinLongitudeE6() / GeoCoordinate.FACTOR_DOUBLE_TO_INT, baseZoomLevel);
+		ret[1] = (int) MercatorProjection.latitudeToTileY(boundingBox.getMaxLatitudeE6() / GeoCoordinate.FACTOR_DOUBLE_TO_INT,
+				baseZoomLevel);
+		ret[2] = (int) MercatorProjection.longitudeToTileX(
+				boundingBox.getMaxLongitudeE6() / GeoCoordinate.FACTOR_DOUBLE_TO_INT, baseZoomLevel);
+		ret[3] = (int) MercatorProjection.latitudeToTileY(boundingBox.getMinLatitudeE6() / GeoCoordinate.FACTOR_DOUBLE_TO_INT,
+				baseZoomLevel);
+
+		return ret;
+	}
+
+	/**
+	 * Reads a tile range and extracts the ways of each tile as soon as it has been read.
+	 * 
+	 * @param tileRange
+	 *            The tile range as <code>[minX, minY, maxX, maxY]</code>.
+	 * @param baseZoomInterval
+	 *            The tiles' base zoom interval.
+	 * @param skippedTiles
+	 *            Tiles that are not needed, indexed by <code>[y - minY][x - minX]</code> (may be null).
+	 * @param zoomLevel
+	 *            Only ways visible on this zoom level will be extracted.
+	 * @param container
+	 *            The container the extracted ways are put in.
+	 * @param wayIDs
+	 *            IDs of all ways that have already been extracted (may be null).
+	 * @param acceptedTagIDs
+	 *            Only ways having at least one of these tag IDs will be extracted (may be null).
+	 */
+	private void readWays(int[] tileRange, final byte baseZoomInterval, boolean[][] skippedTiles,
+			final byte zoomLevel, final Collection<Way> container, final LongHashSet wayIDs,
+			final BitSet acceptedTagIDs) {
+		this.planner.readTiles(tileRange, baseZoomInterval, skippedTiles, new TileVisitor() {
+			@Override
+			public void visitTile(TileDataContainer tile) {
+				extractAndAddWaysToContainer(tile.getData(), container, tile.getxPos(), tile.getyPos(),
+						baseZoomInterval, zoomLevel, wayIDs, acceptedTagIDs);
+			}
+		});
+	}
+
+	/**
+	 * Reads a tile range and extracts the POIs of each tile as soon as it has been read.
+	 * 
+	 * @param tileRange
+	 *            The tile range as <code>[minX, minY, maxX, maxY]</code>.
+	 * @param baseZoomInterval
+	 *            The tiles' base zoom interval.
+	 * @param skippedTiles
+	 *            Tiles that are not needed, indexed by <code>[y - minY][x - minX]</code> (may be null).
+	 * @param zoomLevel
+	 *            Only POIs visible on this zoom level will be extracted.
+	 * @param container
+	 *            The container the extracted POIs are put in.
+	 * @param acceptedTagIDs
+	 *            Only POIs having at least one of these tag IDs will be extracted (may be null).
+	 * @param boundingBox
+	 *            Only POIs within this bounding box will be extracted (may be null).
+	 */
+	private void readPois(int[] tileRange, final byte baseZoomInterval, boolean[][] skippedTiles,
+			final byte zoomLevel, final Collection<PointOfInterest> container, final BitSet acceptedTagIDs,
+			final Rect boundingBox) {
+		this.planner.readTiles(tileRange, baseZoomInterval, skippedTiles, new TileVisitor() {
+			@Override
+			public void visitTile(TileDataContainer tile) {
+				extractAndAddPoisToContainer(tile.getData(), container, acceptedTagIDs, tile.getxPos(),
+						tile.getyPos(), baseZoomInterval, zoomLevel, boundingBox);
+			}
+		});
+	}
+
 	/**
 	 * Extracts all ways from a given data tile and stores them into a given container. Duplicate ways
 	 * are ignored.
@@ -155,10 +1000,24 @@ public class MapDataProviderImpl implements MapDataProvider {
 	 *            The data tile containing all data.
 	 * @param container
 	 *            The container the extracted ways are put in.
+	 * @param x
+	 *            The tile's x-position.
+	 * @param y
+	 *            The tile's y-position.
 	 * @param baseZoomInterval
 	 *            The tile's base zoom interval.
+	 * @param zoomLevel
+	 *            Only ways visible on this zoom level will be extracted. The zoom level must be within
+	 *            the interval's zoom level range.
+	 * @param wayIDs
+	 *            IDs of all ways that have already been extracted. Ways with an ID in this set will be
+	 *            skipped, new IDs will be added. If set to null, no ways will be skipped.
+	 * @param acceptedTagIDs
+	 *            Only ways having at least one of these tag IDs will be extracted. If set to null, ways
+	 *            will not be filtered.
 	 */
-	private void extractAndAddWaysToContainer(final byte[] tile, Collection<Way> container, byte baseZoomInterval) {
+	void extractAndAddWaysToContainer(final byte[] tile, Collection<Way> container, int x, int y,
+			byte baseZoomInterval, byte zoomLevel, LongHashSet wayIDs, BitSet acceptedTagIDs) {
 		if (tile == null) {
 			return;
 		}
@@ -199,14 +1058,16 @@ public class MapDataProviderImpl implements MapDataProvider {
 		// System.out.println("First way offset: " + firstWayOffset);
 		s.skip(firstWayOffset);
 
-		// Parse all ways
+		// Parse all ways (ways are ordered by zoom level, the zoom table holds cumulated counts)
+		int tileLatE6 = getTileLatitudeE6(y, baseZoomInterval);
+		int tileLonE6 = getTileLongitudeE6(x, baseZoomInterval);
 		Way w;
-		for (int way = 0; way < waysOnZoomLevel[maxZoomLevel - minZoomLevel]; way++) {
-			w = parseNextWay(s);
-			// TODO Should duplicates be prevented?
-			// if (!container.contains(w)) {
-			container.add(w);
-			// }
+		for (int way = 0; way < waysOnZoomLevel[zoomLevel - minZoomLevel]; way++) {
+			// Returns null for ways that have already been extracted or whose tags don't match
+			w = parseNextWay(s, tileLatE6, tileLonE6, wayIDs, acceptedTagIDs);
+			if (w != null) {
+				container.add(w);
+			}
 		}
 	}
 
@@ -219,18 +1080,22 @@ public class MapDataProviderImpl implements MapDataProvider {
 	 * @param container
 	 *            The container the extracted ways are put in.
 	 * @param acceptedCategories
-	 *            List of tag IDs. Only POIs having a tag ID from this list will be added.
+	 *            Set of tag IDs. Only POIs having a tag ID from this set will be added. If set to null,
+	 *            POIs will not be filtered.
 	 * @param x
 	 *            The tile's x-position.
 	 * @param y
 	 *            The tile's y-position.
 	 * @param baseZoomInterval
 	 *            The tile's base zoom interval.
+	 * @param zoomLevel
+	 *            Only POIs visible on this zoom level will be extracted. The zoom level must be within
+	 *            the interval's zoom level range.
 	 * @param boundingBox
 	 *            The bounding box for filtering POIs.
 	 */
-	private void extractAndAddPoisToContainer(byte[] tile, Collection<PointOfInterest> container, int[] acceptedCategories,
-			int x, int y, byte baseZoomInterval, Rect boundingBox) {
+	void extractAndAddPoisToContainer(byte[] tile, Collection<PointOfInterest> container, BitSet acceptedCategories,
+			int x, int y, byte baseZoomInterval, byte zoomLevel, Rect boundingBox) {
 		if (tile == null) {
 			return;
 		}
@@ -265,42 +1130,84 @@ public class MapDataProviderImpl implements MapDataProvider {
 		// First way offset (VBE-U)
 		s.getNextVBEUInt();
 
+		// The tile's origin and the bounding box relative to it, so that POI positions can be
+		// filtered without decoding them
+		int tileLatE6 = getTileLatitudeE6(y, baseZoomInterval);
+		int tileLonE6 = getTileLongitudeE6(x, baseZoomInterval);
+		Rect relativeBoundingBox = null;
+		if (boundingBox != null) {
+			relativeBoundingBox = new Rect(boundingBox.getMinLongitudeE6() - tileLonE6,
+					boundingBox.getMaxLongitudeE6() - tileLonE6,
+					boundingBox.getMinLatitudeE6() - tileLatE6,
+					boundingBox.getMaxLatitudeE6() - tileLatE6);
+		}
+
 		// POI data
-		int poisParsed = 0;
-		PointOfInterest p = null;
-		while (poisParsed < poisOnZoomLevel[maxZoomLevel - minZoomLevel]) {
-			// Returns null, if categories don't match
+		PointOfInterest p;
+		for (int poi = 0; poi < poisOnZoomLevel[zoomLevel - minZoomLevel]; poi++) {
+			p = null;
+
+			// Returns null, if categories or position don't match
 			try {
-				p = parseNextPOI(s, x, y, baseZoomInterval, acceptedCategories);
+				p = parseNextPOI(s, tileLatE6, tileLonE6, acceptedCategories, relativeBoundingBox);
 			} catch (UnknownPoiCategoryException e) {
 				System.err.println("Unkown POI category!");
 			}
-			++poisParsed;
-
-			if (p == null) {
-				continue;
-			}
-
-			int lat = (int) (p.getLatitude() * GeoCoordinate.FACTOR_DOUBLE_TO_INT);
-			int lon = (int) (p.getLongitude() * GeoCoordinate.FACTOR_DOUBLE_TO_INT);
-			// System.out.println("Trying to add POI (" + lat + ", " + lon + ") into " + "(" +
-			// boundingBox.getMinLatitudeE6() + ", "
-			// + boundingBox.getMinLongitudeE6() + ") ... (" + boundingBox.getMaxLatitudeE6() + ","
-			// + boundingBox.getMaxLongitudeE6() + ")");
-
-			// Add all POIs that fall within a bounding box
-			if (lat <= boundingBox.getMaxLatitudeE6() &&
-					lat >= boundingBox.getMinLatitudeE6() &&
-					lon <= boundingBox.getMaxLongitudeE6() &&
-					lon >= boundingBox.getMinLongitudeE6()) {
 
+			if (p != null) {
 				container.add(p);
 			}
-
 		}
 	}
 
-	private Way parseNextWay(Serializer s) {
+	/**
+	 * Gets the latitude of a tile's upper left corner.
+	 * 
+	 * @param y
+	 *            The tile's y-position.
+	 * @param baseZoomInterval
+	 *            The tile's base zoom interval.
+	 * @return The tile's latitude in microdegrees.
+	 */
+	private int getTileLatitudeE6(int y, byte baseZoomInterval) {
+		return (int) (MercatorProjection.tileYToLatitude(y, this.mfm.getBaseZoomLevel()[baseZoomInterval])
+				* GeoCoordinate.FACTOR_DOUBLE_TO_INT);
+	}
+
+	/**
+	 * Gets the longitude of a tile's upper left corner.
+	 * 
+	 * @param x
+	 *            The tile's x-position.
+	 * @param baseZoomInterval
+	 *            The tile's base zoom interval.
+	 * @return The tile's longitude in microdegrees.
+	 */
+	private int getTileLongitudeE6(int x, byte baseZoomInterval) {
+		return (int) (MercatorProjection.tileXToLongitude(x, this.mfm.getBaseZoomLevel()[baseZoomInterval])
+				* GeoCoordinate.FACTOR_DOUBLE_TO_INT);
+	}
+
+	/**
+	 * Parses the next way. The first way node is stored relative to the tile's upper left corner, so
+	 * the tile's position is needed for calculating absolute coordinates.
+	 * 
+	 * @param s
+	 *            The serializer pointing at the way's first byte.
+	 * @param tileLatE6
+	 *            The tile's latitude in microdegrees.
+	 * @param tileLonE6
+	 *            The tile's longitude in microdegrees.
+	 * @param wayIDs
+	 *            IDs of all ways that have already been extracted. If the way's ID is in this set, the
+	 *            way will be skipped, otherwise its ID will be added. If set to null, no ways will be
+	 *            skipped.
+	 * @param acceptedTagIDs
+	 *            If the way has none of these tag IDs, it will be skipped. If set to null, ways will not
+	 *            be filtered.
+	 * @return The way or null if it has been skipped.
+	 */
+	private Way parseNextWay(Serializer s, int tileLatE6, int tileLonE6, LongHashSet wayIDs, BitSet acceptedTagIDs) {
 		long[] wayPoints = null;
 		String name = null;
 
@@ -312,14 +1219,20 @@ public class MapDataProviderImpl implements MapDataProvider {
 
 		// Way data size
 		int wayDataSize = s.getNextVBEUInt();
+		int wayDataStart = s.getPosition();
 		// System.out.println("Way data size: " + wayDataSize);
-		// s.skip(wayDataSize);
 
 		// OSM Way ID
 		long id = 0;
 		if (this.containsWayIDs) {
 			id = s.getNextLong();
 			// System.out.println("ID: " + id);
+
+			// Skip duplicates without decoding them
+			if (wayIDs != null && !wayIDs.add(id)) {
+				s.skip(wayDataSize - (s.getPosition() - wayDataStart));
+				return null;
+			}
 		}
 
 		// Sub tile bitmap
@@ -331,10 +1244,20 @@ public class MapDataProviderImpl implements MapDataProvider {
 		// System.out.println("Amount of tags: " + (specialByte & (byte) 0x0f));
 
 		// Tag IDs
+		boolean hasMatchingTagID = acceptedTagIDs == null;
+		int tagID;
 		for (byte pos = 0; pos < (specialByte & (byte) 0x0f); pos++) {
-			// TODO create skip method
-			// System.out.println("Tag: " + s.getNextVBEUInt());
-			s.getNextVBEUInt();
+			tagID = s.getNextVBEUInt();
+			// System.out.println("Tag: " + tagID);
+			if (!hasMatchingTagID && acceptedTagIDs.get(tagID)) {
+				hasMatchingTagID = true;
+			}
+		}
+
+		// Skip the rest of the way if its tags don't match
+		if (!hasMatchingTagID) {
+			s.skip(wayDataSize - (s.getPosition() - wayDataStart));
+			return null;
 		}
 
 		// Flags
@@ -346,9 +1269,13 @@ public class MapDataProviderImpl implements MapDataProvider {
 		// System.out.println("Way data blocks flag: " + ((flags & (byte) 0x10) != 0));
 		// System.out.println("Double delta flag: " + ((flags & (byte) 0x08) != 0));
 
-		// Way name
+		// Way name (dictionary index or inline string)
 		if ((flags & (byte) 0x80) != 0) {
-			name = s.getNextString();
+			if (this.mfm.isWayNameDictionaryFlagSet()) {
+				name = getWayName(s.getNextVBEUInt());
+			} else {
+				name = s.getNextString();
+			}
 			// System.out.println("Name: " + name);
 		}
 
@@ -410,6 +1337,10 @@ public class MapDataProviderImpl implements MapDataProvider {
 			}
 		}
 
+		// The first way node is relative to the tile's upper left corner
+		wayPoints[0] += tileLatE6;
+		wayPoints[1] += tileLonE6;
+
 		if (this.containsWayIDs) {
 			return new Way(deltaToAbsoluteEncoding(wayPoints), name, id);
 		}
@@ -417,8 +1348,28 @@ public class MapDataProviderImpl implements MapDataProvider {
 		return new Way(deltaToAbsoluteEncoding(wayPoints), name);
 	}
 
-	private PointOfInterest parseNextPOI(Serializer s, int x, int y, byte baseZoomInterval, int[] acceptedCategoryIDs)
-			throws UnknownPoiCategoryException {
+	/**
+	 * Parses the next POI. The POI's position and tags are checked before anything is allocated, POIs
+	 * that don't match are skipped.
+	 * 
+	 * @param s
+	 *            The serializer pointing at the POI's first byte.
+	 * @param tileLatE6
+	 *            Latitude of the tile's upper left corner.
+	 * @param tileLonE6
+	 *            Longitude of the tile's upper left corner.
+	 * @param acceptedCategoryIDs
+	 *            Set of tag IDs. POIs having none of these tag IDs will be skipped. If set to null, POIs
+	 *            will not be filtered by tag.
+	 * @param relativeBoundingBox
+	 *            Bounding box relative to the tile's upper left corner. POIs outside of it will be
+	 *            skipped. If set to null, POIs will not be filtered by position.
+	 * @return The POI or null if it has been skipped.
+	 * @throws UnknownPoiCategoryException
+	 *             if the POI's category cannot be resolved.
+	 */
+	private PointOfInterest parseNextPOI(Serializer s, int tileLatE6, int tileLonE6, BitSet acceptedCategoryIDs,
+			Rect relativeBoundingBox) throws UnknownPoiCategoryException {
 
 		if (this.mfm.isDebugFlagSet()) {
 			// System.out.println(s.getNextString(32));
@@ -428,16 +1379,24 @@ public class MapDataProviderImpl implements MapDataProvider {
 		// Position (delta-encoded), 2*VBE-S
 		int latDelta = s.getNextVBESInt();
 		int lonDelta = s.getNextVBESInt();
+		boolean accepted = relativeBoundingBox == null
+				|| (latDelta >= relativeBoundingBox.minLatitudeE6 && latDelta <= relativeBoundingBox.maxLatitudeE6
+						&& lonDelta >= relativeBoundingBox.minLongitudeE6 && lonDelta <= relativeBoundingBox.maxLongitudeE6);
 
 		// Special Byte (1B)
 		byte specialByte = s.getNextByte();
 		byte amountOfTags = (byte) (specialByte & 0x0f);
 
 		// Tag IDs, n*VBE-U
-		int tagIDs[] = new int[amountOfTags];
+		boolean hasMatchingTagID = acceptedCategoryIDs == null;
+		int tagID;
 		for (byte i = 0; i < amountOfTags; i++) {
-			tagIDs[i] = s.getNextVBEUInt();
+			tagID = s.getNextVBEUInt();
+			if (!hasMatchingTagID && acceptedCategoryIDs.get(tagID)) {
+				hasMatchingTagID = true;
+			}
 		}
+		accepted &= hasMatchingTagID;
 
 		// Flags
 		byte flags = s.getNextByte();
@@ -445,50 +1404,45 @@ public class MapDataProviderImpl implements MapDataProvider {
 		boolean elevationFlag = (flags & (byte) 0x40) != 0;
 		boolean houseNumberFlag = (flags & (byte) 0x20) != 0;
 
-		// POI Name
+		// POI Name (only decoded for accepted POIs)
 		String name = null;
 		if (nameFlag) {
-			name = s.getNextString();
+			if (accepted) {
+				name = s.getNextString();
+			} else {
+				s.skip(s.getNextVBEUInt());
+			}
 		}
 
 		// Elevation (VBE-S)
 		if (elevationFlag) {
-			int elevation = s.getNextVBESInt();
+			s.getNextVBESInt();
 		}
 
 		// House number
 		if (houseNumberFlag) {
-			String houseNumber = s.getNextString();
+			s.skip(s.getNextVBEUInt());
 		}
 
-		if (acceptedCategoryIDs != null) {
-			boolean hasMatchingTagID = false;
-			for (int globalTag = 0; globalTag < amountOfTags; globalTag++) {
-				if (hasMatchingTagID) {
-					break;
-				}
-				for (int acceptedTag = 0; acceptedTag < acceptedCategoryIDs.length; acceptedTag++) {
-					if (hasMatchingTagID) {
-						break;
-					}
+		if (!accepted) {
+			return null;
+		}
 
-					if (tagIDs[globalTag] == acceptedCategoryIDs[acceptedTag]) {
-						hasMatchingTagID = true;
-					}
-				}
-			}
+		return new PoiImpl(-1, (tileLatE6 + latDelta) / GeoCoordinate.FACTOR_DOUBLE_TO_INT, (tileLonE6 + lonDelta)
+				/ GeoCoordinate.FACTOR_DOUBLE_TO_INT, name, null);
+	}
 
-			if (!hasMatchingTagID) {
-				return null;
-			}
+	/**
+	 * A POI found by a nearest neighbor search and its squared distance to the search position.
+	 */
+	private static class NearestPoiCandidate {
+		final PointOfInterest poi;
+		final long distance;
 
+		NearestPoiCandidate(PointOfInterest poi, long distance) {
+			this.poi = poi;
+			this.distance = distance;
 		}
-
-		double tileLat = MercatorProjection.tileYToLatitude(y, (byte) 14);
-		double tileLon = MercatorProjection.tileXToLongitude(x, this.mfm.getBaseZoomLevel()[baseZoomInterval]);
-
-		return new PoiImpl(-1, tileLat + latDelta / GeoCoordinate.FACTOR_DOUBLE_TO_INT, tileLon + lonDelta
-				/ GeoCoordinate.FACTOR_DOUBLE_TO_INT, name, null);
 	}
 
 	private class FakeCategoryManager implements PoiCategoryManager {
@@ -616,18 +1570,42 @@ public class MapDataProviderImpl implements MapDataProvider {
 		s.skip(firstWayOffset);
 
 		// Parse all ways
+		int tileLatE6 = getTileLatitudeE6(tileY, baseZoomInterval);
+		int tileLonE6 = getTileLongitudeE6(tileX, baseZoomInterval);
 		Way w = null;
 		for (int way = 0; way < waysOnZoomLevel[maxZoomLevel - minZoomLevel]; way++) {
-			w = parseNextWay(s);
+			w = parseNextWay(s, tileLatE6, tileLonE6, null, null);
 
-			// Extract nodes from p1 to p2 from way
 			if (w.getId() == wayID) {
-				break;
+				return w;
 			}
 
 		}
 
-		return w;
+		return null;
+	}
+
+	@Override
+	public Way getWayByID(long wayID, byte baseZoomInterval) {
+		WayIndex index = getWayIndex();
+		int pos;
+		if (index == null || (pos = index.find(wayID, baseZoomInterval)) < 0) {
+			return null;
+		}
+
+		int tileX = index.getTileX(pos);
+		int tileY = index.getTileY(pos);
+		byte[] tile = this.tpm.getTileData(tileX, tileY, baseZoomInterval);
+		if (tile == null) {
+			return null;
+		}
+
+		// Jump to the way's record
+		Serializer s = new Serializer(tile);
+		s.skip(index.getOffset(pos));
+
+		return parseNextWay(s, getTileLatitudeE6(tileY, baseZoomInterval), getTileLongitudeE6(tileX, baseZoomInterval),
+				null, null);
 	}
 
 	@Override
@@ -677,9 +1655,11 @@ public class MapDataProviderImpl implements MapDataProvider {
 
 		// Parse all ways
 		LinkedList<Way> ways = new LinkedList<Way>();
+		int tileLatE6 = getTileLatitudeE6(tileY, baseZoomInterval);
+		int tileLonE6 = getTileLongitudeE6(tileX, baseZoomInterval);
 		Way w = null;
 		for (int way = 0; way < waysOnZoomLevel[maxZoomLevel - minZoomLevel]; way++) {
-			w = parseNextWay(s);
+			w = parseNextWay(s, tileLatE6, tileLonE6, null, null);
 			if (w != null) {
 				ways.add(w);
 			}
@@ -691,14 +1671,192 @@ public class MapDataProviderImpl implements MapDataProvider {
 
 	@Override
 	public WaySegment getWayDataForEdge(long wayID, GeoCoordinate p1, GeoCoordinate p2, byte baseZoomInterval) {
-		// Calculate the tile's start coordinates
-		long tileX = MercatorProjection.longitudeToTileX(p1.getLongitude(), baseZoomInterval);
-		long tileY = MercatorProjection.latitudeToTileY(p1.getLatitude(), baseZoomInterval);
+		WayIndex index = getWayIndex();
+		int pos;
+
+		// Jump straight to the way's record and decode the segment only
+		if (index != null && (pos = index.find(wayID, baseZoomInterval)) >= 0) {
+			int tileX = index.getTileX(pos);
+			int tileY = index.getTileY(pos);
+			byte[] tile = this.tpm.getTileData(tileX, tileY, baseZoomInterval);
+			if (tile == null) {
+				return null;
+			}
+
+			Serializer s = new Serializer(tile);
+			s.skip(index.getOffset(pos));
+
+			return parseWaySegment(s, getTileLatitudeE6(tileY, baseZoomInterval),
+					getTileLongitudeE6(tileX, baseZoomInterval), wayID, p1, p2);
+		}
+
+		// No index: search the tile containing the edge's first coordinate
+		byte baseZoomLevel = this.mfm.getBaseZoomLevel()[baseZoomInterval];
+		long tileX = MercatorProjection.longitudeToTileX(p1.getLongitude(), baseZoomLevel);
+		long tileY = MercatorProjection.latitudeToTileY(p1.getLatitude(), baseZoomLevel);
 
 		Way w = getWayByID(wayID, (int) tileX, (int) tileY, baseZoomInterval);
+		if (w == null) {
+			return null;
+		}
 
-		// TODO return sth
-		return null;
+		long[] coordinates = w.getCoordinates();
+		int[] range = findSegment(coordinates, coordinates.length / 2, p1, p2);
+
+		return new WaySegment(extractSegment(coordinates, range), wayID);
+	}
+
+	/**
+	 * Decodes the part of a way between two of its nodes. Decoding stops as soon as both nodes have
+	 * been found. If a node is not part of the way, the way's nearest node is used instead.
+	 * 
+	 * @param s
+	 *            The serializer pointing at the way's first byte.
+	 * @param tileLatE6
+	 *            Latitude of the tile's upper left corner.
+	 * @param tileLonE6
+	 *            Longitude of the tile's upper left corner.
+	 * @param wayID
+	 *            The way's ID.
+	 * @param p1
+	 *            The segment's first node.
+	 * @param p2
+	 *            The segment's last node.
+	 * @return The segment from p1 to p2.
+	 */
+	private WaySegment parseWaySegment(Serializer s, int tileLatE6, int tileLonE6, long wayID, GeoCoordinate p1,
+			GeoCoordinate p2) {
+		if (this.mfm.isDebugFlagSet()) {
+			s.skip(32);
+		}
+
+		// Way data size, ID, sub tile bitmap
+		s.getNextVBEUInt();
+		if (this.containsWayIDs) {
+			s.skip(8);
+		}
+		s.skip(2);
+
+		// Tag IDs
+		byte specialByte = s.getNextByte();
+		for (byte pos = 0; pos < (specialByte & (byte) 0x0f); pos++) {
+			s.getNextVBEUInt();
+		}
+
+		byte flags = s.getNextByte();
+
+		// Way name
+		if ((flags & (byte) 0x80) != 0) {
+			if (this.mfm.isWayNameDictionaryFlagSet()) {
+				s.getNextVBEUInt();
+			} else {
+				s.skip(s.getNextVBEUInt());
+			}
+		}
+
+		// Way reference
+		if ((flags & (byte) 0x40) != 0) {
+			s.skip(s.getNextVBEUInt());
+		}
+
+		// Label position
+		if ((flags & (byte) 0x20) != 0) {
+			s.getNextVBESInt();
+			s.getNextVBESInt();
+		}
+
+		// Number of way data blocks and way coordinate blocks (only the outer way of the first block
+		// is needed)
+		s.getNextByte();
+		s.getNextByte();
+		int numWayNodes = s.getNextVBEUInt();
+
+		// Decode node by node until both nodes have been found
+		long[] coordinates = new long[numWayNodes * 2];
+		long lat = tileLatE6;
+		long lon = tileLonE6;
+		int decodedNodes = 0;
+		boolean foundP1 = false;
+		boolean foundP2 = false;
+		for (int wayNode = 0; wayNode < numWayNodes && !(foundP1 && foundP2); wayNode++) {
+			lat += s.getNextVBESInt();
+			lon += s.getNextVBESInt();
+			coordinates[wayNode * 2] = lat;
+			coordinates[wayNode * 2 + 1] = lon;
+			++decodedNodes;
+
+			foundP1 |= lat == p1.getLatitudeE6() && lon == p1.getLongitudeE6();
+			foundP2 |= lat == p2.getLatitudeE6() && lon == p2.getLongitudeE6();
+		}
+
+		int[] range = findSegment(coordinates, decodedNodes, p1, p2);
+
+		return new WaySegment(extractSegment(coordinates, range), wayID);
+	}
+
+	/**
+	 * Finds the nodes of a way that are nearest to the given coordinates.
+	 * 
+	 * @param coordinates
+	 *            The way's absolute coordinates.
+	 * @param numNodes
+	 *            Number of nodes to be searched (from the way's start).
+	 * @param p1
+	 *            The first coordinate.
+	 * @param p2
+	 *            The second coordinate.
+	 * @return The node indexes <code>[p1, p2]</code>.
+	 */
+	private static int[] findSegment(long[] coordinates, int numNodes, GeoCoordinate p1, GeoCoordinate p2) {
+		int[] ret = new int[2];
+		long minDistance1 = Long.MAX_VALUE;
+		long minDistance2 = Long.MAX_VALUE;
+		long distance;
+		long dLat;
+		long dLon;
+
+		for (int node = 0; node < numNodes; node++) {
+			dLat = coordinates[node * 2] - p1.getLatitudeE6();
+			dLon = coordinates[node * 2 + 1] - p1.getLongitudeE6();
+			distance = dLat * dLat + dLon * dLon;
+			if (distance < minDistance1) {
+				minDistance1 = distance;
+				ret[0] = node;
+			}
+
+			dLat = coordinates[node * 2] - p2.getLatitudeE6();
+			dLon = coordinates[node * 2 + 1] - p2.getLongitudeE6();
+			distance = dLat * dLat + dLon * dLon;
+			if (distance < minDistance2) {
+				minDistance2 = distance;
+				ret[1] = node;
+			}
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Copies the nodes between (and including) two nodes of a way.
+	 * 
+	 * @param coordinates
+	 *            The way's absolute coordinates.
+	 * @param range
+	 *            Index of the first and the last node. If the first index is greater than the second
+	 *            one, the nodes are returned in reverse order.
+	 * @return The segment's coordinates.
+	 */
+	private static long[] extractSegment(long[] coordinates, int[] range) {
+		int numNodes = Math.abs(range[1] - range[0]) + 1;
+		int step = range[0] <= range[1] ? 1 : -1;
+		long[] ret = new long[numNodes * 2];
+
+		for (int i = 0, node = range[0]; i < numNodes; i++, node += step) {
+			ret[i * 2] = coordinates[node * 2];
+			ret[i * 2 + 1] = coordinates[node * 2 + 1];
+		}
+
+		return ret;
 	}
 
 	private long[] deltaToAbsoluteEncoding(long[] deltaEncodedCoordinates) {
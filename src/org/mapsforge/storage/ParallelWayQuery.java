@@ -0,0 +1,303 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mapsforge.core.Rect;
+import org.mapsforge.storage.atoms.Way;
+import org.mapsforge.storage.tile.ConcurrentTilePersistenceManager;
+import org.mapsforge.storage.tile.TilePersistenceManager;
+
+/**
+ * Executes large bounding box queries on several threads. The tile range is split into square chunks
+ * of neighboring tiles which are read and decoded independently by a thread pool.
+ * 
+ * The {@link MapDataProviderImpl} used by this class must read its tiles from a thread safe
+ * {@link TilePersistenceManager} such as {@link ConcurrentTilePersistenceManager}. The way
+ * deduplication mode of the provider is respected.
+ * 
+ * The worker threads are daemon threads, so an instance that has not been closed does not keep the
+ * application alive. Call {@link #close()} to release the threads when the queries are done.
+ * 
+ * @author Karsten Groll
+ * 
+ */
+public class ParallelWayQuery {
+	/** Maximal edge length of a chunk in tiles. */
+	private static final int MAX_CHUNK_SIZE = 16;
+	/** Number of chunks per thread (for balancing tiles with different sizes). */
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	private final MapDataProviderImpl mdp;
+	private final ExecutorService executor;
+	private final int threads;
+
+	/**
+	 * 
+	 * @param mdp
+	 *            The data provider whose tiles should be queried.
+	 * @param threads
+	 *            Number of worker threads.
+	 */
+	public ParallelWayQuery(MapDataProviderImpl mdp, int threads) {
+		this.mdp = mdp;
+		this.threads = threads;
+		this.executor = Executors.newFixedThreadPool(threads, new WorkerThreadFactory());
+	}
+
+	/**
+	 * Gets all ways within the given bounding box that are visible on the given zoom level.
+	 * 
+	 * @param boundingBox
+	 *            The bounding box.
+	 * @param zoomLevel
+	 *            The zoom level the ways should be rendered on.
+	 * @param ordered
+	 *            If true, the ways are returned in the same order on each call (chunk by chunk, tile by
+	 *            tile). Otherwise they are merged in order of completion.
+	 * @return All ways within the given bounding box that are visible on the given zoom level.
+	 * @throws RuntimeException
+	 *             if reading or decoding a chunk failed.
+	 */
+	public Collection<Way> getAllWaysInBoundingBox(Rect boundingBox, byte zoomLevel, boolean ordered) {
+		final ArrayList<Way> ret = new ArrayList<Way>();
+
+		// Not thread safe, unordered queries synchronize the calls
+		WayVisitor collector = new WayVisitor() {
+			@Override
+			public void visitWay(Way way) {
+				ret.add(way);
+			}
+		};
+
+		if (ordered) {
+			visitAllWaysInBoundingBox(boundingBox, zoomLevel, collector, true);
+		} else {
+			visitAllWaysInBoundingBox(boundingBox, zoomLevel, new SynchronizedWayVisitor(collector), false);
+		}
+
+		return this.mdp.stitchIfNeeded(ret);
+	}
+
+	/**
+	 * Passes all ways within the given bounding box that are visible on the given zoom level to a
+	 * visitor. The method returns after all ways have been visited. Ways are never stitched here, as
+	 * this would require all segments of a way to be known in advance.
+	 * 
+	 * @param boundingBox
+	 *            The bounding box.
+	 * @param zoomLevel
+	 *            The zoom level the ways should be rendered on.
+	 * @param visitor
+	 *            The visitor receiving the ways.
+	 * @param ordered
+	 *            If true, the visitor is called from the calling thread only, chunk by chunk in the same
+	 *            order on each call. Otherwise the worker threads call the visitor concurrently as soon
+	 *            as a tile has been decoded.
+	 * @throws RuntimeException
+	 *             if reading or decoding a chunk failed. The remaining chunks are cancelled then.
+	 */
+	public void visitAllWaysInBoundingBox(Rect boundingBox, byte zoomLevel, WayVisitor visitor, boolean ordered) {
+		byte baseZoomInterval = this.mdp.getZoomIntervalForZoomLevel(zoomLevel);
+		byte clippedZoomLevel = this.mdp.clipZoomLevel(zoomLevel, baseZoomInterval);
+		int[] tileRange = this.mdp.getTileRange(boundingBox, this.mdp.getMetaData().getBaseZoomLevel()[baseZoomInterval]);
+
+		// Ordered queries deduplicate within a chunk first and across chunks on merging, so that the
+		// result does not depend on the threads' timing.
+		LongHashSet sharedWayIDs = null;
+		if (!ordered && this.mdp.createWayIDSet() != null) {
+			sharedWayIDs = new ConcurrentLongHashSet();
+		}
+
+		List<Future<List<Way>>> futures = new ArrayList<Future<List<Way>>>();
+		for (int[] chunk : split(tileRange)) {
+			futures.add(this.executor.submit(new ChunkTask(chunk, baseZoomInterval, clippedZoomLevel,
+					ordered ? this.mdp.createWayIDSet() : sharedWayIDs, ordered ? null : visitor)));
+		}
+
+		LongHashSet mergedWayIDs = ordered ? this.mdp.createWayIDSet() : null;
+		List<Way> ways;
+		try {
+			for (Future<List<Way>> future : futures) {
+				ways = future.get();
+
+				if (ways == null) {
+					continue;
+				}
+
+				for (Way w : ways) {
+					if (mergedWayIDs == null || mergedWayIDs.add(w.getId())) {
+						visitor.visitWay(w);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			cancelAll(futures);
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			// A partial result would go unnoticed, so the query fails as a whole
+			cancelAll(futures);
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw new RuntimeException("Reading a chunk of tiles failed", e.getCause());
+		}
+	}
+
+	private static void cancelAll(List<Future<List<Way>>> futures) {
+		for (Future<List<Way>> future : futures) {
+			future.cancel(true);
+		}
+	}
+
+	/**
+	 * Shuts the thread pool down. The tile persistence manager is not closed.
+	 */
+	public void close() {
+		this.executor.shutdown();
+	}
+
+	/**
+	 * Creates the named daemon threads of the pool.
+	 */
+	private static final class WorkerThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger(0);
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread ret = new Thread(r, "ParallelWayQuery-" + this.count.incrementAndGet());
+			ret.setDaemon(true);
+			return ret;
+		}
+	}
+
+	/**
+	 * Splits a tile range into square chunks of neighboring tiles.
+	 * 
+	 * @param tileRange
+	 *            The tile range as <code>[minX, minY, maxX, maxY]</code>.
+	 * @return All chunks as <code>[minX, minY, maxX, maxY]</code> in row-major order.
+	 */
+	private List<int[]> split(int[] tileRange) {
+		int width = tileRange[2] - tileRange[0] + 1;
+		int height = tileRange[3] - tileRange[1] + 1;
+
+		// Create enough chunks for keeping all threads busy
+		int chunkSize = (int) Math.ceil(Math.sqrt((double) width * height / (this.threads * CHUNKS_PER_THREAD)));
+		chunkSize = Math.max(1, Math.min(MAX_CHUNK_SIZE, chunkSize));
+
+		List<int[]> ret = new ArrayList<int[]>();
+		for (int y = tileRange[1]; y <= tileRange[3]; y += chunkSize) {
+			for (int x = tileRange[0]; x <= tileRange[2]; x += chunkSize) {
+				ret.add(new int[] { x, y, Math.min(x + chunkSize - 1, tileRange[2]),
+						Math.min(y + chunkSize - 1, tileRange[3]) });
+			}
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Reads and decodes all tiles of a chunk. Every tile is decoded by its own serializer, so tasks do
+	 * not share any decoding state.
+	 */
+	private class ChunkTask implements Callable<List<Way>> {
+		private final int[] chunk;
+		private final byte baseZoomInterval;
+		private final byte zoomLevel;
+		private final LongHashSet wayIDs;
+		private final WayVisitor visitor;
+
+		/**
+		 * 
+		 * @param chunk
+		 *            The chunk's tile range.
+		 * @param baseZoomInterval
+		 *            The zoom interval to be queried.
+		 * @param zoomLevel
+		 *            The zoom level within this interval.
+		 * @param wayIDs
+		 *            IDs of already extracted ways or null.
+		 * @param visitor
+		 *            A thread safe visitor the ways are passed to or null if the ways should be
+		 *            returned.
+		 */
+		ChunkTask(int[] chunk, byte baseZoomInterval, byte zoomLevel, LongHashSet wayIDs, WayVisitor visitor) {
+			this.chunk = chunk;
+			this.baseZoomInterval = baseZoomInterval;
+			this.zoomLevel = zoomLevel;
+			this.wayIDs = wayIDs;
+			this.visitor = visitor;
+		}
+
+		@Override
+		public List<Way> call() {
+			TilePersistenceManager tpm = ParallelWayQuery.this.mdp.getTilePersistenceManager();
+			ArrayList<Way> ways = new ArrayList<Way>();
+			byte[] tile;
+
+			for (int y = this.chunk[1]; y <= this.chunk[3]; y++) {
+				for (int x = this.chunk[0]; x <= this.chunk[2]; x++) {
+					if (Thread.currentThread().isInterrupted()) {
+						return null;
+					}
+
+					tile = tpm.getTileData(x, y, this.baseZoomInterval);
+					ParallelWayQuery.this.mdp.extractAndAddWaysToContainer(tile, ways, x, y, this.baseZoomInterval,
+							this.zoomLevel, this.wayIDs, null);
+
+					// Stream the tile's ways
+					if (this.visitor != null) {
+						for (Way w : ways) {
+							this.visitor.visitWay(w);
+						}
+						ways.clear();
+					}
+				}
+			}
+
+			return this.visitor == null ? ways : null;
+		}
+	}
+
+	/**
+	 * Serializes calls to a visitor that is not thread safe.
+	 */
+	private static class SynchronizedWayVisitor implements WayVisitor {
+		private final WayVisitor visitor;
+
+		SynchronizedWayVisitor(WayVisitor visitor) {
+			this.visitor = visitor;
+		}
+
+		@Override
+		public synchronized void visitWay(Way way) {
+			this.visitor.visitWay(way);
+		}
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.concurrent.Executor;
+
+import org.mapsforge.core.Rect;
+import org.mapsforge.storage.poi.PointOfInterest;
+
+/**
+ * Publishes the POIs of a bounding box query one by one. Tiles are read and decoded only when the
+ * subscriber requests more POIs, so at most one tile's POIs are buffered at any time.
+ * 
+ * @author Karsten Groll
+ * 
+ */
+public class PoiPublisher extends TilePublisher<PointOfInterest> {
+	private final MapDataProviderImpl mdp;
+	private final Rect boundingBox;
+	private final byte baseZoomInterval;
+	private final byte zoomLevel;
+	private final int[] tileRange;
+	private final BitSet acceptedTagIDs;
+
+	/**
+	 * 
+	 * @param mdp
+	 *            The data provider whose tiles should be queried.
+	 * @param boundingBox
+	 *            The bounding box.
+	 * @param zoomLevel
+	 *            The zoom level the POIs should be rendered on.
+	 * @param allowedTagIDs
+	 *            A list of tag IDs. Only POIs having a tag ID from this list will be published. If set
+	 *            to null, POIs will not be filtered.
+	 * @param executor
+	 *            The executor reading the tiles and sending the POIs or null for doing this on the
+	 *            thread requesting the POIs.
+	 */
+	public PoiPublisher(MapDataProviderImpl mdp, Rect boundingBox, byte zoomLevel, int[] allowedTagIDs,
+			Executor executor) {
+		super(executor);
+		this.mdp = mdp;
+		this.boundingBox = boundingBox;
+		this.baseZoomInterval = mdp.getZoomIntervalForZoomLevel(zoomLevel);
+		this.zoomLevel = mdp.clipZoomLevel(zoomLevel, this.baseZoomInterval);
+		this.tileRange = mdp.getTileRange(boundingBox, mdp.getMetaData().getBaseZoomLevel()[this.baseZoomInterval]);
+		this.acceptedTagIDs = MapDataProviderImpl.toBitSet(allowedTagIDs);
+	}
+
+	@Override
+	protected TileReader<PointOfInterest> createReader() {
+		return new RangeTileReader<PointOfInterest>(this.mdp, this.tileRange, this.baseZoomInterval, this.zoomLevel,
+				this.acceptedTagIDs, MapDataProvider.FEATURE_TYPE_POI) {
+			@Override
+			void extractTile(byte[] tile, int tileX, int tileY, Collection<PointOfInterest> items) {
+				this.mdp.extractAndAddPoisToContainer(tile, items, this.acceptedTagIDs, tileX, tileY,
+						this.baseZoomInterval, this.zoomLevel, PoiPublisher.this.boundingBox);
+			}
+		};
+	}
+}
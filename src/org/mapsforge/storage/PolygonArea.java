@@ -0,0 +1,149 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage;
+
+import org.mapsforge.core.GeoCoordinate;
+
+/**
+ * A simple polygon such as a city boundary. Points on the polygon's edges may be considered inside or
+ * outside.
+ * 
+ * @author Karsten Groll
+ * 
+ */
+public class PolygonArea extends QueryArea {
+	private final double[] xs;
+	private final double[] ys;
+	private final int size;
+
+	/**
+	 * 
+	 * @param polygon
+	 *            The polygon's vertices. The polygon is closed implicitly, the first vertex does not
+	 *            have to be repeated.
+	 */
+	public PolygonArea(GeoCoordinate[] polygon) {
+		super(polygon, 0, 1);
+
+		this.size = polygon.length;
+		this.xs = new double[this.size];
+		this.ys = new double[this.size];
+		for (int i = 0; i < this.size; i++) {
+			this.xs[i] = polygon[i].getLongitudeE6();
+			this.ys[i] = polygon[i].getLatitudeE6();
+		}
+	}
+
+	/**
+	 * Marks all tiles crossed by an edge as boundary tiles. All other tiles are either completely inside
+	 * or completely outside. Two neighboring tiles not crossed by an edge are on the same side, so the
+	 * point-in-polygon test is only done once per run of non-boundary tiles within a row.
+	 */
+	@Override
+	public byte[][] classifyTiles(int[] columnLongitudesE6, int[] rowLatitudesE6) {
+		int columns = columnLongitudesE6.length - 1;
+		int rows = rowLatitudesE6.length - 1;
+		byte[][] ret = new byte[rows][columns];
+
+		int[] columnRange;
+		int[] rowRange;
+		int next;
+		for (int i = 0; i < this.size; i++) {
+			next = (i + 1) % this.size;
+			columnRange = getCellRange(columnLongitudesE6, this.xs[i], this.xs[next]);
+			rowRange = getCellRange(rowLatitudesE6, this.ys[i], this.ys[next]);
+
+			for (int row = rowRange[0]; row <= rowRange[1]; row++) {
+				for (int column = columnRange[0]; column <= columnRange[1]; column++) {
+					if (ret[row][column] == TILE_OUTSIDE
+							&& segmentIntersectsRect(this.xs[i], this.ys[i], this.xs[next], this.ys[next],
+									columnLongitudesE6[column], rowLatitudesE6[row + 1],
+									columnLongitudesE6[column + 1], rowLatitudesE6[row])) {
+						ret[row][column] = TILE_BOUNDARY;
+					}
+				}
+			}
+		}
+
+		byte runType;
+		for (int row = 0; row < rows; row++) {
+			runType = -1;
+			for (int column = 0; column < columns; column++) {
+				if (ret[row][column] == TILE_BOUNDARY) {
+					runType = -1;
+					continue;
+				}
+
+				if (runType == -1) {
+					runType = ringContains(this.xs, this.ys, this.size,
+							(columnLongitudesE6[column] + (double) columnLongitudesE6[column + 1]) / 2,
+							(rowLatitudesE6[row] + (double) rowLatitudesE6[row + 1]) / 2) ? TILE_INSIDE
+							: TILE_OUTSIDE;
+				}
+				ret[row][column] = runType;
+			}
+		}
+
+		return ret;
+	}
+
+	@Override
+	public boolean contains(int latitudeE6, int longitudeE6) {
+		return ringContains(this.xs, this.ys, this.size, longitudeE6, latitudeE6);
+	}
+
+	/**
+	 * A way intersects the polygon if one of its nodes is inside, one of its segments crosses an edge
+	 * or, for closed ways, if the polygon lies completely inside of the way.
+	 */
+	@Override
+	public boolean intersects(long[] coordinates) {
+		if (!overlapsBoundingBox(coordinates)) {
+			return false;
+		}
+
+		int nodes = coordinates.length / 2;
+		for (int n = 0; n < nodes; n++) {
+			if (contains((int) coordinates[2 * n], (int) coordinates[2 * n + 1])) {
+				return true;
+			}
+		}
+
+		int next;
+		for (int n = 0; n + 1 < nodes; n++) {
+			for (int i = 0; i < this.size; i++) {
+				next = (i + 1) % this.size;
+				if (segmentsIntersect(coordinates[2 * n + 1], coordinates[2 * n], coordinates[2 * n + 3],
+						coordinates[2 * n + 2], this.xs[i], this.ys[i], this.xs[next], this.ys[next])) {
+					return true;
+				}
+			}
+		}
+
+		if (nodes > 2 && coordinates[0] == coordinates[2 * nodes - 2]
+				&& coordinates[1] == coordinates[2 * nodes - 1]) {
+			double[] wayXs = new double[nodes - 1];
+			double[] wayYs = new double[nodes - 1];
+			for (int n = 0; n < nodes - 1; n++) {
+				wayXs[n] = coordinates[2 * n + 1];
+				wayYs[n] = coordinates[2 * n];
+			}
+
+			return ringContains(wayXs, wayYs, nodes - 1, this.xs[0], this.ys[0]);
+		}
+
+		return false;
+	}
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.Executor;
+
+import org.mapsforge.core.Rect;
+import org.mapsforge.storage.atoms.Way;
+import org.mapsforge.storage.dataExtraction.MapFileMetaData;
+import org.mapsforge.storage.poi.PointOfInterest;
+
+/**
+ * A bounding box query sending its results progressively from coarse to fine. The tiles of all zoom
+ * intervals with a lower base zoom level than the interval covering the requested zoom level are sent
+ * first (coarsest interval first), followed by the tiles of the requested interval. Each
+ * {@link ProgressiveResult} holds the ways and POIs of one tile.
+ * 
+ * One result is sent per requested item. Tiles are read only on demand, so cancelling the
+ * subscription (e.g. when the viewport changes) stops all further database access.
+ * 
+ * The {@link MapDataProviderImpl} used by this class must read its tiles from a thread safe
+ * {@link org.mapsforge.storage.tile.TilePersistenceManager} if an executor is used or several queries
+ * run at the same time.
+ * 
+ * @author Karsten Groll
+ * 
+ */
+public class ProgressiveQuery extends TilePublisher<ProgressiveResult> {
+	private final MapDataProviderImpl mdp;
+	private final Rect boundingBox;
+	/** The zoom intervals to be queried, coarsest first. */
+	private final byte[] intervals;
+	/** The zoom level queried within each interval. */
+	private final byte[] zoomLevels;
+
+	/**
+	 * 
+	 * @param mdp
+	 *            The data provider whose tiles should be queried.
+	 * @param boundingBox
+	 *            The bounding box.
+	 * @param zoomLevel
+	 *            The zoom level the data should be rendered on. It determines the finest level of
+	 *            detail.
+	 * @param executor
+	 *            The executor reading the tiles and sending the results or null for doing this on the
+	 *            thread requesting the results.
+	 */
+	public ProgressiveQuery(MapDataProviderImpl mdp, Rect boundingBox, byte zoomLevel, Executor executor) {
+		super(executor);
+		this.mdp = mdp;
+		this.boundingBox = boundingBox;
+
+		MapFileMetaData mfm = mdp.getMetaData();
+		byte finalInterval = mdp.getZoomIntervalForZoomLevel(zoomLevel);
+
+		// Coarser intervals ordered by base zoom level, then the requested one
+		ArrayList<Byte> levels = new ArrayList<Byte>();
+		for (byte z = 0; z < mfm.getAmountOfZoomIntervals(); z++) {
+			if (mfm.getBaseZoomLevel()[z] >= mfm.getBaseZoomLevel()[finalInterval]) {
+				continue;
+			}
+
+			int pos = 0;
+			while (pos < levels.size()
+					&& mfm.getBaseZoomLevel()[levels.get(pos).byteValue()] <= mfm.getBaseZoomLevel()[z]) {
+				++pos;
+			}
+			levels.add(pos, Byte.valueOf(z));
+		}
+		levels.add(Byte.valueOf(finalInterval));
+
+		this.intervals = new byte[levels.size()];
+		this.zoomLevels = new byte[levels.size()];
+		for (int i = 0; i < this.intervals.length; i++) {
+			this.intervals[i] = levels.get(i).byteValue();
+			this.zoomLevels[i] = mdp.clipZoomLevel(zoomLevel, this.intervals[i]);
+		}
+	}
+
+	/**
+	 * 
+	 * @return Number of levels of detail this query sends.
+	 */
+	public int getLevelCount() {
+		return this.intervals.length;
+	}
+
+	@Override
+	protected TileReader<ProgressiveResult> createReader() {
+		return new ProgressiveTileReader();
+	}
+
+	/**
+	 * Iterates over the tiles of all levels.
+	 */
+	private class ProgressiveTileReader implements TileReader<ProgressiveResult> {
+		private int level;
+		private int[] tileRange;
+		private int x;
+		private int y;
+		private LongHashSet wayIDs;
+
+		ProgressiveTileReader() {
+			this.level = -1;
+			nextLevel();
+		}
+
+		@Override
+		public boolean readNextTile(Collection<ProgressiveResult> items) {
+			if (this.level == ProgressiveQuery.this.intervals.length) {
+				return false;
+			}
+
+			byte baseZoomInterval = ProgressiveQuery.this.intervals[this.level];
+			byte zoomLevel = ProgressiveQuery.this.zoomLevels[this.level];
+			byte[] tile = ProgressiveQuery.this.mdp.getTilePersistenceManager().getTileData(this.x, this.y,
+					baseZoomInterval);
+
+			if (tile != null) {
+				ArrayList<Way> ways = new ArrayList<Way>();
+				ArrayList<PointOfInterest> pois = new ArrayList<PointOfInterest>();
+				ProgressiveQuery.this.mdp.extractAndAddWaysToContainer(tile, ways, this.x, this.y, baseZoomInterval,
+						zoomLevel, this.wayIDs, null);
+				ProgressiveQuery.this.mdp.extractAndAddPoisToContainer(tile, pois, null, this.x, this.y,
+						baseZoomInterval, zoomLevel, ProgressiveQuery.this.boundingBox);
+
+				if (!ways.isEmpty() || !pois.isEmpty()) {
+					items.add(new ProgressiveResult(this.level, ProgressiveQuery.this.intervals.length,
+							baseZoomInterval, this.x, this.y, ways, pois));
+				}
+			}
+
+			// Next tile
+			if (++this.x > this.tileRange[2]) {
+				this.x = this.tileRange[0];
+				if (++this.y > this.tileRange[3]) {
+					nextLevel();
+				}
+			}
+
+			return true;
+		}
+
+		private void nextLevel() {
+			++this.level;
+			if (this.level == ProgressiveQuery.this.intervals.length) {
+				return;
+			}
+
+			byte baseZoomInterval = ProgressiveQuery.this.intervals[this.level];
+			this.tileRange = ProgressiveQuery.this.mdp.getTileRange(ProgressiveQuery.this.boundingBox,
+					ProgressiveQuery.this.mdp.getMetaData().getBaseZoomLevel()[baseZoomInterval]);
+			this.x = this.tileRange[0];
+			this.y = this.tileRange[1];
+			this.wayIDs = ProgressiveQuery.this.mdp.createWayIDSet();
+		}
+	}
+}
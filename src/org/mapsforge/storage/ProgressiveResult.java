@@ -0,0 +1,102 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage;
+
+import java.util.Collection;
+
+import org.mapsforge.storage.atoms.Way;
+import org.mapsforge.storage.poi.PointOfInterest;
+
+/**
+ * The ways and POIs of a single tile sent by a {@link ProgressiveQuery}. Results of a coarser level of
+ * detail are sent before the results of finer levels, so a client can draw a coarse map first and
+ * replace it as soon as results of the next level arrive.
+ * 
+ * @author Karsten Groll
+ * 
+ */
+public class ProgressiveResult {
+	private final int level;
+	private final int levelCount;
+	private final byte baseZoomInterval;
+	private final int xPos;
+	private final int yPos;
+	private final Collection<Way> ways;
+	private final Collection<PointOfInterest> pois;
+
+	/**
+	 * 
+	 * @param level
+	 *            The level of detail (0 is the coarsest level).
+	 * @param levelCount
+	 *            The number of levels of the query.
+	 * @param baseZoomInterval
+	 *            The zoom interval the tile belongs to.
+	 * @param xPos
+	 *            The tile's x-coordinate.
+	 * @param yPos
+	 *            The tile's y-coordinate.
+	 * @param ways
+	 *            The tile's ways.
+	 * @param pois
+	 *            The tile's POIs.
+	 */
+	public ProgressiveResult(int level, int levelCount, byte baseZoomInterval, int xPos, int yPos,
+			Collection<Way> ways, Collection<PointOfInterest> pois) {
+		this.level = level;
+		this.levelCount = levelCount;
+		this.baseZoomInterval = baseZoomInterval;
+		this.xPos = xPos;
+		this.yPos = yPos;
+		this.ways = ways;
+		this.pois = pois;
+	}
+
+	/**
+	 * 
+	 * @return The level of detail (0 is the coarsest level).
+	 */
+	public int getLevel() {
+		return this.level;
+	}
+
+	/**
+	 * 
+	 * @return true if this result has the level of detail requested by the query.
+	 */
+	public boolean isFinalLevel() {
+		return this.level == this.levelCount - 1;
+	}
+
+	public byte getBaseZoomInterval() {
+		return this.baseZoomInterval;
+	}
+
+	public int getXPos() {
+		return this.xPos;
+	}
+
+	public int getYPos() {
+		return this.yPos;
+	}
+
+	public Collection<Way> getWays() {
+		return this.ways;
+	}
+
+	public Collection<PointOfInterest> getPois() {
+		return this.pois;
+	}
+}
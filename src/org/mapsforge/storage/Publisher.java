@@ -0,0 +1,37 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage;
+
+/**
+ * A source of items that are pushed to a {@link Subscriber} on demand. The interfaces
+ * {@link Publisher}, {@link Subscriber} and {@link Subscription} follow the reactive streams
+ * specification (java.util.concurrent.Flow in later Java versions), which is not available on the
+ * platforms targeted by this project.
+ * 
+ * @author Karsten Groll
+ * 
+ * @param <T>
+ *            The type of the published items.
+ */
+public interface Publisher<T> {
+	/**
+	 * Adds a subscriber. Each subscriber gets its own {@link Subscription} and receives all items from
+	 * the beginning. No items are sent before the subscriber requests them.
+	 * 
+	 * @param subscriber
+	 *            The subscriber.
+	 */
+	public void subscribe(Subscriber<? super T> subscriber);
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage;
+
+import org.mapsforge.core.GeoCoordinate;
+import org.mapsforge.core.Rect;
+
+/**
+ * An area that is not a bounding box, such as a polygon or a corridor along a route. The area is
+ * rasterized onto a tile grid before any tile is read: tiles outside of the area are not read at all,
+ * the features of tiles completely inside of the area are accepted without any test and only the
+ * features of tiles on the area's boundary are tested exactly.
+ * 
+ * All calculations are done in a plane with <code>x = longitude * xScale</code> and
+ * <code>y = latitude</code> (both in microdegrees).
+ * 
+ * @author Karsten Groll
+ * 
+ */
+public abstract class QueryArea {
+	/** The tile does not overlap the area. */
+	public static final byte TILE_OUTSIDE = 0;
+	/** The tile overlaps the area's boundary, its features have to be tested. */
+	public static final byte TILE_BOUNDARY = 1;
+	/** The tile is completely inside of the area. */
+	public static final byte TILE_INSIDE = 2;
+
+	/** Factor applied to longitudes before calculating distances. */
+	protected final double xScale;
+	private final Rect boundingBox;
+
+	/**
+	 * 
+	 * @param coordinates
+	 *            The area's vertices.
+	 * @param margin
+	 *            Distance in microdegrees of latitude by which the bounding box is enlarged.
+	 * @param xScale
+	 *            Factor applied to longitudes before calculating distances.
+	 */
+	protected QueryArea(GeoCoordinate[] coordinates, double margin, double xScale) {
+		if (coordinates == null || coordinates.length == 0) {
+			throw new IllegalArgumentException("An area needs at least one coordinate.");
+		}
+
+		this.xScale = xScale;
+
+		int minLat = Integer.MAX_VALUE;
+		int maxLat = Integer.MIN_VALUE;
+		int minLon = Integer.MAX_VALUE;
+		int maxLon = Integer.MIN_VALUE;
+		for (int i = 0; i < coordinates.length; i++) {
+			minLat = Math.min(minLat, coordinates[i].getLatitudeE6());
+			maxLat = Math.max(maxLat, coordinates[i].getLatitudeE6());
+			minLon = Math.min(minLon, coordinates[i].getLongitudeE6());
+			maxLon = Math.max(maxLon, coordinates[i].getLongitudeE6());
+		}
+
+		int latMargin = (int) Math.ceil(margin);
+		int lonMargin = (int) Math.ceil(margin / xScale);
+		this.boundingBox = new Rect(
+				Math.max(minLon - lonMargin, GeoCoordinate.doubleToInt(GeoCoordinate.LONGITUDE_MIN)),
+				Math.min(maxLon + lonMargin, GeoCoordinate.doubleToInt(GeoCoordinate.LONGITUDE_MAX)),
+				Math.max(minLat - latMargin, GeoCoordinate.doubleToInt(GeoCoordinate.LATITUDE_MIN)),
+				Math.min(maxLat + latMargin, GeoCoordinate.doubleToInt(GeoCoordinate.LATITUDE_MAX)));
+	}
+
+	/**
+	 * 
+	 * @return The smallest bounding box containing the whole area.
+	 */
+	public Rect getBoundingBox() {
+		return this.boundingBox;
+	}
+
+	/**
+	 * Classifies the tiles of a tile grid.
+	 * 
+	 * @param columnLongitudesE6
+	 *            The longitudes of the grid's vertical lines from west to east (one more than the
+	 *            number of columns).
+	 * @param rowLatitudesE6
+	 *            The latitudes of the grid's horizontal lines from north to south (one more than the
+	 *            number of rows).
+	 * @return {@link #TILE_OUTSIDE}, {@link #TILE_BOUNDARY} or {@link #TILE_INSIDE} for each tile as
+	 *         <code>grid[row][column]</code>.
+	 */
+	public abstract byte[][] classifyTiles(int[] columnLongitudesE6, int[] rowLatitudesE6);
+
+	/**
+	 * 
+	 * @param latitudeE6
+	 *            The point's latitude.
+	 * @param longitudeE6
+	 *            The point's longitude.
+	 * @return true if the point is inside of the area.
+	 */
+	public abstract boolean contains(int latitudeE6, int longitudeE6);
+
+	/**
+	 * 
+	 * @param coordinates
+	 *            A way's coordinates as <code>[lat_1, lon_1, ..., lat_n, lon_n]</code>.
+	 * @return true if the way has at least one point inside of the area.
+	 */
+	public abstract boolean intersects(long[] coordinates);
+
+	/**
+	 * Checks whether a way's bounding box overlaps the area's bounding box.
+	 * 
+	 * @param coordinates
+	 *            A way's coordinates as <code>[lat_1, lon_1, ..., lat_n, lon_n]</code>.
+	 * @return false if the way cannot intersect the area.
+	 */
+	protected boolean overlapsBoundingBox(long[] coordinates) {
+		long minLat = Long.MAX_VALUE;
+		long maxLat = Long.MIN_VALUE;
+		long minLon = Long.MAX_VALUE;
+		long maxLon = Long.MIN_VALUE;
+		for (int i = 0; i + 1 < coordinates.length; i += 2) {
+			minLat = Math.min(minLat, coordinates[i]);
+			maxLat = Math.max(maxLat, coordinates[i]);
+			minLon = Math.min(minLon, coordinates[i + 1]);
+			maxLon = Math.max(maxLon, coordinates[i + 1]);
+		}
+
+		return minLat <= this.boundingBox.getMaxLatitudeE6() && maxLat >= this.boundingBox.getMinLatitudeE6()
+				&& minLon <= this.boundingBox.getMaxLongitudeE6() && maxLon >= this.boundingBox.getMinLongitudeE6();
+	}
+
+	/**
+	 * Finds the grid cells between two coordinates.
+	 * 
+	 * @param lines
+	 *            The grid lines in ascending or descending order.
+	 * @param from
+	 *            The first coordinate.
+	 * @param to
+	 *            The second coordinate.
+	 * @return The first and last cell as <code>[first, last]</code>, clipped to the grid.
+	 */
+	static int[] getCellRange(int[] lines, double from, double to) {
+		double min = Math.min(from, to);
+		double max = Math.max(from, to);
+		boolean ascending = lines[0] <= lines[lines.length - 1];
+		int first = 0;
+		int last = lines.length - 2;
+
+		if (ascending) {
+			while (first < last && lines[first + 1] < min) {
+				++first;
+			}
+			while (last > first && lines[last] > max) {
+				--last;
+			}
+		} else {
+			while (first < last && lines[first + 1] > max) {
+				++first;
+			}
+			while (last > first && lines[last] < min) {
+				--last;
+			}
+		}
+
+		return new int[] { first, last };
+	}
+
+	/**
+	 * 
+	 * @return The squared distance between the point p and the segment (a, b).
+	 */
+	static double pointSegmentDistanceSq(double px, double py, double ax, double ay, double bx, double by) {
+		double dx = bx - ax;
+		double dy = by - ay;
+		double length = dx * dx + dy * dy;
+		double t = length == 0 ? 0 : ((px - ax) * dx + (py - ay) * dy) / length;
+
+		if (t < 0) {
+			t = 0;
+		} else if (t > 1) {
+			t = 1;
+		}
+
+		dx = ax + t * dx - px;
+		dy = ay + t * dy - py;
+		return dx * dx + dy * dy;
+	}
+
+	/**
+	 * 
+	 * @return true if the segments (a, b) and (c, d) have at least one point in common.
+	 */
+	static boolean segmentsIntersect(double ax, double ay, double bx, double by, double cx, double cy, double dx,
+			double dy) {
+		double d1 = cross(cx, cy, dx, dy, ax, ay);
+		double d2 = cross(cx, cy, dx, dy, bx, by);
+		double d3 = cross(ax, ay, bx, by, cx, cy);
+		double d4 = cross(ax, ay, bx, by, dx, dy);
+
+		if (((d1 > 0 && d2 < 0) || (d1 < 0 && d2 > 0)) && ((d3 > 0 && d4 < 0) || (d3 < 0 && d4 > 0))) {
+			return true;
+		}
+
+		// Collinear cases
+		return (d1 == 0 && onSegment(cx, cy, dx, dy, ax, ay)) || (d2 == 0 && onSegment(cx, cy, dx, dy, bx, by))
+				|| (d3 == 0 && onSegment(ax, ay, bx, by, cx, cy)) || (d4 == 0 && onSegment(ax, ay, bx, by, dx, dy));
+	}
+
+	/**
+	 * 
+	 * @return The squared distance between the segments (a, b) and (c, d).
+	 */
+	static double segmentDistanceSq(double ax, double ay, double bx, double by, double cx, double cy, double dx,
+			double dy) {
+		if (segmentsIntersect(ax, ay, bx, by, cx, cy, dx, dy)) {
+			return 0;
+		}
+
+		return Math.min(
+				Math.min(pointSegmentDistanceSq(ax, ay, cx, cy, dx, dy), pointSegmentDistanceSq(bx, by, cx, cy, dx, dy)),
+				Math.min(pointSegmentDistanceSq(cx, cy, ax, ay, bx, by), pointSegmentDistanceSq(dx, dy, ax, ay, bx, by)));
+	}
+
+	/**
+	 * 
+	 * @return true if the segment (a, b) has at least one point in common with the given rectangle.
+	 */
+	static boolean segmentIntersectsRect(double ax, double ay, double bx, double by, double minX, double minY,
+			double maxX, double maxY) {
+		if (Math.max(ax, bx) < minX || Math.min(ax, bx) > maxX || Math.max(ay, by) < minY || Math.min(ay, by) > maxY) {
+			return false;
+		}
+
+		if ((ax >= minX && ax <= maxX && ay >= minY && ay <= maxY)
+				|| (bx >= minX && bx <= maxX && by >= minY && by <= maxY)) {
+			return true;
+		}
+
+		return segmentsIntersect(ax, ay, bx, by, minX, minY, maxX, minY)
+				|| segmentsIntersect(ax, ay, bx, by, maxX, minY, maxX, maxY)
+				|| segmentsIntersect(ax, ay, bx, by, maxX, maxY, minX, maxY)
+				|| segmentsIntersect(ax, ay, bx, by, minX, maxY, minX, minY);
+	}
+
+	/**
+	 * Tests whether a point is inside of a ring using the even-odd rule.
+	 * 
+	 * @param xs
+	 *            The ring's x-coordinates.
+	 * @param ys
+	 *            The ring's y-coordinates.
+	 * @param size
+	 *            Number of vertices (the ring is closed implicitly).
+	 * @return true if the point is inside of the ring.
+	 */
+	static boolean ringContains(double[] xs, double[] ys, int size, double px, double py) {
+		boolean inside = false;
+
+		for (int i = 0, j = size - 1; i < size; j = i++) {
+			if ((ys[i] > py) != (ys[j] > py) && px < (xs[j] - xs[i]) * (py - ys[i]) / (ys[j] - ys[i]) + xs[i]) {
+				inside = !inside;
+			}
+		}
+
+		return inside;
+	}
+
+	private static double cross(double ax, double ay, double bx, double by, double px, double py) {
+		return (bx - ax) * (py - ay) - (by - ay) * (px - ax);
+	}
+
+	private static boolean onSegment(double ax, double ay, double bx, double by, double px, double py) {
+		return px >= Math.min(ax, bx) && px <= Math.max(ax, bx) && py >= Math.min(ay, by) && py <= Math.max(ay, by);
+	}
+}
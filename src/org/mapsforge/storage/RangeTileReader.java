@@ -0,0 +1,109 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage;
+
+import java.util.BitSet;
+import java.util.Collection;
+
+/**
+ * Reads the tiles of a bounding box query one by one in row-major order. Tiles that cannot contain
+ * features matching the tag filter are skipped using the tiles' tag summaries. Only the tile being
+ * decoded is held in memory.
+ * 
+ * @author Karsten Groll
+ * 
+ * @param <T>
+ *            The type of the features.
+ */
+abstract class RangeTileReader<T> implements TilePublisher.TileReader<T> {
+	final MapDataProviderImpl mdp;
+	final byte baseZoomInterval;
+	final byte zoomLevel;
+	final BitSet acceptedTagIDs;
+	private final byte featureType;
+	private final int[] tileRange;
+	private boolean[][] skippedTiles;
+	private boolean summariesLoaded;
+	private int x;
+	private int y;
+
+	/**
+	 * 
+	 * @param mdp
+	 *            The data provider whose tiles should be queried.
+	 * @param tileRange
+	 *            The tile range as <code>[minX, minY, maxX, maxY]</code>.
+	 * @param baseZoomInterval
+	 *            The zoom interval to be queried.
+	 * @param zoomLevel
+	 *            The zoom level within this interval.
+	 * @param acceptedTagIDs
+	 *            The tag filter or null.
+	 * @param featureType
+	 *            {@link MapDataProvider#FEATURE_TYPE_POI} or {@link MapDataProvider#FEATURE_TYPE_WAY}.
+	 */
+	RangeTileReader(MapDataProviderImpl mdp, int[] tileRange, byte baseZoomInterval, byte zoomLevel,
+			BitSet acceptedTagIDs, byte featureType) {
+		this.mdp = mdp;
+		this.tileRange = tileRange;
+		this.baseZoomInterval = baseZoomInterval;
+		this.zoomLevel = zoomLevel;
+		this.acceptedTagIDs = acceptedTagIDs;
+		this.featureType = featureType;
+		this.summariesLoaded = false;
+		this.x = tileRange[0];
+		this.y = tileRange[1];
+	}
+
+	@Override
+	public boolean readNextTile(Collection<T> items) {
+		// The summaries are loaded on the first request, not on subscription
+		if (!this.summariesLoaded) {
+			this.skippedTiles = this.mdp.getTilesWithoutMatchingTags(this.tileRange[0], this.tileRange[1],
+					this.tileRange[2], this.tileRange[3], this.baseZoomInterval, this.acceptedTagIDs, this.featureType);
+			this.summariesLoaded = true;
+		}
+
+		if (this.y > this.tileRange[3]) {
+			return false;
+		}
+
+		if (this.skippedTiles == null || !this.skippedTiles[this.y - this.tileRange[1]][this.x - this.tileRange[0]]) {
+			extractTile(this.mdp.getTilePersistenceManager().getTileData(this.x, this.y, this.baseZoomInterval),
+					this.x, this.y, items);
+		}
+
+		if (++this.x > this.tileRange[2]) {
+			this.x = this.tileRange[0];
+			++this.y;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Decodes the features of a tile.
+	 * 
+	 * @param tile
+	 *            The tile's data or null if it does not exist.
+	 * @param tileX
+	 *            The tile's x-coordinate.
+	 * @param tileY
+	 *            The tile's y-coordinate.
+	 * @param items
+	 *            Container the features are added to.
+	 */
+	abstract void extractTile(byte[] tile, int tileX, int tileY, Collection<T> items);
+}
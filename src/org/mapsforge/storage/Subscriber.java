@@ -0,0 +1,56 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage;
+
+/**
+ * Receives the items of a {@link Publisher}. The methods of a subscriber are never called
+ * concurrently for the same subscription.
+ * 
+ * @author Karsten Groll
+ * 
+ * @param <T>
+ *            The type of the received items.
+ */
+public interface Subscriber<T> {
+	/**
+	 * Called once before any other method. No items are sent until
+	 * {@link Subscription#request(long)} has been called.
+	 * 
+	 * @param subscription
+	 *            The subscription for requesting items or cancelling.
+	 */
+	public void onSubscribe(Subscription subscription);
+
+	/**
+	 * Called for each item. Never called more often than items have been requested.
+	 * 
+	 * @param item
+	 *            The item.
+	 */
+	public void onNext(T item);
+
+	/**
+	 * Called if the publisher failed. No further methods will be called.
+	 * 
+	 * @param throwable
+	 *            The cause.
+	 */
+	public void onError(Throwable throwable);
+
+	/**
+	 * Called after the last item. No further methods will be called.
+	 */
+	public void onComplete();
+}
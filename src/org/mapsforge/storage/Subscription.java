@@ -0,0 +1,36 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage;
+
+/**
+ * The link between a {@link Publisher} and one of its {@link Subscriber}s.
+ * 
+ * @author Karsten Groll
+ * 
+ */
+public interface Subscription {
+	/**
+	 * Requests more items. The demand of several calls adds up.
+	 * 
+	 * @param n
+	 *            Number of additional items (must be positive).
+	 */
+	public void request(long n);
+
+	/**
+	 * Stops sending items. Items already being sent may still arrive.
+	 */
+	public void cancel();
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage;
+
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Base class for publishers reading their items tile by tile. A tile is only read when all items of
+ * the previous tile have been sent and the subscriber has requested more items, so a slow or
+ * cancelled subscriber does not cause any further database access.
+ * 
+ * Items are sent either by the thread calling {@link Subscription#request(long)} or, if an executor
+ * is given, by the executor's threads. In both cases the subscriber's methods are never called
+ * concurrently.
+ * 
+ * @author Karsten Groll
+ * 
+ * @param <T>
+ *            The type of the published items.
+ */
+public abstract class TilePublisher<T> implements Publisher<T> {
+	private final Executor executor;
+
+	/**
+	 * 
+	 * @param executor
+	 *            The executor sending the items or null for sending them on the requesting thread.
+	 */
+	protected TilePublisher(Executor executor) {
+		this.executor = executor;
+	}
+
+	@Override
+	public void subscribe(Subscriber<? super T> subscriber) {
+		subscriber.onSubscribe(new TileSubscription(subscriber, createReader()));
+	}
+
+	/**
+	 * Creates the reader for a new subscription.
+	 * 
+	 * @return A reader starting at the first tile.
+	 */
+	protected abstract TileReader<T> createReader();
+
+	/**
+	 * Reads the items of a query tile by tile. A reader is used by a single subscription only.
+	 * 
+	 * @param <T>
+	 *            The type of the items.
+	 */
+	protected interface TileReader<T> {
+		/**
+		 * Reads the next tile.
+		 * 
+		 * @param items
+		 *            Container the tile's items are added to (a tile may have no items).
+		 * @return false if there are no tiles left.
+		 */
+		public boolean readNextTile(Collection<T> items);
+	}
+
+	/**
+	 * Sends the items of one reader to one subscriber.
+	 */
+	private final class TileSubscription implements Subscription, Runnable {
+		private final Subscriber<? super T> subscriber;
+		private final TileReader<T> reader;
+		private final LinkedList<T> buffer;
+		private final AtomicLong requested;
+		/** Number of pending drain requests, only the first one starts draining. */
+		private final AtomicInteger pending;
+		private volatile boolean cancelled;
+		private boolean exhausted;
+
+		TileSubscription(Subscriber<? super T> subscriber, TileReader<T> reader) {
+			this.subscriber = subscriber;
+			this.reader = reader;
+			this.buffer = new LinkedList<T>();
+			this.requested = new AtomicLong();
+			this.pending = new AtomicInteger();
+			this.cancelled = false;
+			this.exhausted = false;
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				this.cancelled = true;
+				this.subscriber.onError(new IllegalArgumentException("Number of requested items must be positive: "
+						+ n));
+				return;
+			}
+
+			long current;
+			long updated;
+			do {
+				current = this.requested.get();
+				updated = current + n;
+				if (updated < 0) {
+					updated = Long.MAX_VALUE;
+				}
+			} while (!this.requested.compareAndSet(current, updated));
+
+			if (this.pending.getAndIncrement() == 0) {
+				if (TilePublisher.this.executor == null) {
+					run();
+				} else {
+					TilePublisher.this.executor.execute(this);
+				}
+			}
+		}
+
+		@Override
+		public void cancel() {
+			this.cancelled = true;
+		}
+
+		/**
+		 * Sends items as long as there is demand. Calls of request() from within onNext() only increase
+		 * the demand, so the call stack does not grow.
+		 */
+		@Override
+		public void run() {
+			int missed = 1;
+			long demand;
+			long sent;
+
+			do {
+				demand = this.requested.get();
+				sent = 0;
+
+				while (sent != demand) {
+					if (this.cancelled) {
+						return;
+					}
+
+					if (this.buffer.isEmpty()) {
+						if (this.exhausted) {
+							break;
+						}
+
+						try {
+							this.exhausted = !this.reader.readNextTile(this.buffer);
+						} catch (RuntimeException e) {
+							this.cancelled = true;
+							this.subscriber.onError(e);
+							return;
+						}
+						continue;
+					}
+
+					this.subscriber.onNext(this.buffer.removeFirst());
+					++sent;
+				}
+
+				if (this.cancelled) {
+					return;
+				}
+
+				if (this.exhausted && this.buffer.isEmpty()) {
+					this.cancelled = true;
+					this.subscriber.onComplete();
+					return;
+				}
+
+				if (sent != 0 && demand != Long.MAX_VALUE) {
+					this.requested.addAndGet(-sent);
+				}
+
+				missed = this.pending.addAndGet(-missed);
+			} while (missed != 0);
+		}
+	}
+}
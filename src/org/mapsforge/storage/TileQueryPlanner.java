@@ -0,0 +1,408 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage;
+
+import org.mapsforge.core.GeoCoordinate;
+import org.mapsforge.core.MercatorProjection;
+import org.mapsforge.storage.dataExtraction.MapFileMetaData;
+import org.mapsforge.storage.tile.TileDataContainer;
+import org.mapsforge.storage.tile.TilePersistenceManager;
+import org.mapsforge.storage.tile.TileVisitor;
+
+/**
+ * Chooses how the tiles of a rectangular tile range are read from the database:
+ * <ul>
+ * <li>{@link #STRATEGY_POINT_LOOKUP}: one query per tile. Best for small ranges.</li>
+ * <li>{@link #STRATEGY_RANGE_SCAN}: one query reading all tile IDs from the range's first to its last
+ * tile.</li>
+ * <li>{@link #STRATEGY_TABLE_SCAN}: one query reading the whole table sequentially.</li>
+ * </ul>
+ * The strategy with the lowest estimated cost is chosen. Costs are measured in tile reads and
+ * estimated from the size of the range, the map's extent and the number of stored tiles per zoom
+ * interval. With row-major tile IDs the range scan reads the range's rows and the parts of the rows in
+ * between that lie within the map's extent. Tiles the caller marks as skipped (e.g. by tag summaries)
+ * need no point lookups, but are still read by the scans. Databases using the legacy tile IDs (see
+ * {@link TilePersistenceManager#hasRowMajorTileIDs()}) are read by point lookups only, unless a scan is
+ * forced (see {@link #setForcedStrategy(byte)}).
+ * 
+ * The planner keeps timing statistics per strategy. Together with {@link #explain(int[], byte,
+ * boolean[][])} and {@link #setForcedStrategy(byte)} they can be used for checking its choices against
+ * benchmarks.
+ * 
+ * @author Karsten Groll
+ * 
+ */
+public class TileQueryPlanner {
+	/** One query per tile. */
+	public static final byte STRATEGY_POINT_LOOKUP = 0;
+	/** One query over a range of tile IDs. */
+	public static final byte STRATEGY_RANGE_SCAN = 1;
+	/** One sequential query over the whole table. */
+	public static final byte STRATEGY_TABLE_SCAN = 2;
+	/** Let the planner choose the strategy. */
+	public static final byte STRATEGY_AUTOMATIC = -1;
+
+	private static final String[] STRATEGY_NAMES = { "point lookup", "range scan", "table scan" };
+
+	private final TilePersistenceManager tpm;
+	private final MapFileMetaData mfm;
+
+	/** The map's extent as tile range per zoom interval. */
+	private final int[][] extents;
+	/** Number of stored tiles per zoom interval (loaded on first use). */
+	private final int[] tileCounts;
+
+	/** Cost of executing a query, relative to reading one tile by its ID. */
+	private double queryCost = 8.0;
+	/** Cost of reading one tile during a table scan, relative to reading it by its ID. */
+	private double sequentialReadCost = 0.5;
+	private byte forcedStrategy = STRATEGY_AUTOMATIC;
+
+	private final int[] executions = new int[3];
+	private final long[] totalTime = new long[3];
+	private final long[] tilesRead = new long[3];
+
+	/**
+	 * 
+	 * @param tpm
+	 *            The tile persistence manager tiles are read from.
+	 * @param mfm
+	 *            The map's meta data.
+	 */
+	public TileQueryPlanner(TilePersistenceManager tpm, MapFileMetaData mfm) {
+		this.tpm = tpm;
+		this.mfm = mfm;
+		this.extents = new int[mfm.getAmountOfZoomIntervals()][];
+		this.tileCounts = new int[mfm.getAmountOfZoomIntervals()];
+
+		byte baseZoomLevel;
+		for (int z = 0; z < this.extents.length; z++) {
+			baseZoomLevel = mfm.getBaseZoomLevel()[z];
+			this.extents[z] = new int[] {
+					(int) MercatorProjection.longitudeToTileX(mfm.getMinLon() / GeoCoordinate.FACTOR_DOUBLE_TO_INT,
+							baseZoomLevel),
+					(int) MercatorProjection.latitudeToTileY(mfm.getMaxLat() / GeoCoordinate.FACTOR_DOUBLE_TO_INT,
+							baseZoomLevel),
+					(int) MercatorProjection.longitudeToTileX(mfm.getMaxLon() / GeoCoordinate.FACTOR_DOUBLE_TO_INT,
+							baseZoomLevel),
+					(int) MercatorProjection.latitudeToTileY(mfm.getMinLat() / GeoCoordinate.FACTOR_DOUBLE_TO_INT,
+							baseZoomLevel) };
+			this.tileCounts[z] = Integer.MIN_VALUE;
+		}
+	}
+
+	/**
+	 * Reads all tiles of a tile range using the cheapest strategy. Each tile is passed to the visitor
+	 * as soon as it has been read, so the data of the whole range is never held at once. The time
+	 * recorded for the statistics includes the visitor's work.
+	 * 
+	 * @param tileRange
+	 *            The tile range as <code>[minX, minY, maxX, maxY]</code>.
+	 * @param baseZoomInterval
+	 *            The tiles' base zoom interval.
+	 * @param skippedTiles
+	 *            Tiles that are not needed, indexed by <code>[y - minY][x - minX]</code> (may be null).
+	 * @param visitor
+	 *            Receives all existing tiles of the range that are not skipped.
+	 */
+	public void readTiles(final int[] tileRange, byte baseZoomInterval, final boolean[][] skippedTiles,
+			final TileVisitor visitor) {
+		int[] range = clipToExtent(tileRange, baseZoomInterval);
+		byte strategy = this.forcedStrategy;
+		if (strategy == STRATEGY_AUTOMATIC) {
+			strategy = chooseStrategy(estimateCosts(range, baseZoomInterval, countRequestedTiles(range, tileRange,
+					skippedTiles)));
+		}
+
+		long start = System.nanoTime();
+		int read = 0;
+
+		if (range != null) {
+			if (strategy == STRATEGY_POINT_LOOKUP) {
+				byte[] tile;
+				for (int y = range[1]; y <= range[3]; y++) {
+					for (int x = range[0]; x <= range[2]; x++) {
+						if (isSkipped(skippedTiles, tileRange, x, y)) {
+							continue;
+						}
+
+						tile = this.tpm.getTileData(x, y, baseZoomInterval);
+						if (tile != null) {
+							visitor.visitTile(new TileDataContainer(tile, TileDataContainer.TILE_TYPE_VECTOR, x, y,
+									baseZoomInterval));
+						}
+						++read;
+					}
+				}
+			} else {
+				final int[] scanned = new int[1];
+				this.tpm.visitTiles(range[0], range[1], range[2], range[3], baseZoomInterval,
+						strategy == STRATEGY_TABLE_SCAN, new TileVisitor() {
+							@Override
+							public void visitTile(TileDataContainer tile) {
+								++scanned[0];
+								if (!isSkipped(skippedTiles, tileRange, tile.getxPos(), tile.getyPos())) {
+									visitor.visitTile(tile);
+								}
+							}
+						});
+				read = scanned[0];
+			}
+		}
+
+		recordExecution(strategy, System.nanoTime() - start, read);
+	}
+
+	/**
+	 * Describes how a tile range would be read without reading it.
+	 * 
+	 * @param tileRange
+	 *            The tile range as <code>[minX, minY, maxX, maxY]</code>.
+	 * @param baseZoomInterval
+	 *            The tiles' base zoom interval.
+	 * @param skippedTiles
+	 *            Tiles that are not needed, indexed by <code>[y - minY][x - minX]</code> (may be null).
+	 * @return A human readable description of the estimated costs and the chosen strategy.
+	 */
+	public String explain(int[] tileRange, byte baseZoomInterval, boolean[][] skippedTiles) {
+		int[] range = clipToExtent(tileRange, baseZoomInterval);
+		int requestedTiles = countRequestedTiles(range, tileRange, skippedTiles);
+		double[] costs = estimateCosts(range, baseZoomInterval, requestedTiles);
+		byte strategy = this.forcedStrategy == STRATEGY_AUTOMATIC ? chooseStrategy(costs) : this.forcedStrategy;
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("Zoom interval ").append(baseZoomInterval).append(" (base zoom level ")
+				.append(this.mfm.getBaseZoomLevel()[baseZoomInterval]).append("): tiles x ").append(tileRange[0])
+				.append("..").append(tileRange[2]).append(", y ").append(tileRange[1]).append("..")
+				.append(tileRange[3]).append('\n');
+
+		if (range == null) {
+			sb.append("  Outside of the map, no tiles will be read\n");
+			return sb.toString();
+		}
+
+		sb.append("  Within map: x ").append(range[0]).append("..").append(range[2]).append(", y ")
+				.append(range[1]).append("..").append(range[3]).append(", ").append(requestedTiles)
+				.append(" tiles requested, ").append(getTileCount(baseZoomInterval)).append(" tiles stored\n");
+
+		for (byte s = 0; s < costs.length; s++) {
+			sb.append("  ").append(STRATEGY_NAMES[s]).append(": cost ");
+			if (s != STRATEGY_POINT_LOOKUP && !this.tpm.hasRowMajorTileIDs()) {
+				sb.append("unavailable (legacy tile IDs)");
+			} else if (Double.isInfinite(costs[s])) {
+				sb.append("unknown");
+			} else {
+				sb.append(Math.round(costs[s]));
+			}
+			if (s == strategy) {
+				sb.append(this.forcedStrategy == STRATEGY_AUTOMATIC ? " <- chosen" : " <- forced");
+			}
+			sb.append('\n');
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * 
+	 * @return The number of executions, total time and tiles read per strategy as human readable text.
+	 */
+	public synchronized String getStatistics() {
+		StringBuilder sb = new StringBuilder();
+
+		for (byte s = 0; s < this.executions.length; s++) {
+			sb.append(STRATEGY_NAMES[s]).append(": ").append(this.executions[s]).append(" queries, ")
+					.append(this.totalTime[s] / 1000000).append(" ms, ").append(this.tilesRead[s])
+					.append(" tiles read");
+			if (this.executions[s] > 0) {
+				sb.append(", ").append(this.totalTime[s] / this.executions[s] / 1000).append(" us/query");
+			}
+			sb.append('\n');
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * Clears the timing statistics.
+	 */
+	public synchronized void resetStatistics() {
+		for (int s = 0; s < this.executions.length; s++) {
+			this.executions[s] = 0;
+			this.totalTime[s] = 0;
+			this.tilesRead[s] = 0;
+		}
+	}
+
+	/**
+	 * 
+	 * @param strategy
+	 *            The strategy.
+	 * @return Number of queries executed using this strategy.
+	 */
+	public synchronized int getExecutionCount(byte strategy) {
+		return this.executions[strategy];
+	}
+
+	/**
+	 * 
+	 * @param strategy
+	 *            The strategy.
+	 * @return Total time spent reading tiles with this strategy in nanoseconds.
+	 */
+	public synchronized long getTotalTime(byte strategy) {
+		return this.totalTime[strategy];
+	}
+
+	/**
+	 * Forces the planner to use a certain strategy, e.g. for benchmarking.
+	 * 
+	 * @param strategy
+	 *            The strategy or {@link #STRATEGY_AUTOMATIC}.
+	 */
+	public void setForcedStrategy(byte strategy) {
+		this.forcedStrategy = strategy;
+	}
+
+	/**
+	 * 
+	 * @param queryCost
+	 *            Cost of executing a query, relative to reading one tile by its ID.
+	 */
+	public void setQueryCost(double queryCost) {
+		this.queryCost = queryCost;
+	}
+
+	/**
+	 * 
+	 * @param sequentialReadCost
+	 *            Cost of reading one tile during a table scan, relative to reading it by its ID.
+	 */
+	public void setSequentialReadCost(double sequentialReadCost) {
+		this.sequentialReadCost = sequentialReadCost;
+	}
+
+	/**
+	 * Estimates the costs of all strategies.
+	 * 
+	 * @return The costs indexed by strategy.
+	 */
+	private double[] estimateCosts(int[] range, byte baseZoomInterval, int requestedTiles) {
+		double[] ret = new double[3];
+
+		if (range == null) {
+			ret[STRATEGY_RANGE_SCAN] = Double.POSITIVE_INFINITY;
+			ret[STRATEGY_TABLE_SCAN] = Double.POSITIVE_INFINITY;
+			return ret;
+		}
+
+		int[] extent = this.extents[baseZoomInterval];
+		int extentTiles = (extent[2] - extent[0] + 1) * (extent[3] - extent[1] + 1);
+		int storedTiles = getTileCount(baseZoomInterval);
+
+		// Fraction of existing tiles (the map's extent is not necessarily filled)
+		double density = storedTiles < 0 ? 1.0 : Math.min(1.0, (double) storedTiles / extentTiles);
+		ret[STRATEGY_POINT_LOOKUP] = requestedTiles * (this.queryCost + density);
+
+		// Legacy tile IDs are spread over a much larger ID interval than the range's rows
+		if (!this.tpm.hasRowMajorTileIDs()) {
+			ret[STRATEGY_RANGE_SCAN] = Double.POSITIVE_INFINITY;
+			ret[STRATEGY_TABLE_SCAN] = Double.POSITIVE_INFINITY;
+			return ret;
+		}
+
+		// The IDs are ordered row by row, so the scan reads the IDs from the range's first to its last
+		// tile: the rest of the first row, all rows in between and the start of the last row. Only their
+		// parts within the map's extent contain tiles, which are assumed to be spread evenly.
+		double scannedCells;
+		if (range[1] == range[3]) {
+			scannedCells = range[2] - range[0] + 1;
+		} else {
+			scannedCells = (extent[2] - range[0] + 1) + (double) (range[3] - range[1] - 1)
+					* (extent[2] - extent[0] + 1) + (range[2] - extent[0] + 1);
+		}
+		double scannedTiles = scannedCells * density;
+
+		ret[STRATEGY_RANGE_SCAN] = this.queryCost + scannedTiles;
+		ret[STRATEGY_TABLE_SCAN] = storedTiles < 0 ? Double.POSITIVE_INFINITY : this.queryCost + storedTiles
+				* this.sequentialReadCost;
+
+		return ret;
+	}
+
+	private static byte chooseStrategy(double[] costs) {
+		byte ret = STRATEGY_POINT_LOOKUP;
+		for (byte s = 1; s < costs.length; s++) {
+			if (costs[s] < costs[ret]) {
+				ret = s;
+			}
+		}
+
+		return ret;
+	}
+
+	/**
+	 * 
+	 * @return The part of the tile range within the map's extent or null if they do not intersect.
+	 */
+	private int[] clipToExtent(int[] tileRange, byte baseZoomInterval) {
+		int[] extent = this.extents[baseZoomInterval];
+		int[] ret = new int[] { Math.max(tileRange[0], extent[0]), Math.max(tileRange[1], extent[1]),
+				Math.min(tileRange[2], extent[2]), Math.min(tileRange[3], extent[3]) };
+
+		if (ret[0] > ret[2] || ret[1] > ret[3]) {
+			return null;
+		}
+
+		return ret;
+	}
+
+	private static int countRequestedTiles(int[] range, int[] tileRange, boolean[][] skippedTiles) {
+		if (range == null) {
+			return 0;
+		}
+
+		int ret = 0;
+		for (int y = range[1]; y <= range[3]; y++) {
+			for (int x = range[0]; x <= range[2]; x++) {
+				if (!isSkipped(skippedTiles, tileRange, x, y)) {
+					++ret;
+				}
+			}
+		}
+
+		return ret;
+	}
+
+	private static boolean isSkipped(boolean[][] skippedTiles, int[] tileRange, int x, int y) {
+		return skippedTiles != null && skippedTiles[y - tileRange[1]][x - tileRange[0]];
+	}
+
+	private int getTileCount(byte baseZoomInterval) {
+		synchronized (this.tileCounts) {
+			if (this.tileCounts[baseZoomInterval] == Integer.MIN_VALUE) {
+				this.tileCounts[baseZoomInterval] = this.tpm.getTileCount(baseZoomInterval);
+			}
+
+			return this.tileCounts[baseZoomInterval];
+		}
+	}
+
+	private synchronized void recordExecution(byte strategy, long time, int tiles) {
+		++this.executions[strategy];
+		this.totalTime[strategy] += time;
+		this.tilesRead[strategy] += tiles;
+	}
+}
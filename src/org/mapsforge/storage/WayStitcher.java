@@ -0,0 +1,159 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import org.mapsforge.storage.atoms.Way;
+
+/**
+ * Joins the segments of a way that has been read from several tiles into continuous polylines. Two
+ * segments of the same way are joined if the last coordinate of the first segment equals the first
+ * coordinate of the second one. Identical segments (e.g. the same way stored in several tiles) are
+ * returned only once.
+ * 
+ * @author Karsten Groll
+ * 
+ */
+class WayStitcher {
+	/** Segments grouped by their way ID (in order of appearance). */
+	private final LinkedHashMap<Long, LinkedHashSet<Way>> segments;
+
+	WayStitcher() {
+		this.segments = new LinkedHashMap<Long, LinkedHashSet<Way>>();
+	}
+
+	/**
+	 * Adds a way segment.
+	 * 
+	 * @param segment
+	 *            The segment to be added. Its ID must be set.
+	 */
+	void add(Way segment) {
+		Long id = Long.valueOf(segment.getId());
+		LinkedHashSet<Way> set = this.segments.get(id);
+
+		if (set == null) {
+			set = new LinkedHashSet<Way>(2);
+			this.segments.put(id, set);
+		}
+
+		set.add(segment);
+	}
+
+	/**
+	 * Stitches all segments that have been added so far.
+	 * 
+	 * @return One way for each continuous polyline.
+	 */
+	Collection<Way> stitch() {
+		ArrayList<Way> ret = new ArrayList<Way>(this.segments.size());
+
+		for (LinkedHashSet<Way> set : this.segments.values()) {
+			if (set.size() == 1) {
+				ret.add(set.iterator().next());
+			} else {
+				stitch(new ArrayList<Way>(set), ret);
+			}
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Joins the segments of a single way.
+	 * 
+	 * @param ways
+	 *            All distinct segments of a way.
+	 * @param container
+	 *            The container the stitched polylines are added to.
+	 */
+	private static void stitch(List<Way> ways, Collection<Way> container) {
+		// Hash join: first coordinate -> segment
+		HashMap<Long, Integer> startPoints = new HashMap<Long, Integer>(ways.size() * 2);
+		LinkedHashSet<Long> endPoints = new LinkedHashSet<Long>(ways.size() * 2);
+		long[] c;
+		for (int i = 0; i < ways.size(); i++) {
+			c = ways.get(i).getCoordinates();
+			startPoints.put(Long.valueOf(pointKey(c, 0)), Integer.valueOf(i));
+			endPoints.add(Long.valueOf(pointKey(c, c.length - 2)));
+		}
+
+		boolean[] used = new boolean[ways.size()];
+
+		// Start with segments that are not preceded by another segment, then handle the remaining
+		// (circular) ones
+		for (int pass = 0; pass < 2; pass++) {
+			for (int i = 0; i < ways.size(); i++) {
+				if (used[i]) {
+					continue;
+				}
+
+				c = ways.get(i).getCoordinates();
+				if (pass == 0 && endPoints.contains(Long.valueOf(pointKey(c, 0)))) {
+					continue;
+				}
+
+				container.add(follow(ways, i, startPoints, used));
+			}
+		}
+	}
+
+	private static Way follow(List<Way> ways, int first, HashMap<Long, Integer> startPoints, boolean[] used) {
+		Way w = ways.get(first);
+		used[first] = true;
+
+		long[] coordinates = w.getCoordinates();
+		int length = coordinates.length;
+		Integer next = startPoints.get(Long.valueOf(pointKey(coordinates, length - 2)));
+
+		// Nothing to join
+		if (next == null || used[next.intValue()]) {
+			return w;
+		}
+
+		ArrayList<long[]> chain = new ArrayList<long[]>();
+		chain.add(coordinates);
+		while (next != null && !used[next.intValue()]) {
+			used[next.intValue()] = true;
+			coordinates = ways.get(next.intValue()).getCoordinates();
+			chain.add(coordinates);
+
+			// The first coordinate is shared with the previous segment
+			length += coordinates.length - 2;
+			next = startPoints.get(Long.valueOf(pointKey(coordinates, coordinates.length - 2)));
+		}
+
+		long[] joined = new long[length];
+		int pos = 0;
+		for (int i = 0; i < chain.size(); i++) {
+			coordinates = chain.get(i);
+			int offset = i == 0 ? 0 : 2;
+			System.arraycopy(coordinates, offset, joined, pos, coordinates.length - offset);
+			pos += coordinates.length - offset;
+		}
+
+		return new Way(joined, w.getName(), w.getId());
+	}
+
+	private static long pointKey(long[] coordinates, int pos) {
+		return coordinates[pos] << 32 | (coordinates[pos + 1] & 0xffffffffL);
+	}
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage;
+
+import org.mapsforge.storage.atoms.Way;
+
+/**
+ * Callback for receiving ways one by one while a query is running instead of collecting them in a
+ * container first.
+ * 
+ * @author Karsten Groll
+ * 
+ */
+public interface WayVisitor {
+	/**
+	 * Called once for each way found by a query. Implementations used with unordered parallel queries
+	 * must be thread safe.
+	 * 
+	 * @param way
+	 *            The way.
+	 */
+	public void visitWay(Way way);
+}
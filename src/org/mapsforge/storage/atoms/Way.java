@@ -14,6 +14,8 @@
  */
 package org.mapsforge.storage.atoms;
 
+import java.util.Arrays;
+
 /**
  * A (reusable) class for storing simple way information such as its coordinates and its type.
  * 
@@ -77,9 +79,18 @@ public class Way {
 		return this.hash;
 	}
 
+	/**
+	 * Two ways are equal if they have the same ID and the same coordinates. (The hash code is only used
+	 * for a quick rejection.)
+	 */
 	@Override
 	public boolean equals(Object way) {
-		return way instanceof Way && this.hashCode() == way.hashCode();
+		if (!(way instanceof Way) || this.hashCode() != way.hashCode()) {
+			return false;
+		}
+
+		Way other = (Way) way;
+		return this.id == other.id && Arrays.equals(this.coordinates, other.coordinates);
 	}
 
 	public static void main(String[] args) {
@@ -40,6 +40,7 @@ public class MapFileMetaData {
 	private String projection;
 	private String languagePreference;
 	private byte flags;
+	private boolean wayNameDictionary;
 
 	// Map start position
 	private int mapStartLon;
@@ -110,6 +111,22 @@ public class MapFileMetaData {
 		return (this.flags & 0x20) != 0;
 	}
 
+	/**
+	 * @return true if way names are stored as indexes into the map's way name dictionary instead of
+	 *         inline strings.
+	 */
+	public boolean isWayNameDictionaryFlagSet() {
+		return this.wayNameDictionary;
+	}
+
+	/**
+	 * @param wayNameDictionary
+	 *            true if way names are stored as indexes into the map's way name dictionary.
+	 */
+	public void setWayNameDictionaryFlag(boolean wayNameDictionary) {
+		this.wayNameDictionary = wayNameDictionary;
+	}
+
 	/**
 	 * This method prepares the array that contains the mappings for tag IDs to tag names for POIs.
 	 */
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.poi;
+
+import org.mapsforge.core.GeoCoordinate;
+
+/**
+ * Maps coordinates to their position on a Hilbert curve covering the whole world. Sorting POIs by
+ * this key keeps POIs that are close to each other close in the sort order, which is used for packing
+ * R-tree nodes tightly.
+ * 
+ * @author Karsten Groll
+ * 
+ */
+public final class HilbertCurve {
+	// Number of bits per coordinate of the Hilbert key
+	private static final int ORDER = 16;
+
+	private HilbertCurve() {
+		// Static methods only
+	}
+
+	/**
+	 * Calculates the position of a coordinate on a Hilbert curve covering the whole world.
+	 * 
+	 * @param latitudeE6
+	 *            The latitude.
+	 * @param longitudeE6
+	 *            The longitude.
+	 * @return The Hilbert key (32 bits).
+	 */
+	public static long getKey(int latitudeE6, int longitudeE6) {
+		int n = 1 << ORDER;
+		int x = (int) ((longitudeE6 + 180000000L) * (n - 1) / 360000000L);
+		int y = (int) ((latitudeE6 + 90000000L) * (n - 1) / 180000000L);
+		int rx;
+		int ry;
+		int t;
+		long ret = 0;
+
+		for (int s = n >>> 1; s > 0; s >>>= 1) {
+			rx = (x & s) > 0 ? 1 : 0;
+			ry = (y & s) > 0 ? 1 : 0;
+			ret += (long) s * s * ((3 * rx) ^ ry);
+
+			// Rotate
+			if (ry == 0) {
+				if (rx == 1) {
+					x = s - 1 - x;
+					y = s - 1 - y;
+				}
+				t = x;
+				x = y;
+				y = t;
+			}
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Calculates the position of a coordinate on a Hilbert curve covering the whole world.
+	 * 
+	 * @param latitude
+	 *            The latitude.
+	 * @param longitude
+	 *            The longitude.
+	 * @return The Hilbert key (32 bits).
+	 */
+	public static long getKey(double latitude, double longitude) {
+		return getKey(GeoCoordinate.doubleToInt(latitude), GeoCoordinate.doubleToInt(longitude));
+	}
+}
@@ -0,0 +1,539 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.poi;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+import org.mapsforge.core.GeoCoordinate;
+
+/**
+ * A read-only in-memory POI index. The POIs are stored in primitive arrays sorted by the Hilbert key of
+ * their position, so that POIs close to each other are close in memory. A static R-tree is packed
+ * bottom-up over the sorted POIs (the Hilbert order replaces the sorting step of STR packing). Names
+ * are stored in a single UTF-8 byte pool and only decoded when {@link PointOfInterest#getName()} is
+ * called.
+ * 
+ * Queries do not allocate memory except for the returned POIs, which are views on the index. The index
+ * can be queried by several threads at the same time.
+ * 
+ * Distances are calculated in a plane whose longitudes are scaled by the cosine of the query position's
+ * latitude.
+ * 
+ * @author Karsten Groll
+ * 
+ */
+public class PackedPoiIndex {
+	// Maximal number of children per tree node
+	private static final int NODE_SIZE = 16;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// POIs in Hilbert order
+	private final int size;
+	private final long[] ids;
+	private final int[] latitudesE6;
+	private final int[] longitudesE6;
+	private final int[] categoryIDs;
+	private final byte[] namePool;
+	/** Name of POI i is <code>namePool[nameOffsets[i], nameOffsets[i + 1])</code>. */
+	private final int[] nameOffsets;
+
+	/** Categories indexed by their ID. */
+	private final PoiCategory[] categories;
+
+	// POI positions sorted by ID
+	private final long[] sortedIDs;
+	private final int[] idPositions;
+
+	// Tree nodes, the first leafNodeCount nodes have POIs as children, the last node is the root
+	private final int leafNodeCount;
+	private final int[] nodeMinLat;
+	private final int[] nodeMaxLat;
+	private final int[] nodeMinLon;
+	private final int[] nodeMaxLon;
+	private final int[] nodeFirstChild;
+	private final int[] nodeChildEnd;
+
+	/**
+	 * Builds the index.
+	 * 
+	 * @param pois
+	 *            All POIs. Their categories must have non-negative IDs.
+	 */
+	public PackedPoiIndex(Collection<PointOfInterest> pois) {
+		this.size = pois.size();
+
+		// Sort by Hilbert key (key in the upper, original position in the lower half)
+		PointOfInterest[] unsorted = pois.toArray(new PointOfInterest[this.size]);
+		long[] keys = new long[this.size];
+		int maxCategoryID = 0;
+		for (int i = 0; i < this.size; i++) {
+			keys[i] = (HilbertCurve.getKey(GeoCoordinate.doubleToInt(unsorted[i].getLatitude()),
+					GeoCoordinate.doubleToInt(unsorted[i].getLongitude())) << 32)
+					| i;
+			maxCategoryID = Math.max(maxCategoryID, unsorted[i].getCategory().getID());
+		}
+		Arrays.sort(keys);
+
+		this.ids = new long[this.size];
+		this.latitudesE6 = new int[this.size];
+		this.longitudesE6 = new int[this.size];
+		this.categoryIDs = new int[this.size];
+		this.nameOffsets = new int[this.size + 1];
+		this.categories = new PoiCategory[maxCategoryID + 1];
+		ByteArrayOutputStream names = new ByteArrayOutputStream();
+
+		PointOfInterest p;
+		byte[] name;
+		for (int i = 0; i < this.size; i++) {
+			p = unsorted[(int) (keys[i] & 0xffffffffL)];
+			this.ids[i] = p.getId();
+			this.latitudesE6[i] = GeoCoordinate.doubleToInt(p.getLatitude());
+			this.longitudesE6[i] = GeoCoordinate.doubleToInt(p.getLongitude());
+			this.categoryIDs[i] = p.getCategory().getID();
+			this.categories[this.categoryIDs[i]] = p.getCategory();
+
+			this.nameOffsets[i] = names.size();
+			if (p.getName() != null) {
+				name = p.getName().getBytes(UTF8);
+				names.write(name, 0, name.length);
+			}
+		}
+		this.nameOffsets[this.size] = names.size();
+		this.namePool = names.toByteArray();
+
+		// ID lookup table
+		this.sortedIDs = new long[this.size];
+		this.idPositions = new int[this.size];
+		sortByID();
+
+		// Number of tree nodes
+		int nodeCount = 0;
+		int levelSize = this.size;
+		do {
+			levelSize = (levelSize + NODE_SIZE - 1) / NODE_SIZE;
+			nodeCount += levelSize;
+		} while (levelSize > 1);
+
+		this.leafNodeCount = (this.size + NODE_SIZE - 1) / NODE_SIZE;
+		this.nodeMinLat = new int[nodeCount];
+		this.nodeMaxLat = new int[nodeCount];
+		this.nodeMinLon = new int[nodeCount];
+		this.nodeMaxLon = new int[nodeCount];
+		this.nodeFirstChild = new int[nodeCount];
+		this.nodeChildEnd = new int[nodeCount];
+
+		packTree();
+	}
+
+	/**
+	 * 
+	 * @return Number of POIs in this index.
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Finds a POI by its ID.
+	 * 
+	 * @param id
+	 *            The POI's ID.
+	 * @return The POI or null if there is no POI with this ID.
+	 */
+	public PointOfInterest findByID(long id) {
+		int pos = Arrays.binarySearch(this.sortedIDs, id);
+		return pos < 0 ? null : new PackedPoi(this.idPositions[pos]);
+	}
+
+	/**
+	 * Finds POIs within a bounding box.
+	 * 
+	 * @param minLatE6
+	 *            Minimal latitude.
+	 * @param minLonE6
+	 *            Minimal longitude.
+	 * @param maxLatE6
+	 *            Maximal latitude.
+	 * @param maxLonE6
+	 *            Maximal longitude.
+	 * @param categoryIntervals
+	 *            Accepted category IDs as sorted intervals <code>[start_1, end_1, ...]</code> or null
+	 *            for accepting all categories.
+	 * @param limit
+	 *            Maximal number of POIs to be added.
+	 * @param container
+	 *            The container the POIs are added to.
+	 */
+	public void findInRect(int minLatE6, int minLonE6, int maxLatE6, int maxLonE6, int[] categoryIntervals,
+			int limit, Collection<PointOfInterest> container) {
+		if (this.size == 0 || limit <= 0) {
+			return;
+		}
+
+		searchRect(this.nodeMinLat.length - 1, minLatE6, minLonE6, maxLatE6, maxLonE6, categoryIntervals, limit,
+				container);
+	}
+
+	/**
+	 * Finds the k POIs nearest to a given position.
+	 * 
+	 * @param latitudeE6
+	 *            The position's latitude.
+	 * @param longitudeE6
+	 *            The position's longitude.
+	 * @param k
+	 *            Maximal number of POIs to be returned.
+	 * @param maxDistance
+	 *            Maximal distance in meters or 0 for an unlimited distance.
+	 * @param categoryIntervals
+	 *            Accepted category IDs as sorted intervals <code>[start_1, end_1, ...]</code> or null
+	 *            for accepting all categories.
+	 * @return Up to k POIs ordered by their distance (nearest first).
+	 */
+	public List<PointOfInterest> findNearest(int latitudeE6, int longitudeE6, int k, int maxDistance,
+			int[] categoryIntervals) {
+		if (this.size == 0 || k <= 0) {
+			return Arrays.asList(new PointOfInterest[0]);
+		}
+
+		// The heap never holds more entries than there are POIs
+		int heapCapacity = Math.min(k, this.size);
+		double maxDistanceE6 = GeoCoordinate.latitudeDistance(maxDistance) * GeoCoordinate.FACTOR_DOUBLE_TO_INT;
+		NearestSearch search = new NearestSearch(latitudeE6, longitudeE6, heapCapacity,
+				maxDistance > 0 ? maxDistanceE6 * maxDistanceE6 : Double.POSITIVE_INFINITY, categoryIntervals);
+		searchNearest(this.nodeMinLat.length - 1, search);
+
+		// Heap sort of the candidates
+		PointOfInterest[] ret = new PointOfInterest[search.heapSize];
+		for (int i = ret.length - 1; i >= 0; i--) {
+			ret[i] = new PackedPoi(search.heapPositions[0]);
+			search.removeTop();
+		}
+
+		return Arrays.asList(ret);
+	}
+
+	/**
+	 * Searches a subtree for POIs within a bounding box.
+	 * 
+	 * @return The remaining limit.
+	 */
+	private int searchRect(int node, int minLatE6, int minLonE6, int maxLatE6, int maxLonE6, int[] categoryIntervals,
+			int limit, Collection<PointOfInterest> container) {
+		int remaining = limit;
+
+		if (node < this.leafNodeCount) {
+			for (int i = this.nodeFirstChild[node]; i < this.nodeChildEnd[node] && remaining > 0; i++) {
+				if (this.latitudesE6[i] >= minLatE6 && this.latitudesE6[i] <= maxLatE6
+						&& this.longitudesE6[i] >= minLonE6 && this.longitudesE6[i] <= maxLonE6
+						&& isAccepted(this.categoryIDs[i], categoryIntervals)) {
+					container.add(new PackedPoi(i));
+					--remaining;
+				}
+			}
+
+			return remaining;
+		}
+
+		for (int child = this.nodeFirstChild[node]; child < this.nodeChildEnd[node] && remaining > 0; child++) {
+			if (this.nodeMinLat[child] <= maxLatE6 && this.nodeMaxLat[child] >= minLatE6
+					&& this.nodeMinLon[child] <= maxLonE6 && this.nodeMaxLon[child] >= minLonE6) {
+				remaining = searchRect(child, minLatE6, minLonE6, maxLatE6, maxLonE6, categoryIntervals,
+						remaining, container);
+			}
+		}
+
+		return remaining;
+	}
+
+	/**
+	 * Searches a subtree for POIs nearer than the current k-th candidate.
+	 */
+	private void searchNearest(int node, NearestSearch search) {
+		if (node < this.leafNodeCount) {
+			for (int i = this.nodeFirstChild[node]; i < this.nodeChildEnd[node]; i++) {
+				if (isAccepted(this.categoryIDs[i], search.categoryIntervals)) {
+					search.offer(i, search.distanceSq(this.latitudesE6[i], this.latitudesE6[i],
+							this.longitudesE6[i], this.longitudesE6[i]));
+				}
+			}
+
+			return;
+		}
+
+		for (int child = this.nodeFirstChild[node]; child < this.nodeChildEnd[node]; child++) {
+			if (search.distanceSq(this.nodeMinLat[child], this.nodeMaxLat[child], this.nodeMinLon[child],
+					this.nodeMaxLon[child]) < search.getBound()) {
+				searchNearest(child, search);
+			}
+		}
+	}
+
+	/**
+	 * @param categoryID
+	 *            A category ID.
+	 * @param categoryIntervals
+	 *            Sorted category ID intervals <code>[start_1, end_1, ...]</code> or null.
+	 * @return true if the ID is within one of the intervals or if the intervals are null.
+	 */
+	static boolean isAccepted(int categoryID, int[] categoryIntervals) {
+		if (categoryIntervals == null) {
+			return true;
+		}
+
+		for (int i = 0; i < categoryIntervals.length && categoryIntervals[i] <= categoryID; i += 2) {
+			if (categoryID <= categoryIntervals[i + 1]) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Builds the tree bottom-up. Each node covers up to {@link #NODE_SIZE} consecutive POIs or nodes of
+	 * the level below.
+	 */
+	private void packTree() {
+		int node = 0;
+		int childStart = 0;
+		int childEnd = this.size;
+		boolean leafLevel = true;
+		int levelStart;
+
+		do {
+			levelStart = node;
+			for (int first = childStart; first < childEnd; first += NODE_SIZE) {
+				this.nodeFirstChild[node] = first;
+				this.nodeChildEnd[node] = Math.min(first + NODE_SIZE, childEnd);
+				this.nodeMinLat[node] = Integer.MAX_VALUE;
+				this.nodeMaxLat[node] = Integer.MIN_VALUE;
+				this.nodeMinLon[node] = Integer.MAX_VALUE;
+				this.nodeMaxLon[node] = Integer.MIN_VALUE;
+
+				for (int child = first; child < this.nodeChildEnd[node]; child++) {
+					if (leafLevel) {
+						expandNode(node, this.latitudesE6[child], this.latitudesE6[child], this.longitudesE6[child],
+								this.longitudesE6[child]);
+					} else {
+						expandNode(node, this.nodeMinLat[child], this.nodeMaxLat[child], this.nodeMinLon[child],
+								this.nodeMaxLon[child]);
+					}
+				}
+
+				++node;
+			}
+
+			childStart = levelStart;
+			childEnd = node;
+			leafLevel = false;
+		} while (childEnd - childStart > 1);
+	}
+
+	private void expandNode(int node, int minLat, int maxLat, int minLon, int maxLon) {
+		this.nodeMinLat[node] = Math.min(this.nodeMinLat[node], minLat);
+		this.nodeMaxLat[node] = Math.max(this.nodeMaxLat[node], maxLat);
+		this.nodeMinLon[node] = Math.min(this.nodeMinLon[node], minLon);
+		this.nodeMaxLon[node] = Math.max(this.nodeMaxLon[node], maxLon);
+	}
+
+	/**
+	 * Fills the ID lookup table.
+	 */
+	private void sortByID() {
+		// IDs need 64 bits, so they cannot be packed into a sort key together with the position
+		Integer[] order = new Integer[this.size];
+		for (int i = 0; i < this.size; i++) {
+			order[i] = Integer.valueOf(i);
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer p1, Integer p2) {
+				long id1 = PackedPoiIndex.this.ids[p1.intValue()];
+				long id2 = PackedPoiIndex.this.ids[p2.intValue()];
+				return id1 < id2 ? -1 : (id1 > id2 ? 1 : 0);
+			}
+		});
+
+		for (int i = 0; i < this.size; i++) {
+			this.idPositions[i] = order[i].intValue();
+			this.sortedIDs[i] = this.ids[this.idPositions[i]];
+		}
+	}
+
+	/**
+	 * State of a k-nearest-neighbor search: a max-heap of the best candidates stored in primitive
+	 * arrays.
+	 */
+	private static final class NearestSearch {
+		final int latitudeE6;
+		final int longitudeE6;
+		final double xScale;
+		final double maxDistanceSq;
+		final int[] categoryIntervals;
+		final int[] heapPositions;
+		final double[] heapDistances;
+		int heapSize;
+
+		NearestSearch(int latitudeE6, int longitudeE6, int k, double maxDistanceSq, int[] categoryIntervals) {
+			this.latitudeE6 = latitudeE6;
+			this.longitudeE6 = longitudeE6;
+			this.xScale = Math.cos(Math.toRadians(latitudeE6 / GeoCoordinate.FACTOR_DOUBLE_TO_INT));
+			this.maxDistanceSq = maxDistanceSq;
+			this.categoryIntervals = categoryIntervals;
+			this.heapPositions = new int[k];
+			this.heapDistances = new double[k];
+			this.heapSize = 0;
+		}
+
+		/**
+		 * 
+		 * @return The squared distance a POI must fall below to become a candidate.
+		 */
+		double getBound() {
+			return this.heapSize < this.heapPositions.length ? this.maxDistanceSq : this.heapDistances[0];
+		}
+
+		/**
+		 * 
+		 * @return The squared distance between the position and a bounding box.
+		 */
+		double distanceSq(int minLat, int maxLat, int minLon, int maxLon) {
+			double dy = 0;
+			if (this.latitudeE6 < minLat) {
+				dy = minLat - this.latitudeE6;
+			} else if (this.latitudeE6 > maxLat) {
+				dy = this.latitudeE6 - maxLat;
+			}
+
+			double dx = 0;
+			if (this.longitudeE6 < minLon) {
+				dx = (minLon - this.longitudeE6) * this.xScale;
+			} else if (this.longitudeE6 > maxLon) {
+				dx = (this.longitudeE6 - maxLon) * this.xScale;
+			}
+
+			return dx * dx + dy * dy;
+		}
+
+		void offer(int position, double distanceSq) {
+			if (distanceSq > this.maxDistanceSq) {
+				return;
+			}
+
+			if (this.heapSize < this.heapPositions.length) {
+				// Sift up
+				int i = this.heapSize++;
+				int parent;
+				while (i > 0 && this.heapDistances[parent = (i - 1) >>> 1] < distanceSq) {
+					this.heapPositions[i] = this.heapPositions[parent];
+					this.heapDistances[i] = this.heapDistances[parent];
+					i = parent;
+				}
+				this.heapPositions[i] = position;
+				this.heapDistances[i] = distanceSq;
+			} else if (distanceSq < this.heapDistances[0]) {
+				siftDown(position, distanceSq);
+			}
+		}
+
+		void removeTop() {
+			--this.heapSize;
+			if (this.heapSize > 0) {
+				siftDown(this.heapPositions[this.heapSize], this.heapDistances[this.heapSize]);
+			}
+		}
+
+		private void siftDown(int position, double distanceSq) {
+			int i = 0;
+			int child;
+			while ((child = 2 * i + 1) < this.heapSize) {
+				if (child + 1 < this.heapSize && this.heapDistances[child + 1] > this.heapDistances[child]) {
+					++child;
+				}
+				if (this.heapDistances[child] <= distanceSq) {
+					break;
+				}
+				this.heapPositions[i] = this.heapPositions[child];
+				this.heapDistances[i] = this.heapDistances[child];
+				i = child;
+			}
+			this.heapPositions[i] = position;
+			this.heapDistances[i] = distanceSq;
+		}
+	}
+
+	/**
+	 * A POI backed by the index's arrays.
+	 */
+	private final class PackedPoi implements PointOfInterest {
+		private final int position;
+
+		PackedPoi(int position) {
+			this.position = position;
+		}
+
+		@Override
+		public long getId() {
+			return PackedPoiIndex.this.ids[this.position];
+		}
+
+		@Override
+		public double getLatitude() {
+			return GeoCoordinate.intToDouble(PackedPoiIndex.this.latitudesE6[this.position]);
+		}
+
+		@Override
+		public double getLongitude() {
+			return GeoCoordinate.intToDouble(PackedPoiIndex.this.longitudesE6[this.position]);
+		}
+
+		@Override
+		public String getName() {
+			int start = PackedPoiIndex.this.nameOffsets[this.position];
+			int end = PackedPoiIndex.this.nameOffsets[this.position + 1];
+			return start == end ? null : new String(PackedPoiIndex.this.namePool, start, end - start, UTF8);
+		}
+
+		@Override
+		public String getUrl() {
+			return null;
+		}
+
+		@Override
+		public PoiCategory getCategory() {
+			return PackedPoiIndex.this.categories[PackedPoiIndex.this.categoryIDs[this.position]];
+		}
+
+		@Override
+		public GeoCoordinate getGeoCoordinate() {
+			return new GeoCoordinate(getLatitude(), getLongitude());
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append("POI: (").append(getLatitude()).append(',').append(getLongitude());
+			sb.append(") ").append(getName()).append(' ').append(getCategory().getID());
+			return sb.toString();
+		}
+	}
+}
@@ -0,0 +1,449 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.poi;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.mapsforge.core.GeoCoordinate;
+import org.sqlite.android.Constants;
+import org.sqlite.android.Database;
+import org.sqlite.android.SQLiteException;
+import org.sqlite.android.Stmt;
+
+/**
+ * Read-only POI persistence manager keeping all POIs of a POI file in a {@link PackedPoiIndex}. The
+ * file is read once when the manager is created and closed afterwards. This implementation does only
+ * work on Android.
+ * 
+ * This class is thread safe.
+ * 
+ * @author Karsten Groll
+ */
+class PackedPoiPersistenceManager implements PoiPersistenceManager {
+	private static final String LOAD_ALL_STATEMENT = "SELECT poi_index.id, poi_index.minLat, poi_index.minLon, poi_data.data, poi_data.category "
+			+ "FROM poi_index " + "JOIN poi_data ON poi_index.id = poi_data.id;";
+
+	private volatile PoiCategoryManager cm = null;
+	private PackedPoiIndex index = null;
+
+	// Words of the normalized POI names in sorted order and the IDs of their POIs
+	private String[] nameTokens = null;
+	private long[] nameTokenIDs = null;
+
+	private PoiClusterGrid clusterGrid = null;
+
+	/**
+	 * Loads all POIs of a POI file.
+	 * 
+	 * @param dbFilePath
+	 *            Path to SQLite file containing POI data.
+	 */
+	PackedPoiPersistenceManager(String dbFilePath) {
+		ArrayList<PointOfInterest> pois = new ArrayList<PointOfInterest>();
+
+		Database db = new Database();
+		try {
+			db.open(dbFilePath, Constants.SQLITE_OPEN_READONLY);
+			this.cm = new AndroidPoiCategoryManager(db);
+
+			// Compact databases store microdegrees and encoded tags
+			PoiTagDictionary dictionary = SQLitePoiPersistenceManager.loadTagDictionary(db);
+			double scale = dictionary == null ? 1 : GeoCoordinate.FACTOR_DOUBLE_TO_INT;
+
+			Stmt stmt = db.prepare(LOAD_ALL_STATEMENT);
+			PoiCategory category;
+			try {
+				while (stmt.step()) {
+					try {
+						category = this.cm.getPoiCategoryByID(stmt.column_int(4));
+						if (dictionary == null) {
+							pois.add(new PoiImpl(stmt.column_long(0), stmt.column_double(1), stmt.column_double(2),
+									stmt.column_string(3), category));
+						} else {
+							pois.add(new PoiImpl(stmt.column_long(0), stmt.column_double(1) / scale, stmt
+									.column_double(2) / scale, stmt.column_bytes(3), dictionary, category));
+						}
+					} catch (UnknownPoiCategoryException e) {
+						e.printStackTrace();
+					}
+				}
+			} finally {
+				stmt.close();
+			}
+		} catch (SQLiteException e) {
+			// TODO Android error handling
+			e.printStackTrace();
+		} finally {
+			try {
+				db.close();
+			} catch (SQLiteException e) {
+				// TODO Android error handling
+			}
+		}
+
+		this.index = new PackedPoiIndex(pois);
+		createNameIndex(pois);
+		this.clusterGrid = new PoiClusterGrid(pois);
+	}
+
+	/**
+	 * Builds the sorted word list for {@link #searchByName}.
+	 */
+	private void createNameIndex(Collection<PointOfInterest> pois) {
+		ArrayList<NameIndexEntry> entries = new ArrayList<NameIndexEntry>();
+		for (PointOfInterest p : pois) {
+			for (String token : PoiNameNormalizer.getTokens(p.getName())) {
+				entries.add(new NameIndexEntry(token, p.getId()));
+			}
+		}
+		Collections.sort(entries);
+
+		this.nameTokens = new String[entries.size()];
+		this.nameTokenIDs = new long[entries.size()];
+		for (int i = 0; i < this.nameTokens.length; i++) {
+			this.nameTokens[i] = entries.get(i).token;
+			this.nameTokenIDs[i] = entries.get(i).id;
+		}
+	}
+
+	@Override
+	public Collection<PointOfInterest> findNearPosition(GeoCoordinate point, int distance, String categoryName,
+			int limit) {
+		return findNearest(point, limit, Math.max(distance, 1), null);
+	}
+
+	@Override
+	public List<PointOfInterest> findNearest(GeoCoordinate point, int k, int maxDistance, PoiCategoryFilter filter) {
+		return this.index.findNearest(point.getLatitudeE6(), point.getLongitudeE6(), k, maxDistance,
+				getCategoryIDIntervals(filter));
+	}
+
+	@Override
+	public Collection<PointOfInterest> findInRect(GeoCoordinate p1, GeoCoordinate p2, String categoryName,
+			int limit) {
+		return findInRect(p1, p2, categoryName, limit, new ArrayList<PointOfInterest>());
+	}
+
+	@Override
+	public Collection<PointOfInterest> findInRect(GeoCoordinate p1, GeoCoordinate p2, String categoryName,
+			int limit, Collection<PointOfInterest> container) {
+		this.index.findInRect(p1.getLatitudeE6(), p1.getLongitudeE6(), p2.getLatitudeE6(), p2.getLongitudeE6(),
+				null, limit, container);
+
+		return container;
+	}
+
+	@Override
+	public Collection<PointOfInterest> findInRectWithFilter(GeoCoordinate p1, GeoCoordinate p2,
+			PoiCategoryFilter filter, int limit) {
+		return findInRectWithFilter(p1, p2, filter, limit, new ArrayList<PointOfInterest>());
+	}
+
+	@Override
+	public Collection<PointOfInterest> findInRectWithFilter(GeoCoordinate p1, GeoCoordinate p2,
+			PoiCategoryFilter filter, int limit, Collection<PointOfInterest> container) {
+		this.index.findInRect(p1.getLatitudeE6(), p1.getLongitudeE6(), p2.getLatitudeE6(), p2.getLongitudeE6(),
+				getCategoryIDIntervals(filter), limit, container);
+
+		return container;
+	}
+
+	@Override
+	public List<PointOfInterest> searchByName(String prefix, GeoCoordinate p1, GeoCoordinate p2,
+			GeoCoordinate referencePoint, PoiCategoryFilter filter, int limit) {
+		String[] queryTokens = PoiNameNormalizer.getTokens(prefix);
+		if (queryTokens.length == 0 || limit <= 0) {
+			return new ArrayList<PointOfInterest>(0);
+		}
+
+		String lookupToken = PoiNameNormalizer.getLookupToken(queryTokens);
+		int[] intervals = getCategoryIDIntervals(filter);
+		GeoCoordinate center = referencePoint;
+		if (center == null) {
+			center = new GeoCoordinate((p1.getLatitude() + p2.getLatitude()) / 2,
+					(p1.getLongitude() + p2.getLongitude()) / 2);
+		}
+		int candidates = Math.max(NAME_SEARCH_CANDIDATES, limit);
+		double xScale = Math.cos(Math.toRadians(center.getLatitude()));
+
+		// First word starting with the prefix
+		int low = 0;
+		int high = this.nameTokens.length;
+		int middle;
+		while (low < high) {
+			middle = (low + high) >>> 1;
+			if (this.nameTokens[middle].compareTo(lookupToken) < 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+
+		HashSet<Long> visited = new HashSet<Long>();
+		ArrayList<CursorEntry> matches = new ArrayList<CursorEntry>();
+		PointOfInterest poi;
+		double dLat;
+		double dLon;
+		int ranked = 0;
+		for (int i = low; i < this.nameTokens.length && this.nameTokens[i].startsWith(lookupToken)
+				&& ranked < candidates; i++) {
+			if (!visited.add(Long.valueOf(this.nameTokenIDs[i]))) {
+				continue;
+			}
+
+			poi = this.index.findByID(this.nameTokenIDs[i]);
+			if (poi.getLatitude() < p1.getLatitude() || poi.getLatitude() > p2.getLatitude()
+					|| poi.getLongitude() < p1.getLongitude() || poi.getLongitude() > p2.getLongitude()
+					|| !PackedPoiIndex.isAccepted(poi.getCategory().getID(), intervals)) {
+				continue;
+			}
+			ranked++;
+
+			if (queryTokens.length > 1
+					&& !PoiNameNormalizer.matches(PoiNameNormalizer.getTokens(poi.getName()), queryTokens)) {
+				continue;
+			}
+
+			dLat = poi.getLatitude() - center.getLatitude();
+			dLon = (poi.getLongitude() - center.getLongitude()) * xScale;
+			matches.add(new CursorEntry(poi, dLat * dLat + dLon * dLon));
+		}
+
+		Collections.sort(matches);
+
+		ArrayList<PointOfInterest> ret = new ArrayList<PointOfInterest>(Math.min(limit, matches.size()));
+		for (int i = 0; i < matches.size() && i < limit; i++) {
+			ret.add(matches.get(i).poi);
+		}
+
+		return ret;
+	}
+
+	@Override
+	public List<PoiCluster> findClusters(GeoCoordinate p1, GeoCoordinate p2, byte zoomLevel,
+			PoiCategoryFilter filter) {
+		return this.clusterGrid.findClusters(p1.getLatitude(), p1.getLongitude(), p2.getLatitude(),
+				p2.getLongitude(), zoomLevel, getCategoryIDIntervals(filter), this.cm);
+	}
+
+	@Override
+	public PoiCursor queryInRect(GeoCoordinate p1, GeoCoordinate p2, PoiCategoryFilter filter,
+			PoiCursorPosition after) {
+		return openCursor(null, p1.getLatitudeE6(), p1.getLongitudeE6(), p2.getLatitudeE6(),
+				p2.getLongitudeE6(), 0, filter, after);
+	}
+
+	@Override
+	public PoiCursor queryNearPosition(GeoCoordinate point, int maxDistance, PoiCategoryFilter filter,
+			PoiCursorPosition after) {
+		double latitudeDistance = GeoCoordinate.latitudeDistance(maxDistance);
+		int latitudeDistanceE6 = GeoCoordinate.doubleToInt(latitudeDistance);
+		int longitudeDistanceE6 = GeoCoordinate.doubleToInt(GeoCoordinate.longitudeDistance(maxDistance,
+				point.getLatitude()));
+
+		return openCursor(point, point.getLatitudeE6() - latitudeDistanceE6, point.getLongitudeE6()
+				- longitudeDistanceE6, point.getLatitudeE6() + latitudeDistanceE6, point.getLongitudeE6()
+				+ longitudeDistanceE6, latitudeDistance * latitudeDistance, filter, after);
+	}
+
+	/**
+	 * Queries the index and orders the result like the SQLite cursor queries. The POIs are views on the
+	 * index, so the result only takes a reference per POI.
+	 */
+	private PoiCursor openCursor(GeoCoordinate point, int minLatE6, int minLonE6, int maxLatE6,
+			int maxLonE6, double maxSortKey, PoiCategoryFilter filter, PoiCursorPosition after) {
+		ArrayList<PointOfInterest> pois = new ArrayList<PointOfInterest>();
+		this.index.findInRect(minLatE6, minLonE6, maxLatE6, maxLonE6, getCategoryIDIntervals(filter),
+				Integer.MAX_VALUE, pois);
+
+		// Sort keys as calculated by the SQLite cursor queries
+		double xScale = point == null ? 0 : Math.cos(Math.toRadians(point.getLatitude()));
+		double xScaleSq = xScale * xScale;
+		ArrayList<CursorEntry> entries = new ArrayList<CursorEntry>(pois.size());
+		CursorEntry entry;
+		double dLat;
+		double dLon;
+		for (PointOfInterest p : pois) {
+			if (point == null) {
+				entry = new CursorEntry(p, p.getId());
+			} else {
+				dLat = p.getLatitude() - point.getLatitude();
+				dLon = p.getLongitude() - point.getLongitude();
+				entry = new CursorEntry(p, dLat * dLat + dLon * dLon * xScaleSq);
+				if (entry.sortKey > maxSortKey) {
+					continue;
+				}
+			}
+
+			if (after == null || entry.sortKey > after.sortKey
+					|| (entry.sortKey == after.sortKey && p.getId() > after.id)) {
+				entries.add(entry);
+			}
+		}
+
+		Collections.sort(entries);
+
+		return new PackedPoiCursor(entries, point != null);
+	}
+
+	@Override
+	public PointOfInterest findPointByID(long poiID) {
+		return this.index.findByID(poiID);
+	}
+
+	/**
+	 * Not supported, the index is read-only.
+	 */
+	@Override
+	public void insertPointOfInterest(PointOfInterest poi) {
+		throw new UnsupportedOperationException("The packed POI index is read-only.");
+	}
+
+	/**
+	 * Not supported, the index is read-only.
+	 */
+	@Override
+	public void insertPointsOfInterest(Collection<PointOfInterest> pois) {
+		throw new UnsupportedOperationException("The packed POI index is read-only.");
+	}
+
+	/**
+	 * Not supported, the index is read-only.
+	 */
+	@Override
+	public void removePointOfInterest(PointOfInterest poi) {
+		throw new UnsupportedOperationException("The packed POI index is read-only.");
+	}
+
+	@Override
+	public PoiCategoryManager getCategoryManager() {
+		return this.cm;
+	}
+
+	@Override
+	public void setCategoryManager(PoiCategoryManager categoryManager) {
+		this.cm = categoryManager;
+	}
+
+	@Override
+	public void close() {
+		// The file has been closed after loading
+	}
+
+	private static int[] getCategoryIDIntervals(PoiCategoryFilter filter) {
+		return filter == null ? null : new PoiCategoryRangeQueryGenerator(filter).getCategoryIDIntervals();
+	}
+
+	/**
+	 * A POI and its sort key.
+	 */
+	private static final class CursorEntry implements Comparable<CursorEntry> {
+		final PointOfInterest poi;
+		final double sortKey;
+
+		CursorEntry(PointOfInterest poi, double sortKey) {
+			this.poi = poi;
+			this.sortKey = sortKey;
+		}
+
+		@Override
+		public int compareTo(CursorEntry other) {
+			if (this.sortKey != other.sortKey) {
+				return this.sortKey < other.sortKey ? -1 : 1;
+			}
+
+			long id = this.poi.getId();
+			long otherID = other.poi.getId();
+			return id < otherID ? -1 : (id > otherID ? 1 : 0);
+		}
+	}
+
+	/**
+	 * A word of a POI's name.
+	 */
+	private static final class NameIndexEntry implements Comparable<NameIndexEntry> {
+		final String token;
+		final long id;
+
+		NameIndexEntry(String token, long id) {
+			this.token = token;
+			this.id = id;
+		}
+
+		@Override
+		public int compareTo(NameIndexEntry other) {
+			return this.token.compareTo(other.token);
+		}
+	}
+
+	/**
+	 * A cursor over a sorted query result.
+	 */
+	private static final class PackedPoiCursor implements PoiCursor {
+		private List<CursorEntry> entries;
+		private final boolean byDistance;
+		private int position;
+
+		PackedPoiCursor(List<CursorEntry> entries, boolean byDistance) {
+			this.entries = entries;
+			this.byDistance = byDistance;
+			this.position = -1;
+		}
+
+		@Override
+		public boolean moveToNext() {
+			if (this.entries == null || this.position + 1 >= this.entries.size()) {
+				close();
+				return false;
+			}
+
+			++this.position;
+			return true;
+		}
+
+		@Override
+		public PointOfInterest getPoi() {
+			return this.entries == null || this.position < 0 ? null : this.entries.get(this.position).poi;
+		}
+
+		@Override
+		public double getDistance() {
+			if (!this.byDistance || this.entries == null || this.position < 0) {
+				return 0;
+			}
+
+			return Math.sqrt(this.entries.get(this.position).sortKey) / GeoCoordinate.latitudeDistance(1);
+		}
+
+		@Override
+		public PoiCursorPosition getPosition() {
+			if (this.entries == null || this.position < 0) {
+				return null;
+			}
+
+			CursorEntry entry = this.entries.get(this.position);
+			return new PoiCursorPosition(entry.sortKey, entry.poi.getId());
+		}
+
+		@Override
+		public void close() {
+			this.entries = null;
+		}
+	}
+}
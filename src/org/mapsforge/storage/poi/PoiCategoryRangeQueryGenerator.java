@@ -14,6 +14,8 @@
  */
 package org.mapsforge.storage.poi;
 
+import java.util.Arrays;
+
 /**
  * This class generates a prepared SQL query for retrieving POIs filtered by a given
  * {@link PoiCategoryFilter}.
@@ -29,7 +31,27 @@ public class PoiCategoryRangeQueryGenerator {
 		this.filter = filter;
 	}
 
+	/**
+	 * Gets the SQL query for this generator's filter. The category intervals are not part of the
+	 * string, they have to be bound as described in {@link #getSQLSelectString(int)}.
+	 * 
+	 * @return The SQL query.
+	 */
 	String getSQLSelectString() {
+		return getSQLSelectString(getIntervalSlots(getCategoryIDIntervals().length / 2));
+	}
+
+	/**
+	 * Gets a SQL query filtering POIs by a given number of category ID intervals. The parameters are
+	 * the bounding box (maxLat, maxLon, minLat, minLon), the start and end of each interval and the
+	 * limit. As the intervals are parameters, all filters with the same number of interval slots share
+	 * one statement.
+	 * 
+	 * @param slots
+	 *            Number of category ID intervals. If set to 0, POIs will not be filtered.
+	 * @return The SQL query.
+	 */
+	static String getSQLSelectString(int slots) {
 		StringBuilder sb = new StringBuilder(
 				"SELECT poi_index.id, poi_index.minLat, poi_index.minLon, poi_data.data, poi_data.category "
 						+ "FROM poi_index "
@@ -40,31 +62,180 @@ public class PoiCategoryRangeQueryGenerator {
 						+ "minLat >= ? AND "
 						+ "minLon >= ?");
 
-		sb.append(getSQLWhereClauseString());
+		sb.append(getSQLWhereClauseString(slots, "poi_data.category"));
+		sb.append(" LIMIT ?");
 
 		return sb.toString();
 	}
 
 	/**
-	 * Gets the WHERE clause for the SQL query that looks up POI entries.
+	 * Gets a SQL query for a {@link PoiCursor}. The query returns the columns of
+	 * {@link #getSQLSelectString(int)} and the sort key, ordered by the sort key and the POI ID. The
+	 * parameters are:
+	 * <ol>
+	 * <li>for distance queries only: the position (lat, lat, lon, lon) and the squared cosine of its
+	 * latitude,</li>
+	 * <li>the bounding box (maxLat, maxLon, minLat, minLon),</li>
+	 * <li>the start and end of each interval,</li>
+	 * <li>for distance queries only: the maximal sort key,</li>
+	 * <li>the sort key and ID of the position to continue after (for rectangle queries only the ID).</li>
+	 * </ol>
+	 * The sort key of a distance query is the squared distance in the R-tree's unit of latitude (degrees
+	 * or, in compact databases, microdegrees).
+	 * 
+	 * The R-tree does not return its rows in the order of the sort key, so SQLite reads and sorts all
+	 * matching rows within the bounding box before returning the first row. The position to continue
+	 * after only removes rows from the sorted result.
+	 * 
+	 * @param slots
+	 *            Number of category ID intervals. If set to 0, POIs will not be filtered.
+	 * @param byDistance
+	 *            true for ordering by distance, false for ordering by ID.
+	 * @return The SQL query.
+	 */
+	static String getSQLCursorString(int slots, boolean byDistance) {
+		StringBuilder sb = new StringBuilder(
+				"SELECT poi_index.id, poi_index.minLat, poi_index.minLon, poi_data.data, poi_data.category, ");
+		if (byDistance) {
+			sb.append("((poi_index.minLat - ?) * (poi_index.minLat - ?) "
+					+ "+ (poi_index.minLon - ?) * (poi_index.minLon - ?) * ?) AS sortKey ");
+		} else {
+			sb.append("poi_index.id AS sortKey ");
+		}
+		sb.append("FROM poi_index "
+				+ "JOIN poi_data ON poi_index.id = poi_data.id "
+				+ "WHERE "
+				+ "minLat <= ? AND "
+				+ "minLon <= ? AND "
+				+ "minLat >= ? AND "
+				+ "minLon >= ?");
+
+		sb.append(getSQLWhereClauseString(slots, "poi_data.category"));
+
+		if (byDistance) {
+			sb.append(" AND sortKey <= ? AND (sortKey > ? OR (sortKey = ? AND poi_index.id > ?))"
+					+ " ORDER BY sortKey, poi_index.id");
+		} else {
+			sb.append(" AND poi_index.id > ? ORDER BY poi_index.id");
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * Gets a SQL query for searching POIs by a word prefix of their name. The query returns the columns
+	 * of {@link #getSQLSelectString(int)} ordered by their distance to a reference point. Only a limited
+	 * number of matches (in the order of the name index) is sorted. The parameters are the reference
+	 * point (lat, lat, lon, lon) and the squared cosine of its latitude, the prefix and its upper bound,
+	 * the bounding box (maxLat, maxLon, minLat, minLon), the start and end of each interval and the
+	 * maximum number of matches.
+	 * 
+	 * @param slots
+	 *            Number of category ID intervals. If set to 0, POIs will not be filtered.
+	 * @return The SQL query.
+	 */
+	static String getSQLNameSearchString(int slots) {
+		// The join order is fixed, so the name index is used for the lookup and the R-tree only for
+		// fetching the matches' coordinates. The subquery stops after the given number of matches, so
+		// the sort never has to hold all POIs matching a short prefix.
+		StringBuilder sb = new StringBuilder(
+				"SELECT poi_index.id, poi_index.minLat, poi_index.minLon, poi_data.data, poi_data.category, "
+						+ "((poi_index.minLat - ?) * (poi_index.minLat - ?) "
+						+ "+ (poi_index.minLon - ?) * (poi_index.minLon - ?) * ?) AS sortKey "
+						+ "FROM (SELECT DISTINCT poi_name_index.id AS id "
+						+ "FROM poi_name_index "
+						+ "CROSS JOIN poi_index "
+						+ "CROSS JOIN poi_data "
+						+ "WHERE "
+						+ "poi_name_index.token >= ? AND "
+						+ "poi_name_index.token < ? AND "
+						+ "poi_index.id = poi_name_index.id AND "
+						+ "poi_data.id = poi_name_index.id AND "
+						+ "minLat <= ? AND "
+						+ "minLon <= ? AND "
+						+ "minLat >= ? AND "
+						+ "minLon >= ?");
+
+		sb.append(getSQLWhereClauseString(slots, "poi_data.category"));
+		sb.append(" LIMIT ?) AS candidates "
+				+ "CROSS JOIN poi_index "
+				+ "CROSS JOIN poi_data "
+				+ "WHERE poi_index.id = candidates.id AND poi_data.id = candidates.id "
+				+ "ORDER BY sortKey");
+
+		return sb.toString();
+	}
+
+	/**
+	 * Gets a SQL query for the rows of the cluster grid (see {@link PoiClusterGrid}) within a range of
+	 * cells. The query returns <code>tileX, tileY, category, count, sumLat, sumLon</code> ordered by
+	 * the cell. The parameters are the grid level, the cell range (minX, maxX, minY, maxY) and the
+	 * start and end of each interval.
 	 * 
-	 * @return A string like <code>WHERE id BETWEEN 2 AND 5 OR BETWEEN 10 AND 12</code>.
+	 * @param slots
+	 *            Number of category ID intervals. If set to 0, the rows will not be filtered.
+	 * @return The SQL query.
 	 */
-	private String getSQLWhereClauseString() {
-		int[] intervals = getCategoryIDIntervals();
+	static String getSQLClusterString(int slots) {
+		StringBuilder sb = new StringBuilder("SELECT tileX, tileY, category, count, sumLat, sumLon "
+				+ "FROM poi_clusters "
+				+ "WHERE "
+				+ "zoom = ? AND "
+				+ "tileX >= ? AND "
+				+ "tileX <= ? AND "
+				+ "tileY >= ? AND "
+				+ "tileY <= ?");
 
-		if (intervals.length == 0) {
+		sb.append(getSQLWhereClauseString(slots, "category"));
+		sb.append(" ORDER BY tileX, tileY");
+
+		return sb.toString();
+	}
+
+	/**
+	 * Rounds the number of intervals up to the next power of two, so that only a handful of different
+	 * statements is needed. Unused slots are filled by repeating the last interval.
+	 * 
+	 * @param intervals
+	 *            The number of category ID intervals.
+	 * @return The number of interval slots of the statement to be used.
+	 */
+	static int getIntervalSlots(int intervals) {
+		if (intervals == 0) {
+			return 0;
+		}
+
+		int ret = 1;
+		while (ret < intervals) {
+			ret <<= 1;
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Gets the WHERE clause for the SQL query that looks up POI entries.
+	 * 
+	 * @param slots
+	 *            Number of category ID intervals.
+	 * @param column
+	 *            The category column.
+	 * @return A string like
+	 *         <code>AND (poi_data.category BETWEEN ? AND ? OR poi_data.category BETWEEN ? AND ?)</code>.
+	 */
+	private static String getSQLWhereClauseString(int slots, String column) {
+		if (slots == 0) {
 			return "";
 		}
 
 		StringBuilder sb = new StringBuilder();
 		sb.append(" AND (");
 		// foreach interval
-		for (int i = 0; i < intervals.length; i += 2) {
-			sb.append("id BETWEEN ").append(intervals[i]).append(" AND ").append(intervals[i + 1]);
+		for (int i = 0; i < slots; i++) {
+			sb.append(column).append(" BETWEEN ? AND ?");
 
 			// append OR if it is not the last interval
-			if (i != intervals.length - 2) {
+			if (i != slots - 1) {
 				sb.append(" OR ");
 			}
 		}
@@ -74,46 +245,64 @@ public class PoiCategoryRangeQueryGenerator {
 		return sb.toString();
 	}
 
-	private int[] getCategoryIDIntervals() {
+	/**
+	 * Gets the filter's canonical category ID intervals: sorted by their start and with overlapping or
+	 * adjacent intervals merged. Equivalent filters therefore have the same intervals.
+	 * 
+	 * @return The intervals as <code>[start_1, end_1, ..., start_n, end_n]</code>.
+	 */
+	int[] getCategoryIDIntervals() {
 		int[] ret = new int[this.filter.getAcceptedCategories().size() * 2];
 
 		int i = 0;
-		PoiCategory[] siblings = null;
-
 		for (PoiCategory c : this.filter.getAcceptedCategories()) {
-			siblings = getSiblings(c);
-			ret[i] = siblings[0].getID();
-			ret[i + 1] = siblings[1].getID();
+			ret[i] = getMinimalID(c);
+			ret[i + 1] = c.getID();
 			i += 2;
 		}
 
-		return ret;
+		// Sort by start (insertion sort, filters have only a few categories)
+		int start;
+		int end;
+		int j;
+		for (i = 2; i < ret.length; i += 2) {
+			start = ret[i];
+			end = ret[i + 1];
+			for (j = i - 2; j >= 0 && ret[j] > start; j -= 2) {
+				ret[j + 2] = ret[j];
+				ret[j + 3] = ret[j + 1];
+			}
+			ret[j + 2] = start;
+			ret[j + 3] = end;
+		}
+
+		// Merge
+		int size = 0;
+		for (i = 0; i < ret.length; i += 2) {
+			if (size > 0 && ret[i] <= ret[size - 1] + 1) {
+				ret[size - 1] = Math.max(ret[size - 1], ret[i + 1]);
+			} else {
+				ret[size] = ret[i];
+				ret[size + 1] = ret[i + 1];
+				size += 2;
+			}
+		}
+
+		return Arrays.copyOf(ret, size);
 	}
 
 	/**
+	 * Category IDs are assigned in post-order, so a category and all its descendants form the ID
+	 * interval [smallest descendant ID, category ID].
 	 * 
-	 * @param c1
-	 *            Category whose siblings should be returned.
-	 * @return Array: [left sibling, right sibling]
+	 * @param category
+	 *            The category.
+	 * @return The smallest ID of the category and all its descendants.
 	 */
-	private PoiCategory[] getSiblings(PoiCategory c1) {
-		PoiCategory ret[] = new PoiCategory[2];
-		ret[0] = c1;
-		ret[1] = c1;
-
-		if (c1.getParent() == null) {
-			return ret;
-		}
-
-		for (PoiCategory c : c1.getParent().getChildren()) {
-
-			if (c.getID() < c1.getID()) {
-				ret[0] = c;
-			}
-
-			if (c.getID() > c1.getID()) {
-				ret[1] = c;
-			}
+	private static int getMinimalID(PoiCategory category) {
+		int ret = category.getID();
+		for (PoiCategory c : category.getChildren()) {
+			ret = Math.min(ret, getMinimalID(c));
 		}
 
 		return ret;
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.poi;
+
+import org.mapsforge.core.GeoCoordinate;
+
+/**
+ * An aggregation of all POIs within a grid cell, used for drawing POIs at low zoom levels.
+ * 
+ * @author Karsten Groll
+ * 
+ */
+public class PoiCluster {
+	private final int count;
+	private final double latitude;
+	private final double longitude;
+	private final PoiCategory dominantCategory;
+
+	/**
+	 * @param count
+	 *            Number of POIs in this cluster.
+	 * @param latitude
+	 *            Latitude of the POIs' centroid.
+	 * @param longitude
+	 *            Longitude of the POIs' centroid.
+	 * @param dominantCategory
+	 *            The category most POIs of this cluster belong to.
+	 */
+	public PoiCluster(int count, double latitude, double longitude, PoiCategory dominantCategory) {
+		this.count = count;
+		this.latitude = latitude;
+		this.longitude = longitude;
+		this.dominantCategory = dominantCategory;
+	}
+
+	/**
+	 * 
+	 * @return Number of POIs in this cluster.
+	 */
+	public int getCount() {
+		return this.count;
+	}
+
+	/**
+	 * 
+	 * @return Latitude of the POIs' centroid.
+	 */
+	public double getLatitude() {
+		return this.latitude;
+	}
+
+	/**
+	 * 
+	 * @return Longitude of the POIs' centroid.
+	 */
+	public double getLongitude() {
+		return this.longitude;
+	}
+
+	/**
+	 * 
+	 * @return The POIs' centroid.
+	 */
+	public GeoCoordinate getCenter() {
+		return new GeoCoordinate(this.latitude, this.longitude);
+	}
+
+	/**
+	 * 
+	 * @return The category most POIs of this cluster belong to.
+	 */
+	public PoiCategory getDominantCategory() {
+		return this.dominantCategory;
+	}
+
+	@Override
+	public String toString() {
+		return "PoiCluster: (" + this.latitude + ',' + this.longitude + ") " + this.count + ' '
+				+ (this.dominantCategory == null ? null : this.dominantCategory.getTitle());
+	}
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.poi;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.mapsforge.core.MercatorProjection;
+
+/**
+ * A multi-resolution grid of POI counts for drawing clusters at low zoom levels. Each grid level
+ * consists of the tiles of a zoom level. For each tile and category the grid stores the number of POIs
+ * and the sum of their coordinates, so that clusters are computed from a number of grid cells that only
+ * depends on the size of the queried rectangle and not on the number of POIs.
+ * 
+ * The grid is stored in the table <code>poi_clusters</code>. This class provides the statements for
+ * writing it and an in-memory implementation.
+ * 
+ * @author Karsten Groll
+ * 
+ */
+public final class PoiClusterGrid {
+	/** Zoom level of the finest grid level. */
+	public static final byte MAX_GRID_ZOOM = 14;
+
+	/** Clusters for zoom level z are cells of grid level z + GRID_ZOOM_OFFSET (64 x 64 pixels). */
+	public static final byte GRID_ZOOM_OFFSET = 2;
+
+	/** Creates the grid table. */
+	public static final String CREATE_TABLE_STATEMENT = "CREATE TABLE poi_clusters (zoom INTEGER, tileX INTEGER, tileY INTEGER, category INTEGER, count INTEGER, sumLat REAL, sumLon REAL, PRIMARY KEY (zoom, tileX, tileY, category));";
+
+	/** Creates the temporary table holding the finest grid cell of each POI. */
+	public static final String CREATE_CELL_TABLE_STATEMENT = "CREATE TEMP TABLE poi_cells (tileX INTEGER, tileY INTEGER, category INTEGER, lat REAL, lon REAL);";
+
+	/**
+	 * Inserts a POI into the temporary cell table. The parameters are the cell as returned by
+	 * {@link #getCellX(double)} and {@link #getCellY(double)}, the category ID and the coordinates.
+	 */
+	public static final String INSERT_CELL_STATEMENT = "INSERT INTO poi_cells VALUES (?, ?, ?, ?, ?);";
+
+	// Grid levels in memory, rows sorted by cell (x << 32 | y) and category
+	private final long[][] cells;
+	private final int[][] categoryIDs;
+	private final int[][] counts;
+	private final double[][] latitudeSums;
+	private final double[][] longitudeSums;
+
+	/**
+	 * Builds the grid in memory.
+	 * 
+	 * @param pois
+	 *            All POIs.
+	 */
+	PoiClusterGrid(Collection<PointOfInterest> pois) {
+		this.cells = new long[MAX_GRID_ZOOM + 1][];
+		this.categoryIDs = new int[MAX_GRID_ZOOM + 1][];
+		this.counts = new int[MAX_GRID_ZOOM + 1][];
+		this.latitudeSums = new double[MAX_GRID_ZOOM + 1][];
+		this.longitudeSums = new double[MAX_GRID_ZOOM + 1][];
+
+		ArrayList<GridRow> rows = new ArrayList<GridRow>(pois.size());
+		for (PointOfInterest p : pois) {
+			rows.add(new GridRow(getCellX(p.getLongitude()) << 32 | getCellY(p.getLatitude()), p.getCategory()
+					.getID(), 1, p.getLatitude(), p.getLongitude()));
+		}
+
+		long x;
+		long y;
+		for (int zoom = MAX_GRID_ZOOM; zoom >= 0; zoom--) {
+			if (zoom < MAX_GRID_ZOOM) {
+				// Parent cells
+				for (GridRow row : rows) {
+					x = row.cell >>> 32;
+					y = row.cell & 0xffffffffL;
+					row.cell = (x >>> 1) << 32 | (y >>> 1);
+				}
+			}
+
+			rows = merge(rows);
+
+			this.cells[zoom] = new long[rows.size()];
+			this.categoryIDs[zoom] = new int[rows.size()];
+			this.counts[zoom] = new int[rows.size()];
+			this.latitudeSums[zoom] = new double[rows.size()];
+			this.longitudeSums[zoom] = new double[rows.size()];
+			for (int i = 0; i < rows.size(); i++) {
+				this.cells[zoom][i] = rows.get(i).cell;
+				this.categoryIDs[zoom][i] = rows.get(i).categoryID;
+				this.counts[zoom][i] = rows.get(i).count;
+				this.latitudeSums[zoom][i] = rows.get(i).latitudeSum;
+				this.longitudeSums[zoom][i] = rows.get(i).longitudeSum;
+			}
+		}
+	}
+
+	/**
+	 * Finds the clusters within a rectangle.
+	 * 
+	 * @param minLat
+	 *            Minimal latitude.
+	 * @param minLon
+	 *            Minimal longitude.
+	 * @param maxLat
+	 *            Maximal latitude.
+	 * @param maxLon
+	 *            Maximal longitude.
+	 * @param zoomLevel
+	 *            The map's zoom level.
+	 * @param categoryIntervals
+	 *            Accepted category IDs as sorted intervals <code>[start_1, end_1, ...]</code> or null
+	 *            for accepting all categories.
+	 * @param cm
+	 *            Category manager for resolving the dominant categories.
+	 * @return One cluster per non-empty grid cell.
+	 */
+	List<PoiCluster> findClusters(double minLat, double minLon, double maxLat, double maxLon, byte zoomLevel,
+			int[] categoryIntervals, PoiCategoryManager cm) {
+		byte zoom = getGridZoom(zoomLevel);
+		long[] levelCells = this.cells[zoom];
+		ClusterBuilder builder = new ClusterBuilder(cm);
+
+		long minY = MercatorProjection.latitudeToTileY(maxLat, zoom);
+		long maxY = MercatorProjection.latitudeToTileY(minLat, zoom);
+		long maxX = MercatorProjection.longitudeToTileX(maxLon, zoom);
+		int low;
+		int high;
+		int middle;
+		long first;
+		long last;
+		for (long x = MercatorProjection.longitudeToTileX(minLon, zoom); x <= maxX; x++) {
+			first = x << 32 | minY;
+			last = x << 32 | maxY;
+
+			// First row of the column within the rectangle
+			low = 0;
+			high = levelCells.length;
+			while (low < high) {
+				middle = (low + high) >>> 1;
+				if (levelCells[middle] < first) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+
+			for (int i = low; i < levelCells.length && levelCells[i] <= last; i++) {
+				if (PackedPoiIndex.isAccepted(this.categoryIDs[zoom][i], categoryIntervals)) {
+					builder.add(levelCells[i] >>> 32, levelCells[i] & 0xffffffffL, this.categoryIDs[zoom][i],
+							this.counts[zoom][i], this.latitudeSums[zoom][i], this.longitudeSums[zoom][i]);
+				}
+			}
+		}
+
+		return builder.getClusters();
+	}
+
+	/**
+	 * Gets the statements computing the grid from the temporary cell table. They have to be executed
+	 * after all POIs have been inserted by {@link #INSERT_CELL_STATEMENT}. The last statement drops the
+	 * cell table.
+	 * 
+	 * @return The statements in their order of execution.
+	 */
+	public static String[] getAggregationStatements() {
+		String[] ret = new String[MAX_GRID_ZOOM + 2];
+
+		ret[0] = "INSERT INTO poi_clusters SELECT " + MAX_GRID_ZOOM
+				+ ", tileX, tileY, category, count(*), sum(lat), sum(lon) "
+				+ "FROM poi_cells GROUP BY tileX, tileY, category;";
+
+		// Each level is aggregated from the level below
+		for (int zoom = MAX_GRID_ZOOM - 1; zoom >= 0; zoom--) {
+			ret[MAX_GRID_ZOOM - zoom] = "INSERT INTO poi_clusters SELECT " + zoom
+					+ ", tileX / 2, tileY / 2, category, sum(count), sum(sumLat), sum(sumLon) "
+					+ "FROM poi_clusters WHERE zoom = " + (zoom + 1)
+					+ " GROUP BY tileX / 2, tileY / 2, category;";
+		}
+
+		ret[MAX_GRID_ZOOM + 1] = "DROP TABLE poi_cells;";
+
+		return ret;
+	}
+
+	/**
+	 * @param zoomLevel
+	 *            The map's zoom level.
+	 * @return The grid level for clusters at the given zoom level.
+	 */
+	public static byte getGridZoom(byte zoomLevel) {
+		return (byte) Math.max(0, Math.min(zoomLevel + GRID_ZOOM_OFFSET, MAX_GRID_ZOOM));
+	}
+
+	/**
+	 * @param longitude
+	 *            A POI's longitude.
+	 * @return The X coordinate of the POI's cell at the finest grid level.
+	 */
+	public static long getCellX(double longitude) {
+		return MercatorProjection.longitudeToTileX(longitude, MAX_GRID_ZOOM);
+	}
+
+	/**
+	 * @param latitude
+	 *            A POI's latitude.
+	 * @return The Y coordinate of the POI's cell at the finest grid level.
+	 */
+	public static long getCellY(double latitude) {
+		return MercatorProjection.latitudeToTileY(latitude, MAX_GRID_ZOOM);
+	}
+
+	/**
+	 * Sorts rows by cell and category and merges rows of the same cell and category.
+	 */
+	private static ArrayList<GridRow> merge(ArrayList<GridRow> rows) {
+		Collections.sort(rows);
+
+		ArrayList<GridRow> ret = new ArrayList<GridRow>();
+		GridRow last = null;
+		for (GridRow row : rows) {
+			if (last != null && last.compareTo(row) == 0) {
+				last.count += row.count;
+				last.latitudeSum += row.latitudeSum;
+				last.longitudeSum += row.longitudeSum;
+			} else {
+				ret.add(row);
+				last = row;
+			}
+		}
+
+		return ret;
+	}
+
+	/**
+	 * The POIs of a category within a grid cell.
+	 */
+	private static final class GridRow implements Comparable<GridRow> {
+		long cell;
+		final int categoryID;
+		int count;
+		double latitudeSum;
+		double longitudeSum;
+
+		GridRow(long cell, int categoryID, int count, double latitudeSum, double longitudeSum) {
+			this.cell = cell;
+			this.categoryID = categoryID;
+			this.count = count;
+			this.latitudeSum = latitudeSum;
+			this.longitudeSum = longitudeSum;
+		}
+
+		@Override
+		public int compareTo(GridRow other) {
+			if (this.cell != other.cell) {
+				return this.cell < other.cell ? -1 : 1;
+			}
+
+			return this.categoryID < other.categoryID ? -1 : (this.categoryID > other.categoryID ? 1 : 0);
+		}
+	}
+
+	/**
+	 * Combines the grid rows of a cell into a cluster. Rows have to be added ordered by their cell.
+	 */
+	static final class ClusterBuilder {
+		private final PoiCategoryManager cm;
+		private final ArrayList<PoiCluster> clusters;
+		private long cellX;
+		private long cellY;
+		private int count;
+		private double latitudeSum;
+		private double longitudeSum;
+		private int dominantCategoryID;
+		private int dominantCount;
+
+		ClusterBuilder(PoiCategoryManager cm) {
+			this.cm = cm;
+			this.clusters = new ArrayList<PoiCluster>();
+			this.cellX = -1;
+			this.cellY = -1;
+		}
+
+		/**
+		 * Adds a grid row.
+		 * 
+		 * @param x
+		 *            The cell's X coordinate.
+		 * @param y
+		 *            The cell's Y coordinate.
+		 * @param categoryID
+		 *            The row's category.
+		 * @param rowCount
+		 *            Number of POIs.
+		 * @param rowLatitudeSum
+		 *            Sum of the POIs' latitudes.
+		 * @param rowLongitudeSum
+		 *            Sum of the POIs' longitudes.
+		 */
+		void add(long x, long y, int categoryID, int rowCount, double rowLatitudeSum, double rowLongitudeSum) {
+			if (x != this.cellX || y != this.cellY) {
+				flush();
+				this.cellX = x;
+				this.cellY = y;
+			}
+
+			this.count += rowCount;
+			this.latitudeSum += rowLatitudeSum;
+			this.longitudeSum += rowLongitudeSum;
+			if (rowCount > this.dominantCount) {
+				this.dominantCount = rowCount;
+				this.dominantCategoryID = categoryID;
+			}
+		}
+
+		/**
+		 * 
+		 * @return The clusters of all cells added.
+		 */
+		List<PoiCluster> getClusters() {
+			flush();
+			return this.clusters;
+		}
+
+		private void flush() {
+			if (this.count <= 0) {
+				return;
+			}
+
+			PoiCategory category = null;
+			try {
+				category = this.cm.getPoiCategoryByID(this.dominantCategoryID);
+			} catch (UnknownPoiCategoryException e) {
+				e.printStackTrace();
+			}
+
+			this.clusters.add(new PoiCluster(this.count, this.latitudeSum / this.count, this.longitudeSum
+					/ this.count, category));
+
+			this.count = 0;
+			this.latitudeSum = 0;
+			this.longitudeSum = 0;
+			this.dominantCount = 0;
+		}
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.poi;
+
+/**
+ * Returns the result of a POI query row by row, so that only the current POI object is held in memory.
+ * A cursor is positioned before the first POI when it is returned and must be closed when it is no
+ * longer needed, as it keeps resources of the underlying storage.
+ * 
+ * Results are ordered by a sort key (the POI ID for rectangle queries, the distance for position
+ * queries) and the POI ID. The next page of a query is fetched by running the query again with the
+ * {@link #getPosition() position} of the last POI read.
+ * 
+ * Cursors do not make queries cheaper: the storage may have to read and sort all POIs matching the
+ * query before the first one is returned (the SQLite implementation does), and it does so again for
+ * each page, skipping the POIs of the previous pages after sorting. Limit the rectangle or the
+ * distance accordingly.
+ * 
+ * @author Karsten Groll
+ * 
+ */
+public interface PoiCursor {
+
+	/**
+	 * Moves the cursor to the next POI.
+	 * 
+	 * @return true if there is a next POI, false if the end of the result has been reached.
+	 */
+	boolean moveToNext();
+
+	/**
+	 * 
+	 * @return The current POI.
+	 */
+	PointOfInterest getPoi();
+
+	/**
+	 * 
+	 * @return The current POI's distance in meters to the query position or 0 for rectangle queries.
+	 */
+	double getDistance();
+
+	/**
+	 * 
+	 * @return The current POI's position within the result, which can be passed to a query for
+	 *         continuing after this POI.
+	 */
+	PoiCursorPosition getPosition();
+
+	/**
+	 * Releases the cursor's resources. Calling this method more than once has no effect.
+	 */
+	void close();
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.poi;
+
+/**
+ * The position of a POI within the ordered result of a {@link PoiCursor}. A position is only valid for
+ * queries with the same parameters on the same {@link PoiPersistenceManager}.
+ * 
+ * @author Karsten Groll
+ * 
+ */
+public final class PoiCursorPosition {
+	final double sortKey;
+	final long id;
+
+	PoiCursorPosition(double sortKey, long id) {
+		this.sortKey = sortKey;
+		this.id = id;
+	}
+
+	/**
+	 * 
+	 * @return The ID of the POI at this position.
+	 */
+	public long getId() {
+		return this.id;
+	}
+
+	@Override
+	public String toString() {
+		return "PoiCursorPosition: " + this.sortKey + ' ' + this.id;
+	}
+}
@@ -20,15 +20,51 @@ public class PoiImpl implements PointOfInterest {
 	private final long id;
 	private final double latitude;
 	private final double longitude;
-	private final String name;
 	private final PoiCategory category;
 
+	// Encoded tags (null if the POI was created from its name) and their dictionary
+	private final byte[] tagData;
+	private final PoiTagDictionary dictionary;
+
+	// Decoded on first access (decoding twice in concurrent calls is harmless)
+	private volatile String name;
+
 	public PoiImpl(long id, double latitude, double longitude, String name, PoiCategory category) {
 		this.id = id;
 		this.latitude = latitude;
 		this.longitude = longitude;
 		this.name = name;
 		this.category = category;
+		this.tagData = null;
+		this.dictionary = null;
+	}
+
+	/**
+	 * Creates a POI whose tags are decoded when they are accessed, so that POIs that are only drawn or
+	 * counted never decode their tags.
+	 * 
+	 * @param id
+	 *            The POI's ID.
+	 * @param latitude
+	 *            The POI's latitude.
+	 * @param longitude
+	 *            The POI's longitude.
+	 * @param tagData
+	 *            The POI's tags as encoded by {@link PoiTagDictionary#encode(String[])}. May be null.
+	 * @param dictionary
+	 *            The dictionary the tags have been encoded with.
+	 * @param category
+	 *            The POI's category.
+	 */
+	public PoiImpl(long id, double latitude, double longitude, byte[] tagData, PoiTagDictionary dictionary,
+			PoiCategory category) {
+		this.id = id;
+		this.latitude = latitude;
+		this.longitude = longitude;
+		this.name = null;
+		this.category = category;
+		this.tagData = tagData;
+		this.dictionary = dictionary;
 	}
 
 	@Override
@@ -48,13 +84,31 @@ public class PoiImpl implements PointOfInterest {
 
 	@Override
 	public String getName() {
+		if (this.name == null && this.tagData != null) {
+			this.name = this.dictionary.decode(this.tagData, PoiTagDictionary.NAME_KEY);
+		}
+
 		return this.name;
 	}
 
 	@Override
 	public String getUrl() {
-		// TODO Auto-generated method stub
-		return null;
+		return getTag("website");
+	}
+
+	/**
+	 * 
+	 * @param key
+	 *            The tag's key.
+	 * @return The value of the POI's tag or null if the POI does not have this tag. POIs created from
+	 *         their name only have the name tag.
+	 */
+	public String getTag(String key) {
+		if (this.tagData == null) {
+			return PoiTagDictionary.NAME_KEY.equals(key) ? this.name : null;
+		}
+
+		return this.dictionary.decode(this.tagData, key);
 	}
 
 	@Override
@@ -71,7 +125,7 @@ public class PoiImpl implements PointOfInterest {
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
 		sb.append("POI: (").append(this.latitude).append(',').append(this.longitude);
-		sb.append(") ").append(this.name).append(' ').append(this.category.getID());
+		sb.append(") ").append(getName()).append(' ').append(this.category.getID());
 		return sb.toString();
 	}
 
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.poi;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Normalizes POI names for the name index. Names are split into words, converted to lower case and
+ * stripped of diacritical marks, so that "Café Möhring" is found by the prefixes "cafe", "moh" and
+ * "Möh".
+ * 
+ * @author Karsten Groll
+ * 
+ */
+public final class PoiNameNormalizer {
+	private static final Pattern DIACRITICAL_MARKS = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
+	private static final Pattern WORD_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+	private PoiNameNormalizer() {
+		// Static methods only
+	}
+
+	/**
+	 * Splits a name or a search string into normalized words.
+	 * 
+	 * @param name
+	 *            The name. May be null.
+	 * @return The name's distinct words in their order of appearance (empty if the name has no words).
+	 */
+	public static String[] getTokens(String name) {
+		if (name == null) {
+			return new String[0];
+		}
+
+		String normalized = DIACRITICAL_MARKS.matcher(Normalizer.normalize(name, Normalizer.Form.NFD))
+				.replaceAll("").toLowerCase(Locale.ENGLISH);
+
+		ArrayList<String> ret = new ArrayList<String>();
+		for (String token : WORD_SEPARATOR.split(normalized)) {
+			if (token.length() > 0 && !ret.contains(token)) {
+				ret.add(token);
+			}
+		}
+
+		return ret.toArray(new String[ret.size()]);
+	}
+
+	/**
+	 * Gets the smallest string greater than all strings starting with a given prefix. SQLite compares
+	 * UTF-8 strings by their code points, so <code>token &gt;= prefix AND token &lt; upperBound</code>
+	 * is a prefix query that can use an index.
+	 * 
+	 * @param prefix
+	 *            A non-empty prefix.
+	 * @return The upper bound.
+	 */
+	static String getPrefixUpperBound(String prefix) {
+		int last = prefix.length() - 1;
+		return prefix.substring(0, last) + (char) (prefix.charAt(last) + 1);
+	}
+
+	/**
+	 * Checks whether a name matches a search string. Every word of the search string must be the prefix
+	 * of a word of the name.
+	 * 
+	 * @param nameTokens
+	 *            The name's words as returned by {@link #getTokens(String)}.
+	 * @param queryTokens
+	 *            The search string's words as returned by {@link #getTokens(String)}.
+	 * @return true if the name matches.
+	 */
+	static boolean matches(String[] nameTokens, String[] queryTokens) {
+		boolean found;
+		for (String query : queryTokens) {
+			found = false;
+			for (String token : nameTokens) {
+				if (token.startsWith(query)) {
+					found = true;
+					break;
+				}
+			}
+
+			if (!found) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * 
+	 * @param queryTokens
+	 *            The search string's words.
+	 * @return The longest word, which is used for the index lookup as it matches the fewest names.
+	 */
+	static String getLookupToken(String[] queryTokens) {
+		String ret = queryTokens[0];
+		for (String token : queryTokens) {
+			if (token.length() > ret.length()) {
+				ret = token;
+			}
+		}
+
+		return ret;
+	}
+}
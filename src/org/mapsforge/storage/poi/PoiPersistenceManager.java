@@ -15,6 +15,7 @@
 package org.mapsforge.storage.poi;
 
 import java.util.Collection;
+import java.util.List;
 
 import org.mapsforge.core.GeoCoordinate;
 
@@ -30,6 +31,11 @@ import org.mapsforge.core.GeoCoordinate;
  * 
  */
 public interface PoiPersistenceManager {
+	/**
+	 * Maximum number of POIs matching a search string that {@link #searchByName} ranks by their distance
+	 * (at least the requested number of POIs).
+	 */
+	public static final int NAME_SEARCH_CANDIDATES = 1000;
 
 	/**
 	 * Inserts a single {@link PointOfInterest} into storage.
@@ -80,6 +86,27 @@ public interface PoiPersistenceManager {
 	public Collection<PointOfInterest> findNearPosition(GeoCoordinate point,
 			int distance, String categoryName, int limit);
 
+	/**
+	 * Finds the k POIs nearest to a given position. The search square around the position is doubled
+	 * (or, in dense areas, halved) until it just contains k POIs, and the final search only covers the
+	 * distance of the farthest of these POIs, so the number of rows read depends on k rather than on
+	 * the number of POIs within the maximal distance.
+	 * 
+	 * @param point
+	 *            {@link GeoCoordinate} center of the search.
+	 * @param k
+	 *            max number of {@link PointOfInterest} to be returned.
+	 * @param maxDistance
+	 *            Maximal distance in meters or 0 for an unlimited distance.
+	 * @param filter
+	 *            Only POIs accepted by this filter will be returned. If set to null, POIs will not be
+	 *            filtered.
+	 * @return Up to k {@link PointOfInterest} ordered by their spherical distance to the position
+	 *         (nearest first).
+	 */
+	public List<PointOfInterest> findNearest(GeoCoordinate point, int k, int maxDistance,
+			PoiCategoryFilter filter);
+
 	/**
 	 * Find all {@link PointOfInterest} of the given {@link PoiCategory} in a rectangle specified by the
 	 * two given {@link GeoCoordinate}s.
@@ -99,6 +126,26 @@ public interface PoiPersistenceManager {
 	public Collection<PointOfInterest> findInRect(GeoCoordinate p1,
 			GeoCoordinate p2, String categoryName, int limit);
 
+	/**
+	 * Same as {@link #findInRect(GeoCoordinate, GeoCoordinate, String, int)}, but adds the POIs to a
+	 * container given by the caller, which may be reused between queries.
+	 * 
+	 * @param p1
+	 *            {@link GeoCoordinate} specifying one corner of the rectangle. (minLat, minLon)
+	 * @param p2
+	 *            {@link GeoCoordinate} specifying one corner of the rectangle. (maxLat, maxLon)
+	 * @param categoryName
+	 *            unique title of {@link PoiCategory} the returned {@link PointOfInterest} should belong
+	 *            to.
+	 * @param limit
+	 *            max number of {@link PointOfInterest} to be returned.
+	 * @param container
+	 *            The container the POIs are added to. It will not be cleared.
+	 * @return The given container.
+	 */
+	public Collection<PointOfInterest> findInRect(GeoCoordinate p1,
+			GeoCoordinate p2, String categoryName, int limit, Collection<PointOfInterest> container);
+
 	/**
 	 * Find all {@link PointOfInterest} of the given {@link PoiCategory} in a rectangle specified by the
 	 * two given {@link GeoCoordinate}s. The only POIs that are allowed by the {@link PoiCategoryFilter}
@@ -119,6 +166,112 @@ public interface PoiPersistenceManager {
 	public Collection<PointOfInterest> findInRectWithFilter(GeoCoordinate p1,
 			GeoCoordinate p2, PoiCategoryFilter filter, int limit);
 
+	/**
+	 * Same as {@link #findInRectWithFilter(GeoCoordinate, GeoCoordinate, PoiCategoryFilter, int)}, but
+	 * adds the POIs to a container given by the caller, which may be reused between queries.
+	 * 
+	 * @param p1
+	 *            {@link GeoCoordinate} specifying one corner of the rectangle. (minLat, minLon)
+	 * @param p2
+	 *            {@link GeoCoordinate} specifying one corner of the rectangle. (maxLat, maxLon)
+	 * @param filter
+	 *            POI category filter object that helps determining whether a POI should be added to the
+	 *            set or not.
+	 * @param limit
+	 *            max number of {@link PointOfInterest} to be returned.
+	 * @param container
+	 *            The container the POIs are added to. It will not be cleared.
+	 * @return The given container.
+	 */
+	public Collection<PointOfInterest> findInRectWithFilter(GeoCoordinate p1,
+			GeoCoordinate p2, PoiCategoryFilter filter, int limit, Collection<PointOfInterest> container);
+
+	/**
+	 * Searches {@link PointOfInterest} in a rectangle by their name. Names are compared word by word,
+	 * ignoring case and diacritical marks, and every word of the search string has to be the prefix of
+	 * a word of the name (for example "hauptb berl" finds "Berlin Hauptbahnhof").
+	 * 
+	 * Only the first {@link #NAME_SEARCH_CANDIDATES} matching POIs within the rectangle (in the order
+	 * of the name index) are ranked, so the cost does not depend on how many POIs match. For short
+	 * search strings matching more POIs, the result may miss nearer POIs.
+	 * 
+	 * @param prefix
+	 *            The search string as typed by the user.
+	 * @param p1
+	 *            {@link GeoCoordinate} specifying one corner of the rectangle. (minLat, minLon)
+	 * @param p2
+	 *            {@link GeoCoordinate} specifying one corner of the rectangle. (maxLat, maxLon)
+	 * @param referencePoint
+	 *            The POIs are ordered by their distance to this point, e.g. the user's position. If set
+	 *            to null, the rectangle's center is used.
+	 * @param filter
+	 *            Only POIs accepted by this filter will be returned. If set to null, POIs will not be
+	 *            filtered.
+	 * @param limit
+	 *            max number of {@link PointOfInterest} to be returned.
+	 * @return Up to limit {@link PointOfInterest} ordered by their distance to the reference point
+	 *         (nearest first).
+	 */
+	public List<PointOfInterest> searchByName(String prefix, GeoCoordinate p1, GeoCoordinate p2,
+			GeoCoordinate referencePoint, PoiCategoryFilter filter, int limit);
+
+	/**
+	 * Finds clusters of {@link PointOfInterest} for drawing them at low zoom levels. The clusters are
+	 * read from a precomputed grid, so the number of clusters and the query time depend on the size of
+	 * the rectangle, not on the number of POIs within it.
+	 * 
+	 * @param p1
+	 *            {@link GeoCoordinate} specifying one corner of the rectangle. (minLat, minLon)
+	 * @param p2
+	 *            {@link GeoCoordinate} specifying one corner of the rectangle. (maxLat, maxLon)
+	 * @param zoomLevel
+	 *            The map's zoom level. Each cluster covers 64 x 64 pixels at zoom levels up to
+	 *            {@link PoiClusterGrid#MAX_GRID_ZOOM} - {@link PoiClusterGrid#GRID_ZOOM_OFFSET}.
+	 * @param filter
+	 *            Only POIs accepted by this filter will be counted. If set to null, POIs will not be
+	 *            filtered.
+	 * @return One {@link PoiCluster} per grid cell containing POIs.
+	 */
+	public List<PoiCluster> findClusters(GeoCoordinate p1, GeoCoordinate p2, byte zoomLevel,
+			PoiCategoryFilter filter);
+
+	/**
+	 * Streams all {@link PointOfInterest} in a rectangle ordered by their ID.
+	 * 
+	 * @param p1
+	 *            {@link GeoCoordinate} specifying one corner of the rectangle. (minLat, minLon)
+	 * @param p2
+	 *            {@link GeoCoordinate} specifying one corner of the rectangle. (maxLat, maxLon)
+	 * @param filter
+	 *            Only POIs accepted by this filter will be returned. If set to null, POIs will not be
+	 *            filtered.
+	 * @param after
+	 *            Position of the last POI of the previous page as returned by
+	 *            {@link PoiCursor#getPosition()} or null for starting at the first POI.
+	 * @return A {@link PoiCursor} positioned before the first POI. It has to be closed by the caller.
+	 */
+	public PoiCursor queryInRect(GeoCoordinate p1, GeoCoordinate p2, PoiCategoryFilter filter,
+			PoiCursorPosition after);
+
+	/**
+	 * Streams all {@link PointOfInterest} within a given distance of a position ordered by their
+	 * distance (nearest first) and their ID.
+	 * 
+	 * @param point
+	 *            {@link GeoCoordinate} center of the search.
+	 * @param maxDistance
+	 *            Maximal distance in meters.
+	 * @param filter
+	 *            Only POIs accepted by this filter will be returned. If set to null, POIs will not be
+	 *            filtered.
+	 * @param after
+	 *            Position of the last POI of the previous page as returned by
+	 *            {@link PoiCursor#getPosition()} or null for starting at the first POI.
+	 * @return A {@link PoiCursor} positioned before the first POI. It has to be closed by the caller.
+	 */
+	public PoiCursor queryNearPosition(GeoCoordinate point, int maxDistance, PoiCategoryFilter filter,
+			PoiCursorPosition after);
+
 	/**
 	 * Sets this manager's {@link PoiCategoryManager} for retrieving and editing POI categories.
 	 * 
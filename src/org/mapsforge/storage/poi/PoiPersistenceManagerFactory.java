@@ -33,4 +33,14 @@ public class PoiPersistenceManagerFactory {
 		return new SQLitePoiPersistenceManager(poiFilePath);
 	}
 
+	/**
+	 * @param poiFilePath
+	 *            Path to a .poi file.
+	 * @return Read-only {@link PoiPersistenceManager} holding all POIs of the file in memory.
+	 */
+	public static PoiPersistenceManager getPackedPoiPersistenceManager(
+			String poiFilePath) {
+		return new PackedPoiPersistenceManager(poiFilePath);
+	}
+
 }
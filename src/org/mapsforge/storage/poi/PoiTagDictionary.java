@@ -0,0 +1,364 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.poi;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Dictionary based binary encoding of a POI's tags. Tag keys and frequent tag values are stored once in
+ * the tables <code>poi_tag_keys</code> and <code>poi_tag_values</code> and referenced by their IDs, so
+ * that a POI's tags usually take only a few bytes.
+ * 
+ * The encoding of a POI is the number of tags followed by each tag's key ID and value ID, all written
+ * as unsigned variable length integers (7 bits per byte, least significant group first). Value ID 0
+ * means that the value is not in the dictionary and follows inline as its UTF-8 length and bytes.
+ * 
+ * This class is immutable and thread safe.
+ * 
+ * @author Karsten Groll
+ * 
+ */
+public final class PoiTagDictionary {
+	/** The key of a POI's name. It always has the key ID 0. */
+	public static final String NAME_KEY = "name";
+
+	/** Creates the key table. */
+	public static final String CREATE_KEY_TABLE_STATEMENT = "CREATE TABLE poi_tag_keys (id INTEGER, key VARCHAR, PRIMARY KEY (id));";
+
+	/** Creates the value table. */
+	public static final String CREATE_VALUE_TABLE_STATEMENT = "CREATE TABLE poi_tag_values (id INTEGER, value VARCHAR, PRIMARY KEY (id));";
+
+	/** Inserts a key. The parameters are the key ID and the key. */
+	public static final String INSERT_KEY_STATEMENT = "INSERT INTO poi_tag_keys VALUES (?, ?);";
+
+	/** Inserts a value. The parameters are the value ID and the value. */
+	public static final String INSERT_VALUE_STATEMENT = "INSERT INTO poi_tag_values VALUES (?, ?);";
+
+	// Values occurring less often are stored inline
+	private static final int MIN_VALUE_COUNT = 2;
+
+	// Distinct values counted by the builder at most (names alone easily exceed millions)
+	private static final int MAX_COUNTED_VALUES = 1 << 20;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// Key i has ID i, value i has ID i + 1
+	private final String[] keys;
+	private final String[] values;
+	private final HashMap<String, Integer> keyIDs;
+	private final HashMap<String, Integer> valueIDs;
+
+	/**
+	 * @param keys
+	 *            The keys ordered by their ID. The first key has to be {@link #NAME_KEY}.
+	 * @param values
+	 *            The values ordered by their ID, starting with ID 1.
+	 */
+	public PoiTagDictionary(String[] keys, String[] values) {
+		if (keys.length == 0 || !NAME_KEY.equals(keys[0])) {
+			throw new IllegalArgumentException("The first key has to be '" + NAME_KEY + "'");
+		}
+
+		this.keys = keys.clone();
+		this.values = values.clone();
+
+		this.keyIDs = new HashMap<String, Integer>(this.keys.length * 2);
+		for (int i = 0; i < this.keys.length; i++) {
+			this.keyIDs.put(this.keys[i], Integer.valueOf(i));
+		}
+
+		this.valueIDs = new HashMap<String, Integer>(this.values.length * 2);
+		for (int i = 0; i < this.values.length; i++) {
+			this.valueIDs.put(this.values[i], Integer.valueOf(i + 1));
+		}
+	}
+
+	/**
+	 * 
+	 * @return Number of keys. The keys' IDs are 0 to getKeyCount() - 1.
+	 */
+	public int getKeyCount() {
+		return this.keys.length;
+	}
+
+	/**
+	 * 
+	 * @param id
+	 *            The key's ID.
+	 * @return The key.
+	 */
+	public String getKey(int id) {
+		return this.keys[id];
+	}
+
+	/**
+	 * 
+	 * @return Number of values. The values' IDs are 1 to getValueCount().
+	 */
+	public int getValueCount() {
+		return this.values.length;
+	}
+
+	/**
+	 * 
+	 * @param id
+	 *            The value's ID.
+	 * @return The value.
+	 */
+	public String getValue(int id) {
+		return this.values[id - 1];
+	}
+
+	/**
+	 * Encodes a POI's tags.
+	 * 
+	 * @param tags
+	 *            The tags as <code>[key_1, value_1, ..., key_n, value_n]</code>. Values must not be null.
+	 * @return The encoded tags.
+	 * @throws IllegalArgumentException
+	 *             if a key is not in the dictionary.
+	 */
+	public byte[] encode(String[] tags) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(16);
+		writeVarInt(out, tags.length / 2);
+
+		Integer keyID;
+		Integer valueID;
+		byte[] bytes;
+		for (int i = 0; i < tags.length; i += 2) {
+			keyID = this.keyIDs.get(tags[i]);
+			if (keyID == null) {
+				throw new IllegalArgumentException("Unknown tag key: " + tags[i]);
+			}
+			writeVarInt(out, keyID.intValue());
+
+			valueID = this.valueIDs.get(tags[i + 1]);
+			if (valueID != null) {
+				writeVarInt(out, valueID.intValue());
+			} else {
+				bytes = tags[i + 1].getBytes(UTF8);
+				writeVarInt(out, 0);
+				writeVarInt(out, bytes.length);
+				out.write(bytes, 0, bytes.length);
+			}
+		}
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decodes a single tag without decoding the other tags' values.
+	 * 
+	 * @param data
+	 *            The encoded tags. May be null.
+	 * @param key
+	 *            The tag's key.
+	 * @return The tag's value or null if the POI does not have this tag.
+	 */
+	public String decode(byte[] data, String key) {
+		Integer keyID = this.keyIDs.get(key);
+		if (data == null || keyID == null) {
+			return null;
+		}
+
+		int[] position = new int[1];
+		int tags = readVarInt(data, position);
+		int id;
+		int valueID;
+		int length;
+		for (int i = 0; i < tags; i++) {
+			id = readVarInt(data, position);
+			valueID = readVarInt(data, position);
+			if (valueID > 0) {
+				if (id == keyID.intValue()) {
+					return this.values[valueID - 1];
+				}
+				continue;
+			}
+
+			length = readVarInt(data, position);
+			if (id == keyID.intValue()) {
+				return new String(data, position[0], length, UTF8);
+			}
+			position[0] += length;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Decodes all tags.
+	 * 
+	 * @param data
+	 *            The encoded tags. May be null.
+	 * @return The tags as <code>[key_1, value_1, ..., key_n, value_n]</code>.
+	 */
+	public String[] decode(byte[] data) {
+		if (data == null) {
+			return new String[0];
+		}
+
+		int[] position = new int[1];
+		String[] ret = new String[readVarInt(data, position) * 2];
+		int valueID;
+		int length;
+		for (int i = 0; i < ret.length; i += 2) {
+			ret[i] = this.keys[readVarInt(data, position)];
+			valueID = readVarInt(data, position);
+			if (valueID > 0) {
+				ret[i + 1] = this.values[valueID - 1];
+			} else {
+				length = readVarInt(data, position);
+				ret[i + 1] = new String(data, position[0], length, UTF8);
+				position[0] += length;
+			}
+		}
+
+		return ret;
+	}
+
+	private static void writeVarInt(ByteArrayOutputStream out, int value) {
+		int v = value;
+		while ((v & ~0x7f) != 0) {
+			out.write((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		out.write(v);
+	}
+
+	private static int readVarInt(byte[] data, int[] position) {
+		int ret = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = data[position[0]++];
+			ret |= (b & 0x7f) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+
+		return ret;
+	}
+
+	/**
+	 * Collects the tags of all POIs and creates a dictionary with all keys and the values occurring at
+	 * least twice. Frequent keys and values get small IDs, which take only one byte.
+	 * 
+	 * The value counts are bounded: whenever more than {@link #MAX_COUNTED_VALUES} distinct values are
+	 * counted, the rarest values are dropped until half of the values remain. Frequent values survive
+	 * this, but a value that becomes frequent only after being dropped may be stored inline.
+	 */
+	public static final class Builder {
+		private final HashMap<String, int[]> keyCounts;
+		private final HashMap<String, int[]> valueCounts;
+
+		public Builder() {
+			this.keyCounts = new HashMap<String, int[]>();
+			this.valueCounts = new HashMap<String, int[]>();
+		}
+
+		/**
+		 * Counts a POI's tags.
+		 * 
+		 * @param tags
+		 *            The tags as <code>[key_1, value_1, ..., key_n, value_n]</code>.
+		 */
+		public void add(String[] tags) {
+			for (int i = 0; i < tags.length; i += 2) {
+				count(this.keyCounts, tags[i]);
+				count(this.valueCounts, tags[i + 1]);
+			}
+
+			if (this.valueCounts.size() > MAX_COUNTED_VALUES) {
+				pruneValues();
+			}
+		}
+
+		/**
+		 * 
+		 * @return The dictionary for all POIs added so far.
+		 */
+		public PoiTagDictionary build() {
+			// The name key comes first
+			this.keyCounts.remove(NAME_KEY);
+			ArrayList<String> keyList = getSortedByCount(this.keyCounts, 1);
+			keyList.add(0, NAME_KEY);
+
+			ArrayList<String> valueList = getSortedByCount(this.valueCounts, MIN_VALUE_COUNT);
+
+			return new PoiTagDictionary(keyList.toArray(new String[keyList.size()]),
+					valueList.toArray(new String[valueList.size()]));
+		}
+
+		/**
+		 * Drops the values with the lowest counts, starting with the values seen only once.
+		 */
+		private void pruneValues() {
+			Iterator<int[]> it;
+			for (int minCount = MIN_VALUE_COUNT; this.valueCounts.size() > MAX_COUNTED_VALUES / 2; minCount++) {
+				it = this.valueCounts.values().iterator();
+				while (it.hasNext()) {
+					if (it.next()[0] < minCount) {
+						it.remove();
+					}
+				}
+			}
+		}
+
+		private static void count(HashMap<String, int[]> counts, String s) {
+			int[] count = counts.get(s);
+			if (count == null) {
+				counts.put(s, new int[] { 1 });
+			} else {
+				++count[0];
+			}
+		}
+
+		private static ArrayList<String> getSortedByCount(HashMap<String, int[]> counts, int minCount) {
+			ArrayList<Map.Entry<String, int[]>> entries = new ArrayList<Map.Entry<String, int[]>>();
+			for (Map.Entry<String, int[]> e : counts.entrySet()) {
+				if (e.getValue()[0] >= minCount) {
+					entries.add(e);
+				}
+			}
+
+			// Most frequent first, ties by string for a deterministic order
+			Collections.sort(entries, new Comparator<Map.Entry<String, int[]>>() {
+				@Override
+				public int compare(Map.Entry<String, int[]> e1, Map.Entry<String, int[]> e2) {
+					int c1 = e1.getValue()[0];
+					int c2 = e2.getValue()[0];
+					if (c1 != c2) {
+						return c1 > c2 ? -1 : 1;
+					}
+					return e1.getKey().compareTo(e2.getKey());
+				}
+			});
+
+			ArrayList<String> ret = new ArrayList<String>(entries.size());
+			for (Map.Entry<String, int[]> e : entries) {
+				ret.add(e.getKey());
+			}
+
+			return ret;
+		}
+	}
+}
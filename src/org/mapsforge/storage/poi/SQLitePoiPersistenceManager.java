@@ -14,10 +14,21 @@
  */
 package org.mapsforge.storage.poi;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Vector;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import org.mapsforge.core.GeoCoordinate;
+import org.mapsforge.core.MercatorProjection;
+import org.sqlite.android.Constants;
 import org.sqlite.android.Database;
 import org.sqlite.android.SQLiteException;
 import org.sqlite.android.Stmt;
@@ -26,35 +37,131 @@ import org.sqlite.android.Stmt;
  * POI persistence manager using SQLite 3 with R-tree support. This implementation does only work on
  * Android.
  * 
+ * This class is thread safe. Queries are executed on a pool of read-only connections, each having its
+ * own prepared statements, so that concurrent queries do not block each other. Each query returns a
+ * new container (or fills a container given by the caller), and the returned POIs are immutable. All
+ * writes go through a single connection and are serialized. Each {@link PoiCursor} opens its own
+ * read-only connection, which it keeps until it is closed, so open cursors never block other queries.
+ * 
+ * Databases written in the compact format (see {@link PoiTagDictionary}) store coordinates as
+ * microdegrees in integer R-trees and the POIs' tags in binary form. Databases written before keep
+ * their coordinates in degrees and the name as string, both formats are read and written.
+ * 
  * @author Karsten Groll
  */
 class SQLitePoiPersistenceManager implements PoiPersistenceManager {
 	// Number of tables needed for db verification
 	private static final int NUMBER_OF_TABLES = 3;
 
+	// Milliseconds a connection waits for a lock held by another connection
+	private static final int BUSY_TIMEOUT = 5000;
+
+	// Edge length / 2 of the first square searched by findNearest (meters)
+	private static final int INITIAL_SEARCH_RADIUS = 250;
+
+	// Search radius of findNearest if no maximal distance is given (meters)
+	private static final int MAX_SEARCH_RADIUS = 20000000;
+
+	// Smallest square searched by findNearest (meters)
+	private static final int MIN_SEARCH_RADIUS = 1;
+
+	// Margin for the error of converting meters to degrees
+	private static final double PROJECTION_ERROR_FACTOR = 1.1;
+
+	// Maximal number of prepared filter statements per connection
+	private static final int MAX_FILTER_STATEMENTS = 8;
+
+	// Finds POIs by a given bounding box
+	private static final String FIND_IN_BOX_STATEMENT = "SELECT poi_index.id, poi_index.minLat, poi_index.minLon, poi_data.data, poi_data.category "
+			+ "FROM poi_index "
+			+ "JOIN poi_data ON poi_index.id = poi_data.id "
+			+ "WHERE "
+			+ "minLat <= ? AND "
+			+ "minLon <= ? AND "
+			+ "minLat >= ? AND "
+			+ "minLon >= ? LIMIT ?";
+
+	// R-tree with the category ID as additional dimension, so that filtered queries only visit POIs of
+	// accepted categories
+	private static final String CREATE_CATEGORY_INDEX_STATEMENT = "CREATE VIRTUAL TABLE poi_category_index USING rtree(id, minCategory, maxCategory, minLat, maxLat, minLon, maxLon);";
+	private static final String CREATE_COMPACT_CATEGORY_INDEX_STATEMENT = "CREATE VIRTUAL TABLE poi_category_index USING rtree_i32(id, minCategory, maxCategory, minLat, maxLat, minLon, maxLon);";
+
+	// Finds POIs within a category ID interval and a bounding box using the category R-tree
+	private static final String FIND_IN_CATEGORY_STATEMENT = "SELECT poi_category_index.id, poi_category_index.minLat, poi_category_index.minLon, poi_data.data, poi_data.category "
+			+ "FROM poi_category_index "
+			+ "JOIN poi_data ON poi_category_index.id = poi_data.id "
+			+ "WHERE "
+			+ "minCategory >= ? AND "
+			+ "maxCategory <= ? AND "
+			+ "minLat <= ? AND "
+			+ "minLon <= ? AND "
+			+ "minLat >= ? AND "
+			+ "minLon >= ? LIMIT ?";
+
+	// Word index of the normalized POI names for searching POIs by name
+	private static final String CREATE_NAME_INDEX_STATEMENT = "CREATE TABLE poi_name_index (token VARCHAR, id LONG);";
+	private static final String CREATE_NAME_INDEX_INDEX_STATEMENT = "CREATE INDEX poi_name_index_token ON poi_name_index (token);";
+
+	// Finds a POI by its unique ID
+	private static final String FIND_BY_ID_STATEMENT = "SELECT poi_index.id, poi_index.minLat, poi_index.minLon, poi_data.data, poi_data.category "
+			+ "FROM poi_index "
+			+ "JOIN poi_data ON poi_index.id = poi_data.id "
+			+ "WHERE "
+			+ "poi_index.id = ?;";
+
 	private String dbFilePath = null;
 	private Database db = null;
-	private PoiCategoryManager cm = null;
+	private volatile PoiCategoryManager cm = null;
+
+	// Null for databases without the compact format
+	private PoiTagDictionary tagDictionary = null;
+
+	// Stored coordinate / coordinate in degrees
+	private double coordinateScale = 1;
 
-	private Stmt findInBoxStatement = null;
-	private Stmt findInBoxFilteredStatement = null;
-	private Stmt findByIDStatement = null;
 	private Stmt insertPoiStatement1 = null;
 	private Stmt insertPoiStatement2 = null;
+	private Stmt insertPoiStatement3 = null;
 	private Stmt deletePoiStatement1 = null;
 	private Stmt deletePoiStatement2 = null;
+	private Stmt deletePoiStatement3 = null;
+	private Stmt insertNameStatement = null;
+	private Stmt deleteNameStatement = null;
+	private Stmt insertClusterStatement = null;
+	private Stmt updateClusterStatement = null;
+	private Stmt deleteClusterStatement = null;
 	private Stmt isValidDBStatement = null;
 
-	// Container for return values
-	ArrayList<PointOfInterest> ret;
-	PointOfInterest poi;
+	// Read connection pool
+	private final int poolSize;
+	private final LinkedBlockingQueue<ReadConnection> idleReaders;
+	private final Vector<ReadConnection> openReaders;
 
 	/**
+	 * Opens the database using one read connection per available processor.
+	 * 
 	 * @param dbFilePath
 	 *            Path to SQLite file containing POI data. If the file does not exist the file and its
 	 *            tables will be created.
 	 */
 	SQLitePoiPersistenceManager(String dbFilePath) {
+		this(dbFilePath, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param dbFilePath
+	 *            Path to SQLite file containing POI data. If the file does not exist the file and its
+	 *            tables will be created. Indexes missing in databases of an older format are only
+	 *            added if the file is writable.
+	 * @param poolSize
+	 *            Maximal number of read connections. Connections are opened when needed, queries wait
+	 *            if all connections are in use.
+	 */
+	SQLitePoiPersistenceManager(String dbFilePath, int poolSize) {
+		this.poolSize = Math.max(1, poolSize);
+		this.idleReaders = new LinkedBlockingQueue<ReadConnection>();
+		this.openReaders = new Vector<ReadConnection>();
+
 		// Open / create POI database
 		this.dbFilePath = dbFilePath;
 		createOrOpenDBFile();
@@ -64,24 +171,13 @@ class SQLitePoiPersistenceManager implements PoiPersistenceManager {
 
 		// Queries
 		try {
-			// Finds POIs by a given bounding box
-			this.findInBoxStatement = this.db
-					.prepare("SELECT poi_index.id, poi_index.minLat, poi_index.minLon, poi_data.data, poi_data.category "
-							+ "FROM poi_index "
-							+ "JOIN poi_data ON poi_index.id = poi_data.id "
-							+ "WHERE "
-							+ "minLat <= ? AND "
-							+ "minLon <= ? AND "
-							+ "minLat >= ? AND "
-							+ "minLon >= ? LIMIT ?");
-
-			// Finds a POI by its unique ID
-			this.findByIDStatement = this.db
-					.prepare("SELECT poi_index.id, poi_index.minLat, poi_index.minLon, poi_data.data, poi_data.category "
-							+ "FROM poi_index "
-							+ "JOIN poi_data ON poi_index.id = poi_data.id "
-							+ "WHERE "
-							+ "poi_index.id = ?;");
+			this.db.busy_timeout(BUSY_TIMEOUT);
+
+			// Compact databases store microdegrees and encoded tags
+			this.tagDictionary = loadTagDictionary(this.db);
+			if (this.tagDictionary != null) {
+				this.coordinateScale = GeoCoordinate.FACTOR_DOUBLE_TO_INT;
+			}
 
 			// Inserts a POI into index and adds its data
 			this.insertPoiStatement1 = this.db.prepare("INSERT INTO poi_index VALUES (?, ?, ?, ?, ?);");
@@ -90,117 +186,711 @@ class SQLitePoiPersistenceManager implements PoiPersistenceManager {
 			// Deletes a POI given by its ID
 			this.deletePoiStatement1 = this.db.prepare("DELETE FROM poi_index WHERE id == ?;");
 			this.deletePoiStatement2 = this.db.prepare("DELETE FROM poi_data WHERE id == ?;");
+		} catch (SQLiteException e) {
+			// TODO Android error handling
+		}
 
+		// Tables missing in old databases are only added to writable files. Each migration runs in
+		// its own transaction, so a failed one neither affects the others nor the statements above.
+		boolean writable = new File(this.dbFilePath).canWrite();
+
+		// Category R-tree
+		try {
+			if (writable && !hasTable(this.db, "poi_category_index")) {
+				createCategoryIndex();
+			}
+			if (hasTable(this.db, "poi_category_index")) {
+				this.insertPoiStatement3 = this.db
+						.prepare("INSERT INTO poi_category_index VALUES (?, ?, ?, ?, ?, ?, ?);");
+				this.deletePoiStatement3 = this.db.prepare("DELETE FROM poi_category_index WHERE id == ?;");
+			}
 		} catch (SQLiteException e) {
 			// TODO Android error handling
+			e.printStackTrace();
 		}
 
-		this.ret = new ArrayList<PointOfInterest>();
+		// Name index
+		try {
+			if (writable && !hasTable(this.db, "poi_name_index")) {
+				createNameIndex();
+			}
+			if (hasTable(this.db, "poi_name_index")) {
+				this.insertNameStatement = this.db.prepare("INSERT INTO poi_name_index VALUES (?, ?);");
+				this.deleteNameStatement = this.db.prepare("DELETE FROM poi_name_index WHERE id == ?;");
+			}
+		} catch (SQLiteException e) {
+			// TODO Android error handling
+			e.printStackTrace();
+		}
+
+		// Cluster grid
+		try {
+			if (writable && !hasTable(this.db, "poi_clusters")) {
+				createClusterGrid();
+			}
+			if (hasTable(this.db, "poi_clusters")) {
+				this.insertClusterStatement = this.db
+						.prepare("INSERT OR IGNORE INTO poi_clusters VALUES (?, ?, ?, ?, 0, 0, 0);");
+				this.updateClusterStatement = this.db.prepare("UPDATE poi_clusters "
+						+ "SET count = count + ?, sumLat = sumLat + ?, sumLon = sumLon + ? "
+						+ "WHERE zoom = ? AND tileX = ? AND tileY = ? AND category = ?;");
+				this.deleteClusterStatement = this.db.prepare("DELETE FROM poi_clusters "
+						+ "WHERE zoom = ? AND tileX = ? AND tileY = ? AND category = ? AND count <= 0;");
+			}
+		} catch (SQLiteException e) {
+			// TODO Android error handling
+			e.printStackTrace();
+		}
 	}
 
 	@Override
 	public Collection<PointOfInterest> findNearPosition(GeoCoordinate point, int distance, String categoryName,
 			int limit) {
 
-		double minLat = point.getLatitude() - GeoCoordinate.latitudeDistance(distance);
-		double minLon = point.getLongitude() - GeoCoordinate.longitudeDistance(distance, point.getLatitude());
-		double maxLat = point.getLatitude() + GeoCoordinate.latitudeDistance(distance);
-		double maxLon = point.getLongitude() + GeoCoordinate.longitudeDistance(distance, point.getLatitude());
-
-		return findInRect(new GeoCoordinate(minLat, minLon), new GeoCoordinate(maxLat, maxLon), categoryName,
-				limit);
+		// The nearest POIs instead of the first rows of the bounding square
+		return findNearest(point, limit, Math.max(distance, 1), null);
 	}
 
 	@Override
 	public Collection<PointOfInterest> findInRect(GeoCoordinate p1, GeoCoordinate p2, String categoryName,
 			int limit) {
-		// Clear previous results
-		this.ret.clear();
+		return findInRect(p1, p2, categoryName, limit, new ArrayList<PointOfInterest>());
+	}
+
+	@Override
+	public Collection<PointOfInterest> findInRect(GeoCoordinate p1, GeoCoordinate p2, String categoryName,
+			int limit, Collection<PointOfInterest> container) {
+		ReadConnection reader = acquireReader();
+		if (reader == null) {
+			return container;
+		}
 
 		// Query
 		try {
-			findInBoxStatement.reset();
-			findInBoxStatement.clear_bindings();
-
-			this.findInBoxStatement.bind(1, p2.getLatitude());
-			this.findInBoxStatement.bind(2, p2.getLongitude());
-			this.findInBoxStatement.bind(3, p1.getLatitude());
-			this.findInBoxStatement.bind(4, p1.getLongitude());
-			this.findInBoxStatement.bind(5, limit);
-
-			// TODO externalize to getPoiByStatement
-
-			long id = -1;
-			double lat = 0;
-			double lon = 0;
-			String data = "";
-			int categoryID = -1;
-
-			while (this.findInBoxStatement.step()) {
-				id = this.findInBoxStatement.column_long(0);
-				lat = this.findInBoxStatement.column_double(1);
-				lon = this.findInBoxStatement.column_double(2);
-				data = this.findInBoxStatement.column_string(3);
-				categoryID = this.findInBoxStatement.column_int(4);
+			reader.findInBoxStatement.reset();
+			reader.findInBoxStatement.clear_bindings();
 
-				try {
-					this.poi = new PoiImpl(id, lat, lon, data, this.cm.getPoiCategoryByID(categoryID));
-					this.ret.add(poi);
-				} catch (UnknownPoiCategoryException e) {
-					e.printStackTrace();
-				}
+			bindCoordinate(reader.findInBoxStatement, 1, p2.getLatitude());
+			bindCoordinate(reader.findInBoxStatement, 2, p2.getLongitude());
+			bindCoordinate(reader.findInBoxStatement, 3, p1.getLatitude());
+			bindCoordinate(reader.findInBoxStatement, 4, p1.getLongitude());
+			reader.findInBoxStatement.bind(5, limit);
+
+			while (reader.findInBoxStatement.step()) {
+				addPoi(reader.findInBoxStatement, container);
 			}
 		} catch (SQLiteException e) {
 			// TODO Android error handling
+		} finally {
+			releaseReader(reader);
 		}
 
-		return this.ret;
+		return container;
 	}
 
 	@Override
 	public Collection<PointOfInterest> findInRectWithFilter(GeoCoordinate p1, GeoCoordinate p2,
 			PoiCategoryFilter filter, int limit) {
+		return findInRectWithFilter(p1, p2, filter, limit, new ArrayList<PointOfInterest>());
+	}
+
+	@Override
+	public Collection<PointOfInterest> findInRectWithFilter(GeoCoordinate p1, GeoCoordinate p2,
+			PoiCategoryFilter filter, int limit, Collection<PointOfInterest> container) {
+		ReadConnection reader = acquireReader();
+		if (reader == null) {
+			return container;
+		}
 
-		PoiCategoryRangeQueryGenerator queryGen = new PoiCategoryRangeQueryGenerator(filter);
 		try {
-			this.findInBoxFilteredStatement = db.prepare(queryGen.getSQLSelectString());
-
-			this.findInBoxFilteredStatement.bind(1, p2.getLatitude());
-			this.findInBoxFilteredStatement.bind(2, p2.getLongitude());
-			this.findInBoxFilteredStatement.bind(3, p1.getLatitude());
-			this.findInBoxFilteredStatement.bind(4, p1.getLongitude());
-			this.findInBoxFilteredStatement.bind(5, limit);
-
-			long id = -1;
-			double lat = 0;
-			double lon = 0;
-			String data = "";
-			int categoryID = -1;
-
-			while (this.findInBoxFilteredStatement.step()) {
-				id = this.findInBoxFilteredStatement.column_long(0);
-				lat = this.findInBoxFilteredStatement.column_double(1);
-				lon = this.findInBoxFilteredStatement.column_double(2);
-				data = this.findInBoxFilteredStatement.column_string(3);
-				categoryID = this.findInBoxFilteredStatement.column_int(4);
+			findInBox(reader, p1.getLatitude(), p1.getLongitude(), p2.getLatitude(), p2.getLongitude(),
+					new PoiCategoryRangeQueryGenerator(filter).getCategoryIDIntervals(), limit, container);
+		} catch (SQLiteException e) {
+			// TODO Android error handling
+		} finally {
+			releaseReader(reader);
+		}
+
+		return container;
+	}
 
+	@Override
+	public List<PointOfInterest> findNearest(GeoCoordinate point, int k, int maxDistance, PoiCategoryFilter filter) {
+		if (k <= 0) {
+			return new ArrayList<PointOfInterest>(0);
+		}
+
+		ReadConnection reader = acquireReader();
+		if (reader == null) {
+			return new ArrayList<PointOfInterest>(0);
+		}
+
+		int[] intervals = filter == null ? null : new PoiCategoryRangeQueryGenerator(filter)
+				.getCategoryIDIntervals();
+		int maxRadius = maxDistance > 0 ? maxDistance : MAX_SEARCH_RADIUS;
+
+		// Max-heap holding the k nearest POIs found so far, the farthest one on top
+		PriorityQueue<NearestPoiCandidate> heap = new PriorityQueue<NearestPoiCandidate>(k + 1,
+				new Comparator<NearestPoiCandidate>() {
+					@Override
+					public int compare(NearestPoiCandidate c1, NearestPoiCandidate c2) {
+						return c1.distance < c2.distance ? 1 : (c1.distance > c2.distance ? -1 : 0);
+					}
+				});
+
+		try {
+			// Grow the square until it contains k POIs (at most k rows are fetched per step)
+			ArrayList<PointOfInterest> candidates = new ArrayList<PointOfInterest>(k);
+			int radius = Math.min(INITIAL_SEARCH_RADIUS, maxRadius);
+			while (true) {
+				candidates.clear();
+				findAround(reader, point, radius, intervals, k, candidates);
+				if (candidates.size() == k || radius == maxRadius) {
+					break;
+				}
+				radius = (int) Math.min((long) radius * 2, maxRadius);
+			}
+
+			// If the first square already contains k POIs, shrink it until half its edge length does not,
+			// so that the square holds about as many POIs as a square with k POIs
+			ArrayList<PointOfInterest> smaller = new ArrayList<PointOfInterest>(k);
+			if (candidates.size() == k && radius == Math.min(INITIAL_SEARCH_RADIUS, maxRadius)) {
+				while (radius / 2 >= MIN_SEARCH_RADIUS) {
+					smaller.clear();
+					findAround(reader, point, radius / 2, intervals, k, smaller);
+					if (smaller.size() < k) {
+						break;
+					}
+					radius /= 2;
+					candidates.clear();
+					candidates.addAll(smaller);
+				}
+			}
+
+			// The k nearest POIs are not farther away than the farthest of any k POIs, which is within
+			// the square's circumcircle
+			if (candidates.size() == k) {
+				double kthDistance = 0;
+				for (PointOfInterest p : candidates) {
+					kthDistance = Math.max(kthDistance, point.sphericalDistance(p.getGeoCoordinate()));
+				}
+				radius = (int) Math.min((long) Math.ceil(kthDistance * PROJECTION_ERROR_FACTOR), maxRadius);
+				candidates.clear();
+				findAround(reader, point, Math.max(radius, MIN_SEARCH_RADIUS), intervals, Integer.MAX_VALUE,
+						candidates);
+			}
+
+			double distance;
+			for (PointOfInterest p : candidates) {
+				distance = point.sphericalDistance(p.getGeoCoordinate());
+				if (maxDistance > 0 && distance > maxDistance) {
+					continue;
+				}
+
+				if (heap.size() < k) {
+					heap.add(new NearestPoiCandidate(p, distance));
+				} else if (distance < heap.peek().distance) {
+					heap.poll();
+					heap.add(new NearestPoiCandidate(p, distance));
+				}
+			}
+		} catch (SQLiteException e) {
+			// TODO Android error handling
+		} finally {
+			releaseReader(reader);
+		}
+
+		PointOfInterest[] ret = new PointOfInterest[heap.size()];
+		for (int i = ret.length - 1; i >= 0; i--) {
+			ret[i] = heap.poll().poi;
+		}
+
+		return Arrays.asList(ret);
+	}
+
+	@Override
+	public List<PointOfInterest> searchByName(String prefix, GeoCoordinate p1, GeoCoordinate p2,
+			GeoCoordinate referencePoint, PoiCategoryFilter filter, int limit) {
+		ArrayList<PointOfInterest> ret = new ArrayList<PointOfInterest>();
+		String[] queryTokens = PoiNameNormalizer.getTokens(prefix);
+		if (queryTokens.length == 0 || limit <= 0) {
+			return ret;
+		}
+
+		ReadConnection reader = acquireReader();
+		if (reader == null) {
+			return ret;
+		}
+
+		int[] intervals = filter == null ? new int[0] : new PoiCategoryRangeQueryGenerator(filter)
+				.getCategoryIDIntervals();
+		String lookupToken = PoiNameNormalizer.getLookupToken(queryTokens);
+		double centerLat = referencePoint == null ? (p1.getLatitude() + p2.getLatitude()) / 2 : referencePoint
+				.getLatitude();
+		double centerLon = referencePoint == null ? (p1.getLongitude() + p2.getLongitude()) / 2 : referencePoint
+				.getLongitude();
+		double xScale = Math.cos(Math.toRadians(centerLat));
+
+		Stmt stmt = null;
+		try {
+			stmt = reader.connection.prepare(PoiCategoryRangeQueryGenerator
+					.getSQLNameSearchString(intervals.length / 2));
+
+			int parameter = 1;
+			bindCoordinate(stmt, parameter++, centerLat);
+			bindCoordinate(stmt, parameter++, centerLat);
+			bindCoordinate(stmt, parameter++, centerLon);
+			bindCoordinate(stmt, parameter++, centerLon);
+			stmt.bind(parameter++, xScale * xScale);
+			stmt.bind(parameter++, lookupToken);
+			stmt.bind(parameter++, PoiNameNormalizer.getPrefixUpperBound(lookupToken));
+			bindCoordinate(stmt, parameter++, p2.getLatitude());
+			bindCoordinate(stmt, parameter++, p2.getLongitude());
+			bindCoordinate(stmt, parameter++, p1.getLatitude());
+			bindCoordinate(stmt, parameter++, p1.getLongitude());
+			for (int i = 0; i < intervals.length; i++) {
+				stmt.bind(parameter++, intervals[i]);
+			}
+			stmt.bind(parameter++, Math.max(NAME_SEARCH_CANDIDATES, limit));
+
+			// The index lookup only matches one word, the other words are checked here
+			PointOfInterest poi;
+			while (ret.size() < limit && stmt.step()) {
+				poi = readPoi(stmt);
+				if (poi != null
+						&& (queryTokens.length == 1 || PoiNameNormalizer.matches(
+								PoiNameNormalizer.getTokens(poi.getName()), queryTokens))) {
+					ret.add(poi);
+				}
+			}
+		} catch (SQLiteException e) {
+			// TODO Android error handling
+			e.printStackTrace();
+		} finally {
+			if (stmt != null) {
 				try {
-					this.poi = new PoiImpl(id, lat, lon, data, this.cm.getPoiCategoryByID(categoryID));
-					this.ret.add(poi);
-				} catch (UnknownPoiCategoryException e) {
-					e.printStackTrace();
+					stmt.close();
+				} catch (SQLiteException e) {
+					// TODO Android error handling
 				}
 			}
+			releaseReader(reader);
+		}
+
+		return ret;
+	}
+
+	@Override
+	public List<PoiCluster> findClusters(GeoCoordinate p1, GeoCoordinate p2, byte zoomLevel,
+			PoiCategoryFilter filter) {
+		PoiClusterGrid.ClusterBuilder builder = new PoiClusterGrid.ClusterBuilder(this.cm);
+		ReadConnection reader = acquireReader();
+		if (reader == null) {
+			return builder.getClusters();
+		}
+
+		int[] intervals = filter == null ? new int[0] : new PoiCategoryRangeQueryGenerator(filter)
+				.getCategoryIDIntervals();
+		byte zoom = PoiClusterGrid.getGridZoom(zoomLevel);
+
+		Stmt stmt = null;
+		try {
+			stmt = reader.connection.prepare(PoiCategoryRangeQueryGenerator
+					.getSQLClusterString(intervals.length / 2));
+
+			int parameter = 1;
+			stmt.bind(parameter++, zoom);
+			stmt.bind(parameter++, MercatorProjection.longitudeToTileX(p1.getLongitude(), zoom));
+			stmt.bind(parameter++, MercatorProjection.longitudeToTileX(p2.getLongitude(), zoom));
+			stmt.bind(parameter++, MercatorProjection.latitudeToTileY(p2.getLatitude(), zoom));
+			stmt.bind(parameter++, MercatorProjection.latitudeToTileY(p1.getLatitude(), zoom));
+			for (int i = 0; i < intervals.length; i++) {
+				stmt.bind(parameter++, intervals[i]);
+			}
 
+			while (stmt.step()) {
+				builder.add(stmt.column_long(0), stmt.column_long(1), stmt.column_int(2), stmt.column_int(3),
+						stmt.column_double(4), stmt.column_double(5));
+			}
 		} catch (SQLiteException e) {
 			// TODO Android error handling
+			e.printStackTrace();
+		} finally {
+			if (stmt != null) {
+				try {
+					stmt.close();
+				} catch (SQLiteException e) {
+					// TODO Android error handling
+				}
+			}
+			releaseReader(reader);
+		}
+
+		return builder.getClusters();
+	}
+
+	@Override
+	public PoiCursor queryInRect(GeoCoordinate p1, GeoCoordinate p2, PoiCategoryFilter filter,
+			PoiCursorPosition after) {
+		return openCursor(null, p1.getLatitude(), p1.getLongitude(), p2.getLatitude(), p2.getLongitude(), 0,
+				filter, after);
+	}
+
+	@Override
+	public PoiCursor queryNearPosition(GeoCoordinate point, int maxDistance, PoiCategoryFilter filter,
+			PoiCursorPosition after) {
+		double latitudeDistance = GeoCoordinate.latitudeDistance(maxDistance);
+		double longitudeDistance = GeoCoordinate.longitudeDistance(maxDistance, point.getLatitude());
+
+		return openCursor(point, point.getLatitude() - latitudeDistance, point.getLongitude()
+				- longitudeDistance, point.getLatitude() + latitudeDistance, point.getLongitude()
+				+ longitudeDistance, latitudeDistance * latitudeDistance, filter, after);
+	}
+
+	/**
+	 * Prepares and binds a cursor query.
+	 * 
+	 * @param point
+	 *            The position for ordering by distance or null for ordering by ID.
+	 * @param minLat
+	 *            Minimal latitude.
+	 * @param minLon
+	 *            Minimal longitude.
+	 * @param maxLat
+	 *            Maximal latitude.
+	 * @param maxLon
+	 *            Maximal longitude.
+	 * @param maxSortKey
+	 *            Maximal squared distance in degrees of latitude (ignored when ordering by ID).
+	 * @param filter
+	 *            Category filter or null for not filtering POIs.
+	 * @param after
+	 *            Position to continue after or null.
+	 * @return The cursor or an empty cursor if the query failed.
+	 */
+	private PoiCursor openCursor(GeoCoordinate point, double minLat, double minLon, double maxLat,
+			double maxLon, double maxSortKey, PoiCategoryFilter filter, PoiCursorPosition after) {
+		// Not taken from the pool, as the caller may keep the cursor open while running other queries
+		Database connection = null;
+		Stmt stmt = null;
+		int[] intervals = filter == null ? new int[0] : new PoiCategoryRangeQueryGenerator(filter)
+				.getCategoryIDIntervals();
+		try {
+			connection = openReadConnection();
+			stmt = connection.prepare(PoiCategoryRangeQueryGenerator.getSQLCursorString(
+					intervals.length / 2, point != null));
+
+			int parameter = 1;
+			if (point != null) {
+				double xScale = Math.cos(Math.toRadians(point.getLatitude()));
+				bindCoordinate(stmt, parameter++, point.getLatitude());
+				bindCoordinate(stmt, parameter++, point.getLatitude());
+				bindCoordinate(stmt, parameter++, point.getLongitude());
+				bindCoordinate(stmt, parameter++, point.getLongitude());
+				stmt.bind(parameter++, xScale * xScale);
+			}
+
+			bindCoordinate(stmt, parameter++, maxLat);
+			bindCoordinate(stmt, parameter++, maxLon);
+			bindCoordinate(stmt, parameter++, minLat);
+			bindCoordinate(stmt, parameter++, minLon);
+
+			for (int i = 0; i < intervals.length; i++) {
+				stmt.bind(parameter++, intervals[i]);
+			}
+
+			if (point != null) {
+				// Sort keys are non-negative
+				stmt.bind(parameter++, maxSortKey * this.coordinateScale * this.coordinateScale);
+				stmt.bind(parameter++, after == null ? -1 : after.sortKey);
+				stmt.bind(parameter++, after == null ? -1 : after.sortKey);
+			}
+			stmt.bind(parameter, after == null ? Long.MIN_VALUE : after.id);
+		} catch (SQLiteException e) {
+			// TODO Android error handling
+			e.printStackTrace();
+			new SQLitePoiCursor(connection, stmt, point != null).close();
+
+			return new SQLitePoiCursor(null, null, point != null);
+		}
+
+		return new SQLitePoiCursor(connection, stmt, point != null);
+	}
+
+	/**
+	 * Finds POIs within a square around a point.
+	 * 
+	 * @param reader
+	 *            The connection to be used.
+	 * @param point
+	 *            The square's center.
+	 * @param radius
+	 *            Half the square's edge length in meters.
+	 * @param intervals
+	 *            Canonical category ID intervals or null for not filtering POIs.
+	 * @param limit
+	 *            Maximal number of POIs to be returned.
+	 * @param container
+	 *            The container the POIs are added to.
+	 */
+	private void findAround(ReadConnection reader, GeoCoordinate point, int radius, int[] intervals, int limit,
+			Collection<PointOfInterest> container) throws SQLiteException {
+		double latitudeDistance = GeoCoordinate.latitudeDistance(radius);
+		double longitudeDistance = GeoCoordinate.longitudeDistance(radius, point.getLatitude());
+
+		findInBox(reader, point.getLatitude() - latitudeDistance, point.getLongitude() - longitudeDistance,
+				point.getLatitude() + latitudeDistance, point.getLongitude() + longitudeDistance, intervals, limit,
+				container);
+	}
+
+	/**
+	 * Finds POIs within a bounding box.
+	 * 
+	 * @param reader
+	 *            The connection to be used.
+	 * @param minLat
+	 *            Minimal latitude.
+	 * @param minLon
+	 *            Minimal longitude.
+	 * @param maxLat
+	 *            Maximal latitude.
+	 * @param maxLon
+	 *            Maximal longitude.
+	 * @param intervals
+	 *            Canonical category ID intervals or null for not filtering POIs.
+	 * @param limit
+	 *            Maximal number of POIs to be returned.
+	 * @param container
+	 *            The container the POIs are added to.
+	 */
+	private void findInBox(ReadConnection reader, double minLat, double minLon, double maxLat, double maxLon,
+			int[] intervals, int limit, Collection<PointOfInterest> container) throws SQLiteException {
+		if (intervals != null && intervals.length > 0 && reader.findInCategoryStatement != null) {
+			// One R-tree query per interval (the intervals are disjoint)
+			Stmt stmt = reader.findInCategoryStatement;
+			int remaining = limit;
+			for (int i = 0; i < intervals.length && remaining > 0; i += 2) {
+				stmt.reset();
+				stmt.clear_bindings();
+				stmt.bind(1, intervals[i]);
+				stmt.bind(2, intervals[i + 1]);
+				bindCoordinate(stmt, 3, maxLat);
+				bindCoordinate(stmt, 4, maxLon);
+				bindCoordinate(stmt, 5, minLat);
+				bindCoordinate(stmt, 6, minLon);
+				stmt.bind(7, remaining);
+
+				while (stmt.step()) {
+					addPoi(stmt, container);
+					--remaining;
+				}
+			}
+
+			return;
+		}
+
+		Stmt stmt;
+		int slots = 0;
+		if (intervals == null) {
+			stmt = reader.findInBoxStatement;
+			stmt.reset();
+			stmt.clear_bindings();
+		} else {
+			slots = PoiCategoryRangeQueryGenerator.getIntervalSlots(intervals.length / 2);
+			stmt = reader.getFilteredStatement(slots);
+		}
+
+		bindCoordinate(stmt, 1, maxLat);
+		bindCoordinate(stmt, 2, maxLon);
+		bindCoordinate(stmt, 3, minLat);
+		bindCoordinate(stmt, 4, minLon);
+
+		// Unused slots repeat the last interval
+		int parameter = 5;
+		int interval;
+		for (int i = 0; i < slots; i++) {
+			interval = 2 * Math.min(i, intervals.length / 2 - 1);
+			stmt.bind(parameter++, intervals[interval]);
+			stmt.bind(parameter++, intervals[interval + 1]);
+		}
+		stmt.bind(parameter, limit);
+
+		while (stmt.step()) {
+			addPoi(stmt, container);
+		}
+	}
+
+	/**
+	 * Reads the POI from the current row of a query and adds it to a container.
+	 * 
+	 * @param stmt
+	 *            A statement returning <code>id, lat, lon, data, category</code>.
+	 * @param container
+	 *            The container the POI is added to.
+	 */
+	private void addPoi(Stmt stmt, Collection<PointOfInterest> container) throws SQLiteException {
+		PointOfInterest poi = readPoi(stmt);
+		if (poi != null) {
+			container.add(poi);
+		}
+	}
+
+	/**
+	 * Reads the POI from the current row of a query.
+	 * 
+	 * @param stmt
+	 *            A statement returning <code>id, lat, lon, data, category</code>.
+	 * @return The POI or null if its category is unknown.
+	 */
+	private PointOfInterest readPoi(Stmt stmt) throws SQLiteException {
+		long id = stmt.column_long(0);
+		double lat = stmt.column_double(1) / this.coordinateScale;
+		double lon = stmt.column_double(2) / this.coordinateScale;
+		int categoryID = stmt.column_int(4);
+
+		try {
+			if (this.tagDictionary != null) {
+				// The tags are decoded when they are accessed
+				return new PoiImpl(id, lat, lon, stmt.column_bytes(3), this.tagDictionary,
+						this.cm.getPoiCategoryByID(categoryID));
+			}
+
+			return new PoiImpl(id, lat, lon, stmt.column_string(3), this.cm.getPoiCategoryByID(categoryID));
+		} catch (UnknownPoiCategoryException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Binds a coordinate in the unit of the database's R-trees.
+	 * 
+	 * @param stmt
+	 *            The statement.
+	 * @param parameter
+	 *            The parameter's index.
+	 * @param degrees
+	 *            The coordinate in degrees.
+	 */
+	private void bindCoordinate(Stmt stmt, int parameter, double degrees) throws SQLiteException {
+		if (this.tagDictionary == null) {
+			stmt.bind(parameter, degrees);
+		} else {
+			// Rounding is monotonic, so rounded bounds contain all rounded coordinates within the bounds
+			stmt.bind(parameter, (int) Math.round(degrees * GeoCoordinate.FACTOR_DOUBLE_TO_INT));
+		}
+	}
+
+	/**
+	 * Binds a POI's name in the format of the database's data column.
+	 * 
+	 * @param stmt
+	 *            The statement.
+	 * @param parameter
+	 *            The parameter's index.
+	 * @param name
+	 *            The POI's name. May be null.
+	 */
+	private void bindData(Stmt stmt, int parameter, String name) throws SQLiteException {
+		if (this.tagDictionary == null) {
+			stmt.bind(parameter, name);
+		} else if (name == null) {
+			stmt.bind(parameter);
+		} else {
+			stmt.bind(parameter, this.tagDictionary.encode(new String[] { PoiTagDictionary.NAME_KEY, name }));
+		}
+	}
+
+	/**
+	 * Reads a POI's name from its data column.
+	 * 
+	 * @param stmt
+	 *            The statement.
+	 * @param column
+	 *            The data column's index.
+	 * @return The name or null.
+	 */
+	private String readName(Stmt stmt, int column) throws SQLiteException {
+		if (this.tagDictionary == null) {
+			return stmt.column_string(column);
+		}
+
+		return this.tagDictionary.decode(stmt.column_bytes(column), PoiTagDictionary.NAME_KEY);
+	}
+
+	/**
+	 * 
+	 * @return A new read-only connection to the database.
+	 */
+	private Database openReadConnection() throws SQLiteException {
+		Database ret = new Database();
+		ret.open(this.dbFilePath, Constants.SQLITE_OPEN_READONLY);
+		ret.busy_timeout(BUSY_TIMEOUT);
+
+		return ret;
+	}
+
+	/**
+	 * Takes an idle read connection from the pool. A new connection is opened if there is no idle one
+	 * and the pool is not full, otherwise this method waits until a connection is released.
+	 * 
+	 * @return The connection or null if it could not be opened.
+	 */
+	private ReadConnection acquireReader() {
+		ReadConnection ret = this.idleReaders.poll();
+		if (ret != null) {
+			return ret;
+		}
+
+		synchronized (this.openReaders) {
+			if (this.openReaders.size() < this.poolSize) {
+				try {
+					ret = new ReadConnection();
+					this.openReaders.add(ret);
+					return ret;
+				} catch (SQLiteException e) {
+					// TODO Android error handling
+					e.printStackTrace();
+					return null;
+				}
+			}
 		}
 
-		return this.ret;
+		try {
+			return this.idleReaders.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	/**
+	 * Returns a read connection to the pool.
+	 * 
+	 * @param reader
+	 *            A connection returned by {@link #acquireReader()}.
+	 */
+	private void releaseReader(ReadConnection reader) {
+		this.idleReaders.offer(reader);
+	}
+
+	/**
+	 * @return The number of read connections opened by the pool.
+	 */
+	int getOpenReaderCount() {
+		return this.openReaders.size();
+	}
+
+	/**
+	 * @return The number of read connections waiting in the pool. Equals {@link #getOpenReaderCount()}
+	 *         if no query is running.
+	 */
+	int getIdleReaderCount() {
+		return this.idleReaders.size();
 	}
 
 	@Override
-	public void insertPointOfInterest(PointOfInterest p) {
+	public synchronized void insertPointOfInterest(PointOfInterest p) {
 		try {
 			this.insertPoiStatement1.reset();
 			this.insertPoiStatement1.clear_bindings();
@@ -208,14 +898,15 @@ class SQLitePoiPersistenceManager implements PoiPersistenceManager {
 			this.insertPoiStatement2.clear_bindings();
 
 			db.exec("BEGIN;", null);
+			bindCategoryIndexEntry(p);
 			this.insertPoiStatement1.bind(1, p.getId());
-			this.insertPoiStatement1.bind(2, p.getLatitude());
-			this.insertPoiStatement1.bind(3, p.getLatitude());
-			this.insertPoiStatement1.bind(4, p.getLongitude());
-			this.insertPoiStatement1.bind(5, p.getLongitude());
+			bindCoordinate(this.insertPoiStatement1, 2, p.getLatitude());
+			bindCoordinate(this.insertPoiStatement1, 3, p.getLatitude());
+			bindCoordinate(this.insertPoiStatement1, 4, p.getLongitude());
+			bindCoordinate(this.insertPoiStatement1, 5, p.getLongitude());
 
 			this.insertPoiStatement2.bind(1, p.getId());
-			this.insertPoiStatement2.bind(2, p.getName());
+			bindData(this.insertPoiStatement2, 2, p.getName());
 			this.insertPoiStatement2.bind(3, p.getCategory().getID());
 
 			// Log.d(LOG_TAG, "INSERT INTO poi_data VALUES (" + p.getId() + ", '" + p.getName() + "' "
@@ -225,6 +916,11 @@ class SQLitePoiPersistenceManager implements PoiPersistenceManager {
 			this.insertPoiStatement1.step();
 			// Log.d(LOG_TAG, "step");
 			this.insertPoiStatement2.step();
+			if (this.insertPoiStatement3 != null) {
+				this.insertPoiStatement3.step();
+			}
+			insertNameIndexEntries(p.getId(), p.getName());
+			updateClusterGrid(p, 1);
 
 			db.exec("COMMIT", null);
 		} catch (SQLiteException e) {
@@ -234,27 +930,37 @@ class SQLitePoiPersistenceManager implements PoiPersistenceManager {
 	}
 
 	@Override
-	public void insertPointsOfInterest(Collection<PointOfInterest> pois) {
+	public synchronized void insertPointsOfInterest(Collection<PointOfInterest> pois) {
 		try {
 			this.insertPoiStatement1.reset();
 			this.insertPoiStatement1.clear_bindings();
 			this.insertPoiStatement2.reset();
 			this.insertPoiStatement2.clear_bindings();
 
+			// Inserting in Hilbert order packs the R-tree nodes tightly
 			db.exec("BEGIN;", null);
-			for (PointOfInterest p : pois) {
+			for (PointOfInterest p : sortByHilbertKey(pois)) {
+				this.insertPoiStatement1.reset();
+				this.insertPoiStatement2.reset();
+				bindCategoryIndexEntry(p);
+
 				this.insertPoiStatement1.bind(1, p.getId());
-				this.insertPoiStatement1.bind(2, p.getLatitude());
-				this.insertPoiStatement1.bind(3, p.getLatitude());
-				this.insertPoiStatement1.bind(4, p.getLongitude());
-				this.insertPoiStatement1.bind(5, p.getLongitude());
+				bindCoordinate(this.insertPoiStatement1, 2, p.getLatitude());
+				bindCoordinate(this.insertPoiStatement1, 3, p.getLatitude());
+				bindCoordinate(this.insertPoiStatement1, 4, p.getLongitude());
+				bindCoordinate(this.insertPoiStatement1, 5, p.getLongitude());
 
 				this.insertPoiStatement2.bind(1, p.getId());
-				this.insertPoiStatement2.bind(2, p.getName());
+				bindData(this.insertPoiStatement2, 2, p.getName());
 				this.insertPoiStatement2.bind(3, p.getCategory().getID());
 
 				this.insertPoiStatement1.step();
 				this.insertPoiStatement2.step();
+				if (this.insertPoiStatement3 != null) {
+					this.insertPoiStatement3.step();
+				}
+				insertNameIndexEntries(p.getId(), p.getName());
+				updateClusterGrid(p, 1);
 			}
 
 			db.exec("COMMIT", null);
@@ -265,7 +971,7 @@ class SQLitePoiPersistenceManager implements PoiPersistenceManager {
 	}
 
 	@Override
-	public void removePointOfInterest(PointOfInterest aPoi) {
+	public synchronized void removePointOfInterest(PointOfInterest aPoi) {
 		try {
 			this.deletePoiStatement1.reset();
 			this.deletePoiStatement1.clear_bindings();
@@ -279,6 +985,17 @@ class SQLitePoiPersistenceManager implements PoiPersistenceManager {
 
 			this.deletePoiStatement1.step();
 			this.deletePoiStatement2.step();
+			if (this.deletePoiStatement3 != null) {
+				this.deletePoiStatement3.reset();
+				this.deletePoiStatement3.bind(1, aPoi.getId());
+				this.deletePoiStatement3.step();
+			}
+			if (this.deleteNameStatement != null) {
+				this.deleteNameStatement.reset();
+				this.deleteNameStatement.bind(1, aPoi.getId());
+				this.deleteNameStatement.step();
+			}
+			updateClusterGrid(aPoi, -1);
 
 			db.exec("COMMIT", null);
 
@@ -288,52 +1005,101 @@ class SQLitePoiPersistenceManager implements PoiPersistenceManager {
 	}
 
 	@Override
-	public void close() {
+	public synchronized void close() {
+		// Close read connections (queries must have finished)
+		synchronized (this.openReaders) {
+			for (ReadConnection reader : this.openReaders) {
+				reader.close();
+			}
+			this.openReaders.clear();
+			this.idleReaders.clear();
+		}
+
 		// Close statements
 
-		if (this.findInBoxStatement != null) {
+		if (this.insertPoiStatement1 != null) {
 			try {
-				this.findInBoxStatement.close();
+				this.insertPoiStatement1.close();
 			} catch (SQLiteException e) {
 				// TODO Android error handling
 			}
 		}
 
-		if (this.findByIDStatement != null) {
+		if (this.insertPoiStatement2 != null) {
 			try {
-				this.findByIDStatement.close();
+				this.insertPoiStatement2.close();
 			} catch (SQLiteException e) {
 				// TODO Android error handling
 			}
 		}
 
-		if (this.insertPoiStatement1 != null) {
+		if (this.deletePoiStatement1 != null) {
 			try {
-				this.insertPoiStatement1.close();
+				this.deletePoiStatement1.close();
 			} catch (SQLiteException e) {
 				// TODO Android error handling
 			}
 		}
 
-		if (this.insertPoiStatement2 != null) {
+		if (this.deletePoiStatement2 != null) {
 			try {
-				this.insertPoiStatement2.close();
+				this.deletePoiStatement2.close();
 			} catch (SQLiteException e) {
 				// TODO Android error handling
 			}
 		}
 
-		if (this.deletePoiStatement1 != null) {
+		if (this.insertPoiStatement3 != null) {
 			try {
-				this.deletePoiStatement1.close();
+				this.insertPoiStatement3.close();
 			} catch (SQLiteException e) {
 				// TODO Android error handling
 			}
 		}
 
-		if (this.deletePoiStatement2 != null) {
+		if (this.deletePoiStatement3 != null) {
 			try {
-				this.deletePoiStatement2.close();
+				this.deletePoiStatement3.close();
+			} catch (SQLiteException e) {
+				// TODO Android error handling
+			}
+		}
+
+		if (this.insertNameStatement != null) {
+			try {
+				this.insertNameStatement.close();
+			} catch (SQLiteException e) {
+				// TODO Android error handling
+			}
+		}
+
+		if (this.deleteNameStatement != null) {
+			try {
+				this.deleteNameStatement.close();
+			} catch (SQLiteException e) {
+				// TODO Android error handling
+			}
+		}
+
+		if (this.insertClusterStatement != null) {
+			try {
+				this.insertClusterStatement.close();
+			} catch (SQLiteException e) {
+				// TODO Android error handling
+			}
+		}
+
+		if (this.updateClusterStatement != null) {
+			try {
+				this.updateClusterStatement.close();
+			} catch (SQLiteException e) {
+				// TODO Android error handling
+			}
+		}
+
+		if (this.deleteClusterStatement != null) {
+			try {
+				this.deleteClusterStatement.close();
 			} catch (SQLiteException e) {
 				// TODO Android error handling
 			}
@@ -368,39 +1134,312 @@ class SQLitePoiPersistenceManager implements PoiPersistenceManager {
 		// + "JOIN poi_data ON poi_index.id = poi_data.id "
 		// + "WHERE " + "poi_index.id = " + poiID + ";");
 
-		// TODO externalize to getPoiFromStatement
-
-		long id = -1;
-		double lat = 0;
-		double lon = 0;
-		String data = "";
-		int categoryID = -1;
-		this.poi = null;
+		ReadConnection reader = acquireReader();
+		if (reader == null) {
+			return null;
+		}
 
+		ArrayList<PointOfInterest> ret = new ArrayList<PointOfInterest>(1);
 		try {
-			this.findByIDStatement.clear_bindings();
-			this.findByIDStatement.reset();
-			this.findByIDStatement.bind(1, poiID);
+			reader.findByIDStatement.clear_bindings();
+			reader.findByIDStatement.reset();
+			reader.findByIDStatement.bind(1, poiID);
 
-			if (this.findByIDStatement.step()) {
-				id = this.findByIDStatement.column_long(0);
-				lat = this.findByIDStatement.column_double(1);
-				lon = this.findByIDStatement.column_double(2);
-				data = this.findByIDStatement.column_string(3);
-				categoryID = this.findByIDStatement.column_int(4);
-
-				try {
-					this.poi = new PoiImpl(id, lat, lon, data, this.cm.getPoiCategoryByID(categoryID));
-				} catch (UnknownPoiCategoryException e) {
-					e.printStackTrace();
-				}
+			if (reader.findByIDStatement.step()) {
+				addPoi(reader.findByIDStatement, ret);
 			}
 		} catch (SQLiteException e) {
 			// Log.e(LOG_TAG, "getPointById: " + e.getMessage());
 			e.printStackTrace();
+		} finally {
+			releaseReader(reader);
+		}
+
+		return ret.isEmpty() ? null : ret.get(0);
+	}
+
+	/**
+	 * Binds a POI to the category index's insert statement.
+	 * 
+	 * @param p
+	 *            The POI.
+	 */
+	private void bindCategoryIndexEntry(PointOfInterest p) throws SQLiteException {
+		if (this.insertPoiStatement3 == null) {
+			return;
+		}
+
+		this.insertPoiStatement3.reset();
+		this.insertPoiStatement3.clear_bindings();
+		this.insertPoiStatement3.bind(1, p.getId());
+		this.insertPoiStatement3.bind(2, p.getCategory().getID());
+		this.insertPoiStatement3.bind(3, p.getCategory().getID());
+		bindCoordinate(this.insertPoiStatement3, 4, p.getLatitude());
+		bindCoordinate(this.insertPoiStatement3, 5, p.getLatitude());
+		bindCoordinate(this.insertPoiStatement3, 6, p.getLongitude());
+		bindCoordinate(this.insertPoiStatement3, 7, p.getLongitude());
+	}
+
+	/**
+	 * Creates the category R-tree for a database written without it.
+	 */
+	private void createCategoryIndex() throws SQLiteException {
+		this.db.exec("BEGIN;", null);
+		boolean committed = false;
+		try {
+			this.db.exec(this.tagDictionary == null ? CREATE_CATEGORY_INDEX_STATEMENT
+					: CREATE_COMPACT_CATEGORY_INDEX_STATEMENT, null);
+			this.db.exec("INSERT INTO poi_category_index "
+					+ "SELECT poi_index.id, poi_data.category, poi_data.category, minLat, maxLat, minLon, maxLon "
+					+ "FROM poi_index JOIN poi_data ON poi_index.id = poi_data.id;", null);
+			this.db.exec("COMMIT;", null);
+			committed = true;
+		} finally {
+			if (!committed) {
+				rollback();
+			}
+		}
+	}
+
+	/**
+	 * Rolls back the open transaction of the write connection. Errors are only logged, so that the
+	 * error which caused the rollback is not replaced.
+	 */
+	private void rollback() {
+		try {
+			this.db.exec("ROLLBACK;", null);
+		} catch (SQLiteException e) {
+			// TODO Android error handling
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Sorts POIs by the Hilbert key of their position.
+	 * 
+	 * @param pois
+	 *            The POIs.
+	 * @return The sorted POIs.
+	 */
+	private static PointOfInterest[] sortByHilbertKey(Collection<PointOfInterest> pois) {
+		PointOfInterest[] unsorted = pois.toArray(new PointOfInterest[pois.size()]);
+
+		// Key in the upper, position in the lower half
+		long[] keys = new long[unsorted.length];
+		for (int i = 0; i < unsorted.length; i++) {
+			keys[i] = HilbertCurve.getKey(unsorted[i].getLatitude(), unsorted[i].getLongitude()) << 32 | i;
+		}
+		Arrays.sort(keys);
+
+		PointOfInterest[] ret = new PointOfInterest[unsorted.length];
+		for (int i = 0; i < ret.length; i++) {
+			ret[i] = unsorted[(int) (keys[i] & 0xffffffffL)];
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Adds a POI's name to the name index.
+	 * 
+	 * @param id
+	 *            The POI's ID.
+	 * @param name
+	 *            The POI's name. May be null.
+	 */
+	private void insertNameIndexEntries(long id, String name) throws SQLiteException {
+		if (this.insertNameStatement == null) {
+			return;
+		}
+
+		for (String token : PoiNameNormalizer.getTokens(name)) {
+			this.insertNameStatement.reset();
+			this.insertNameStatement.clear_bindings();
+			this.insertNameStatement.bind(1, token);
+			this.insertNameStatement.bind(2, id);
+			this.insertNameStatement.step();
+		}
+	}
+
+	/**
+	 * Creates the name index for a database written without it. The names are normalized in Java, so
+	 * all POIs have to be read once.
+	 */
+	private void createNameIndex() throws SQLiteException {
+		this.db.exec("BEGIN;", null);
+		boolean committed = false;
+		try {
+			this.db.exec(CREATE_NAME_INDEX_STATEMENT, null);
+
+			Stmt stmt = this.db.prepare("SELECT id, data FROM poi_data WHERE data IS NOT NULL;");
+			try {
+				this.insertNameStatement = this.db.prepare("INSERT INTO poi_name_index VALUES (?, ?);");
+				while (stmt.step()) {
+					insertNameIndexEntries(stmt.column_long(0), readName(stmt, 1));
+				}
+			} finally {
+				stmt.close();
+				if (this.insertNameStatement != null) {
+					this.insertNameStatement.close();
+					this.insertNameStatement = null;
+				}
+			}
+
+			this.db.exec(CREATE_NAME_INDEX_INDEX_STATEMENT, null);
+			this.db.exec("COMMIT;", null);
+			committed = true;
+		} finally {
+			if (!committed) {
+				rollback();
+			}
+		}
+	}
+
+	/**
+	 * Adds a POI to or removes it from all levels of the cluster grid.
+	 * 
+	 * @param p
+	 *            The POI.
+	 * @param delta
+	 *            1 for adding, -1 for removing the POI.
+	 */
+	private void updateClusterGrid(PointOfInterest p, int delta) throws SQLiteException {
+		if (this.updateClusterStatement == null) {
+			return;
 		}
 
-		return this.poi;
+		long x = PoiClusterGrid.getCellX(p.getLongitude());
+		long y = PoiClusterGrid.getCellY(p.getLatitude());
+		int category = p.getCategory().getID();
+		for (int zoom = PoiClusterGrid.MAX_GRID_ZOOM; zoom >= 0; zoom--) {
+			if (delta > 0) {
+				this.insertClusterStatement.reset();
+				this.insertClusterStatement.bind(1, zoom);
+				this.insertClusterStatement.bind(2, x);
+				this.insertClusterStatement.bind(3, y);
+				this.insertClusterStatement.bind(4, category);
+				this.insertClusterStatement.step();
+			}
+
+			this.updateClusterStatement.reset();
+			this.updateClusterStatement.bind(1, delta);
+			this.updateClusterStatement.bind(2, delta * p.getLatitude());
+			this.updateClusterStatement.bind(3, delta * p.getLongitude());
+			this.updateClusterStatement.bind(4, zoom);
+			this.updateClusterStatement.bind(5, x);
+			this.updateClusterStatement.bind(6, y);
+			this.updateClusterStatement.bind(7, category);
+			this.updateClusterStatement.step();
+
+			if (delta < 0) {
+				this.deleteClusterStatement.reset();
+				this.deleteClusterStatement.bind(1, zoom);
+				this.deleteClusterStatement.bind(2, x);
+				this.deleteClusterStatement.bind(3, y);
+				this.deleteClusterStatement.bind(4, category);
+				this.deleteClusterStatement.step();
+			}
+
+			x >>>= 1;
+			y >>>= 1;
+		}
+	}
+
+	/**
+	 * Creates the cluster grid for a database written without it.
+	 */
+	private void createClusterGrid() throws SQLiteException {
+		this.db.exec("BEGIN;", null);
+		boolean committed = false;
+		try {
+			this.db.exec(PoiClusterGrid.CREATE_TABLE_STATEMENT, null);
+			this.db.exec(PoiClusterGrid.CREATE_CELL_TABLE_STATEMENT, null);
+
+			Stmt insertStmt = this.db.prepare(PoiClusterGrid.INSERT_CELL_STATEMENT);
+			Stmt stmt = this.db.prepare("SELECT poi_index.minLat, poi_index.minLon, poi_data.category "
+					+ "FROM poi_index JOIN poi_data ON poi_index.id = poi_data.id;");
+			try {
+				double lat;
+				double lon;
+				while (stmt.step()) {
+					lat = stmt.column_double(0) / this.coordinateScale;
+					lon = stmt.column_double(1) / this.coordinateScale;
+					insertStmt.reset();
+					insertStmt.bind(1, PoiClusterGrid.getCellX(lon));
+					insertStmt.bind(2, PoiClusterGrid.getCellY(lat));
+					insertStmt.bind(3, stmt.column_int(2));
+					insertStmt.bind(4, lat);
+					insertStmt.bind(5, lon);
+					insertStmt.step();
+				}
+			} finally {
+				stmt.close();
+				insertStmt.close();
+			}
+
+			for (String sql : PoiClusterGrid.getAggregationStatements()) {
+				this.db.exec(sql, null);
+			}
+			this.db.exec("COMMIT;", null);
+			committed = true;
+		} finally {
+			if (!committed) {
+				rollback();
+			}
+		}
+	}
+
+	/**
+	 * @param database
+	 *            The database connection.
+	 * @param name
+	 *            The table's name.
+	 * @return true if the database has a table with the given name.
+	 */
+	static boolean hasTable(Database database, String name) throws SQLiteException {
+		Stmt stmt = database.prepare("SELECT count(name) FROM sqlite_master WHERE name = ?;");
+		try {
+			stmt.bind(1, name);
+			return stmt.step() && stmt.column_int(0) > 0;
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Loads the tag dictionary of a database written in the compact format.
+	 * 
+	 * @param database
+	 *            The database connection.
+	 * @return The dictionary or null if the database does not have the compact format.
+	 */
+	static PoiTagDictionary loadTagDictionary(Database database) throws SQLiteException {
+		if (!hasTable(database, "poi_tag_keys")) {
+			return null;
+		}
+
+		ArrayList<String> keys = new ArrayList<String>();
+		Stmt stmt = database.prepare("SELECT key FROM poi_tag_keys ORDER BY id;");
+		try {
+			while (stmt.step()) {
+				keys.add(stmt.column_string(0));
+			}
+		} finally {
+			stmt.close();
+		}
+
+		ArrayList<String> values = new ArrayList<String>();
+		stmt = database.prepare("SELECT value FROM poi_tag_values ORDER BY id;");
+		try {
+			while (stmt.step()) {
+				values.add(stmt.column_string(0));
+			}
+		} finally {
+			stmt.close();
+		}
+
+		return new PoiTagDictionary(keys.toArray(new String[keys.size()]), values.toArray(new String[values
+				.size()]));
 	}
 
 	/**
@@ -433,9 +1472,23 @@ class SQLitePoiPersistenceManager implements PoiPersistenceManager {
 		this.db.exec("DROP TABLE IF EXISTS poi_index;", null);
 		this.db.exec("DROP TABLE IF EXISTS poi_data;", null);
 		this.db.exec("DROP TABLE IF EXISTS poi_categories;", null);
-
-		this.db.exec("CREATE VIRTUAL TABLE poi_index USING rtree(id, minLat, maxLat, minLon, maxLon);", null);
+		this.db.exec("DROP TABLE IF EXISTS poi_category_index;", null);
+		this.db.exec("DROP TABLE IF EXISTS poi_name_index;", null);
+		this.db.exec("DROP TABLE IF EXISTS poi_clusters;", null);
+		this.db.exec("DROP TABLE IF EXISTS poi_tag_keys;", null);
+		this.db.exec("DROP TABLE IF EXISTS poi_tag_values;", null);
+
+		// Compact format
+		this.db.exec("CREATE VIRTUAL TABLE poi_index USING rtree_i32(id, minLat, maxLat, minLon, maxLon);",
+				null);
 		this.db.exec("CREATE TABLE poi_data (id LONG, data BLOB, category INT, PRIMARY KEY (id));", null);
+		this.db.exec(PoiTagDictionary.CREATE_KEY_TABLE_STATEMENT, null);
+		this.db.exec(PoiTagDictionary.CREATE_VALUE_TABLE_STATEMENT, null);
+		this.db.exec("INSERT INTO poi_tag_keys VALUES (0, '" + PoiTagDictionary.NAME_KEY + "');", null);
+		this.db.exec(CREATE_COMPACT_CATEGORY_INDEX_STATEMENT, null);
+		this.db.exec(CREATE_NAME_INDEX_STATEMENT, null);
+		this.db.exec(CREATE_NAME_INDEX_INDEX_STATEMENT, null);
+		this.db.exec(PoiClusterGrid.CREATE_TABLE_STATEMENT, null);
 		this.db.exec(
 				"CREATE TABLE poi_categories (id INTEGER, name VARCHAR, parent INTEGER, PRIMARY KEY (id));",
 				null);
@@ -477,4 +1530,199 @@ class SQLitePoiPersistenceManager implements PoiPersistenceManager {
 
 	}
 
+	/**
+	 * A read-only connection with its own prepared statements. A connection is used by one thread at a
+	 * time.
+	 */
+	private final class ReadConnection {
+		private final Database connection;
+		final Stmt findInBoxStatement;
+		final Stmt findByIDStatement;
+		/** Null if the database does not have a category R-tree. */
+		final Stmt findInCategoryStatement;
+		private final FilterStatementCache filterStatements;
+
+		ReadConnection() throws SQLiteException {
+			this.connection = openReadConnection();
+
+			this.findInBoxStatement = this.connection.prepare(FIND_IN_BOX_STATEMENT);
+			this.findByIDStatement = this.connection.prepare(FIND_BY_ID_STATEMENT);
+			this.findInCategoryStatement = hasTable(this.connection, "poi_category_index") ? this.connection
+					.prepare(FIND_IN_CATEGORY_STATEMENT) : null;
+			this.filterStatements = new FilterStatementCache();
+		}
+
+		/**
+		 * Gets a prepared statement for a filtered query. Statements are cached by their number of
+		 * interval slots.
+		 * 
+		 * @param slots
+		 *            Number of category ID intervals as returned by
+		 *            {@link PoiCategoryRangeQueryGenerator#getIntervalSlots(int)}.
+		 * @return The reset statement without bindings.
+		 */
+		Stmt getFilteredStatement(int slots) throws SQLiteException {
+			Integer key = Integer.valueOf(slots);
+			Stmt ret = this.filterStatements.get(key);
+
+			if (ret == null) {
+				ret = this.connection.prepare(PoiCategoryRangeQueryGenerator.getSQLSelectString(slots));
+				this.filterStatements.put(key, ret);
+			} else {
+				ret.reset();
+				ret.clear_bindings();
+			}
+
+			return ret;
+		}
+
+		void close() {
+			try {
+				this.findInBoxStatement.close();
+				this.findByIDStatement.close();
+				if (this.findInCategoryStatement != null) {
+					this.findInCategoryStatement.close();
+				}
+				for (Stmt stmt : this.filterStatements.values()) {
+					stmt.close();
+				}
+				this.filterStatements.clear();
+				this.connection.close();
+			} catch (SQLiteException e) {
+				// TODO Android error handling
+			}
+		}
+	}
+
+	/**
+	 * LRU cache of prepared filter statements. The least recently used statement is closed when the
+	 * cache is full.
+	 */
+	private static final class FilterStatementCache extends LinkedHashMap<Integer, Stmt> {
+		private static final long serialVersionUID = 1L;
+
+		FilterStatementCache() {
+			super(MAX_FILTER_STATEMENTS + 1, 1.0f, true);
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, Stmt> eldest) {
+			if (size() <= MAX_FILTER_STATEMENTS) {
+				return false;
+			}
+
+			try {
+				eldest.getValue().close();
+			} catch (SQLiteException e) {
+				// TODO Android error handling
+			}
+
+			return true;
+		}
+	}
+
+	/**
+	 * A cursor stepping through the rows of a query. The cursor closes its connection when it is
+	 * closed.
+	 */
+	private final class SQLitePoiCursor implements PoiCursor {
+		private Database connection;
+		private Stmt stmt;
+		private final boolean byDistance;
+		private PointOfInterest poi;
+		private double sortKey;
+
+		/**
+		 * @param connection
+		 *            The cursor's own connection the statement belongs to or null for an empty cursor.
+		 * @param stmt
+		 *            The bound cursor query or null for an empty cursor.
+		 * @param byDistance
+		 *            true if the query is ordered by distance.
+		 */
+		SQLitePoiCursor(Database connection, Stmt stmt, boolean byDistance) {
+			this.connection = connection;
+			this.stmt = stmt;
+			this.byDistance = byDistance;
+		}
+
+		@Override
+		public boolean moveToNext() {
+			this.poi = null;
+			if (this.stmt == null) {
+				return false;
+			}
+
+			try {
+				while (this.stmt.step()) {
+					this.poi = readPoi(this.stmt);
+					if (this.poi != null) {
+						this.sortKey = this.stmt.column_double(5);
+						return true;
+					}
+				}
+			} catch (SQLiteException e) {
+				// TODO Android error handling
+				e.printStackTrace();
+			}
+
+			close();
+			return false;
+		}
+
+		@Override
+		public PointOfInterest getPoi() {
+			return this.poi;
+		}
+
+		@Override
+		public double getDistance() {
+			if (!this.byDistance || this.poi == null) {
+				return 0;
+			}
+
+			return Math.sqrt(this.sortKey) / SQLitePoiPersistenceManager.this.coordinateScale
+					/ GeoCoordinate.latitudeDistance(1);
+		}
+
+		@Override
+		public PoiCursorPosition getPosition() {
+			return this.poi == null ? null : new PoiCursorPosition(this.sortKey, this.poi.getId());
+		}
+
+		@Override
+		public void close() {
+			if (this.stmt != null) {
+				try {
+					this.stmt.close();
+				} catch (SQLiteException e) {
+					// TODO Android error handling
+				}
+				this.stmt = null;
+			}
+
+			if (this.connection != null) {
+				try {
+					this.connection.close();
+				} catch (SQLiteException e) {
+					// TODO Android error handling
+				}
+				this.connection = null;
+			}
+		}
+	}
+
+	/**
+	 * A POI and its distance to the search position.
+	 */
+	private static class NearestPoiCandidate {
+		final PointOfInterest poi;
+		final double distance;
+
+		NearestPoiCandidate(PointOfInterest poi, double distance) {
+			this.poi = poi;
+			this.distance = distance;
+		}
+	}
+
 }
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.poi;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mapsforge.core.GeoCoordinate;
+
+/**
+ * Stress driver for the read connection pool of {@link SQLitePoiPersistenceManager}. A writer thread
+ * inserts POIs in batches of {@link #BATCH_SIZE}, each batch in one transaction, while reader threads
+ * query them. The driver checks that
+ * <ul>
+ * <li>readers only see complete batches (never a partial write),</li>
+ * <li>POIs of committed batches are found by their ID,</li>
+ * <li>all read connections are back in the pool after the run, including those of queries that failed
+ * with an exception, and the pool never opened more connections than allowed.</li>
+ * </ul>
+ * 
+ * Usage: <code>SQLitePoiPoolStressDriver &lt;new POI file&gt; [readers] [batches]</code>
+ * 
+ * @author Karsten Groll
+ * 
+ */
+public class SQLitePoiPoolStressDriver {
+	// Number of POIs written in one transaction
+	private static final int BATCH_SIZE = 100;
+
+	// Number of read connections of the pool (less than the number of readers, so that they wait)
+	private static final int POOL_SIZE = 2;
+
+	// Every n-th query of a reader fails with an exception
+	private static final int FAILING_QUERY_INTERVAL = 10;
+
+	// Bounding box of all POIs
+	private static final GeoCoordinate MIN = new GeoCoordinate(52.0, 13.0);
+	private static final GeoCoordinate MAX = new GeoCoordinate(53.0, 14.0);
+
+	private final SQLitePoiPersistenceManager manager;
+	private final PoiCategory category;
+	private final int batches;
+
+	// Number of batches whose transaction has finished
+	private final AtomicInteger committedBatches;
+	private final AtomicInteger errors;
+	private volatile boolean writing;
+
+	private SQLitePoiPoolStressDriver(SQLitePoiPersistenceManager manager, int batches) {
+		this.manager = manager;
+		this.category = new DoubleLinkedPoiCategory("stress", null, 0);
+		this.manager.setCategoryManager(new SingleCategoryManager(this.category));
+		this.batches = batches;
+		this.committedBatches = new AtomicInteger(0);
+		this.errors = new AtomicInteger(0);
+		this.writing = true;
+	}
+
+	/**
+	 * @param args
+	 *            The path of the POI file to be created, the number of reader threads and the number of
+	 *            batches written.
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1 || args.length > 3) {
+			System.err.println("Usage: SQLitePoiPoolStressDriver <new POI file> [readers] [batches]");
+			return;
+		}
+
+		if (new File(args[0]).exists()) {
+			System.err.println(args[0] + " already exists");
+			return;
+		}
+
+		int readers = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		int batches = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+		SQLitePoiPersistenceManager manager = new SQLitePoiPersistenceManager(args[0], POOL_SIZE);
+		int errors;
+		try {
+			errors = new SQLitePoiPoolStressDriver(manager, batches).run(readers);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			return;
+		} finally {
+			manager.close();
+		}
+
+		System.out.println(errors == 0 ? "OK" : errors + " errors");
+		if (errors != 0) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Runs the writer and the readers and checks the database and the pool afterwards.
+	 * 
+	 * @return The number of errors found.
+	 */
+	private int run(int readers) throws InterruptedException {
+		ArrayList<Thread> threads = new ArrayList<Thread>(readers);
+		for (int i = 0; i < readers; i++) {
+			threads.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					read();
+				}
+			}, "reader-" + i));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+
+		write();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		// All batches are visible once the writer is done
+		checkBatches(this.manager.findInRect(MIN, MAX, null, Integer.MAX_VALUE), this.batches);
+
+		if (this.manager.getIdleReaderCount() != this.manager.getOpenReaderCount()) {
+			error("Only " + this.manager.getIdleReaderCount() + " of "
+					+ this.manager.getOpenReaderCount() + " read connections have been returned");
+		}
+		if (this.manager.getOpenReaderCount() > POOL_SIZE) {
+			error(this.manager.getOpenReaderCount() + " read connections opened, the pool size is "
+					+ POOL_SIZE);
+		}
+
+		return this.errors.get();
+	}
+
+	private void write() {
+		ArrayList<PointOfInterest> batch = new ArrayList<PointOfInterest>(BATCH_SIZE);
+		long id;
+		for (int b = 0; b < this.batches; b++) {
+			batch.clear();
+			for (int i = 0; i < BATCH_SIZE; i++) {
+				id = (long) b * BATCH_SIZE + i;
+				batch.add(new PoiImpl(id, MIN.getLatitude() + (i + 0.5) / BATCH_SIZE
+						* (MAX.getLatitude() - MIN.getLatitude()), MIN.getLongitude() + (b + 0.5)
+						/ this.batches * (MAX.getLongitude() - MIN.getLongitude()), "batch " + b, this.category));
+			}
+
+			this.manager.insertPointsOfInterest(batch);
+			this.committedBatches.incrementAndGet();
+		}
+
+		this.writing = false;
+	}
+
+	private void read() {
+		int queries = 0;
+		int committed;
+		while (this.writing) {
+			// Read the counter first, these batches must be complete in the query's result
+			committed = this.committedBatches.get();
+
+			if (++queries % FAILING_QUERY_INTERVAL == 0) {
+				// The query fails after acquiring a connection, which must be returned nevertheless
+				try {
+					if (queries % (2 * FAILING_QUERY_INTERVAL) == 0) {
+						this.manager.findInRect(null, null, null, BATCH_SIZE);
+					} else {
+						this.manager.findInRectWithFilter(null, null, null, BATCH_SIZE);
+					}
+					error("Query without a bounding box did not fail");
+				} catch (NullPointerException e) {
+					// Expected
+				}
+				continue;
+			}
+
+			checkBatches(this.manager.findInRect(MIN, MAX, null, Integer.MAX_VALUE), committed);
+
+			if (committed > 0) {
+				long id = (long) (committed - 1) * BATCH_SIZE + queries % BATCH_SIZE;
+				if (this.manager.findPointByID(id) == null) {
+					error("POI " + id + " of a committed batch not found");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks that each batch in the result is complete.
+	 * 
+	 * @param pois
+	 *            The result of a query covering all POIs.
+	 * @param committed
+	 *            Number of batches that must be contained in the result.
+	 */
+	private void checkBatches(Collection<PointOfInterest> pois, int committed) {
+		HashMap<Long, Integer> sizes = new HashMap<Long, Integer>();
+		Long batch;
+		Integer size;
+		for (PointOfInterest poi : pois) {
+			batch = Long.valueOf(poi.getId() / BATCH_SIZE);
+			size = sizes.get(batch);
+			sizes.put(batch, Integer.valueOf(size == null ? 1 : size.intValue() + 1));
+
+			if (!("batch " + batch).equals(poi.getName())) {
+				error("POI " + poi.getId() + " has the name " + poi.getName());
+			}
+		}
+
+		for (Long b : sizes.keySet()) {
+			if (sizes.get(b).intValue() != BATCH_SIZE) {
+				error("Partial write: " + sizes.get(b) + " of " + BATCH_SIZE + " POIs of batch " + b);
+			}
+		}
+
+		if (sizes.size() < committed) {
+			error("Only " + sizes.size() + " of " + committed + " committed batches found");
+		}
+	}
+
+	private void error(String message) {
+		this.errors.incrementAndGet();
+		System.err.println(Thread.currentThread().getName() + ": " + message);
+	}
+
+	/**
+	 * Category manager knowing the single category of all POIs written by the driver.
+	 */
+	private static final class SingleCategoryManager implements PoiCategoryManager {
+		private final PoiCategory category;
+
+		SingleCategoryManager(PoiCategory category) {
+			this.category = category;
+		}
+
+		@Override
+		public PoiCategory getPoiCategoryByID(int id) throws UnknownPoiCategoryException {
+			if (id != this.category.getID()) {
+				throw new UnknownPoiCategoryException();
+			}
+
+			return this.category;
+		}
+
+		@Override
+		public PoiCategory getPoiCategoryByTitle(String title) throws UnknownPoiCategoryException {
+			if (!this.category.getTitle().equalsIgnoreCase(title)) {
+				throw new UnknownPoiCategoryException();
+			}
+
+			return this.category;
+		}
+
+		@Override
+		public PoiCategory getRootCategory() {
+			return this.category;
+		}
+	}
+}
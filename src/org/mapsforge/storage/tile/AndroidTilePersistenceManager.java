@@ -16,8 +16,10 @@ package org.mapsforge.storage.tile;
 
 import java.io.File;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Vector;
 
+import org.mapsforge.core.GeoCoordinate;
 import org.mapsforge.core.Rect;
 import org.mapsforge.storage.dataExtraction.MapFileMetaData;
 import org.sqlite.android.Database;
@@ -25,13 +27,27 @@ import org.sqlite.android.SQLiteException;
 import org.sqlite.android.Stmt;
 
 public class AndroidTilePersistenceManager implements TilePersistenceManager {
+	private static final String CREATE_WAY_INDEX_TABLE = "CREATE TABLE IF NOT EXISTS way_index "
+			+ "(id INTEGER, interval TINYINT, x INTEGER, y INTEGER, offset INTEGER, PRIMARY KEY (id, interval));";
+	private static final String CREATE_TILE_TAG_SUMMARY_TABLE = "CREATE TABLE IF NOT EXISTS tile_tag_summary "
+			+ "(interval TINYINT, x INTEGER, y INTEGER, poi_tags BLOB, way_tags BLOB, PRIMARY KEY (interval, y, x));";
+	private static final String CREATE_TAG_TILE_INDEX_TABLE = "CREATE TABLE IF NOT EXISTS tag_tile_index "
+			+ "(interval TINYINT, type TINYINT, tag INTEGER, tiles BLOB, PRIMARY KEY (interval, type, tag));";
+
 	private Database db = null;
 	private Stmt stmt = null;
 	private Stmt[] insertOrUpdateTileByIDStmt = null;
 	private Stmt[] deleteTileByIDStmt = null;
 	private Stmt[] getTileByIDStmt = null;
+	private Stmt[] getTileHeaderStmt = null;
+	/** Created on first use, as older databases do not have a tag summary table. */
+	private Stmt getTileTagSummariesStmt = null;
+	/** Created on first use, as older databases do not have an inverted tag index. */
+	private Stmt getTilesWithTagStmt = null;
 	private Stmt getMetaDataStatement = null;
 	private MapFileMetaData mapFileMetaData;
+	/** See {@link TilePersistenceManager#hasRowMajorTileIDs()}. */
+	private boolean rowMajorTileIDs = false;
 
 	/**
 	 * Open the specified map database. If the database does not exist it will be created.
@@ -87,11 +103,13 @@ public class AndroidTilePersistenceManager implements TilePersistenceManager {
 			this.insertOrUpdateTileByIDStmt = new Stmt[amountOfZoomIntervals];
 			this.deleteTileByIDStmt = new Stmt[amountOfZoomIntervals];
 			this.getTileByIDStmt = new Stmt[amountOfZoomIntervals];
+			this.getTileHeaderStmt = new Stmt[amountOfZoomIntervals];
 
 			for (int i = 0; i < amountOfZoomIntervals; i++) {
 				this.insertOrUpdateTileByIDStmt[i] = this.db.prepare("INSERT OR REPLACE INTO tiles_" + i + " VALUES (?,?);");
 				this.deleteTileByIDStmt[i] = this.db.prepare("DELETE FROM tiles_" + i + " WHERE id == ?;");
 				this.getTileByIDStmt[i] = this.db.prepare("SELECT data FROM tiles_" + i + " WHERE id == ?;");
+				this.getTileHeaderStmt[i] = this.db.prepare("SELECT substr(data, 1, ?) FROM tiles_" + i + " WHERE id == ?;");
 			}
 
 		} catch (SQLiteException e) {
@@ -114,6 +132,10 @@ public class AndroidTilePersistenceManager implements TilePersistenceManager {
 		this.db.exec("CREATE TABLE IF NOT EXISTS metadata (key STRING, value STRING, PRIMARY KEY (key));", null);
 		this.db.exec("CREATE TABLE IF NOT EXISTS poi_tags (tag STRING, value INTEGER);", null);
 		this.db.exec("CREATE TABLE IF NOT EXISTS way_tags (tag STRING, value INTEGER);", null);
+		this.db.exec("CREATE TABLE IF NOT EXISTS way_names (id INTEGER PRIMARY KEY, name VARCHAR);", null);
+		this.db.exec(CREATE_WAY_INDEX_TABLE, null);
+		this.db.exec(CREATE_TILE_TAG_SUMMARY_TABLE, null);
+		this.db.exec(CREATE_TAG_TILE_INDEX_TABLE, null);
 		this.db.exec(
 				"CREATE TABLE IF NOT EXISTS zoom_interval_configuration "
 						+
@@ -138,6 +160,8 @@ public class AndroidTilePersistenceManager implements TilePersistenceManager {
 				+ (this.mapFileMetaData.isDebugFlagSet() ? "1" : "0") + "');", null);
 		this.db.exec("INSERT INTO metadata VALUES ('mapPositionExistsFlag', '"
 				+ (this.mapFileMetaData.isMapStartPositionFlagSet() ? "1" : "0") + "');", null);
+		this.db.exec("INSERT INTO metadata VALUES ('wayNameDictionaryFlag', '"
+				+ (this.mapFileMetaData.isWayNameDictionaryFlagSet() ? "1" : "0") + "');", null);
 
 		if (this.mapFileMetaData.isMapStartPositionFlagSet()) {
 			this.db.exec("INSERT INTO metadata VALUES ('mapStartLat', '" + this.mapFileMetaData.getMapStartLat()
@@ -148,6 +172,18 @@ public class AndroidTilePersistenceManager implements TilePersistenceManager {
 
 		this.db.exec("INSERT INTO metadata VALUES ('comment', '" + this.mapFileMetaData.getComment() + "');", null);
 
+		// Row-major IDs do not fit into an int above TagPostingList.MAX_BASE_ZOOM_LEVEL
+		this.rowMajorTileIDs = true;
+		for (int i = 0; i < this.mapFileMetaData.getAmountOfZoomIntervals(); i++) {
+			if (this.mapFileMetaData.getBaseZoomLevel()[i] > TagPostingList.MAX_BASE_ZOOM_LEVEL) {
+				this.rowMajorTileIDs = false;
+			}
+		}
+		if (this.rowMajorTileIDs) {
+			this.db.exec("INSERT INTO metadata VALUES ('" + TILE_ID_SCHEME_KEY + "', '" + TILE_ID_SCHEME_ROW_MAJOR
+					+ "');", null);
+		}
+
 		// Create default zoom level configuration
 		for (int i = 0; i < this.mapFileMetaData.getAmountOfZoomIntervals(); i++) {
 			this.db.exec("INSERT INTO zoom_interval_configuration VALUES ('"
@@ -181,13 +217,15 @@ public class AndroidTilePersistenceManager implements TilePersistenceManager {
 	@Override
 	public void insertOrUpdateTile(byte[] rawData, int id, byte baseZoomInterval) {
 		try {
+			this.db.exec("BEGIN TRANSACTION;", null);
 			this.insertOrUpdateTileByIDStmt[baseZoomInterval].reset();
 			this.insertOrUpdateTileByIDStmt[baseZoomInterval].clear_bindings();
-			this.insertOrUpdateTileByIDStmt[baseZoomInterval].bind(1, "tiles_" + baseZoomInterval);
-			this.insertOrUpdateTileByIDStmt[baseZoomInterval].bind(2, id);
-			this.insertOrUpdateTileByIDStmt[baseZoomInterval].bind(3, rawData);
+			this.insertOrUpdateTileByIDStmt[baseZoomInterval].bind(1, id);
+			this.insertOrUpdateTileByIDStmt[baseZoomInterval].bind(2, rawData);
 
 			this.insertOrUpdateTileByIDStmt[baseZoomInterval].step();
+			invalidateTileTagSummaries(getTilesByID(id, baseZoomInterval), false);
+			this.db.exec("COMMIT TRANSACTION;", null);
 		} catch (SQLiteException e) {
 			System.out.println("!!!EXCEPTION!!! " + e.getMessage());
 		}
@@ -197,13 +235,17 @@ public class AndroidTilePersistenceManager implements TilePersistenceManager {
 	@Override
 	public void insertOrUpdateTiles(Collection<TileDataContainer> rawData) {
 		try {
+			Vector<int[]> tiles = new Vector<int[]>(rawData.size());
 			this.db.exec("BEGIN TRANSACTION;", null);
 			for (TileDataContainer tile : rawData) {
+				tiles.add(new int[] { tile.getxPos(), tile.getyPos(), tile.getBaseZoomLevel() });
 				this.insertOrUpdateTileByIDStmt[tile.getBaseZoomLevel()].reset();
 				this.insertOrUpdateTileByIDStmt[tile.getBaseZoomLevel()].bind(1,
 						coordinatesToID(tile.getxPos(), tile.getyPos(), tile.getBaseZoomLevel()));
 				this.insertOrUpdateTileByIDStmt[tile.getBaseZoomLevel()].bind(2, tile.getData());
+				this.insertOrUpdateTileByIDStmt[tile.getBaseZoomLevel()].step();
 			}
+			invalidateTileTagSummaries(tiles, false);
 			this.db.exec("COMMIT TRANSACTION;", null);
 		} catch (SQLiteException e) {
 			// TODO Android error handling
@@ -219,12 +261,24 @@ public class AndroidTilePersistenceManager implements TilePersistenceManager {
 
 	@Override
 	public void deleteTile(int id, byte baseZoomInterval) {
+		deleteTiles(new int[] { id }, baseZoomInterval);
+	}
+
+	@Override
+	public void deleteTiles(int[] ids, byte baseZoomInterval) {
 		try {
-			this.deleteTileByIDStmt[baseZoomInterval].reset();
-			this.deleteTileByIDStmt[baseZoomInterval].clear_bindings();
-			this.deleteTileByIDStmt[baseZoomInterval].bind(1, id);
+			Vector<int[]> tiles = new Vector<int[]>(ids.length);
+			this.db.exec("BEGIN TRANSACTION;", null);
+			for (int i = 0; i < ids.length; i++) {
+				tiles.addAll(getTilesByID(ids[i], baseZoomInterval));
+				this.deleteTileByIDStmt[baseZoomInterval].reset();
+				this.deleteTileByIDStmt[baseZoomInterval].clear_bindings();
+				this.deleteTileByIDStmt[baseZoomInterval].bind(1, ids[i]);
 
-			this.deleteTileByIDStmt[baseZoomInterval].step();
+				this.deleteTileByIDStmt[baseZoomInterval].step();
+			}
+			invalidateTileTagSummaries(tiles, true);
+			this.db.exec("COMMIT TRANSACTION;", null);
 		} catch (SQLiteException e) {
 			// TODO Android error handling
 			System.out.println("!!!EXCEPTION!!! " + e.getMessage());
@@ -232,12 +286,6 @@ public class AndroidTilePersistenceManager implements TilePersistenceManager {
 
 	}
 
-	@Override
-	public void deleteTiles(int[] ids, byte baseZoomInterval) {
-		// TODO Auto-generated method stub
-
-	}
-
 	@Override
 	public byte[] getTileData(int xPos, int yPos, byte baseZoomInterval) {
 		return getTileData(coordinatesToID(xPos, yPos, baseZoomInterval), baseZoomInterval);
@@ -263,6 +311,27 @@ public class AndroidTilePersistenceManager implements TilePersistenceManager {
 		return result;
 	}
 
+	@Override
+	public byte[] getTileHeader(int xPos, int yPos, byte baseZoomInterval, int length) {
+		byte[] result = null;
+
+		try {
+			this.getTileHeaderStmt[baseZoomInterval].reset();
+			this.getTileHeaderStmt[baseZoomInterval].clear_bindings();
+			this.getTileHeaderStmt[baseZoomInterval].bind(1, length);
+			this.getTileHeaderStmt[baseZoomInterval].bind(2, coordinatesToID(xPos, yPos, baseZoomInterval));
+
+			if (this.getTileHeaderStmt[baseZoomInterval].step()) {
+				result = this.getTileHeaderStmt[baseZoomInterval].column_bytes(0);
+			}
+		} catch (SQLiteException e) {
+			// TODO Android error handling
+			e.printStackTrace();
+		}
+
+		return result;
+	}
+
 	@Override
 	public Collection<TileDataContainer> getTileData(int[] ids, byte baseZoomInterval) {
 		Vector<TileDataContainer> ret = new Vector<TileDataContainer>();
@@ -297,6 +366,86 @@ public class AndroidTilePersistenceManager implements TilePersistenceManager {
 		return sb.toString();
 	}
 
+	@Override
+	public void visitTiles(int minX, int minY, int maxX, int maxY, byte baseZoomInterval,
+			boolean fullTableScan, TileVisitor visitor) {
+		// Legacy tile IDs cannot be decoded (see coordinatesToID), so the rows are labelled by the
+		// requested tiles' IDs. The range's first and last tile have the smallest and largest ID.
+		HashMap<Integer, Vector<int[]>> positions = null;
+		if (!this.rowMajorTileIDs) {
+			positions = getTilePositions(minX, minY, maxX, maxY, baseZoomInterval);
+		}
+		byte baseZoomLevel = this.mapFileMetaData.getBaseZoomLevel()[baseZoomInterval];
+
+		try {
+			Stmt selectStmt;
+			if (fullTableScan) {
+				// NOT INDEXED forces a sequential scan even if SQLite would prefer the primary key
+				selectStmt = this.db.prepare("SELECT id, data FROM tiles_" + baseZoomInterval + " NOT INDEXED;");
+			} else {
+				selectStmt = this.db.prepare("SELECT id, data FROM tiles_" + baseZoomInterval
+						+ " WHERE id BETWEEN ? AND ?;");
+				selectStmt.bind(1, coordinatesToID(minX, minY, baseZoomInterval));
+				selectStmt.bind(2, coordinatesToID(maxX, maxY, baseZoomInterval));
+			}
+
+			// The statement is closed even if the visitor fails
+			try {
+				int x;
+				int y;
+				Vector<int[]> tiles;
+				byte[] data;
+				while (selectStmt.step()) {
+					if (this.rowMajorTileIDs) {
+						x = TagPostingList.getTileX(selectStmt.column_int(0), baseZoomLevel);
+						y = TagPostingList.getTileY(selectStmt.column_int(0), baseZoomLevel);
+						if (x >= minX && x <= maxX && y >= minY && y <= maxY) {
+							visitor.visitTile(new TileDataContainer(selectStmt.column_bytes(1),
+									TileDataContainer.TILE_TYPE_VECTOR, x, y, baseZoomInterval));
+						}
+						continue;
+					}
+
+					tiles = positions.get(Integer.valueOf(selectStmt.column_int(0)));
+					if (tiles == null) {
+						continue;
+					}
+
+					data = selectStmt.column_bytes(1);
+					for (int[] tile : tiles) {
+						visitor.visitTile(new TileDataContainer(data, TileDataContainer.TILE_TYPE_VECTOR, tile[0],
+								tile[1], baseZoomInterval));
+					}
+				}
+			} finally {
+				selectStmt.close();
+			}
+		} catch (SQLiteException e) {
+			// TODO Android error handling
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public int getTileCount(byte baseZoomInterval) {
+		try {
+			this.stmt = this.db.prepare("SELECT count(*) FROM tiles_" + baseZoomInterval + ";");
+			if (this.stmt.step()) {
+				return this.stmt.column_int(0);
+			}
+		} catch (SQLiteException e) {
+			// TODO Android error handling
+			e.printStackTrace();
+		}
+
+		return -1;
+	}
+
+	@Override
+	public boolean hasRowMajorTileIDs() {
+		return this.rowMajorTileIDs;
+	}
+
 	@Override
 	public MapFileMetaData getMetaData() {
 		return this.mapFileMetaData;
@@ -308,6 +457,345 @@ public class AndroidTilePersistenceManager implements TilePersistenceManager {
 
 	}
 
+	@Override
+	public void setWayNames(String[] wayNames) {
+		try {
+			this.db.exec("BEGIN TRANSACTION;", null);
+			this.db.exec("CREATE TABLE IF NOT EXISTS way_names (id INTEGER PRIMARY KEY, name VARCHAR);", null);
+			this.db.exec("DELETE FROM way_names;", null);
+
+			Stmt insertWayNameStmt = this.db.prepare("INSERT INTO way_names (id, name) VALUES (?, ?);");
+			for (int i = 0; i < wayNames.length; i++) {
+				insertWayNameStmt.reset();
+				insertWayNameStmt.clear_bindings();
+				insertWayNameStmt.bind(1, i);
+				insertWayNameStmt.bind(2, wayNames[i]);
+				insertWayNameStmt.step();
+			}
+
+			insertWayNameStmt.close();
+			this.db.exec("COMMIT TRANSACTION;", null);
+		} catch (SQLiteException e) {
+			// TODO Android error handling
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public String[] getWayNames() {
+		if (!this.mapFileMetaData.isWayNameDictionaryFlagSet()) {
+			return null;
+		}
+
+		String[] ret = new String[0];
+		try {
+			// Older databases do not have way names
+			Stmt checkStmt = this.db
+					.prepare("SELECT count(*) FROM sqlite_master WHERE type = 'table' AND name = 'way_names';");
+			try {
+				if (!checkStmt.step() || checkStmt.column_int(0) == 0) {
+					return ret;
+				}
+			} finally {
+				checkStmt.close();
+			}
+
+			Stmt countStmt = this.db.prepare("SELECT count(*) FROM way_names;");
+			try {
+				if (countStmt.step()) {
+					ret = new String[countStmt.column_int(0)];
+				}
+			} finally {
+				countStmt.close();
+			}
+
+			Stmt selectStmt = this.db.prepare("SELECT id, name FROM way_names;");
+			try {
+				while (selectStmt.step()) {
+					ret[selectStmt.column_int(0)] = selectStmt.column_string(1);
+				}
+			} finally {
+				selectStmt.close();
+			}
+		} catch (SQLiteException e) {
+			// TODO Android error handling
+			e.printStackTrace();
+		}
+
+		return ret;
+	}
+
+	@Override
+	public void insertWayIndexEntries(WayIndex entries) {
+		try {
+			this.db.exec("BEGIN TRANSACTION;", null);
+			this.db.exec(CREATE_WAY_INDEX_TABLE, null);
+
+			Stmt insertStmt = this.db.prepare("INSERT OR IGNORE INTO way_index VALUES (?, ?, ?, ?, ?);");
+			for (int i = 0; i < entries.size(); i++) {
+				insertStmt.reset();
+				insertStmt.clear_bindings();
+				insertStmt.bind(1, entries.getWayID(i));
+				insertStmt.bind(2, entries.getBaseZoomInterval(i));
+				insertStmt.bind(3, entries.getTileX(i));
+				insertStmt.bind(4, entries.getTileY(i));
+				insertStmt.bind(5, entries.getOffset(i));
+				insertStmt.step();
+			}
+
+			insertStmt.close();
+			this.db.exec("COMMIT TRANSACTION;", null);
+		} catch (SQLiteException e) {
+			// TODO Android error handling
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public WayIndex getWayIndex() {
+		WayIndex ret = null;
+
+		try {
+			this.stmt = this.db.prepare("SELECT count(*) FROM sqlite_master WHERE type = 'table' AND name = 'way_index';");
+			if (!this.stmt.step() || this.stmt.column_int(0) == 0) {
+				return null;
+			}
+
+			this.stmt = this.db.prepare("SELECT count(*) FROM way_index;");
+			if (!this.stmt.step() || this.stmt.column_int(0) == 0) {
+				return null;
+			}
+			ret = new WayIndex(this.stmt.column_int(0));
+
+			// Sorted entries can be searched without sorting them again
+			this.stmt = this.db.prepare("SELECT id, interval, x, y, offset FROM way_index ORDER BY id, interval;");
+			while (this.stmt.step()) {
+				ret.add(this.stmt.column_long(0), (byte) this.stmt.column_int(1), this.stmt.column_int(2),
+						this.stmt.column_int(3), this.stmt.column_int(4));
+			}
+		} catch (SQLiteException e) {
+			// TODO Android error handling
+			e.printStackTrace();
+		}
+
+		return ret;
+	}
+
+	@Override
+	public void insertOrUpdateTileTagSummaries(Collection<TileTagSummary> summaries) {
+		try {
+			this.db.exec("BEGIN TRANSACTION;", null);
+			this.db.exec(CREATE_TILE_TAG_SUMMARY_TABLE, null);
+			this.db.exec(CREATE_TAG_TILE_INDEX_TABLE, null);
+
+			// Collect the changes to the inverted index
+			TagTileIndexUpdate indexUpdate = new TagTileIndexUpdate();
+			Stmt selectStmt = this.db
+					.prepare("SELECT poi_tags, way_tags FROM tile_tag_summary WHERE interval == ? AND y == ? AND x == ?;");
+			TileTagSummary oldSummary;
+			for (TileTagSummary summary : summaries) {
+				selectStmt.reset();
+				selectStmt.clear_bindings();
+				selectStmt.bind(1, summary.getBaseZoomInterval());
+				selectStmt.bind(2, summary.getYPos());
+				selectStmt.bind(3, summary.getXPos());
+
+				oldSummary = null;
+				if (selectStmt.step()) {
+					oldSummary = new TileTagSummary(summary.getXPos(), summary.getYPos(),
+							summary.getBaseZoomInterval(), TileTagSummary.fromByteArray(selectStmt.column_bytes(0)),
+							TileTagSummary.fromByteArray(selectStmt.column_bytes(1)));
+				}
+
+				indexUpdate.replaceSummary(oldSummary, summary,
+						this.mapFileMetaData.getBaseZoomLevel()[summary.getBaseZoomInterval()]);
+			}
+			selectStmt.close();
+
+			// Summaries
+			Stmt insertStmt = this.db.prepare("INSERT OR REPLACE INTO tile_tag_summary VALUES (?, ?, ?, ?, ?);");
+			for (TileTagSummary summary : summaries) {
+				insertStmt.reset();
+				insertStmt.clear_bindings();
+				insertStmt.bind(1, summary.getBaseZoomInterval());
+				insertStmt.bind(2, summary.getXPos());
+				insertStmt.bind(3, summary.getYPos());
+				insertStmt.bind(4, TileTagSummary.toByteArray(summary.getPoiTags()));
+				insertStmt.bind(5, TileTagSummary.toByteArray(summary.getWayTags()));
+				insertStmt.step();
+			}
+			insertStmt.close();
+
+			updatePostingLists(indexUpdate);
+
+			this.db.exec("COMMIT TRANSACTION;", null);
+		} catch (SQLiteException e) {
+			// TODO Android error handling
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Removes the tag summaries of tiles that have been written or deleted and lists written tiles as
+	 * unsummarized (see {@link TagTileIndexUpdate}), so that tag queries do not rely on outdated
+	 * summaries. Has to be called within a transaction.
+	 * 
+	 * @param tiles
+	 *            The tiles as <code>[x, y, baseZoomInterval]</code>.
+	 * @param deleted
+	 *            true if the tiles have been deleted, false if their data has been replaced.
+	 */
+	private void invalidateTileTagSummaries(Collection<int[]> tiles, boolean deleted) throws SQLiteException {
+		// Older databases do not have tag summaries
+		Stmt checkStmt = this.db
+				.prepare("SELECT count(*) FROM sqlite_master WHERE type = 'table' AND name = 'tile_tag_summary';");
+		boolean hasSummaries = checkStmt.step() && checkStmt.column_int(0) > 0;
+		checkStmt.close();
+		if (!hasSummaries) {
+			return;
+		}
+		this.db.exec(CREATE_TAG_TILE_INDEX_TABLE, null);
+
+		TagTileIndexUpdate indexUpdate = new TagTileIndexUpdate();
+		Stmt selectStmt = this.db
+				.prepare("SELECT poi_tags, way_tags FROM tile_tag_summary WHERE interval == ? AND y == ? AND x == ?;");
+		Stmt deleteStmt = this.db.prepare("DELETE FROM tile_tag_summary WHERE interval == ? AND y == ? AND x == ?;");
+		TileTagSummary oldSummary;
+		byte baseZoomInterval;
+		for (int[] tile : tiles) {
+			baseZoomInterval = (byte) tile[2];
+			selectStmt.reset();
+			selectStmt.clear_bindings();
+			selectStmt.bind(1, baseZoomInterval);
+			selectStmt.bind(2, tile[1]);
+			selectStmt.bind(3, tile[0]);
+
+			oldSummary = null;
+			if (selectStmt.step()) {
+				oldSummary = new TileTagSummary(tile[0], tile[1], baseZoomInterval,
+						TileTagSummary.fromByteArray(selectStmt.column_bytes(0)),
+						TileTagSummary.fromByteArray(selectStmt.column_bytes(1)));
+			}
+
+			deleteStmt.reset();
+			deleteStmt.clear_bindings();
+			deleteStmt.bind(1, baseZoomInterval);
+			deleteStmt.bind(2, tile[1]);
+			deleteStmt.bind(3, tile[0]);
+			deleteStmt.step();
+
+			indexUpdate.removeSummary(oldSummary, tile[0], tile[1], baseZoomInterval,
+					this.mapFileMetaData.getBaseZoomLevel()[baseZoomInterval], deleted);
+		}
+		deleteStmt.close();
+		selectStmt.close();
+
+		updatePostingLists(indexUpdate);
+	}
+
+	/**
+	 * Applies changes to the inverted tag index. Each posting list is read and written once. Has to be
+	 * called within a transaction.
+	 */
+	private void updatePostingLists(TagTileIndexUpdate indexUpdate) throws SQLiteException {
+		Stmt selectStmt = this.db.prepare("SELECT tiles FROM tag_tile_index WHERE interval == ? AND type == ? AND tag == ?;");
+		Stmt insertStmt = this.db.prepare("INSERT OR REPLACE INTO tag_tile_index VALUES (?, ?, ?, ?);");
+		byte[] postingList;
+		for (TagTileIndexUpdate.PostingListChange change : indexUpdate.getChanges()) {
+			selectStmt.reset();
+			selectStmt.clear_bindings();
+			selectStmt.bind(1, change.getBaseZoomInterval());
+			selectStmt.bind(2, change.getFeatureType());
+			selectStmt.bind(3, change.getTagID());
+			postingList = selectStmt.step() ? selectStmt.column_bytes(0) : null;
+
+			insertStmt.reset();
+			insertStmt.clear_bindings();
+			insertStmt.bind(1, change.getBaseZoomInterval());
+			insertStmt.bind(2, change.getFeatureType());
+			insertStmt.bind(3, change.getTagID());
+			insertStmt.bind(4, change.applyTo(postingList));
+			insertStmt.step();
+		}
+		insertStmt.close();
+		selectStmt.close();
+	}
+
+	@Override
+	public Collection<TileTagSummary> getTileTagSummaries(int minX, int minY, int maxX, int maxY,
+			byte baseZoomInterval) {
+		Vector<TileTagSummary> ret = new Vector<TileTagSummary>();
+
+		try {
+			if (this.getTileTagSummariesStmt == null) {
+				this.stmt = this.db
+						.prepare("SELECT count(*) FROM sqlite_master WHERE type = 'table' AND name = 'tile_tag_summary';");
+				if (!this.stmt.step() || this.stmt.column_int(0) == 0) {
+					return ret;
+				}
+
+				this.getTileTagSummariesStmt = this.db.prepare("SELECT x, y, poi_tags, way_tags FROM tile_tag_summary "
+						+ "WHERE interval == ? AND y BETWEEN ? AND ? AND x BETWEEN ? AND ?;");
+			}
+
+			this.getTileTagSummariesStmt.reset();
+			this.getTileTagSummariesStmt.clear_bindings();
+			this.getTileTagSummariesStmt.bind(1, baseZoomInterval);
+			this.getTileTagSummariesStmt.bind(2, minY);
+			this.getTileTagSummariesStmt.bind(3, maxY);
+			this.getTileTagSummariesStmt.bind(4, minX);
+			this.getTileTagSummariesStmt.bind(5, maxX);
+
+			while (this.getTileTagSummariesStmt.step()) {
+				ret.add(new TileTagSummary(this.getTileTagSummariesStmt.column_int(0), this.getTileTagSummariesStmt
+						.column_int(1), baseZoomInterval, TileTagSummary.fromByteArray(this.getTileTagSummariesStmt
+						.column_bytes(2)), TileTagSummary.fromByteArray(this.getTileTagSummariesStmt.column_bytes(3))));
+			}
+		} catch (SQLiteException e) {
+			// TODO Android error handling
+			e.printStackTrace();
+		}
+
+		return ret;
+	}
+
+	@Override
+	public int[] getTilesWithTag(byte baseZoomInterval, byte featureType, int tagID) {
+		try {
+			if (this.getTilesWithTagStmt == null) {
+				this.stmt = this.db
+						.prepare("SELECT count(*) FROM sqlite_master WHERE type = 'table' AND name = 'tag_tile_index';");
+				if (!this.stmt.step() || this.stmt.column_int(0) == 0) {
+					return null;
+				}
+
+				this.getTilesWithTagStmt = this.db
+						.prepare("SELECT tiles FROM tag_tile_index WHERE interval == ? AND type == ? AND tag IN (?, ?);");
+			}
+
+			this.getTilesWithTagStmt.reset();
+			this.getTilesWithTagStmt.clear_bindings();
+			this.getTilesWithTagStmt.bind(1, baseZoomInterval);
+			this.getTilesWithTagStmt.bind(2, featureType);
+			this.getTilesWithTagStmt.bind(3, tagID);
+			this.getTilesWithTagStmt.bind(4, TagTileIndexUpdate.UNSUMMARIZED_TILES);
+
+			// Tiles without a summary may contain the tag as well
+			int[] ret = new int[0];
+			while (this.getTilesWithTagStmt.step()) {
+				ret = TagPostingList.update(ret, TagPostingList.decode(this.getTilesWithTagStmt.column_bytes(0)),
+						new int[0]);
+			}
+
+			return ret;
+		} catch (SQLiteException e) {
+			// TODO Android error handling
+			e.printStackTrace();
+		}
+
+		return null;
+	}
+
 	/**
 	 * Loads all meta data from an existing map database.
 	 */
@@ -407,6 +895,14 @@ public class AndroidTilePersistenceManager implements TilePersistenceManager {
 
 			this.mapFileMetaData.setFlags(flags);
 
+			// Way name dictionary flag
+			this.getMetaDataStatement.reset();
+			this.getMetaDataStatement.clear_bindings();
+			this.getMetaDataStatement.bind(1, "wayNameDictionaryFlag");
+			if (this.getMetaDataStatement.step()) {
+				this.mapFileMetaData.setWayNameDictionaryFlag(this.getMetaDataStatement.column_string(0).equals("1"));
+			}
+
 			// Comment
 			this.getMetaDataStatement.reset();
 			this.getMetaDataStatement.clear_bindings();
@@ -415,6 +911,13 @@ public class AndroidTilePersistenceManager implements TilePersistenceManager {
 				this.mapFileMetaData.setComment(this.getMetaDataStatement.column_string(0));
 			}
 
+			// Tile ID scheme
+			this.getMetaDataStatement.reset();
+			this.getMetaDataStatement.clear_bindings();
+			this.getMetaDataStatement.bind(1, TILE_ID_SCHEME_KEY);
+			this.rowMajorTileIDs = this.getMetaDataStatement.step()
+					&& TILE_ID_SCHEME_ROW_MAJOR.equals(this.getMetaDataStatement.column_string(0));
+
 			// POI tag mappings
 			int numPoiTags = 0;
 			this.stmt = this.db.prepare("SELECT count(*) FROM poi_tags;");
@@ -475,7 +978,69 @@ public class AndroidTilePersistenceManager implements TilePersistenceManager {
 
 	}
 
+	/**
+	 * Maps the IDs of a tile range to the tiles' positions. Tiles sharing an ID share their data.
+	 * 
+	 * @return The positions as <code>[x, y]</code> by tile ID.
+	 */
+	private HashMap<Integer, Vector<int[]>> getTilePositions(int minX, int minY, int maxX, int maxY,
+			byte baseZoomInterval) {
+		HashMap<Integer, Vector<int[]>> ret = new HashMap<Integer, Vector<int[]>>();
+
+		Integer id;
+		Vector<int[]> tiles;
+		for (int y = minY; y <= maxY; y++) {
+			for (int x = minX; x <= maxX; x++) {
+				id = Integer.valueOf(coordinatesToID(x, y, baseZoomInterval));
+				tiles = ret.get(id);
+				if (tiles == null) {
+					tiles = new Vector<int[]>(1);
+					ret.put(id, tiles);
+				}
+				tiles.add(new int[] { x, y });
+			}
+		}
+
+		return ret;
+	}
+
+	/**
+	 * 
+	 * @return The positions of all tiles stored under the given ID as
+	 *         <code>[x, y, baseZoomInterval]</code>. Legacy IDs may belong to several tiles of the map.
+	 */
+	private Vector<int[]> getTilesByID(int id, byte baseZoomInterval) {
+		byte baseZoomLevel = this.mapFileMetaData.getBaseZoomLevel()[baseZoomInterval];
+		Vector<int[]> ret = new Vector<int[]>(1);
+
+		if (this.rowMajorTileIDs) {
+			ret.add(new int[] { TagPostingList.getTileX(id, baseZoomLevel), TagPostingList.getTileY(id, baseZoomLevel),
+					baseZoomInterval });
+			return ret;
+		}
+
+		for (int[] position : TileIDMigrator.getLegacyIDPositions(id, baseZoomLevel, TileIDMigrator.getExtent(
+				this.mapFileMetaData.getMinLat() / GeoCoordinate.FACTOR_DOUBLE_TO_INT,
+				this.mapFileMetaData.getMinLon() / GeoCoordinate.FACTOR_DOUBLE_TO_INT,
+				this.mapFileMetaData.getMaxLat() / GeoCoordinate.FACTOR_DOUBLE_TO_INT,
+				this.mapFileMetaData.getMaxLon() / GeoCoordinate.FACTOR_DOUBLE_TO_INT, baseZoomLevel))) {
+			ret.add(new int[] { position[0], position[1], baseZoomInterval });
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Row-major IDs are <code>(y &lt;&lt; baseZoomLevel) + x</code>. Legacy IDs are
+	 * <code>y * baseZoomLevel^2 + x</code>. As x may exceed baseZoomLevel^2, different tiles can have
+	 * the same legacy ID and a legacy ID cannot be decoded into its tile's position. Both grow with x
+	 * and y.
+	 */
 	private int coordinatesToID(int xPos, int yPos, int baseZoomInterval) {
+		if (this.rowMajorTileIDs) {
+			return TagPostingList.toTileKey(xPos, yPos, this.mapFileMetaData.getBaseZoomLevel()[baseZoomInterval]);
+		}
+
 		return (int) (yPos * Math.pow(this.mapFileMetaData.getBaseZoomLevel()[baseZoomInterval], 2) + xPos);
 	}
 
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.tile;
+
+import java.util.Collection;
+import java.util.Vector;
+
+import org.mapsforge.storage.dataExtraction.MapFileMetaData;
+
+/**
+ * A thread safe tile persistence manager for PCs. Each reading thread gets its own database connection
+ * (a {@link PCTilePersistenceManager}), so reads do not block each other. All writes go through a
+ * single connection and are serialized.
+ * 
+ * @author Karsten Groll
+ * 
+ */
+public class ConcurrentTilePersistenceManager implements TilePersistenceManager {
+	private final String path;
+	private final PCTilePersistenceManager writer;
+	private final ThreadLocal<PCTilePersistenceManager> readers;
+	/** All connections opened by reading threads (for closing them). */
+	private final Vector<PCTilePersistenceManager> openReaders;
+
+	/**
+	 * Open the specified map database. If the database does not exist it will be created.
+	 * 
+	 * @param path
+	 *            Path to a map database file.
+	 * @param mapFileMetaData
+	 *            The map file's meta data. This will only be used when a new map file should be
+	 *            created. Otherwise the meta data will be parsed from the map file. If set to null, an
+	 *            empty meta data container will be used for creating the database.
+	 */
+	public ConcurrentTilePersistenceManager(String path, MapFileMetaData mapFileMetaData) {
+		this.path = path;
+		this.writer = new PCTilePersistenceManager(path, mapFileMetaData);
+		this.openReaders = new Vector<PCTilePersistenceManager>();
+		this.readers = new ThreadLocal<PCTilePersistenceManager>() {
+			@Override
+			protected PCTilePersistenceManager initialValue() {
+				PCTilePersistenceManager reader = new PCTilePersistenceManager(ConcurrentTilePersistenceManager.this.path);
+				ConcurrentTilePersistenceManager.this.openReaders.add(reader);
+				return reader;
+			}
+		};
+	}
+
+	/**
+	 * Opens the specified map database. If the database does not exist it will be created.
+	 * 
+	 * @param path
+	 *            Path to a map database file.
+	 */
+	public ConcurrentTilePersistenceManager(String path) {
+		this(path, null);
+	}
+
+	@Override
+	public synchronized void insertOrUpdateTile(byte[] rawData, int xPos, int yPos, byte baseZoomInterval) {
+		this.writer.insertOrUpdateTile(rawData, xPos, yPos, baseZoomInterval);
+	}
+
+	@Override
+	public synchronized void insertOrUpdateTile(byte[] rawData, int id, byte baseZoomInterval) {
+		this.writer.insertOrUpdateTile(rawData, id, baseZoomInterval);
+	}
+
+	@Override
+	public synchronized void insertOrUpdateTiles(Collection<TileDataContainer> rawData) {
+		this.writer.insertOrUpdateTiles(rawData);
+	}
+
+	@Override
+	public synchronized void deleteTile(int xPos, int yPos, byte baseZoomInterval) {
+		this.writer.deleteTile(xPos, yPos, baseZoomInterval);
+	}
+
+	@Override
+	public synchronized void deleteTile(int id, byte baseZoomInterval) {
+		this.writer.deleteTile(id, baseZoomInterval);
+	}
+
+	@Override
+	public synchronized void deleteTiles(int[] ids, byte baseZoomInterval) {
+		this.writer.deleteTiles(ids, baseZoomInterval);
+	}
+
+	@Override
+	public byte[] getTileData(int xPos, int yPos, byte baseZoomInterval) {
+		return this.readers.get().getTileData(xPos, yPos, baseZoomInterval);
+	}
+
+	@Override
+	public byte[] getTileData(int id, byte baseZoomInterval) {
+		return this.readers.get().getTileData(id, baseZoomInterval);
+	}
+
+	@Override
+	public Collection<TileDataContainer> getTileData(int[] ids, byte baseZoomInterval) {
+		return this.readers.get().getTileData(ids, baseZoomInterval);
+	}
+
+	@Override
+	public void visitTiles(int minX, int minY, int maxX, int maxY, byte baseZoomInterval,
+			boolean fullTableScan, TileVisitor visitor) {
+		this.readers.get().visitTiles(minX, minY, maxX, maxY, baseZoomInterval, fullTableScan, visitor);
+	}
+
+	@Override
+	public int getTileCount(byte baseZoomInterval) {
+		return this.readers.get().getTileCount(baseZoomInterval);
+	}
+
+	@Override
+	public byte[] getTileHeader(int xPos, int yPos, byte baseZoomInterval, int length) {
+		return this.readers.get().getTileHeader(xPos, yPos, baseZoomInterval, length);
+	}
+
+	@Override
+	public boolean hasRowMajorTileIDs() {
+		return this.writer.hasRowMajorTileIDs();
+	}
+
+	@Override
+	public MapFileMetaData getMetaData() {
+		return this.writer.getMetaData();
+	}
+
+	@Override
+	public synchronized void setMetaData(MapFileMetaData mapFileMetaData) {
+		this.writer.setMetaData(mapFileMetaData);
+	}
+
+	@Override
+	public synchronized void setWayNames(String[] wayNames) {
+		this.writer.setWayNames(wayNames);
+	}
+
+	@Override
+	public String[] getWayNames() {
+		return this.readers.get().getWayNames();
+	}
+
+	@Override
+	public synchronized void insertWayIndexEntries(WayIndex entries) {
+		this.writer.insertWayIndexEntries(entries);
+	}
+
+	@Override
+	public WayIndex getWayIndex() {
+		return this.readers.get().getWayIndex();
+	}
+
+	@Override
+	public synchronized void insertOrUpdateTileTagSummaries(Collection<TileTagSummary> summaries) {
+		this.writer.insertOrUpdateTileTagSummaries(summaries);
+	}
+
+	@Override
+	public Collection<TileTagSummary> getTileTagSummaries(int minX, int minY, int maxX, int maxY,
+			byte baseZoomInterval) {
+		return this.readers.get().getTileTagSummaries(minX, minY, maxX, maxY, baseZoomInterval);
+	}
+
+	@Override
+	public int[] getTilesWithTag(byte baseZoomInterval, byte featureType, int tagID) {
+		return this.readers.get().getTilesWithTag(baseZoomInterval, featureType, tagID);
+	}
+
+	/**
+	 * Closes all connections. This must not be called while other threads are still reading.
+	 */
+	@Override
+	public synchronized void close() {
+		for (PCTilePersistenceManager reader : this.openReaders) {
+			reader.close();
+		}
+		this.openReaders.clear();
+
+		this.writer.close();
+	}
+
+}
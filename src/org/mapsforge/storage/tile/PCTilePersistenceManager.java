@@ -22,8 +22,10 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Vector;
 
+import org.mapsforge.core.GeoCoordinate;
 import org.mapsforge.core.Rect;
 import org.mapsforge.storage.dataExtraction.MapFileMetaData;
 
@@ -35,17 +37,32 @@ import org.mapsforge.storage.dataExtraction.MapFileMetaData;
  * 
  */
 public class PCTilePersistenceManager implements TilePersistenceManager {
+	private static final String CREATE_WAY_INDEX_TABLE = "CREATE TABLE IF NOT EXISTS way_index "
+			+ "(id INTEGER, interval TINYINT, x INTEGER, y INTEGER, offset INTEGER, PRIMARY KEY (id, interval));";
+	private static final String CREATE_TILE_TAG_SUMMARY_TABLE = "CREATE TABLE IF NOT EXISTS tile_tag_summary "
+			+ "(interval TINYINT, x INTEGER, y INTEGER, poi_tags BLOB, way_tags BLOB, PRIMARY KEY (interval, y, x));";
+	private static final String CREATE_TAG_TILE_INDEX_TABLE = "CREATE TABLE IF NOT EXISTS tag_tile_index "
+			+ "(interval TINYINT, type TINYINT, tag INTEGER, tiles BLOB, PRIMARY KEY (interval, type, tag));";
+
 	// Database
 	private Connection conn = null;
 	private Statement stmt = null;
 	private PreparedStatement insertOrUpdateTileByIDStmt = null;
 	private PreparedStatement deleteTileByIDStmt = null;
 	private PreparedStatement getTileByIDStmt = null;
+	/** One statement per zoom interval (created on first use). */
+	private PreparedStatement[] getTileHeaderStmt = null;
+	/** Created on first use, as older databases do not have a tag summary table. */
+	private PreparedStatement getTileTagSummariesStmt = null;
+	/** Created on first use, as older databases do not have an inverted tag index. */
+	private PreparedStatement getTilesWithTagStmt = null;
 	private PreparedStatement getMetaDataStatement = null;
 	private PreparedStatement insertOrUpdateMetaDataStatement = null;
 	private ResultSet resultSet = null;
 
 	private MapFileMetaData mapFileMetaData = null;
+	/** See {@link TilePersistenceManager#hasRowMajorTileIDs()}. */
+	private boolean rowMajorTileIDs = false;
 
 	/**
 	 * Open the specified map database. If the database does not exist it will be created.
@@ -120,11 +137,23 @@ public class PCTilePersistenceManager implements TilePersistenceManager {
 		this.stmt.executeUpdate("CREATE TABLE IF NOT EXISTS metadata (key STRING, value STRING, PRIMARY KEY (key));");
 		this.stmt.executeUpdate("CREATE TABLE IF NOT EXISTS poi_tags (tag STRING, value INTEGER, PRIMARY KEY (value));");
 		this.stmt.executeUpdate("CREATE TABLE IF NOT EXISTS way_tags (tag STRING, value INTEGER, PRIMARY KEY (value));");
+		this.stmt.executeUpdate("CREATE TABLE IF NOT EXISTS way_names (id INTEGER PRIMARY KEY, name VARCHAR);");
+		this.stmt.executeUpdate(CREATE_WAY_INDEX_TABLE);
+		this.stmt.executeUpdate(CREATE_TILE_TAG_SUMMARY_TABLE);
+		this.stmt.executeUpdate(CREATE_TAG_TILE_INDEX_TABLE);
 		this.stmt
 				.executeUpdate("CREATE TABLE IF NOT EXISTS zoom_interval_configuration "
 						+
 						"(interval TINYINT, baseZoomLevel TINYINT, minimalZoomLevel TINYINT, maximalZoomLevel TINYINT, dataType TINYINT);");
 
+		// Row-major IDs do not fit into an int above TagPostingList.MAX_BASE_ZOOM_LEVEL
+		this.rowMajorTileIDs = true;
+		for (int i = 0; i < this.mapFileMetaData.getAmountOfZoomIntervals(); i++) {
+			if (this.mapFileMetaData.getBaseZoomLevel()[i] > TagPostingList.MAX_BASE_ZOOM_LEVEL) {
+				this.rowMajorTileIDs = false;
+			}
+		}
+
 		writeMetaDataToDB();
 
 		// These values should only be added once and are not yet changeable
@@ -168,6 +197,7 @@ public class PCTilePersistenceManager implements TilePersistenceManager {
 			this.insertOrUpdateTileByIDStmt.setBytes(3, rawData);
 
 			this.insertOrUpdateTileByIDStmt.execute();
+			invalidateTileTagSummaries(getTilesByID(id, baseZoomInterval), false);
 			this.conn.commit();
 		} catch (SQLException e) {
 			e.printStackTrace();
@@ -178,8 +208,10 @@ public class PCTilePersistenceManager implements TilePersistenceManager {
 	@Override
 	public void insertOrUpdateTiles(Collection<TileDataContainer> rawData) {
 		try {
+			Vector<int[]> tiles = new Vector<int[]>(rawData.size());
 			this.insertOrUpdateTileByIDStmt.clearBatch();
 			for (TileDataContainer tile : rawData) {
+				tiles.add(new int[] { tile.getxPos(), tile.getyPos(), tile.getBaseZoomLevel() });
 				this.insertOrUpdateTileByIDStmt.setString(1, "tiles_" + tile.getBaseZoomLevel());
 				this.insertOrUpdateTileByIDStmt.setInt(2,
 						coordinatesToID(tile.getxPos(), tile.getyPos(), tile.getBaseZoomLevel()));
@@ -188,6 +220,7 @@ public class PCTilePersistenceManager implements TilePersistenceManager {
 			}
 
 			insertOrUpdateTileByIDStmt.executeBatch();
+			invalidateTileTagSummaries(tiles, false);
 			this.conn.commit();
 		} catch (SQLException e) {
 			e.printStackTrace();
@@ -208,6 +241,7 @@ public class PCTilePersistenceManager implements TilePersistenceManager {
 
 			this.deleteTileByIDStmt.addBatch();
 			this.deleteTileByIDStmt.executeBatch();
+			invalidateTileTagSummaries(getTilesByID(id, baseZoomInterval), true);
 			this.conn.commit();
 		} catch (SQLException e) {
 			e.printStackTrace();
@@ -218,14 +252,17 @@ public class PCTilePersistenceManager implements TilePersistenceManager {
 	@Override
 	public void deleteTiles(int[] id, byte baseZoomInterval) {
 		try {
+			Vector<int[]> tiles = new Vector<int[]>(id.length);
 			this.deleteTileByIDStmt.clearBatch();
 			for (int i = 0; i < id.length; i++) {
+				tiles.addAll(getTilesByID(id[i], baseZoomInterval));
 				this.deleteTileByIDStmt.setString(1, "tiles_" + baseZoomInterval);
 				this.deleteTileByIDStmt.setInt(2, id[i]);
 
 				this.deleteTileByIDStmt.addBatch();
 			}
 			this.deleteTileByIDStmt.executeBatch();
+			invalidateTileTagSummaries(tiles, true);
 			this.conn.commit();
 		} catch (SQLException e) {
 			e.printStackTrace();
@@ -257,6 +294,33 @@ public class PCTilePersistenceManager implements TilePersistenceManager {
 		return result;
 	}
 
+	@Override
+	public byte[] getTileHeader(int xPos, int yPos, byte baseZoomInterval, int length) {
+		byte[] result = null;
+
+		try {
+			if (this.getTileHeaderStmt == null) {
+				this.getTileHeaderStmt = new PreparedStatement[this.mapFileMetaData.getAmountOfZoomIntervals()];
+			}
+			if (this.getTileHeaderStmt[baseZoomInterval] == null) {
+				this.getTileHeaderStmt[baseZoomInterval] = this.conn.prepareStatement("SELECT substr(data, 1, ?) FROM tiles_"
+						+ baseZoomInterval + " WHERE id == ?;");
+			}
+
+			this.getTileHeaderStmt[baseZoomInterval].setInt(1, length);
+			this.getTileHeaderStmt[baseZoomInterval].setInt(2, coordinatesToID(xPos, yPos, baseZoomInterval));
+			this.resultSet = this.getTileHeaderStmt[baseZoomInterval].executeQuery();
+
+			if (this.resultSet.next()) {
+				result = this.resultSet.getBytes(1);
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+
+		return result;
+	}
+
 	@Override
 	public Collection<TileDataContainer> getTileData(int[] ids, byte baseZoomInterval) {
 		Vector<TileDataContainer> ret = new Vector<TileDataContainer>();
@@ -294,6 +358,94 @@ public class PCTilePersistenceManager implements TilePersistenceManager {
 		return sb.toString();
 	}
 
+	@Override
+	public void visitTiles(int minX, int minY, int maxX, int maxY, byte baseZoomInterval,
+			boolean fullTableScan, TileVisitor visitor) {
+		// Legacy tile IDs cannot be decoded (see coordinatesToID), so the rows are labelled by the
+		// requested tiles' IDs. The range's first and last tile have the smallest and largest ID.
+		HashMap<Integer, Vector<int[]>> positions = null;
+		if (!this.rowMajorTileIDs) {
+			positions = getTilePositions(minX, minY, maxX, maxY, baseZoomInterval);
+		}
+		byte baseZoomLevel = this.mapFileMetaData.getBaseZoomLevel()[baseZoomInterval];
+
+		try {
+			PreparedStatement selectStmt;
+			if (fullTableScan) {
+				// NOT INDEXED forces a sequential scan even if SQLite would prefer the primary key
+				selectStmt = this.conn.prepareStatement("SELECT id, data FROM tiles_" + baseZoomInterval
+						+ " NOT INDEXED;");
+			} else {
+				selectStmt = this.conn.prepareStatement("SELECT id, data FROM tiles_" + baseZoomInterval
+						+ " WHERE id BETWEEN ? AND ?;");
+				selectStmt.setInt(1, coordinatesToID(minX, minY, baseZoomInterval));
+				selectStmt.setInt(2, coordinatesToID(maxX, maxY, baseZoomInterval));
+			}
+
+			// The result set is not shared, as the visitor may run other queries (e.g. for way names).
+			// The statement is closed even if the visitor fails.
+			ResultSet rs = null;
+			try {
+				rs = selectStmt.executeQuery();
+
+				int x;
+				int y;
+				Vector<int[]> tiles;
+				byte[] data;
+				while (rs.next()) {
+					if (this.rowMajorTileIDs) {
+						x = TagPostingList.getTileX(rs.getInt(1), baseZoomLevel);
+						y = TagPostingList.getTileY(rs.getInt(1), baseZoomLevel);
+						if (x >= minX && x <= maxX && y >= minY && y <= maxY) {
+							visitor.visitTile(new TileDataContainer(rs.getBytes(2), TileDataContainer.TILE_TYPE_VECTOR,
+									x, y, baseZoomInterval));
+						}
+						continue;
+					}
+
+					tiles = positions.get(Integer.valueOf(rs.getInt(1)));
+					if (tiles == null) {
+						continue;
+					}
+
+					data = rs.getBytes(2);
+					for (int[] tile : tiles) {
+						visitor.visitTile(new TileDataContainer(data, TileDataContainer.TILE_TYPE_VECTOR, tile[0],
+								tile[1], baseZoomInterval));
+					}
+				}
+			} finally {
+				if (rs != null) {
+					rs.close();
+				}
+				selectStmt.close();
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public int getTileCount(byte baseZoomInterval) {
+		try {
+			this.stmt.execute("SELECT count(*) FROM tiles_" + baseZoomInterval + ";");
+			this.resultSet = this.stmt.getResultSet();
+
+			if (this.resultSet.next()) {
+				return this.resultSet.getInt(1);
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+
+		return -1;
+	}
+
+	@Override
+	public boolean hasRowMajorTileIDs() {
+		return this.rowMajorTileIDs;
+	}
+
 	@Override
 	public MapFileMetaData getMetaData() {
 		return this.mapFileMetaData;
@@ -305,6 +457,320 @@ public class PCTilePersistenceManager implements TilePersistenceManager {
 		writeMetaDataToDB();
 	}
 
+	@Override
+	public void setWayNames(String[] wayNames) {
+		try {
+			// Older databases do not have this table
+			this.stmt.executeUpdate("CREATE TABLE IF NOT EXISTS way_names (id INTEGER PRIMARY KEY, name VARCHAR);");
+			this.stmt.executeUpdate("DELETE FROM way_names;");
+
+			PreparedStatement insertWayNameStmt = this.conn.prepareStatement("INSERT INTO way_names (id, name) VALUES (?, ?);");
+			for (int i = 0; i < wayNames.length; i++) {
+				insertWayNameStmt.setInt(1, i);
+				insertWayNameStmt.setString(2, wayNames[i]);
+				insertWayNameStmt.addBatch();
+			}
+
+			insertWayNameStmt.executeBatch();
+			insertWayNameStmt.close();
+			this.conn.commit();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public String[] getWayNames() {
+		if (!this.mapFileMetaData.isWayNameDictionaryFlagSet()) {
+			return null;
+		}
+
+		String[] ret = null;
+		try {
+			this.stmt.execute("SELECT count(*) FROM way_names;");
+			this.resultSet = this.stmt.getResultSet();
+			if (this.resultSet.next()) {
+				ret = new String[this.resultSet.getInt(1)];
+			}
+
+			this.stmt.execute("SELECT id, name FROM way_names;");
+			this.resultSet = this.stmt.getResultSet();
+			while (this.resultSet.next()) {
+				ret[this.resultSet.getInt(1)] = this.resultSet.getString(2);
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+
+		return ret;
+	}
+
+	@Override
+	public void insertWayIndexEntries(WayIndex entries) {
+		try {
+			// Older databases do not have this table
+			this.stmt.executeUpdate(CREATE_WAY_INDEX_TABLE);
+
+			PreparedStatement insertStmt = this.conn.prepareStatement("INSERT OR IGNORE INTO way_index VALUES (?, ?, ?, ?, ?);");
+			for (int i = 0; i < entries.size(); i++) {
+				insertStmt.setLong(1, entries.getWayID(i));
+				insertStmt.setInt(2, entries.getBaseZoomInterval(i));
+				insertStmt.setInt(3, entries.getTileX(i));
+				insertStmt.setInt(4, entries.getTileY(i));
+				insertStmt.setInt(5, entries.getOffset(i));
+				insertStmt.addBatch();
+			}
+
+			insertStmt.executeBatch();
+			insertStmt.close();
+			this.conn.commit();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public WayIndex getWayIndex() {
+		WayIndex ret = null;
+
+		try {
+			this.stmt.execute("SELECT count(*) FROM sqlite_master WHERE type = 'table' AND name = 'way_index';");
+			this.resultSet = this.stmt.getResultSet();
+			if (!this.resultSet.next() || this.resultSet.getInt(1) == 0) {
+				return null;
+			}
+
+			this.stmt.execute("SELECT count(*) FROM way_index;");
+			this.resultSet = this.stmt.getResultSet();
+			if (!this.resultSet.next() || this.resultSet.getInt(1) == 0) {
+				return null;
+			}
+			ret = new WayIndex(this.resultSet.getInt(1));
+
+			// Sorted entries can be searched without sorting them again
+			this.stmt.execute("SELECT id, interval, x, y, offset FROM way_index ORDER BY id, interval;");
+			this.resultSet = this.stmt.getResultSet();
+			while (this.resultSet.next()) {
+				ret.add(this.resultSet.getLong(1), (byte) this.resultSet.getInt(2), this.resultSet.getInt(3),
+						this.resultSet.getInt(4), this.resultSet.getInt(5));
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+
+		return ret;
+	}
+
+	@Override
+	public void insertOrUpdateTileTagSummaries(Collection<TileTagSummary> summaries) {
+		try {
+			// Older databases do not have these tables
+			this.stmt.executeUpdate(CREATE_TILE_TAG_SUMMARY_TABLE);
+			this.stmt.executeUpdate(CREATE_TAG_TILE_INDEX_TABLE);
+
+			// Collect the changes to the inverted index
+			TagTileIndexUpdate indexUpdate = new TagTileIndexUpdate();
+			PreparedStatement selectStmt = this.conn
+					.prepareStatement("SELECT poi_tags, way_tags FROM tile_tag_summary WHERE interval == ? AND y == ? AND x == ?;");
+			TileTagSummary oldSummary;
+			for (TileTagSummary summary : summaries) {
+				selectStmt.setInt(1, summary.getBaseZoomInterval());
+				selectStmt.setInt(2, summary.getYPos());
+				selectStmt.setInt(3, summary.getXPos());
+				this.resultSet = selectStmt.executeQuery();
+
+				oldSummary = null;
+				if (this.resultSet.next()) {
+					oldSummary = new TileTagSummary(summary.getXPos(), summary.getYPos(),
+							summary.getBaseZoomInterval(), TileTagSummary.fromByteArray(this.resultSet.getBytes(1)),
+							TileTagSummary.fromByteArray(this.resultSet.getBytes(2)));
+				}
+				this.resultSet.close();
+
+				indexUpdate.replaceSummary(oldSummary, summary,
+						this.mapFileMetaData.getBaseZoomLevel()[summary.getBaseZoomInterval()]);
+			}
+			selectStmt.close();
+
+			// Summaries
+			PreparedStatement insertStmt = this.conn
+					.prepareStatement("INSERT OR REPLACE INTO tile_tag_summary VALUES (?, ?, ?, ?, ?);");
+			for (TileTagSummary summary : summaries) {
+				insertStmt.setInt(1, summary.getBaseZoomInterval());
+				insertStmt.setInt(2, summary.getXPos());
+				insertStmt.setInt(3, summary.getYPos());
+				insertStmt.setBytes(4, TileTagSummary.toByteArray(summary.getPoiTags()));
+				insertStmt.setBytes(5, TileTagSummary.toByteArray(summary.getWayTags()));
+				insertStmt.addBatch();
+			}
+			insertStmt.executeBatch();
+			insertStmt.close();
+
+			updatePostingLists(indexUpdate);
+
+			this.conn.commit();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Removes the tag summaries of tiles that have been written or deleted and lists written tiles as
+	 * unsummarized (see {@link TagTileIndexUpdate}), so that tag queries do not rely on outdated
+	 * summaries. The changes are not committed.
+	 * 
+	 * @param tiles
+	 *            The tiles as <code>[x, y, baseZoomInterval]</code>.
+	 * @param deleted
+	 *            true if the tiles have been deleted, false if their data has been replaced.
+	 */
+	private void invalidateTileTagSummaries(Collection<int[]> tiles, boolean deleted) throws SQLException {
+		// Older databases do not have tag summaries
+		ResultSet rs = this.stmt
+				.executeQuery("SELECT count(*) FROM sqlite_master WHERE type = 'table' AND name = 'tile_tag_summary';");
+		boolean hasSummaries = rs.next() && rs.getInt(1) > 0;
+		rs.close();
+		if (!hasSummaries) {
+			return;
+		}
+		this.stmt.executeUpdate(CREATE_TAG_TILE_INDEX_TABLE);
+
+		TagTileIndexUpdate indexUpdate = new TagTileIndexUpdate();
+		PreparedStatement selectStmt = this.conn
+				.prepareStatement("SELECT poi_tags, way_tags FROM tile_tag_summary WHERE interval == ? AND y == ? AND x == ?;");
+		PreparedStatement deleteStmt = this.conn
+				.prepareStatement("DELETE FROM tile_tag_summary WHERE interval == ? AND y == ? AND x == ?;");
+		TileTagSummary oldSummary;
+		byte baseZoomInterval;
+		for (int[] tile : tiles) {
+			baseZoomInterval = (byte) tile[2];
+			selectStmt.setInt(1, baseZoomInterval);
+			selectStmt.setInt(2, tile[1]);
+			selectStmt.setInt(3, tile[0]);
+			rs = selectStmt.executeQuery();
+
+			oldSummary = null;
+			if (rs.next()) {
+				oldSummary = new TileTagSummary(tile[0], tile[1], baseZoomInterval, TileTagSummary.fromByteArray(rs
+						.getBytes(1)), TileTagSummary.fromByteArray(rs.getBytes(2)));
+			}
+			rs.close();
+
+			deleteStmt.setInt(1, baseZoomInterval);
+			deleteStmt.setInt(2, tile[1]);
+			deleteStmt.setInt(3, tile[0]);
+			deleteStmt.addBatch();
+
+			indexUpdate.removeSummary(oldSummary, tile[0], tile[1], baseZoomInterval,
+					this.mapFileMetaData.getBaseZoomLevel()[baseZoomInterval], deleted);
+		}
+		deleteStmt.executeBatch();
+		deleteStmt.close();
+		selectStmt.close();
+
+		updatePostingLists(indexUpdate);
+	}
+
+	/**
+	 * Applies changes to the inverted tag index. Each posting list is read and written once. The
+	 * changes are not committed.
+	 */
+	private void updatePostingLists(TagTileIndexUpdate indexUpdate) throws SQLException {
+		PreparedStatement selectStmt = this.conn
+				.prepareStatement("SELECT tiles FROM tag_tile_index WHERE interval == ? AND type == ? AND tag == ?;");
+		PreparedStatement insertStmt = this.conn
+				.prepareStatement("INSERT OR REPLACE INTO tag_tile_index VALUES (?, ?, ?, ?);");
+		byte[] postingList;
+		for (TagTileIndexUpdate.PostingListChange change : indexUpdate.getChanges()) {
+			selectStmt.setInt(1, change.getBaseZoomInterval());
+			selectStmt.setInt(2, change.getFeatureType());
+			selectStmt.setInt(3, change.getTagID());
+			this.resultSet = selectStmt.executeQuery();
+			postingList = this.resultSet.next() ? this.resultSet.getBytes(1) : null;
+			this.resultSet.close();
+
+			insertStmt.setInt(1, change.getBaseZoomInterval());
+			insertStmt.setInt(2, change.getFeatureType());
+			insertStmt.setInt(3, change.getTagID());
+			insertStmt.setBytes(4, change.applyTo(postingList));
+			insertStmt.addBatch();
+		}
+		insertStmt.executeBatch();
+		insertStmt.close();
+		selectStmt.close();
+	}
+
+	@Override
+	public Collection<TileTagSummary> getTileTagSummaries(int minX, int minY, int maxX, int maxY,
+			byte baseZoomInterval) {
+		Vector<TileTagSummary> ret = new Vector<TileTagSummary>();
+
+		try {
+			if (this.getTileTagSummariesStmt == null) {
+				this.stmt.execute("SELECT count(*) FROM sqlite_master WHERE type = 'table' AND name = 'tile_tag_summary';");
+				this.resultSet = this.stmt.getResultSet();
+				if (!this.resultSet.next() || this.resultSet.getInt(1) == 0) {
+					return ret;
+				}
+
+				this.getTileTagSummariesStmt = this.conn
+						.prepareStatement("SELECT x, y, poi_tags, way_tags FROM tile_tag_summary "
+								+ "WHERE interval == ? AND y BETWEEN ? AND ? AND x BETWEEN ? AND ?;");
+			}
+
+			this.getTileTagSummariesStmt.setInt(1, baseZoomInterval);
+			this.getTileTagSummariesStmt.setInt(2, minY);
+			this.getTileTagSummariesStmt.setInt(3, maxY);
+			this.getTileTagSummariesStmt.setInt(4, minX);
+			this.getTileTagSummariesStmt.setInt(5, maxX);
+			this.resultSet = this.getTileTagSummariesStmt.executeQuery();
+
+			while (this.resultSet.next()) {
+				ret.add(new TileTagSummary(this.resultSet.getInt(1), this.resultSet.getInt(2), baseZoomInterval,
+						TileTagSummary.fromByteArray(this.resultSet.getBytes(3)), TileTagSummary
+								.fromByteArray(this.resultSet.getBytes(4))));
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+
+		return ret;
+	}
+
+	@Override
+	public int[] getTilesWithTag(byte baseZoomInterval, byte featureType, int tagID) {
+		try {
+			if (this.getTilesWithTagStmt == null) {
+				this.stmt.execute("SELECT count(*) FROM sqlite_master WHERE type = 'table' AND name = 'tag_tile_index';");
+				this.resultSet = this.stmt.getResultSet();
+				if (!this.resultSet.next() || this.resultSet.getInt(1) == 0) {
+					return null;
+				}
+
+				this.getTilesWithTagStmt = this.conn
+						.prepareStatement("SELECT tiles FROM tag_tile_index WHERE interval == ? AND type == ? AND tag IN (?, ?);");
+			}
+
+			this.getTilesWithTagStmt.setInt(1, baseZoomInterval);
+			this.getTilesWithTagStmt.setInt(2, featureType);
+			this.getTilesWithTagStmt.setInt(3, tagID);
+			this.getTilesWithTagStmt.setInt(4, TagTileIndexUpdate.UNSUMMARIZED_TILES);
+			this.resultSet = this.getTilesWithTagStmt.executeQuery();
+
+			// Tiles without a summary may contain the tag as well
+			int[] ret = new int[0];
+			while (this.resultSet.next()) {
+				ret = TagPostingList.update(ret, TagPostingList.decode(this.resultSet.getBytes(1)), new int[0]);
+			}
+
+			return ret;
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+
+		return null;
+	}
+
 	/**
 	 * This synchronizes the metadata object with the DB. Entries in the database will be updated. Keys
 	 * that do not yet exist will be created.
@@ -345,6 +811,8 @@ public class PCTilePersistenceManager implements TilePersistenceManager {
 					+ (this.mapFileMetaData.isMapStartPositionFlagSet() ? "1" : "0") + "');");
 			this.stmt.executeUpdate("INSERT OR REPLACE INTO metadata VALUES ('startZoomLevelExistsFlag', '"
 					+ (this.mapFileMetaData.isStartZoomLevelFlagSet() ? "1" : "0") + "');");
+			this.stmt.executeUpdate("INSERT OR REPLACE INTO metadata VALUES ('wayNameDictionaryFlag', '"
+					+ (this.mapFileMetaData.isWayNameDictionaryFlagSet() ? "1" : "0") + "');");
 
 			if (this.mapFileMetaData.isMapStartPositionFlagSet()) {
 				this.stmt.executeUpdate("INSERT OR REPLACE INTO metadata VALUES ('mapStartLat', '"
@@ -363,6 +831,12 @@ public class PCTilePersistenceManager implements TilePersistenceManager {
 
 			this.stmt.executeUpdate("INSERT OR REPLACE INTO metadata VALUES ('comment', '" + this.mapFileMetaData.getComment()
 					+ "');");
+
+			// Tile ID scheme (only set for new databases, legacy databases are converted by TileIDMigrator)
+			if (this.rowMajorTileIDs) {
+				this.stmt.executeUpdate("INSERT OR REPLACE INTO metadata VALUES ('" + TILE_ID_SCHEME_KEY + "', '"
+						+ TILE_ID_SCHEME_ROW_MAJOR + "');");
+			}
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
@@ -475,6 +949,14 @@ public class PCTilePersistenceManager implements TilePersistenceManager {
 
 			this.mapFileMetaData.setFlags(flags);
 
+			// Way name dictionary flag
+			this.getMetaDataStatement.setString(1, "wayNameDictionaryFlag");
+			this.getMetaDataStatement.execute();
+			this.resultSet = this.getMetaDataStatement.getResultSet();
+			if (this.resultSet.next()) {
+				this.mapFileMetaData.setWayNameDictionaryFlag(this.resultSet.getString(1).equals("1"));
+			}
+
 			// Map start position
 			int mapStartLat = 0;
 			int mapStartLon = 0;
@@ -513,6 +995,13 @@ public class PCTilePersistenceManager implements TilePersistenceManager {
 				this.mapFileMetaData.setComment(this.resultSet.getString(1));
 			}
 
+			// Tile ID scheme
+			this.getMetaDataStatement.setString(1, TILE_ID_SCHEME_KEY);
+			this.getMetaDataStatement.execute();
+			this.resultSet = this.getMetaDataStatement.getResultSet();
+			this.rowMajorTileIDs = this.resultSet.next()
+					&& TILE_ID_SCHEME_ROW_MAJOR.equals(this.resultSet.getString(1));
+
 			// POI tag mappings
 			int numPoiTags = 0;
 			this.stmt.execute("SELECT count(*) FROM poi_tags;");
@@ -585,7 +1074,69 @@ public class PCTilePersistenceManager implements TilePersistenceManager {
 
 	}
 
+	/**
+	 * Maps the IDs of a tile range to the tiles' positions. Tiles sharing an ID share their data.
+	 * 
+	 * @return The positions as <code>[x, y]</code> by tile ID.
+	 */
+	private HashMap<Integer, Vector<int[]>> getTilePositions(int minX, int minY, int maxX, int maxY,
+			byte baseZoomInterval) {
+		HashMap<Integer, Vector<int[]>> ret = new HashMap<Integer, Vector<int[]>>();
+
+		Integer id;
+		Vector<int[]> tiles;
+		for (int y = minY; y <= maxY; y++) {
+			for (int x = minX; x <= maxX; x++) {
+				id = Integer.valueOf(coordinatesToID(x, y, baseZoomInterval));
+				tiles = ret.get(id);
+				if (tiles == null) {
+					tiles = new Vector<int[]>(1);
+					ret.put(id, tiles);
+				}
+				tiles.add(new int[] { x, y });
+			}
+		}
+
+		return ret;
+	}
+
+	/**
+	 * 
+	 * @return The positions of all tiles stored under the given ID as
+	 *         <code>[x, y, baseZoomInterval]</code>. Legacy IDs may belong to several tiles of the map.
+	 */
+	private Vector<int[]> getTilesByID(int id, byte baseZoomInterval) {
+		byte baseZoomLevel = this.mapFileMetaData.getBaseZoomLevel()[baseZoomInterval];
+		Vector<int[]> ret = new Vector<int[]>(1);
+
+		if (this.rowMajorTileIDs) {
+			ret.add(new int[] { TagPostingList.getTileX(id, baseZoomLevel), TagPostingList.getTileY(id, baseZoomLevel),
+					baseZoomInterval });
+			return ret;
+		}
+
+		for (int[] position : TileIDMigrator.getLegacyIDPositions(id, baseZoomLevel, TileIDMigrator.getExtent(
+				this.mapFileMetaData.getMinLat() / GeoCoordinate.FACTOR_DOUBLE_TO_INT,
+				this.mapFileMetaData.getMinLon() / GeoCoordinate.FACTOR_DOUBLE_TO_INT,
+				this.mapFileMetaData.getMaxLat() / GeoCoordinate.FACTOR_DOUBLE_TO_INT,
+				this.mapFileMetaData.getMaxLon() / GeoCoordinate.FACTOR_DOUBLE_TO_INT, baseZoomLevel))) {
+			ret.add(new int[] { position[0], position[1], baseZoomInterval });
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Row-major IDs are <code>(y &lt;&lt; baseZoomLevel) + x</code>. Legacy IDs are
+	 * <code>y * baseZoomLevel^2 + x</code>. As x may exceed baseZoomLevel^2, different tiles can have
+	 * the same legacy ID and a legacy ID cannot be decoded into its tile's position. Both grow with x
+	 * and y.
+	 */
 	private int coordinatesToID(int xPos, int yPos, int baseZoomInterval) {
+		if (this.rowMajorTileIDs) {
+			return TagPostingList.toTileKey(xPos, yPos, this.mapFileMetaData.getBaseZoomLevel()[baseZoomInterval]);
+		}
+
 		return (int) (yPos * Math.pow(this.mapFileMetaData.getBaseZoomLevel()[baseZoomInterval], 2) + xPos);
 	}
 
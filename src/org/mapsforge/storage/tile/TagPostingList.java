@@ -0,0 +1,213 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.tile;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Helper methods for the posting lists of the inverted tag index. A posting list holds the keys of all
+ * tiles containing a given tag in ascending order. It is stored as a sequence of VBE-U encoded
+ * differences between consecutive keys (the first key is stored as is), so dense lists take about
+ * one byte per tile.
+ * 
+ * A tile's key is its row-major position in the tile grid of its base zoom level (
+ * <code>y * 2^baseZoomLevel + x</code>), so the keys of a rectangular tile range are ordered row by
+ * row. Keys are ints, so they can only be computed for base zoom levels up to
+ * {@link #MAX_BASE_ZOOM_LEVEL}.
+ * 
+ * @author Karsten Groll
+ * 
+ */
+public class TagPostingList {
+	/** Highest base zoom level whose tile keys fit into an int. */
+	public static final byte MAX_BASE_ZOOM_LEVEL = 15;
+
+	private TagPostingList() {
+		// Only static methods
+	}
+
+	/**
+	 * 
+	 * @param x
+	 *            The tile's x-coordinate.
+	 * @param y
+	 *            The tile's y-coordinate.
+	 * @param baseZoomLevel
+	 *            The base zoom level of the tile's zoom interval.
+	 * @return The tile's key.
+	 * @throws IllegalArgumentException
+	 *             if the base zoom level exceeds {@link #MAX_BASE_ZOOM_LEVEL}.
+	 */
+	public static int toTileKey(int x, int y, byte baseZoomLevel) {
+		// y << 16 does not fit into an int anymore
+		if (baseZoomLevel > MAX_BASE_ZOOM_LEVEL) {
+			throw new IllegalArgumentException("Tile keys are limited to base zoom level " + MAX_BASE_ZOOM_LEVEL
+					+ ", got " + baseZoomLevel);
+		}
+
+		return (y << baseZoomLevel) + x;
+	}
+
+	/**
+	 * 
+	 * @param tileKey
+	 *            The tile's key.
+	 * @param baseZoomLevel
+	 *            The base zoom level of the tile's zoom interval.
+	 * @return The tile's x-coordinate.
+	 */
+	public static int getTileX(int tileKey, byte baseZoomLevel) {
+		return tileKey & ((1 << baseZoomLevel) - 1);
+	}
+
+	/**
+	 * 
+	 * @param tileKey
+	 *            The tile's key.
+	 * @param baseZoomLevel
+	 *            The base zoom level of the tile's zoom interval.
+	 * @return The tile's y-coordinate.
+	 */
+	public static int getTileY(int tileKey, byte baseZoomLevel) {
+		return tileKey >>> baseZoomLevel;
+	}
+
+	/**
+	 * Encodes a posting list.
+	 * 
+	 * @param tileKeys
+	 *            Tile keys in ascending order without duplicates.
+	 * @return The encoded posting list.
+	 */
+	public static byte[] encode(int[] tileKeys) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(tileKeys.length + 4);
+
+		int previous = 0;
+		int delta;
+		for (int i = 0; i < tileKeys.length; i++) {
+			delta = tileKeys[i] - previous;
+			while ((delta & 0xffffff80) != 0) {
+				out.write((delta & 0x7f) | 0x80);
+				delta >>>= 7;
+			}
+			out.write(delta);
+			previous = tileKeys[i];
+		}
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decodes a posting list.
+	 * 
+	 * @param data
+	 *            The encoded posting list (may be null).
+	 * @return The tile keys in ascending order.
+	 */
+	public static int[] decode(byte[] data) {
+		if (data == null) {
+			return new int[0];
+		}
+
+		int[] ret = new int[data.length];
+		int size = 0;
+		int previous = 0;
+		int delta = 0;
+		int shift = 0;
+		for (int i = 0; i < data.length; i++) {
+			delta |= (data[i] & 0x7f) << shift;
+
+			if ((data[i] & 0x80) != 0) {
+				shift += 7;
+			} else {
+				previous += delta;
+				ret[size++] = previous;
+				delta = 0;
+				shift = 0;
+			}
+		}
+
+		return Arrays.copyOf(ret, size);
+	}
+
+	/**
+	 * Adds and removes tile keys from a posting list.
+	 * 
+	 * @param tileKeys
+	 *            The current tile keys in ascending order.
+	 * @param added
+	 *            Keys to be added in ascending order.
+	 * @param removed
+	 *            Keys to be removed in ascending order.
+	 * @return The updated tile keys in ascending order.
+	 */
+	public static int[] update(int[] tileKeys, int[] added, int[] removed) {
+		int[] ret = new int[tileKeys.length + added.length];
+		int size = 0;
+		int i = 0;
+		int a = 0;
+		int r = 0;
+		int next;
+
+		while (i < tileKeys.length || a < added.length) {
+			if (a == added.length || (i < tileKeys.length && tileKeys[i] <= added[a])) {
+				if (a < added.length && tileKeys[i] == added[a]) {
+					++a;
+				}
+				next = tileKeys[i++];
+			} else {
+				next = added[a++];
+			}
+
+			while (r < removed.length && removed[r] < next) {
+				++r;
+			}
+			if (r < removed.length && removed[r] == next) {
+				continue;
+			}
+
+			ret[size++] = next;
+		}
+
+		return Arrays.copyOf(ret, size);
+	}
+
+	/**
+	 * Finds the first position in a posting list whose key is greater than or equal to the given key.
+	 * 
+	 * @param tileKeys
+	 *            Tile keys in ascending order.
+	 * @param tileKey
+	 *            The key to search for.
+	 * @return The position or <code>tileKeys.length</code> if all keys are smaller.
+	 */
+	public static int lowerBound(int[] tileKeys, int tileKey) {
+		int low = 0;
+		int high = tileKeys.length;
+		int mid;
+
+		while (low < high) {
+			mid = (low + high) >>> 1;
+			if (tileKeys[mid] < tileKey) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+
+		return low;
+	}
+}
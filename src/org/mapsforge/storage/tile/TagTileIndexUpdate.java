@@ -0,0 +1,223 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.tile;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+import org.mapsforge.storage.MapDataProvider;
+
+/**
+ * Collects the changes to the inverted tag index caused by replacing the tag summaries of several
+ * tiles, so that each affected posting list has to be read and written only once.
+ * 
+ * Tiles whose data is written after their summary has been created lose their summary and are listed
+ * in the posting lists of {@link #UNSUMMARIZED_TILES} until they get a new summary. As they may contain
+ * any tag, these lists belong to the result of every tag lookup.
+ * 
+ * @author Karsten Groll
+ * 
+ */
+public class TagTileIndexUpdate {
+	/** Tag ID of the posting lists holding the tiles without a summary. */
+	public static final int UNSUMMARIZED_TILES = -1;
+
+	private final HashMap<Long, PostingListChange> changes;
+
+	/**
+	 * Creates an empty update.
+	 */
+	public TagTileIndexUpdate() {
+		this.changes = new HashMap<Long, PostingListChange>();
+	}
+
+	/**
+	 * Records the changes caused by replacing a tile's tag summary.
+	 * 
+	 * @param oldSummary
+	 *            The tile's current summary or null if it does not have one.
+	 * @param newSummary
+	 *            The tile's new summary.
+	 * @param baseZoomLevel
+	 *            The base zoom level of the tile's zoom interval. Intervals above
+	 *            {@link TagPostingList#MAX_BASE_ZOOM_LEVEL} are not indexed.
+	 */
+	public void replaceSummary(TileTagSummary oldSummary, TileTagSummary newSummary, byte baseZoomLevel) {
+		if (baseZoomLevel > TagPostingList.MAX_BASE_ZOOM_LEVEL) {
+			return;
+		}
+
+		int tileKey = TagPostingList.toTileKey(newSummary.getXPos(), newSummary.getYPos(), baseZoomLevel);
+		byte interval = newSummary.getBaseZoomInterval();
+
+		diff(interval, MapDataProvider.FEATURE_TYPE_POI, tileKey, oldSummary == null ? null : oldSummary.getPoiTags(),
+				newSummary.getPoiTags());
+		diff(interval, MapDataProvider.FEATURE_TYPE_WAY, tileKey, oldSummary == null ? null : oldSummary.getWayTags(),
+				newSummary.getWayTags());
+
+		getChange(interval, MapDataProvider.FEATURE_TYPE_POI, UNSUMMARIZED_TILES).remove(tileKey);
+		getChange(interval, MapDataProvider.FEATURE_TYPE_WAY, UNSUMMARIZED_TILES).remove(tileKey);
+	}
+
+	/**
+	 * Records the changes caused by writing or deleting a tile, which removes its tag summary.
+	 * 
+	 * @param oldSummary
+	 *            The tile's current summary or null if it does not have one.
+	 * @param xPos
+	 *            The tile's x-coordinate in the grid.
+	 * @param yPos
+	 *            The tile's y-coordinate in the grid.
+	 * @param baseZoomInterval
+	 *            The tile's base zoom interval.
+	 * @param baseZoomLevel
+	 *            The base zoom level of the tile's zoom interval. Intervals above
+	 *            {@link TagPostingList#MAX_BASE_ZOOM_LEVEL} are not indexed.
+	 * @param deleted
+	 *            true if the tile has been deleted, false if its data has been replaced.
+	 */
+	public void removeSummary(TileTagSummary oldSummary, int xPos, int yPos, byte baseZoomInterval,
+			byte baseZoomLevel, boolean deleted) {
+		if (baseZoomLevel > TagPostingList.MAX_BASE_ZOOM_LEVEL) {
+			return;
+		}
+
+		int tileKey = TagPostingList.toTileKey(xPos, yPos, baseZoomLevel);
+		if (oldSummary != null) {
+			diff(baseZoomInterval, MapDataProvider.FEATURE_TYPE_POI, tileKey, oldSummary.getPoiTags(), new BitSet());
+			diff(baseZoomInterval, MapDataProvider.FEATURE_TYPE_WAY, tileKey, oldSummary.getWayTags(), new BitSet());
+		}
+
+		if (deleted) {
+			getChange(baseZoomInterval, MapDataProvider.FEATURE_TYPE_POI, UNSUMMARIZED_TILES).remove(tileKey);
+			getChange(baseZoomInterval, MapDataProvider.FEATURE_TYPE_WAY, UNSUMMARIZED_TILES).remove(tileKey);
+		} else {
+			getChange(baseZoomInterval, MapDataProvider.FEATURE_TYPE_POI, UNSUMMARIZED_TILES).add(tileKey);
+			getChange(baseZoomInterval, MapDataProvider.FEATURE_TYPE_WAY, UNSUMMARIZED_TILES).add(tileKey);
+		}
+	}
+
+	/**
+	 * 
+	 * @return All posting lists that have to be changed.
+	 */
+	public Collection<PostingListChange> getChanges() {
+		return this.changes.values();
+	}
+
+	private void diff(byte interval, byte featureType, int tileKey, BitSet oldTags, BitSet newTags) {
+		for (int tag = newTags.nextSetBit(0); tag >= 0; tag = newTags.nextSetBit(tag + 1)) {
+			if (oldTags == null || !oldTags.get(tag)) {
+				getChange(interval, featureType, tag).add(tileKey);
+			}
+		}
+
+		if (oldTags == null) {
+			return;
+		}
+
+		for (int tag = oldTags.nextSetBit(0); tag >= 0; tag = oldTags.nextSetBit(tag + 1)) {
+			if (!newTags.get(tag)) {
+				getChange(interval, featureType, tag).remove(tileKey);
+			}
+		}
+	}
+
+	private PostingListChange getChange(byte interval, byte featureType, int tagID) {
+		Long key = Long.valueOf(((long) interval << 40) | ((long) featureType << 32) | (tagID & 0xffffffffL));
+		PostingListChange ret = this.changes.get(key);
+
+		if (ret == null) {
+			ret = new PostingListChange(interval, featureType, tagID);
+			this.changes.put(key, ret);
+		}
+
+		return ret;
+	}
+
+	/**
+	 * The tiles to be added to and removed from a single posting list.
+	 */
+	public static class PostingListChange {
+		private final byte baseZoomInterval;
+		private final byte featureType;
+		private final int tagID;
+		final TreeSet<Integer> added;
+		final TreeSet<Integer> removed;
+
+		PostingListChange(byte baseZoomInterval, byte featureType, int tagID) {
+			this.baseZoomInterval = baseZoomInterval;
+			this.featureType = featureType;
+			this.tagID = tagID;
+			this.added = new TreeSet<Integer>();
+			this.removed = new TreeSet<Integer>();
+		}
+
+		public byte getBaseZoomInterval() {
+			return this.baseZoomInterval;
+		}
+
+		public byte getFeatureType() {
+			return this.featureType;
+		}
+
+		public int getTagID() {
+			return this.tagID;
+		}
+
+		/**
+		 * Adds a tile, overriding an earlier removal of the same tile.
+		 */
+		void add(int tileKey) {
+			Integer key = Integer.valueOf(tileKey);
+			this.removed.remove(key);
+			this.added.add(key);
+		}
+
+		/**
+		 * Removes a tile, overriding an earlier addition of the same tile.
+		 */
+		void remove(int tileKey) {
+			Integer key = Integer.valueOf(tileKey);
+			this.added.remove(key);
+			this.removed.add(key);
+		}
+
+		/**
+		 * Applies this change to a posting list.
+		 * 
+		 * @param postingList
+		 *            The encoded posting list or null if there is none yet.
+		 * @return The encoded updated posting list.
+		 */
+		public byte[] applyTo(byte[] postingList) {
+			return TagPostingList.encode(TagPostingList.update(TagPostingList.decode(postingList),
+					toArray(this.added), toArray(this.removed)));
+		}
+
+		private static int[] toArray(TreeSet<Integer> keys) {
+			int[] ret = new int[keys.size()];
+			int i = 0;
+			for (Iterator<Integer> it = keys.iterator(); it.hasNext();) {
+				ret[i++] = it.next().intValue();
+			}
+
+			return ret;
+		}
+	}
+}
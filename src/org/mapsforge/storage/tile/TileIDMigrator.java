@@ -0,0 +1,269 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.tile;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Vector;
+import java.util.logging.Logger;
+
+import org.mapsforge.core.GeoCoordinate;
+import org.mapsforge.core.MercatorProjection;
+
+/**
+ * Converts a map database using the legacy tile IDs <code>y * baseZoomLevel^2 + x</code> to
+ * {@link TilePersistenceManager#TILE_ID_SCHEME_ROW_MAJOR row-major} tile IDs. Legacy IDs are decoded
+ * using the map's bounding box: an ID is converted only if exactly one tile within the bounding box
+ * has this ID. Otherwise tiles of the map have overwritten each other and the map has to be converted
+ * from its source again. The database is converted in place and compacted afterwards.
+ * 
+ * Usage: <code>TileIDMigrator &lt;map file&gt;</code>
+ * 
+ * @author Karsten Groll
+ * 
+ */
+public class TileIDMigrator {
+	private static final Logger LOGGER = Logger.getLogger(TileIDMigrator.class.getName());
+
+	// Number of tiles per batch
+	private static final int BATCH_SIZE = 10000;
+
+	private final Connection conn;
+
+	private TileIDMigrator(Connection conn) {
+		this.conn = conn;
+	}
+
+	/**
+	 * @param args
+	 *            The map file.
+	 */
+	public static void main(String[] args) {
+		if (args.length != 1) {
+			System.err.println("Usage: TileIDMigrator <map file>");
+			return;
+		}
+
+		try {
+			migrate(args[0]);
+		} catch (ClassNotFoundException e) {
+			e.printStackTrace();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Converts a map database to row-major tile IDs. Databases already using row-major tile IDs are not
+	 * changed.
+	 * 
+	 * @param path
+	 *            Path to the map file.
+	 * @throws ClassNotFoundException
+	 *             if the SQLite JDBC driver is missing.
+	 * @throws SQLException
+	 *             if the database could not be converted. The database is not changed then.
+	 */
+	public static void migrate(String path) throws ClassNotFoundException, SQLException {
+		long start = System.currentTimeMillis();
+
+		Class.forName("SQLite.JDBC");
+		Connection conn = DriverManager.getConnection("jdbc:sqlite:/" + path);
+		try {
+			if (TilePersistenceManager.TILE_ID_SCHEME_ROW_MAJOR.equals(getMetaData(conn,
+					TilePersistenceManager.TILE_ID_SCHEME_KEY))) {
+				LOGGER.info(path + " already has row-major tile IDs");
+				return;
+			}
+
+			conn.setAutoCommit(false);
+			try {
+				new TileIDMigrator(conn).convert();
+				conn.commit();
+			} catch (SQLException e) {
+				conn.rollback();
+				throw e;
+			}
+
+			// Free the pages of the dropped tables
+			conn.setAutoCommit(true);
+			Statement stmt = conn.createStatement();
+			stmt.executeUpdate("VACUUM;");
+			stmt.close();
+		} finally {
+			conn.close();
+		}
+
+		LOGGER.info("Converted " + path + " in " + (System.currentTimeMillis() - start) + " ms ("
+				+ new File(path).length() + " bytes)");
+	}
+
+	private void convert() throws SQLException {
+		double minLat = getCoordinate("boundingBoxMinLat");
+		double maxLat = getCoordinate("boundingBoxMaxLat");
+		double minLon = getCoordinate("boundingBoxMinLon");
+		double maxLon = getCoordinate("boundingBoxMaxLon");
+
+		Statement stmt = this.conn.createStatement();
+		ResultSet rs = stmt.executeQuery("SELECT interval, baseZoomLevel FROM zoom_interval_configuration;");
+		int intervals = 0;
+		while (rs.next()) {
+			intervals = Math.max(intervals, rs.getInt(1) + 1);
+		}
+		rs.close();
+
+		byte[] baseZoomLevels = new byte[intervals];
+		rs = stmt.executeQuery("SELECT interval, baseZoomLevel FROM zoom_interval_configuration;");
+		while (rs.next()) {
+			baseZoomLevels[rs.getInt(1)] = (byte) rs.getInt(2);
+		}
+		rs.close();
+
+		byte baseZoomLevel;
+		for (int i = 0; i < intervals; i++) {
+			baseZoomLevel = baseZoomLevels[i];
+			if (baseZoomLevel > TagPostingList.MAX_BASE_ZOOM_LEVEL) {
+				throw new SQLException("Zoom interval " + i + " has base zoom level " + baseZoomLevel
+						+ ", row-major tile IDs are limited to " + TagPostingList.MAX_BASE_ZOOM_LEVEL);
+			}
+
+			convertInterval(i, baseZoomLevel, getExtent(minLat, minLon, maxLat, maxLon, baseZoomLevel));
+		}
+
+		stmt.executeUpdate("INSERT OR REPLACE INTO metadata VALUES ('" + TilePersistenceManager.TILE_ID_SCHEME_KEY
+				+ "', '" + TilePersistenceManager.TILE_ID_SCHEME_ROW_MAJOR + "');");
+		stmt.close();
+	}
+
+	/**
+	 * Copies the tiles of one zoom interval into a new table using row-major IDs.
+	 * 
+	 * @param extent
+	 *            The map's bounding box as tile range <code>[minX, minY, maxX, maxY]</code>.
+	 */
+	private void convertInterval(int interval, byte baseZoomLevel, int[] extent) throws SQLException {
+		Statement stmt = this.conn.createStatement();
+		stmt.executeUpdate("CREATE TABLE tiles_" + interval + "_row_major (id INTEGER, data BLOB, PRIMARY KEY (id));");
+
+		PreparedStatement insertStmt = this.conn.prepareStatement("INSERT INTO tiles_" + interval
+				+ "_row_major VALUES (?, ?);");
+		ResultSet rs = stmt.executeQuery("SELECT id, data FROM tiles_" + interval + ";");
+		int id;
+		Vector<int[]> positions;
+		int[] position;
+		int converted = 0;
+		while (rs.next()) {
+			id = rs.getInt(1);
+			positions = getLegacyIDPositions(id, baseZoomLevel, extent);
+			if (positions.size() != 1) {
+				rs.close();
+				throw new SQLException("Tile ID " + id + " of zoom interval " + interval
+						+ " does not belong to exactly one tile, the map has to be converted again");
+			}
+
+			position = positions.get(0);
+			insertStmt.setInt(1, TagPostingList.toTileKey(position[0], position[1], baseZoomLevel));
+			insertStmt.setBytes(2, rs.getBytes(2));
+			insertStmt.addBatch();
+
+			if (++converted % BATCH_SIZE == 0) {
+				insertStmt.executeBatch();
+			}
+		}
+		rs.close();
+		insertStmt.executeBatch();
+		insertStmt.close();
+
+		stmt.executeUpdate("DROP TABLE tiles_" + interval + ";");
+		stmt.executeUpdate("ALTER TABLE tiles_" + interval + "_row_major RENAME TO tiles_" + interval + ";");
+		stmt.close();
+
+		LOGGER.fine("Converted " + converted + " tiles of zoom interval " + interval);
+	}
+
+	/**
+	 * Finds the tiles within the map's extent having a given legacy ID. As the x-coordinate may exceed
+	 * the factor <code>baseZoomLevel^2</code> of the y-coordinate, several tiles can have the same ID.
+	 * 
+	 * @param id
+	 *            The legacy tile ID.
+	 * @param baseZoomLevel
+	 *            The base zoom level.
+	 * @param extent
+	 *            The map's bounding box as tile range <code>[minX, minY, maxX, maxY]</code>.
+	 * @return The positions <code>[x, y]</code> of all tiles having this ID.
+	 */
+	static Vector<int[]> getLegacyIDPositions(int id, byte baseZoomLevel, int[] extent) {
+		Vector<int[]> ret = new Vector<int[]>(1);
+		int rowLength = baseZoomLevel * baseZoomLevel;
+		if (rowLength == 0) {
+			for (int y = extent[1]; y <= extent[3] && id >= extent[0] && id <= extent[2]; y++) {
+				ret.add(new int[] { id, y });
+			}
+			return ret;
+		}
+
+		// x = id - y * rowLength must lie within [minX, maxX]
+		int minY = Math.max(extent[1], (int) Math.ceil((double) (id - extent[2]) / rowLength));
+		int maxY = Math.min(extent[3], (int) Math.floor((double) (id - extent[0]) / rowLength));
+		for (int y = minY; y <= maxY; y++) {
+			ret.add(new int[] { id - y * rowLength, y });
+		}
+
+		return ret;
+	}
+
+	/**
+	 * 
+	 * @return The bounding box as tile range <code>[minX, minY, maxX, maxY]</code>.
+	 */
+	static int[] getExtent(double minLat, double minLon, double maxLat, double maxLon, byte baseZoomLevel) {
+		return new int[] { (int) MercatorProjection.longitudeToTileX(minLon, baseZoomLevel),
+				(int) MercatorProjection.latitudeToTileY(maxLat, baseZoomLevel),
+				(int) MercatorProjection.longitudeToTileX(maxLon, baseZoomLevel),
+				(int) MercatorProjection.latitudeToTileY(minLat, baseZoomLevel) };
+	}
+
+	/**
+	 * @return A coordinate of the map's bounding box in degrees.
+	 */
+	private double getCoordinate(String key) throws SQLException {
+		String value = getMetaData(this.conn, key);
+		if (value == null) {
+			throw new SQLException("The map has no " + key);
+		}
+
+		return Integer.parseInt(value) / GeoCoordinate.FACTOR_DOUBLE_TO_INT;
+	}
+
+	/**
+	 * @return The metadata value or null if the key does not exist.
+	 */
+	private static String getMetaData(Connection conn, String key) throws SQLException {
+		PreparedStatement stmt = conn.prepareStatement("SELECT value FROM metadata WHERE key == ?;");
+		try {
+			stmt.setString(1, key);
+			ResultSet rs = stmt.executeQuery();
+			return rs.next() ? rs.getString(1) : null;
+		} finally {
+			stmt.close();
+		}
+	}
+}
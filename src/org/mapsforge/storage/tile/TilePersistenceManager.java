@@ -31,6 +31,17 @@ import org.mapsforge.storage.dataExtraction.MapFileMetaData;
  *         TODO Cache data tiles (does it make sense?)
  */
 public interface TilePersistenceManager {
+	/**
+	 * Metadata key of the scheme used for computing tile IDs from the tiles' coordinates. Databases
+	 * without this key use the legacy IDs <code>y * baseZoomLevel^2 + x</code>.
+	 */
+	public static final String TILE_ID_SCHEME_KEY = "tileIDScheme";
+
+	/**
+	 * Tile IDs ordered row by row: <code>(y &lt;&lt; baseZoomLevel) + x</code>, which equals the tile
+	 * keys of {@link TagPostingList}.
+	 */
+	public static final String TILE_ID_SCHEME_ROW_MAJOR = "rowMajor";
 
 	/**
 	 * Replaces a tile in the database with the given data. If the tile does not exist it will be
@@ -150,6 +161,66 @@ public interface TilePersistenceManager {
 	 */
 	public Collection<TileDataContainer> getTileData(final int[] ids, final byte baseZoomInterval);
 
+	/**
+	 * Reads all tiles within a rectangular tile range using a single query and passes them to a
+	 * visitor as they are read. Tile IDs grow with x and y, so by default the tiles are read by a range
+	 * scan over the primary key from the range's first to its last tile, and rows whose IDs do not
+	 * belong to the range are dropped. A full table scan reads the whole table sequentially without
+	 * using the primary key, which is cheaper if the range covers most of the map. Without row-major
+	 * tile IDs (see {@link #hasRowMajorTileIDs()}) the range scan reads far more rows than the range
+	 * contains.
+	 * 
+	 * @param minX
+	 *            Minimal x-coordinate of the range.
+	 * @param minY
+	 *            Minimal y-coordinate of the range.
+	 * @param maxX
+	 *            Maximal x-coordinate of the range.
+	 * @param maxY
+	 *            Maximal y-coordinate of the range.
+	 * @param baseZoomInterval
+	 *            The tiles' base zoom interval.
+	 * @param fullTableScan
+	 *            true for reading the whole table instead of a key range.
+	 * @param visitor
+	 *            Receives all existing tiles within the range including their coordinates.
+	 */
+	public void visitTiles(final int minX, final int minY, final int maxX, final int maxY,
+			final byte baseZoomInterval, final boolean fullTableScan, final TileVisitor visitor);
+
+	/**
+	 * 
+	 * @param baseZoomInterval
+	 *            The base zoom interval.
+	 * @return The number of tiles stored for the given base zoom interval or -1 if it is unknown.
+	 */
+	public int getTileCount(final byte baseZoomInterval);
+
+	/**
+	 * Tells whether the database uses {@link #TILE_ID_SCHEME_ROW_MAJOR row-major} tile IDs. Only then
+	 * the IDs of a tile range's rows are contiguous and each ID belongs to exactly one tile. Databases
+	 * using the legacy IDs can be converted by {@link TileIDMigrator}.
+	 * 
+	 * @return true if tile IDs are ordered row by row.
+	 */
+	public boolean hasRowMajorTileIDs();
+
+	/**
+	 * Retrieves the first bytes of a tile, e.g. its zoom table. Implementations should read only the
+	 * requested bytes from the database where possible.
+	 * 
+	 * @param xPos
+	 *            The tile's x coordinate in the grid for the given base zoom level.
+	 * @param yPos
+	 *            The tile's y coordinate in the grid for the given base zoom level.
+	 * @param baseZoomInterval
+	 *            The tile's base zoom level.
+	 * @param length
+	 *            Number of bytes to be read.
+	 * @return The tile's first bytes (less if the tile is shorter) or null if the tile does not exist.
+	 */
+	public byte[] getTileHeader(final int xPos, final int yPos, final byte baseZoomInterval, final int length);
+
 	/**
 	 * Retrieves the map files metadata such as file version, bounding box, zoom interval configuration
 	 * and more.
@@ -167,6 +238,84 @@ public interface TilePersistenceManager {
 	 */
 	public void setMetaData(MapFileMetaData mapFileMetaData);
 
+	/**
+	 * Replaces the map's way name dictionary. Tiles refer to a name by its index in this array.
+	 * 
+	 * @param wayNames
+	 *            All way names, ordered by frequency (most frequent name first).
+	 */
+	public void setWayNames(final String[] wayNames);
+
+	/**
+	 * Retrieves the map's way name dictionary.
+	 * 
+	 * @return All way names, indexed by their dictionary ID or null if the map has no dictionary.
+	 */
+	public String[] getWayNames();
+
+	/**
+	 * Adds entries to the way index. If the index already has an entry for a way and zoom interval,
+	 * the existing entry is kept.
+	 * 
+	 * @param entries
+	 *            The entries to be added.
+	 */
+	public void insertWayIndexEntries(final WayIndex entries);
+
+	/**
+	 * Retrieves the way index that maps way IDs to the tile and byte offset of their records.
+	 * 
+	 * @return The way index or null if the map has no way index.
+	 */
+	public WayIndex getWayIndex();
+
+	/**
+	 * Inserts or replaces the tag summaries of several tiles and updates the inverted tag index
+	 * accordingly. Writing or deleting a tile removes its summary, so summaries have to be written after
+	 * the tiles they describe.
+	 * 
+	 * @param summaries
+	 *            The tag summaries.
+	 */
+	public void insertOrUpdateTileTagSummaries(final Collection<TileTagSummary> summaries);
+
+	/**
+	 * Retrieves the tag summaries of all tiles within a rectangular tile range. Tiles without a summary
+	 * (e.g. tiles that do not exist or databases created before summaries were introduced) are
+	 * omitted.
+	 * 
+	 * @param minX
+	 *            Minimal x-coordinate of the range.
+	 * @param minY
+	 *            Minimal y-coordinate of the range.
+	 * @param maxX
+	 *            Maximal x-coordinate of the range.
+	 * @param maxY
+	 *            Maximal y-coordinate of the range.
+	 * @param baseZoomInterval
+	 *            The tiles' base zoom interval.
+	 * @return The tag summaries of all tiles in the range having one.
+	 */
+	public Collection<TileTagSummary> getTileTagSummaries(final int minX, final int minY, final int maxX,
+			final int maxY, final byte baseZoomInterval);
+
+	/**
+	 * Retrieves the keys of all tiles containing features with a given tag from the inverted tag index.
+	 * The index is maintained by {@link #insertOrUpdateTileTagSummaries(Collection)}. Tiles written
+	 * without a new summary afterwards are always included, as they may contain any tag.
+	 * 
+	 * @param baseZoomInterval
+	 *            The tiles' base zoom interval.
+	 * @param featureType
+	 *            {@link org.mapsforge.storage.MapDataProvider#FEATURE_TYPE_POI} or
+	 *            {@link org.mapsforge.storage.MapDataProvider#FEATURE_TYPE_WAY}.
+	 * @param tagID
+	 *            The tag's ID.
+	 * @return The tile keys (see {@link TagPostingList}) in ascending order or null if the map has no
+	 *         inverted tag index.
+	 */
+	public int[] getTilesWithTag(final byte baseZoomInterval, final byte featureType, final int tagID);
+
 	/**
 	 * Closes the db.
 	 */
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.tile;
+
+import java.util.BitSet;
+
+import org.mapsforge.applications.debug.Serializer;
+import org.mapsforge.storage.dataExtraction.MapFileMetaData;
+
+/**
+ * Collects the POI and way tag IDs of a vector tile without decoding any coordinates or strings.
+ * 
+ * @author Karsten Groll
+ * 
+ */
+public class TileTagExtractor {
+	private final MapFileMetaData mfm;
+	private final boolean containsWayIDs;
+
+	/**
+	 * 
+	 * @param mfm
+	 *            The meta data of the map the tiles belong to.
+	 * @param containsWayIDs
+	 *            true if the tiles contain way IDs.
+	 */
+	public TileTagExtractor(MapFileMetaData mfm, boolean containsWayIDs) {
+		this.mfm = mfm;
+		this.containsWayIDs = containsWayIDs;
+	}
+
+	/**
+	 * Creates a tag summary for a tile.
+	 * 
+	 * @param tile
+	 *            The tile's raw data.
+	 * @param xPos
+	 *            The tile's x-coordinate in the grid.
+	 * @param yPos
+	 *            The tile's y-coordinate in the grid.
+	 * @param baseZoomInterval
+	 *            The tile's base zoom interval.
+	 * @return All POI and way tag IDs of the tile.
+	 */
+	public TileTagSummary createSummary(byte[] tile, int xPos, int yPos, byte baseZoomInterval) {
+		BitSet poiTags = new BitSet();
+		BitSet wayTags = new BitSet();
+		extractTags(tile, baseZoomInterval, poiTags, wayTags);
+
+		return new TileTagSummary(xPos, yPos, baseZoomInterval, poiTags, wayTags);
+	}
+
+	/**
+	 * Adds all POI and way tag IDs of a tile to the given sets.
+	 * 
+	 * @param tile
+	 *            The tile's raw data.
+	 * @param baseZoomInterval
+	 *            The tile's base zoom interval.
+	 * @param poiTags
+	 *            The set the POI tag IDs are added to.
+	 * @param wayTags
+	 *            The set the way tag IDs are added to.
+	 */
+	public void extractTags(byte[] tile, byte baseZoomInterval, BitSet poiTags, BitSet wayTags) {
+		Serializer s = new Serializer(tile);
+
+		// Tile signature (32B, optional)
+		if (this.mfm.isDebugFlagSet()) {
+			s.skip(32);
+		}
+
+		// Zoom table (the counts are cumulated, so the last row holds the total amounts)
+		int numPois = 0;
+		int numWays = 0;
+		int minZoomLevel = this.mfm.getMinimalZoomLevel()[baseZoomInterval];
+		int maxZoomLevel = this.mfm.getMaximalZoomLevel()[baseZoomInterval];
+		for (int row = minZoomLevel; row <= maxZoomLevel; row++) {
+			numPois = s.getNextShort();
+			numWays = s.getNextShort();
+		}
+
+		// First way offset (VBE-U)
+		s.getNextVBEUInt();
+
+		// POIs
+		byte specialByte;
+		byte flags;
+		for (int poi = 0; poi < numPois; poi++) {
+			if (this.mfm.isDebugFlagSet()) {
+				s.skip(32);
+			}
+
+			// Position
+			s.getNextVBESInt();
+			s.getNextVBESInt();
+
+			specialByte = s.getNextByte();
+			for (byte i = 0; i < (specialByte & 0x0f); i++) {
+				poiTags.set(s.getNextVBEUInt());
+			}
+
+			// Name, elevation, house number
+			flags = s.getNextByte();
+			if ((flags & (byte) 0x80) != 0) {
+				s.skip(s.getNextVBEUInt());
+			}
+			if ((flags & (byte) 0x40) != 0) {
+				s.getNextVBESInt();
+			}
+			if ((flags & (byte) 0x20) != 0) {
+				s.skip(s.getNextVBEUInt());
+			}
+		}
+
+		// Ways
+		int wayDataSize;
+		int wayDataEnd;
+		for (int way = 0; way < numWays; way++) {
+			if (this.mfm.isDebugFlagSet()) {
+				s.skip(32);
+			}
+
+			wayDataSize = s.getNextVBEUInt();
+			wayDataEnd = s.getPosition() + wayDataSize;
+
+			// Way ID and sub tile bitmap
+			s.skip(this.containsWayIDs ? 10 : 2);
+
+			specialByte = s.getNextByte();
+			for (byte i = 0; i < (specialByte & 0x0f); i++) {
+				wayTags.set(s.getNextVBEUInt());
+			}
+
+			s.skip(wayDataEnd - s.getPosition());
+		}
+	}
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.tile;
+
+import java.util.BitSet;
+
+/**
+ * This container stores the set of POI and way tag IDs occurring in a single tile. As there are only a
+ * few hundred tag IDs, the sets are stored as exact bit sets, which take a few dozen bytes per tile.
+ * 
+ * @author Karsten Groll
+ * 
+ */
+public class TileTagSummary {
+	private final int xPos;
+	private final int yPos;
+	private final byte baseZoomInterval;
+	private final BitSet poiTags;
+	private final BitSet wayTags;
+
+	/**
+	 * 
+	 * @param xPos
+	 *            The tile's x-coordinate in the grid.
+	 * @param yPos
+	 *            The tile's y-coordinate in the grid.
+	 * @param baseZoomInterval
+	 *            The tile's base zoom interval.
+	 * @param poiTags
+	 *            All POI tag IDs occurring in the tile.
+	 * @param wayTags
+	 *            All way tag IDs occurring in the tile.
+	 */
+	public TileTagSummary(int xPos, int yPos, byte baseZoomInterval, BitSet poiTags, BitSet wayTags) {
+		this.xPos = xPos;
+		this.yPos = yPos;
+		this.baseZoomInterval = baseZoomInterval;
+		this.poiTags = poiTags;
+		this.wayTags = wayTags;
+	}
+
+	public int getXPos() {
+		return this.xPos;
+	}
+
+	public int getYPos() {
+		return this.yPos;
+	}
+
+	public byte getBaseZoomInterval() {
+		return this.baseZoomInterval;
+	}
+
+	public BitSet getPoiTags() {
+		return this.poiTags;
+	}
+
+	public BitSet getWayTags() {
+		return this.wayTags;
+	}
+
+	/**
+	 * Converts a bit set to a byte array for storing it in the database (bit i is stored in byte i / 8,
+	 * least significant bit first).
+	 * 
+	 * @param bitSet
+	 *            The bit set.
+	 * @return The bit set as byte array.
+	 */
+	public static byte[] toByteArray(BitSet bitSet) {
+		byte[] ret = new byte[(bitSet.length() + 7) / 8];
+
+		for (int i = bitSet.nextSetBit(0); i >= 0; i = bitSet.nextSetBit(i + 1)) {
+			ret[i / 8] |= 1 << (i % 8);
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Converts a byte array created by {@link #toByteArray(BitSet)} back to a bit set.
+	 * 
+	 * @param bytes
+	 *            The byte array. null is read as an empty set, as SQLite drivers may return empty blobs
+	 *            (tiles without any tags) as null.
+	 * @return The bit set.
+	 */
+	public static BitSet fromByteArray(byte[] bytes) {
+		if (bytes == null) {
+			return new BitSet();
+		}
+
+		BitSet ret = new BitSet(bytes.length * 8);
+
+		for (int i = 0; i < bytes.length * 8; i++) {
+			if ((bytes[i / 8] & (1 << (i % 8))) != 0) {
+				ret.set(i);
+			}
+		}
+
+		return ret;
+	}
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.tile;
+
+/**
+ * Callback for receiving tiles one by one while they are read instead of collecting the data of a
+ * whole tile range first.
+ * 
+ * @author Karsten Groll
+ * 
+ */
+public interface TileVisitor {
+	/**
+	 * Called once for each tile read. The tile's data is not referenced afterwards, so it can be
+	 * decoded and dropped right away.
+	 * 
+	 * @param tile
+	 *            The tile including its coordinates.
+	 */
+	public void visitTile(TileDataContainer tile);
+}
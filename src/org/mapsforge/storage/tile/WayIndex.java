@@ -0,0 +1,237 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.tile;
+
+/**
+ * Maps way IDs to the position of a way's record within the map: zoom interval, tile and byte offset
+ * within the tile. There is one entry per way and zoom interval. The entries are stored in parallel
+ * primitive arrays sorted by way ID and interval, so a lookup is a binary search without any object
+ * allocation.
+ * 
+ * @author Karsten Groll
+ * 
+ */
+public class WayIndex {
+	private long[] wayIDs;
+	private byte[] intervals;
+	private int[] tileX;
+	private int[] tileY;
+	private int[] offsets;
+	private int size;
+	private volatile boolean sorted;
+
+	/**
+	 * 
+	 * @param expectedSize
+	 *            Number of entries the index should hold without being resized.
+	 */
+	public WayIndex(int expectedSize) {
+		int capacity = Math.max(16, expectedSize);
+		this.wayIDs = new long[capacity];
+		this.intervals = new byte[capacity];
+		this.tileX = new int[capacity];
+		this.tileY = new int[capacity];
+		this.offsets = new int[capacity];
+		this.size = 0;
+		this.sorted = true;
+	}
+
+	/**
+	 * Adds an entry. Adding the entries in ascending order (by way ID, then interval) avoids sorting
+	 * the index on the first lookup.
+	 * 
+	 * @param wayID
+	 *            The way's OSM ID.
+	 * @param baseZoomInterval
+	 *            The zoom interval.
+	 * @param x
+	 *            The x coordinate of a tile containing the way.
+	 * @param y
+	 *            The y coordinate of a tile containing the way.
+	 * @param offset
+	 *            Offset of the way's record (including its optional debug signature) in bytes from the
+	 *            tile's start.
+	 */
+	public void add(long wayID, byte baseZoomInterval, int x, int y, int offset) {
+		if (this.size == this.wayIDs.length) {
+			grow();
+		}
+
+		if (this.size > 0 && compare(this.size - 1, wayID, baseZoomInterval) > 0) {
+			this.sorted = false;
+		}
+
+		this.wayIDs[this.size] = wayID;
+		this.intervals[this.size] = baseZoomInterval;
+		this.tileX[this.size] = x;
+		this.tileY[this.size] = y;
+		this.offsets[this.size] = offset;
+		++this.size;
+	}
+
+	/**
+	 * Finds the entry for a way in a given zoom interval.
+	 * 
+	 * @param wayID
+	 *            The way's OSM ID.
+	 * @param baseZoomInterval
+	 *            The zoom interval.
+	 * @return The entry's position (for the getters) or -1 if there is no such entry.
+	 */
+	public int find(long wayID, byte baseZoomInterval) {
+		if (!this.sorted) {
+			synchronized (this) {
+				if (!this.sorted) {
+					sort(0, this.size - 1);
+					this.sorted = true;
+				}
+			}
+		}
+
+		int low = 0;
+		int high = this.size - 1;
+		int mid;
+		int cmp;
+		while (low <= high) {
+			mid = (low + high) >>> 1;
+			cmp = compare(mid, wayID, baseZoomInterval);
+
+			if (cmp < 0) {
+				low = mid + 1;
+			} else if (cmp > 0) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * @return Number of entries.
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	public long getWayID(int pos) {
+		return this.wayIDs[pos];
+	}
+
+	public byte getBaseZoomInterval(int pos) {
+		return this.intervals[pos];
+	}
+
+	public int getTileX(int pos) {
+		return this.tileX[pos];
+	}
+
+	public int getTileY(int pos) {
+		return this.tileY[pos];
+	}
+
+	public int getOffset(int pos) {
+		return this.offsets[pos];
+	}
+
+	private int compare(int pos, long wayID, byte baseZoomInterval) {
+		if (this.wayIDs[pos] != wayID) {
+			return this.wayIDs[pos] < wayID ? -1 : 1;
+		}
+
+		return this.intervals[pos] - baseZoomInterval;
+	}
+
+	private void grow() {
+		int capacity = this.wayIDs.length << 1;
+		long[] newWayIDs = new long[capacity];
+		byte[] newIntervals = new byte[capacity];
+		int[] newTileX = new int[capacity];
+		int[] newTileY = new int[capacity];
+		int[] newOffsets = new int[capacity];
+
+		System.arraycopy(this.wayIDs, 0, newWayIDs, 0, this.size);
+		System.arraycopy(this.intervals, 0, newIntervals, 0, this.size);
+		System.arraycopy(this.tileX, 0, newTileX, 0, this.size);
+		System.arraycopy(this.tileY, 0, newTileY, 0, this.size);
+		System.arraycopy(this.offsets, 0, newOffsets, 0, this.size);
+
+		this.wayIDs = newWayIDs;
+		this.intervals = newIntervals;
+		this.tileX = newTileX;
+		this.tileY = newTileY;
+		this.offsets = newOffsets;
+	}
+
+	/**
+	 * Sorts the entries in the given range (quicksort on the parallel arrays).
+	 */
+	private void sort(int from, int to) {
+		int low = from;
+		int high = to;
+
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			long pivotID = this.wayIDs[mid];
+			byte pivotInterval = this.intervals[mid];
+			int i = low;
+			int j = high;
+
+			while (i <= j) {
+				while (compare(i, pivotID, pivotInterval) < 0) {
+					++i;
+				}
+				while (compare(j, pivotID, pivotInterval) > 0) {
+					--j;
+				}
+				if (i <= j) {
+					swap(i++, j--);
+				}
+			}
+
+			// Recurse into the smaller part, loop over the larger one
+			if (j - low < high - i) {
+				sort(low, j);
+				low = i;
+			} else {
+				sort(i, high);
+				high = j;
+			}
+		}
+	}
+
+	private void swap(int i, int j) {
+		long tmpID = this.wayIDs[i];
+		this.wayIDs[i] = this.wayIDs[j];
+		this.wayIDs[j] = tmpID;
+
+		byte tmpInterval = this.intervals[i];
+		this.intervals[i] = this.intervals[j];
+		this.intervals[j] = tmpInterval;
+
+		int tmp = this.tileX[i];
+		this.tileX[i] = this.tileX[j];
+		this.tileX[j] = tmp;
+
+		tmp = this.tileY[i];
+		this.tileY[i] = this.tileY[j];
+		this.tileY[j] = tmp;
+
+		tmp = this.offsets[i];
+		this.offsets[i] = this.offsets[j];
+		this.offsets[j] = tmp;
+	}
+}